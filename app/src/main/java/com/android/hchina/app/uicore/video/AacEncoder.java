@@ -0,0 +1,438 @@
+package com.android.hchina.app.uicore.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AAC编码 - PCM转AAC
+ *
+ * API 23及以上使用MediaCodec回调模式，在独立的HandlerThread上编码，
+ * 输入从PCM队列读取，输出交给Listener；低版本在调用线程上同步编码。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-27
+ */
+public class AacEncoder implements AudioEncoder {
+  private static final String TAG = AacEncoder.class.getSimpleName();
+  private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+  private static final long INPUT_TIMEOUT_US = 10000;  // 同步模式等待输入缓存
+  private static final long RELEASE_TIMEOUT_MS = 500;
+  private static final int PENDING_SIZE = 64;  // 记录编码中的输入(2的幂)
+
+  // MuxerSession默认使用
+  public static final AudioEncoder.Factory FACTORY = new AudioEncoder.Factory() {
+    @Override
+    public AudioEncoder create(FramePool pool, TimestampEngine timestamps, Listener listener) {
+      return new AacEncoder(pool, timestamps, listener);
+    }
+  };
+
+  private final Listener mListener;
+  private final FramePool mFramePool;
+  private final TimestampEngine mTimestamps;
+  private MediaCodec mCodec;
+  private int mChannelCount;
+  private boolean mAsync;
+  private MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+  // 同步模式(API 21以下)的缓存数组
+  private ByteBuffer[] mInputBuffers;
+  private ByteBuffer[] mOutputBuffers;
+
+  // 回调模式
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private FrameQueue mInput;
+  private int[] mFreeInputs = new int[16];
+  private int mFreeCount;
+  private final AtomicBoolean mFeedPending = new AtomicBoolean(false);
+
+  // 结束: 已请求送入EOS / EOS已送入(回调模式) / 已输出EOS
+  private volatile boolean mEndOfStream;
+  private boolean mEosQueued;
+  private volatile boolean mFinished;
+  private long mLastPts;
+
+  // 编码中的输入(显示时间、送入编码器时间、PCM入队时间)，用于统计编码耗时
+  private MuxerMetrics mMetrics;
+  private final long[] mPendingPts = new long[PENDING_SIZE];
+  private final long[] mPendingInputNs = new long[PENDING_SIZE];
+  private final long[] mPendingQueuedNs = new long[PENDING_SIZE];
+  private int mPendingHead;
+  private int mPendingTail;
+
+  public AacEncoder(FramePool pool, TimestampEngine timestamps, Listener listener) {
+    mFramePool = pool;
+    mTimestamps = timestamps;
+    mListener = listener;
+  }
+
+  // 创建并启动LC编码器
+  public boolean start(int sampleRate, int channelCount, int bitRate, FrameQueue input,
+                       boolean async) {
+    return start(new AudioConfig(sampleRate, channelCount, AudioConfig.PROFILE_LC, bitRate),
+            input, async);
+  }
+
+  /**
+   * 创建并启动编码器
+   *
+   * @param config : 编码格式，输入PCM需已转换为该格式
+   * @param input : PCM队列，回调模式下由编码线程读取
+   * @param async : 是否允许回调模式(API 23及以上有效)
+   */
+  @Override
+  public boolean start(AudioConfig config, FrameQueue input, boolean async) {
+    mChannelCount = config.getChannelCount();
+    mInput = input;
+    mAsync = async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    try {
+      mCodec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+      MediaFormat format = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE,
+              config.getSampleRate(), mChannelCount);
+      format.setInteger(MediaFormat.KEY_AAC_PROFILE, getCodecProfile(config.getProfile()));
+      format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());  // 比特率
+      format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 100 * 1024);
+
+      if (mAsync) {
+        mThread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_AUDIO);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        setCallback();
+      }
+      mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      mCodec.start();
+
+      if (!mAsync && Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+      }
+      return true;
+    } catch (IOException | IllegalStateException e) {
+      e.printStackTrace();
+      release();
+      return false;
+    }
+  }
+
+  private static int getCodecProfile(int profile) {
+    switch (profile) {
+      case AudioConfig.PROFILE_HE:
+        return MediaCodecInfo.CodecProfileLevel.AACObjectHE;
+      case AudioConfig.PROFILE_HE_V2:
+        return MediaCodecInfo.CodecProfileLevel.AACObjectHE_PS;
+      default:
+        return MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+    }
+  }
+
+  // 设置统计，需在start之前调用
+  @Override
+  public void setMetrics(MuxerMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  // 是否回调模式
+  @Override
+  public boolean isAsync() {
+    return mAsync;
+  }
+
+  // 有新的PCM数据(生产线程调用)
+  @Override
+  public void signal() {
+    if (mAsync && mHandler != null && mFeedPending.compareAndSet(false, true)) {
+      mHandler.post(mFeedRunnable);
+    }
+  }
+
+  private final Runnable mFeedRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mFeedPending.set(false);
+      feed();
+    }
+  };
+
+  // 释放
+  @Override
+  public void release() {
+    if (mHandler != null) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          releaseCodec();
+        }
+      });
+      mThread.quitSafely();
+      try {
+        mThread.join(RELEASE_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+      mHandler = null;
+      mThread = null;
+    } else {
+      releaseCodec();
+    }
+    mInputBuffers = null;
+    mOutputBuffers = null;
+    mFreeCount = 0;
+  }
+
+  private void releaseCodec() {
+    if (mCodec == null) {
+      return;
+    }
+    try {
+      mCodec.stop();
+      mCodec.release();
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+    }
+    mCodec = null;
+    mFinished = true;
+  }
+
+  // 同步编码一帧PCM(同步模式，调用线程)，没有空闲输入缓存时返回false由调用者重试
+  @Override
+  public boolean encode(MediaFrame frame) {
+    if (mCodec == null || mAsync || !frame.isValid()) {
+      return true;
+    }
+
+    boolean traced = MuxerTrace.begin("AacEncoder.encode");
+    drainOutput(0);
+    // 短暂等待输入缓存，避免编码器阻塞影响视频写入
+    int inputIndex = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+    if (inputIndex >= 0) {
+      queueInput(inputIndex, frame);
+    }
+    drainOutput(0);
+    MuxerTrace.end(traced);
+    return inputIndex >= 0;
+  }
+
+  // 输入结束(同步模式在调用线程输出剩余数据，最多等待RELEASE_TIMEOUT_MS)
+  @Override
+  public void finish() {
+    if (mCodec == null || mEndOfStream) {
+      return;
+    }
+    mEndOfStream = true;
+    if (mAsync) {
+      // 编码线程读完PCM队列后送入EOS
+      Handler handler = mHandler;
+      if (handler != null) {
+        handler.post(mFeedRunnable);
+      }
+      return;
+    }
+
+    boolean traced = MuxerTrace.begin("AacEncoder.finish");
+    long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT_MS;
+    try {
+      int inputIndex = -1;
+      while (inputIndex < 0 && System.currentTimeMillis() < deadline) {
+        drainOutput(0);
+        inputIndex = mCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+      }
+      if (inputIndex >= 0) {
+        mCodec.queueInputBuffer(inputIndex, 0, 0, mLastPts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        while (!mFinished && System.currentTimeMillis() < deadline) {
+          drainOutput(INPUT_TIMEOUT_US);
+        }
+      }
+    } catch (IllegalStateException e) {
+      onError(e);
+    }
+    // 超时后不再等待
+    mFinished = true;
+    mListener.onAudioFinished();
+    MuxerTrace.end(traced);
+  }
+
+  @Override
+  public boolean isFinished() {
+    return mFinished;
+  }
+
+  private void queueInput(int inputIndex, MediaFrame frame) {
+    ByteBuffer inputBuffer = mInputBuffers != null
+            ? mInputBuffers[inputIndex] : mCodec.getInputBuffer(inputIndex);
+    int size = frame.size;
+    if (size > inputBuffer.capacity()) {
+      // 超出输入缓存的部分丢弃(按整采样截断)，计入统计
+      int sampleBytes = 2 * mChannelCount;
+      size = inputBuffer.capacity() / sampleBytes * sampleBytes;
+      if (mMetrics != null) {
+        mMetrics.getAudio().onFrameTruncated(frame.size - size);
+      }
+    }
+    inputBuffer.clear();
+    inputBuffer.put(frame.data, 0, size);
+    // 按采样数计算显示时间(16位PCM)
+    long presentationTimeUs =
+            mTimestamps.audioTime(frame.timeUs, size / (2 * mChannelCount), frame.seq);
+    mCodec.queueInputBuffer(inputIndex, 0, size, presentationTimeUs, 0);
+    mLastPts = presentationTimeUs;
+
+    // 记录输入，满时覆盖最早的
+    int tail = mPendingTail & (PENDING_SIZE - 1);
+    mPendingPts[tail] = presentationTimeUs;
+    mPendingInputNs[tail] = System.nanoTime();
+    mPendingQueuedNs[tail] = frame.queuedNs;
+    mPendingTail++;
+    if (mPendingTail - mPendingHead > PENDING_SIZE) {
+      mPendingHead = mPendingTail - PENDING_SIZE;
+    }
+  }
+
+  // 取出全部输出，timeoutUs为第一次等待的时间
+  private void drainOutput(long timeoutUs) {
+    int outputIndex = mCodec.dequeueOutputBuffer(mOutputInfo, timeoutUs);
+    while (outputIndex >= 0 || outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+      if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        if (mOutputBuffers != null) {
+          mOutputBuffers = mCodec.getOutputBuffers();
+        }
+      } else {
+        ByteBuffer buffer = mOutputBuffers != null
+                ? mOutputBuffers[outputIndex] : mCodec.getOutputBuffer(outputIndex);
+        deliver(buffer, mOutputInfo);
+        mCodec.releaseOutputBuffer(outputIndex, false);
+        if ((mOutputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+          mFinished = true;
+          return;
+        }
+      }
+      outputIndex = mCodec.dequeueOutputBuffer(mOutputInfo, 0);
+    }
+  }
+
+  // 输出编码数据
+  private void deliver(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    if (buffer == null || info.size <= 0) {
+      return;
+    }
+    buffer.limit(info.offset + info.size);
+    buffer.position(info.offset);
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+      byte[] config = new byte[info.size];
+      buffer.get(config);
+      mListener.onAudioConfig(config);
+      return;
+    }
+
+    // 取出显示时间不晚于输出的输入，最后一个即输出对应的输入
+    long inputNs = 0;
+    long queuedNs = 0;
+    while (mPendingHead != mPendingTail) {
+      int head = mPendingHead & (PENDING_SIZE - 1);
+      if (mPendingPts[head] > info.presentationTimeUs) {
+        break;
+      }
+      inputNs = mPendingInputNs[head];
+      queuedNs = mPendingQueuedNs[head];
+      mPendingHead++;
+    }
+    if (mMetrics != null && inputNs > 0) {
+      mMetrics.getEncodeTime().record((System.nanoTime() - inputNs) / 1000);
+    }
+    mListener.onAudioFrame(buffer, info.presentationTimeUs, queuedNs);
+  }
+
+  // 回调模式: 用空闲输入缓存读取PCM队列(编码线程)
+  private void feed() {
+    if (mCodec == null || mInput == null) {
+      return;
+    }
+    boolean traced = MuxerTrace.begin("AacEncoder.feed");
+    try {
+      while (mFreeCount > 0) {
+        MediaFrame frame = mInput.poll();
+        if (frame == null) {
+          break;
+        }
+        if (frame.isValid()) {
+          queueInput(mFreeInputs[--mFreeCount], frame);
+        }
+        mFramePool.recycle(frame);
+      }
+      // 结束时PCM队列已读完再送入EOS
+      if (mEndOfStream && !mEosQueued && mFreeCount > 0 && mInput.isEmpty()) {
+        mCodec.queueInputBuffer(mFreeInputs[--mFreeCount], 0, 0, mLastPts,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        mEosQueued = true;
+      }
+    } catch (IllegalStateException e) {
+      onError(e);
+    }
+    MuxerTrace.end(traced);
+  }
+
+  private void onError(Exception e) {
+    e.printStackTrace();
+    if (mMetrics != null) {
+      mMetrics.onError(e);
+    }
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.M)
+  private void setCallback() {
+    mCodec.setCallback(new MediaCodec.Callback() {
+      @Override
+      public void onInputBufferAvailable(MediaCodec codec, int index) {
+        if (mFreeCount == mFreeInputs.length) {
+          int[] inputs = new int[mFreeCount * 2];
+          System.arraycopy(mFreeInputs, 0, inputs, 0, mFreeCount);
+          mFreeInputs = inputs;
+        }
+        mFreeInputs[mFreeCount++] = index;
+        feed();
+      }
+
+      @Override
+      public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        try {
+          deliver(codec.getOutputBuffer(index), info);
+          codec.releaseOutputBuffer(index, false);
+          if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mFinished = true;
+            mListener.onAudioFinished();
+          }
+        } catch (IllegalStateException e) {
+          AacEncoder.this.onError(e);
+        }
+      }
+
+      @Override
+      public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        AacEncoder.this.onError(e);
+      }
+
+      @Override
+      public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        // 部分设备只在输出格式中提供csd-0
+        ByteBuffer csd = format.getByteBuffer("csd-0");
+        if (csd != null && csd.remaining() > 0) {
+          byte[] config = new byte[csd.remaining()];
+          csd.duplicate().get(config);
+          mListener.onAudioConfig(config);
+        }
+      }
+    }, mHandler);
+  }
+}
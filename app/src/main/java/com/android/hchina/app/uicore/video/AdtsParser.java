@@ -0,0 +1,227 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AAC ADTS帧解析器 - 原地遍历ADTS帧，得到去掉帧头后的AAC裸数据位置
+ *
+ * 解析帧头中的profile、采样率、声道数和帧长，生成MP4音频轨道需要的AudioSpecificConfig；
+ * 帧头损坏时按同步字重新查找。
+ * 一个ADTS帧包含多个原始数据块时，MP4的一个样本只能是一个数据块：有CRC时按帧头中的数据块位置
+ * 逐块返回(去掉每块的CRC)；没有CRC时无法拆分，整帧跳过并计入getRejectedFrames()。
+ * 用法:
+ *   parser.reset(data, offset, size);
+ *   while (parser.next()) { parser.getOffset(); parser.getLength(); parser.getSampleRate(); }
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-10
+ */
+public class AdtsParser {
+  public static final int HEADER_SIZE = 7;  // 无CRC的帧头长度
+  public static final int CRC_SIZE = 2;
+  public static final int SAMPLES_PER_BLOCK = 1024;  // 每个原始数据块的采样数(每声道)
+
+  private byte[] mArray;
+  private ByteBuffer mBuffer;
+  private int mPosition;
+  private int mEnd;
+
+  // 当前帧
+  private int mOffset;
+  private int mLength;
+  private int mProfile;  // AudioObjectType(LC为2)
+  private int mSampleRateIndex;
+  private int mChannelCount;
+  // 当前ADTS帧的原始数据块: 总数、下一个的序号、第一个的位置、帧结束位置
+  private int mBlockCount;
+  private int mBlockNext;
+  private int mFrameStart;
+  private int mFirstBlock;
+  private int mFrameEnd;
+  // 本次reset以来无法拆分而跳过的帧
+  private int mRejectedFrames;
+  private int mRejectedBytes;
+
+  // 最近生成的配置，配置不变时复用
+  private byte[] mConfig;
+
+  // 解析数组
+  public AdtsParser reset(byte[] data, int offset, int size) {
+    mArray = data;
+    mBuffer = null;
+    mPosition = offset;
+    mEnd = offset + size;
+    mLength = 0;
+    mBlockNext = mBlockCount = 0;
+    mRejectedFrames = 0;
+    mRejectedBytes = 0;
+    return this;
+  }
+
+  // 解析ByteBuffer[position, limit)，不改变其position
+  public AdtsParser reset(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return reset(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    mArray = null;
+    mBuffer = buffer;
+    mPosition = buffer.position();
+    mEnd = buffer.limit();
+    mLength = 0;
+    mBlockNext = mBlockCount = 0;
+    mRejectedFrames = 0;
+    mRejectedBytes = 0;
+    return this;
+  }
+
+  // 移到下一个原始数据块(一般一个ADTS帧一块)，末尾不完整的帧不返回
+  public boolean next() {
+    if (mBlockNext < mBlockCount) {
+      return nextBlock();
+    }
+    while (mEnd - mPosition >= HEADER_SIZE) {
+      int start = mPosition;
+      if (get(start) != 0xFF || (get(start + 1) & 0xF6) != 0xF0) {
+        // 不是同步字(layer必须为0)
+        mPosition++;
+        continue;
+      }
+
+      boolean crc = (get(start + 1) & 0x01) == 0;
+      int header = crc ? HEADER_SIZE + CRC_SIZE : HEADER_SIZE;
+      int frameLength = ((get(start + 3) & 0x03) << 11) | (get(start + 4) << 3)
+              | (get(start + 5) >> 5);
+      int sampleRateIndex = (get(start + 2) >> 2) & 0x0F;
+      if (frameLength <= header || Mp4Track.getSampleRate(sampleRateIndex) == 0) {
+        mPosition++;
+        continue;
+      }
+      if (start + frameLength > mEnd) {
+        return false;
+      }
+
+      int blocks = (get(start + 6) & 0x03) + 1;
+      mPosition = start + frameLength;
+      if (blocks > 1) {
+        // 有CRC时帧头中还有各数据块的位置
+        header = HEADER_SIZE + (crc ? 2 * (blocks - 1) + CRC_SIZE : 0);
+        if (!crc || frameLength <= header) {
+          mRejectedFrames++;
+          mRejectedBytes += frameLength;
+          continue;
+        }
+      }
+
+      mProfile = ((get(start + 2) >> 6) & 0x03) + 1;
+      mSampleRateIndex = sampleRateIndex;
+      mChannelCount = ((get(start + 2) & 0x01) << 2) | ((get(start + 3) >> 6) & 0x03);
+      mBlockCount = blocks;
+      mBlockNext = 0;
+      mFrameStart = start;
+      mFirstBlock = start + header;
+      mFrameEnd = start + frameLength;
+      if (nextBlock()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // 当前ADTS帧的下一个数据块；多块时每块末尾有2字节CRC，位置不合法时跳过该帧的剩余部分
+  private boolean nextBlock() {
+    int index = mBlockNext++;
+    if (mBlockCount == 1) {
+      mOffset = mFirstBlock;
+      mLength = mFrameEnd - mFirstBlock;
+      return true;
+    }
+    int start = index == 0 ? mFirstBlock : mFirstBlock + getBlockPosition(index);
+    int end = index + 1 < mBlockCount ? mFirstBlock + getBlockPosition(index + 1) : mFrameEnd;
+    if (start < mFirstBlock || end - CRC_SIZE <= start || end > mFrameEnd) {
+      mRejectedFrames++;
+      mRejectedBytes += mFrameEnd - mFrameStart;
+      mBlockNext = mBlockCount;
+      return next();
+    }
+    mOffset = start;
+    mLength = end - CRC_SIZE - start;
+    return true;
+  }
+
+  // raw_data_block_position[index]: 相对第一个数据块的字节偏移
+  private int getBlockPosition(int index) {
+    int position = mFrameStart + HEADER_SIZE + 2 * (index - 1);
+    return (get(position) << 8) | get(position + 1);
+  }
+
+  private int get(int index) {
+    return (mArray != null ? mArray[index] : mBuffer.get(index)) & 0xFF;
+  }
+
+  // 当前帧AAC裸数据的位置(数组为绝对下标，ByteBuffer为绝对位置)
+  public int getOffset() {
+    return mOffset;
+  }
+
+  public int getLength() {
+    return mLength;
+  }
+
+  // 已解析到的位置，之后的数据不足一帧
+  public int getPosition() {
+    return mPosition;
+  }
+
+  public int getProfile() {
+    return mProfile;
+  }
+
+  public int getSampleRate() {
+    return Mp4Track.getSampleRate(mSampleRateIndex);
+  }
+
+  public int getChannelCount() {
+    return mChannelCount;
+  }
+
+  // 当前数据块是否为ADTS帧的第一块
+  public boolean isFrameStart() {
+    return mBlockNext == 1;
+  }
+
+  // 当前数据块的采样数(每声道)
+  public int getSamples() {
+    return SAMPLES_PER_BLOCK;
+  }
+
+  // 本次reset以来因多个数据块又没有CRC而跳过的ADTS帧数及字节数
+  public int getRejectedFrames() {
+    return mRejectedFrames;
+  }
+
+  public int getRejectedBytes() {
+    return mRejectedBytes;
+  }
+
+  /**
+   * 当前帧的AudioSpecificConfig，配置未变化时返回同一个数组
+   *
+   * 声道数为0(由码流中的PCE指定)时无法生成，按双声道处理。
+   */
+  public byte[] getConfig() {
+    int channels = mChannelCount > 0 ? mChannelCount : 2;
+    byte[] config = mConfig;
+    if (config == null || ((config[0] & 0xFF) >> 3) != mProfile
+            || (((config[0] & 0x07) << 1) | ((config[1] & 0xFF) >> 7)) != mSampleRateIndex
+            || ((config[1] >> 3) & 0x0F) != channels) {
+      config = new byte[2];
+      config[0] = (byte) ((mProfile << 3) | (mSampleRateIndex >> 1));
+      config[1] = (byte) (((mSampleRateIndex & 0x01) << 7) | (channels << 3));
+      mConfig = config;
+    }
+    return config;
+  }
+}
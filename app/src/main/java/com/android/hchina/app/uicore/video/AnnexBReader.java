@@ -0,0 +1,107 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H264 Annex-B访问单元读取 - 在ByteBuffer(如内存映射文件)中按帧切分，不复制数据
+ *
+ * 已有图像数据后，遇到AUD/SPS/PPS/SEI或first_mb_in_slice为0的slice即为下一帧开始。
+ * 用法:
+ *   reader.reset(buffer);
+ *   while (reader.next()) { reader.getOffset(); reader.getLength(); reader.isKeyFrame(); }
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-14
+ */
+public class AnnexBReader {
+  private final NalScanner mScanner = new NalScanner();
+  private ByteBuffer mBuffer;
+  // 扫描器偏移与缓存位置的差(有数组时为数组偏移)
+  private int mBase;
+  // 扫描器停在下一帧的第一个NAL
+  private boolean mPending;
+
+  // 当前帧
+  private int mOffset;
+  private int mLength;
+  private boolean mKeyFrame;
+
+  // 读取buffer的[position, limit)，不改变其position
+  public AnnexBReader reset(ByteBuffer buffer) {
+    mBuffer = buffer;
+    mBase = buffer.hasArray() ? buffer.arrayOffset() : 0;
+    mScanner.reset(buffer);
+    mPending = mScanner.next();
+    mLength = 0;
+    return this;
+  }
+
+  // 移到下一帧
+  public boolean next() {
+    if (!mPending) {
+      mLength = 0;
+      return false;
+    }
+
+    NalScanner scanner = mScanner;
+    int start = nalStart();
+    int end = start;
+    boolean vcl = false;
+    boolean key = false;
+    do {
+      int type = scanner.getType();
+      if (vcl && isFirstNal(type)) {
+        break;
+      }
+      vcl |= scanner.isVcl();
+      key |= type == NalScanner.NAL_IDR;
+      end = scanner.getOffset() + scanner.getLength() - mBase;
+      mPending = scanner.next();
+    } while (mPending);
+
+    mOffset = start;
+    mLength = (mPending ? nalStart() : end) - start;
+    mKeyFrame = key;
+    return true;
+  }
+
+  // 当前NAL(含起始码)在缓存中的位置
+  private int nalStart() {
+    return mScanner.getOffset() - mScanner.getStartCodeLength() - mBase;
+  }
+
+  // 当前NAL是否开始新的一帧
+  private boolean isFirstNal(int type) {
+    switch (type) {
+      case NalScanner.NAL_AUD:
+      case NalScanner.NAL_SPS:
+      case NalScanner.NAL_PPS:
+      case NalScanner.NAL_SEI:
+        return true;
+      case NalScanner.NAL_SLICE:
+      case NalScanner.NAL_IDR:
+        // first_mb_in_slice为0时ue(v)的第一位为1
+        int payload = mScanner.getOffset() + 1 - mBase;
+        return mScanner.getLength() > 1 && (mBuffer.get(payload) & 0x80) != 0;
+      default:
+        return type >= 14 && type <= 18;
+    }
+  }
+
+  // 当前帧(含起始码)在缓存中的绝对位置
+  public int getOffset() {
+    return mOffset;
+  }
+
+  public int getLength() {
+    return mLength;
+  }
+
+  // 是否包含IDR
+  public boolean isKeyFrame() {
+    return mKeyFrame;
+  }
+}
@@ -0,0 +1,167 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * 音频编码配置 - 采样率、声道数、AAC profile和比特率
+ *
+ * 比特率未指定时按采样率、声道数和profile估算(HE-AAC约为LC的三分之一)；
+ * 设置输入格式后，输入与编码格式不同时由PcmConverter重采样/下混再编码。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-12
+ */
+public class AudioConfig {
+  // AAC profile(AudioObjectType)
+  public static final int PROFILE_LC = 2;
+  public static final int PROFILE_HE = 5;
+  public static final int PROFILE_HE_V2 = 29;
+  // 每个AAC帧按输出采样率计的采样数，SBR(HE/HE-v2)输出为核心的两倍
+  public static final int FRAME_SIZE = 1024;
+  public static final int SBR_FRAME_SIZE = 2048;
+
+  private static final int MAX_SAMPLE_RATE = 48000;
+  private static final int MIN_BIT_RATE = 8000;
+  private static final int MAX_BIT_RATE = 320000;
+
+  private final int mSampleRate;
+  private final int mChannelCount;
+  private final int mProfile;
+  private final int mBitRate;
+  // 输入PCM格式，默认与编码格式相同
+  private int mInputSampleRate;
+  private int mInputChannelCount;
+
+  // 原默认配置(32kHz双声道LC)
+  public static AudioConfig getDefault() {
+    return new AudioConfig(32000, 2, PROFILE_LC, 320000);
+  }
+
+  // 语音(16kHz单声道LC)
+  public static AudioConfig voice() {
+    return new AudioConfig(16000, 1, PROFILE_LC, 0);
+  }
+
+  /**
+   * 按输入格式确定编码格式：采样率取不超过48kHz的AAC标准采样率，多声道下混为双声道
+   *
+   * @param sampleRate : 输入采样率
+   * @param channelCount : 输入声道数
+   */
+  public static AudioConfig fromInput(int sampleRate, int channelCount) {
+    AudioConfig config = new AudioConfig(sampleRate, channelCount, PROFILE_LC, 0);
+    return config.setInput(sampleRate, channelCount);
+  }
+
+  public AudioConfig(int sampleRate, int channelCount) {
+    this(sampleRate, channelCount, PROFILE_LC, 0);
+  }
+
+  /**
+   * @param sampleRate : 编码采样率，取最接近的AAC标准采样率(不超过48kHz)
+   * @param channelCount : 编码声道数(1或2)，HE-AACv2固定为双声道
+   * @param profile : PROFILE_LC/PROFILE_HE/PROFILE_HE_V2，其他值按LC处理
+   * @param bitRate : 比特率，小于等于0时按格式估算
+   */
+  public AudioConfig(int sampleRate, int channelCount, int profile, int bitRate) {
+    mProfile = profile == PROFILE_HE || profile == PROFILE_HE_V2 ? profile : PROFILE_LC;
+    mSampleRate = getSupportedSampleRate(sampleRate);
+    mChannelCount = mProfile == PROFILE_HE_V2 || channelCount > 1 ? 2 : 1;
+    mBitRate = bitRate > 0 ? bitRate : getDefaultBitRate(mSampleRate, mChannelCount, mProfile);
+    mInputSampleRate = mSampleRate;
+    mInputChannelCount = mChannelCount;
+  }
+
+  /**
+   * 设置输入PCM格式(16位交织)
+   *
+   * @return this
+   */
+  public AudioConfig setInput(int sampleRate, int channelCount) {
+    mInputSampleRate = sampleRate > 0 ? sampleRate : mSampleRate;
+    mInputChannelCount = channelCount > 0 ? channelCount : mChannelCount;
+    return this;
+  }
+
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  public int getChannelCount() {
+    return mChannelCount;
+  }
+
+  public int getProfile() {
+    return mProfile;
+  }
+
+  // 每个AAC帧的采样数(按输出采样率)
+  public int getFrameSize() {
+    return getFrameSize(mProfile);
+  }
+
+  public static int getFrameSize(int profile) {
+    return profile == PROFILE_HE || profile == PROFILE_HE_V2 ? SBR_FRAME_SIZE : FRAME_SIZE;
+  }
+
+  public int getBitRate() {
+    return mBitRate;
+  }
+
+  public int getInputSampleRate() {
+    return mInputSampleRate;
+  }
+
+  public int getInputChannelCount() {
+    return mInputChannelCount;
+  }
+
+  // 输入需要转换
+  public boolean needsConversion() {
+    return mInputSampleRate != mSampleRate || mInputChannelCount != mChannelCount;
+  }
+
+  // 创建输入转换，不需要转换时返回null
+  public PcmConverter createConverter() {
+    if (!needsConversion()) {
+      return null;
+    }
+    return new PcmConverter(mInputSampleRate, mInputChannelCount, mSampleRate, mChannelCount);
+  }
+
+  /**
+   * 估算比特率：LC每声道约1.5bit/采样，HE约0.5bit/采样，HE-AACv2按单声道计算
+   */
+  public static int getDefaultBitRate(int sampleRate, int channelCount, int profile) {
+    long bitRate;
+    if (profile == PROFILE_HE_V2) {
+      bitRate = sampleRate / 2;
+    } else if (profile == PROFILE_HE) {
+      bitRate = (long) sampleRate * channelCount / 2;
+    } else {
+      bitRate = (long) sampleRate * channelCount * 3 / 2;
+    }
+    return (int) Math.max(MIN_BIT_RATE, Math.min(bitRate, MAX_BIT_RATE));
+  }
+
+  // 不超过48kHz的最接近的AAC标准采样率
+  public static int getSupportedSampleRate(int sampleRate) {
+    int best = MAX_SAMPLE_RATE;
+    for (int index = 0; Mp4Track.getSampleRate(index) > 0; index++) {
+      int rate = Mp4Track.getSampleRate(index);
+      if (rate <= MAX_SAMPLE_RATE
+              && Math.abs(rate - sampleRate) < Math.abs(best - sampleRate)) {
+        best = rate;
+      }
+    }
+    return best;
+  }
+
+  @Override
+  public String toString() {
+    return "AudioConfig{" + mSampleRate + "Hz, " + mChannelCount + "ch, profile=" + mProfile
+            + ", " + mBitRate + "bps, input=" + mInputSampleRate + "Hz/" + mInputChannelCount
+            + "ch}";
+  }
+}
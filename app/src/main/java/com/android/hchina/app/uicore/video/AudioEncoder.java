@@ -0,0 +1,80 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 音频编码接口 - PCM转AAC，MuxerSession通过Factory创建
+ *
+ * 设备上为AacEncoder(MediaCodec)；在JVM上运行时可替换为不依赖android的实现。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-22
+ */
+public interface AudioEncoder {
+
+  // 编码输出
+  interface Listener {
+    // AudioSpecificConfig
+    void onAudioConfig(byte[] config);
+
+    /**
+     * 编码后的AAC帧，buffer的[position, limit)为数据
+     *
+     * @param queuedNs : 对应PCM帧的入队时间，未知时为0
+     */
+    void onAudioFrame(ByteBuffer buffer, long presentationTimeUs, long queuedNs);
+
+    // finish之后已输出全部数据，isFinished变为true之后调用(回调模式在编码线程)
+    void onAudioFinished();
+  }
+
+  // 创建编码器
+  interface Factory {
+    /**
+     * @param pool : 帧缓存池，回调模式下读取的PCM帧归还到这里
+     * @param timestamps : 按采样数计算显示时间
+     */
+    AudioEncoder create(FramePool pool, TimestampEngine timestamps, Listener listener);
+  }
+
+  // 设置统计，需在start之前调用
+  void setMetrics(MuxerMetrics metrics);
+
+  /**
+   * 启动编码器
+   *
+   * @param config : 编码格式，输入PCM需已转换为该格式
+   * @param input : PCM队列，回调模式下由编码器读取
+   * @param async : 是否允许回调模式
+   */
+  boolean start(AudioConfig config, FrameQueue input, boolean async);
+
+  // 是否回调模式(自己读取PCM队列)
+  boolean isAsync();
+
+  // 有新的PCM数据(生产线程调用)
+  void signal();
+
+  /**
+   * 同步编码一帧PCM(非回调模式，调用线程)
+   *
+   * @return 是否已送入编码器；输入缓存暂时没有空闲时返回false，帧仍归调用者，稍后重试
+   */
+  boolean encode(MediaFrame frame);
+
+  /**
+   * 输入结束: 送入结束标志(EOS)，编码器输出缓存中剩余的数据
+   *
+   * 同步模式在调用线程输出完再返回；回调模式由编码线程读完PCM队列后送入，输出EOS后回调onAudioFinished。
+   */
+  void finish();
+
+  // 是否已输出全部数据(收到EOS，或编码器已失效)
+  boolean isFinished();
+
+  // 释放
+  void release();
+}
@@ -0,0 +1,303 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * H264 轨道配置 - 收集SPS/PPS并缓存avcC(AVCDecoderConfigurationRecord)
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-20
+ */
+public class AvcConfig {
+  private static final int MAX_PARAMETER_SETS = 8;
+
+  private final List<byte[]> mSpsList = new ArrayList<>();
+  private final List<byte[]> mPpsList = new ArrayList<>();
+  // 缓存的avcC，参数集变化时重建
+  private byte[] mAvcC;
+  // 第一个SPS中的图像尺寸，小于0表示未解析
+  private int mWidth = -1;
+  private int mHeight = -1;
+
+  // 是否已有SPS和PPS
+  public boolean isReady() {
+    return !mSpsList.isEmpty() && !mPpsList.isEmpty();
+  }
+
+  public List<byte[]> getSpsList() {
+    return mSpsList;
+  }
+
+  public List<byte[]> getPpsList() {
+    return mPpsList;
+  }
+
+  // 第一个SPS
+  public byte[] getSps() {
+    return mSpsList.isEmpty() ? null : mSpsList.get(0);
+  }
+
+  // 第一个PPS
+  public byte[] getPps() {
+    return mPpsList.isEmpty() ? null : mPpsList.get(0);
+  }
+
+  /**
+   * 增加参数集，已存在的忽略，id相同的替换
+   *
+   * @return 是否有变化
+   */
+  public boolean add(int type, byte[] data, int offset, int length) {
+    List<byte[]> list = type == NalScanner.NAL_SPS ? mSpsList : mPpsList;
+    int id = parseId(type, data, offset);
+    int index = -1;
+    for (int i = 0; i < list.size(); i++) {
+      byte[] item = list.get(i);
+      if (equals(item, data, offset, length)) {
+        return false;
+      }
+      if (id >= 0 && index < 0 && parseId(type, item, 0) == id) {
+        index = i;
+      }
+    }
+    byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+    if (index >= 0) {
+      list.set(index, copy);
+    } else if (list.size() < MAX_PARAMETER_SETS) {
+      list.add(copy);
+    } else {
+      return false;
+    }
+    mAvcC = null;
+    mWidth = -1;
+    return true;
+  }
+
+  // seq_parameter_set_id / pic_parameter_set_id，解析失败时返回-1
+  private static int parseId(int type, byte[] data, int offset) {
+    try {
+      BitReader reader = new BitReader(data, offset);
+      // SPS: NAL头、profile_idc、constraint_flags、level_idc之后；PPS: NAL头之后
+      reader.skip(type == NalScanner.NAL_SPS ? 32 : 8);
+      return reader.readUe();
+    } catch (RuntimeException e) {
+      return -1;
+    }
+  }
+
+  // 清空
+  public void clear() {
+    mSpsList.clear();
+    mPpsList.clear();
+    mAvcC = null;
+    mWidth = -1;
+  }
+
+  // 图像宽度(第一个SPS，已减去裁剪)，没有SPS或解析失败时返回0
+  public int getWidth() {
+    parseSize();
+    return mWidth;
+  }
+
+  // 图像高度
+  public int getHeight() {
+    parseSize();
+    return mHeight;
+  }
+
+  private void parseSize() {
+    if (mWidth >= 0) {
+      return;
+    }
+    mWidth = 0;
+    mHeight = 0;
+    byte[] sps = getSps();
+    if (sps == null) {
+      return;
+    }
+    try {
+      parseSize(new BitReader(sps));
+    } catch (RuntimeException e) {
+      // SPS不完整或损坏
+      mWidth = 0;
+      mHeight = 0;
+    }
+  }
+
+  // 按H264 7.3.2.1解析到frame_cropping为止
+  private void parseSize(BitReader reader) {
+    reader.skip(8);  // NAL头
+    int profile = reader.read(8);
+    reader.skip(16);  // constraint_flags, level_idc
+    reader.readUe();  // seq_parameter_set_id
+    int chromaFormat = 1;
+    boolean separateColourPlane = false;
+    if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+            || profile == 83 || profile == 86 || profile == 118 || profile == 128
+            || profile == 138 || profile == 139 || profile == 134 || profile == 135) {
+      chromaFormat = reader.readUe();
+      if (chromaFormat == 3) {
+        separateColourPlane = reader.read(1) == 1;
+      }
+      reader.readUe();  // bit_depth_luma_minus8
+      reader.readUe();  // bit_depth_chroma_minus8
+      reader.skip(1);  // qpprime_y_zero_transform_bypass_flag
+      if (reader.read(1) == 1) {
+        // seq_scaling_list
+        for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+          if (reader.read(1) == 1) {
+            skipScalingList(reader, i < 6 ? 16 : 64);
+          }
+        }
+      }
+    }
+    reader.readUe();  // log2_max_frame_num_minus4
+    int pocType = reader.readUe();
+    if (pocType == 0) {
+      reader.readUe();  // log2_max_pic_order_cnt_lsb_minus4
+    } else if (pocType == 1) {
+      reader.skip(1);  // delta_pic_order_always_zero_flag
+      reader.readSe();  // offset_for_non_ref_pic
+      reader.readSe();  // offset_for_top_to_bottom_field
+      int cycle = reader.readUe();
+      for (int i = 0; i < cycle; i++) {
+        reader.readSe();
+      }
+    }
+    reader.readUe();  // max_num_ref_frames
+    reader.skip(1);  // gaps_in_frame_num_value_allowed_flag
+    int widthInMbs = reader.readUe() + 1;
+    int heightInMapUnits = reader.readUe() + 1;
+    int frameMbsOnly = reader.read(1);
+    if (frameMbsOnly == 0) {
+      reader.skip(1);  // mb_adaptive_frame_field_flag
+    }
+    reader.skip(1);  // direct_8x8_inference_flag
+
+    int width = widthInMbs * 16;
+    int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+    if (reader.read(1) == 1) {
+      // 裁剪单位与色度格式有关
+      int arrayType = separateColourPlane ? 0 : chromaFormat;
+      int cropX = arrayType == 0 || arrayType == 3 ? 1 : 2;
+      int cropY = (arrayType == 1 ? 2 : 1) * (2 - frameMbsOnly);
+      int left = reader.readUe();
+      int right = reader.readUe();
+      int top = reader.readUe();
+      int bottom = reader.readUe();
+      width -= cropX * (left + right);
+      height -= cropY * (top + bottom);
+    }
+    mWidth = Math.max(width, 0);
+    mHeight = Math.max(height, 0);
+  }
+
+  private static void skipScalingList(BitReader reader, int size) {
+    int last = 8;
+    int next = 8;
+    for (int i = 0; i < size; i++) {
+      if (next != 0) {
+        next = (last + reader.readSe() + 256) % 256;
+      }
+      last = next == 0 ? last : next;
+    }
+  }
+
+  // RBSP位读取，跳过防竞争字节(00 00 03)
+  private static class BitReader {
+    private final byte[] mData;
+    private int mByte;
+    private int mBit;
+    private int mZeros;
+
+    BitReader(byte[] data) {
+      this(data, 0);
+    }
+
+    BitReader(byte[] data, int offset) {
+      mData = data;
+      mByte = offset;
+    }
+
+    int read(int bits) {
+      int value = 0;
+      for (int i = 0; i < bits; i++) {
+        if (mBit == 0 && mZeros >= 2 && mData[mByte] == 3) {
+          mByte++;
+          mZeros = 0;
+        }
+        int bit = (mData[mByte] >> (7 - mBit)) & 1;
+        value = (value << 1) | bit;
+        if (++mBit == 8) {
+          mZeros = mData[mByte] == 0 ? mZeros + 1 : 0;
+          mBit = 0;
+          mByte++;
+        }
+      }
+      return value;
+    }
+
+    void skip(int bits) {
+      read(bits);
+    }
+
+    int readUe() {
+      int zeros = 0;
+      while (read(1) == 0) {
+        if (++zeros > 31) {
+          throw new IllegalArgumentException("exp-golomb");
+        }
+      }
+      return zeros == 0 ? 0 : (1 << zeros) - 1 + read(zeros);
+    }
+
+    int readSe() {
+      int value = readUe();
+      return (value & 1) != 0 ? (value + 1) / 2 : -(value / 2);
+    }
+  }
+
+  // avcC内容(不含box头)
+  public byte[] getAvcC() {
+    if (mAvcC != null || !isReady()) {
+      return mAvcC;
+    }
+
+    byte[] sps = mSpsList.get(0);
+    Mp4Box box = new Mp4Box(64);
+    box.putByte(1);
+    box.putByte(sps.length > 1 ? sps[1] : 0);  // profile
+    box.putByte(sps.length > 2 ? sps[2] : 0);  // compatibility
+    box.putByte(sps.length > 3 ? sps[3] : 0);  // level
+    box.putByte(0xFF);  // lengthSizeMinusOne = 3
+    box.putByte(0xE0 | mSpsList.size());
+    for (byte[] item : mSpsList) {
+      box.putShort(item.length);
+      box.putBytes(item);
+    }
+    box.putByte(mPpsList.size());
+    for (byte[] item : mPpsList) {
+      box.putShort(item.length);
+      box.putBytes(item);
+    }
+    mAvcC = box.toArray();
+    return mAvcC;
+  }
+
+  private static boolean equals(byte[] item, byte[] data, int offset, int length) {
+    if (item.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (item[i] != data[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,206 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Annex-B转AVCC(4字节长度前缀) - 写入前的样本转换
+ *
+ * 4字节起始码原地改写为NAL长度，相邻单元合并为一段连续数据；
+ * 3字节起始码(或禁止原地改写时)记为需要外部长度头的分段，写入时聚集写。
+ * SPS/PPS从样本中剥离存入AvcConfig，AUD直接丢弃；参数集在已就绪后发生变化(如分辨率/码率切换)时，
+ * 从这一帧起SPS/PPS保留在样本中(in-band)，样本描述需改为avc3。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-20
+ */
+public class AvccConverter {
+  private static final int INIT_SEGMENTS = 16;
+
+  private final NalScanner mScanner = new NalScanner();
+  private final AvcConfig mConfig;
+  private boolean mInPlace = true;
+
+  // 转换结果分段
+  private int[] mOffsets = new int[INIT_SEGMENTS];
+  private int[] mLengths = new int[INIT_SEGMENTS];
+  private boolean[] mNeedHeader = new boolean[INIT_SEGMENTS];
+  private int mCount;
+  private int mSampleSize;
+  private boolean mHasVcl;
+  private boolean mConfigChanged;
+  private boolean mInBand;
+
+  public AvccConverter(AvcConfig config) {
+    mConfig = config;
+  }
+
+  public AvcConfig getConfig() {
+    return mConfig;
+  }
+
+  // 是否允许原地改写输入数据
+  public void setInPlace(boolean inPlace) {
+    mInPlace = inPlace;
+  }
+
+  /**
+   * 转换一帧Annex-B数据
+   *
+   * @return 样本大小(含长度前缀)，不含图像数据时返回0
+   */
+  public int convert(byte[] data, int offset, int size) {
+    mCount = 0;
+    mSampleSize = 0;
+    mHasVcl = false;
+    mConfigChanged = false;
+
+    NalScanner scanner = mScanner.reset(data, offset, size);
+    if (!scanner.hasStartCode()) {
+      // 已是长度前缀格式
+      addSegment(offset, size, false);
+      mHasVcl = true;
+      return mSampleSize;
+    }
+
+    while (scanner.next()) {
+      int type = scanner.getType();
+      int nal = scanner.getOffset();
+      int length = scanner.getLength();
+      if (type == NalScanner.NAL_SPS || type == NalScanner.NAL_PPS) {
+        addParameterSet(type, data, nal, length);
+        if (!mInBand) {
+          continue;
+        }
+      } else if (type == NalScanner.NAL_AUD) {
+        continue;
+      }
+
+      mHasVcl |= scanner.isVcl();
+      if (mInPlace && scanner.getStartCodeLength() == 4) {
+        int pos = nal - 4;
+        data[pos] = (byte) (length >> 24);
+        data[pos + 1] = (byte) (length >> 16);
+        data[pos + 2] = (byte) (length >> 8);
+        data[pos + 3] = (byte) length;
+        addSegment(pos, length + 4, false);
+      } else {
+        addSegment(nal, length, true);
+      }
+    }
+    return mHasVcl ? mSampleSize : 0;
+  }
+
+  /**
+   * 转换ByteBuffer[position, limit)中的一帧Annex-B数据，不改变其position
+   *
+   * 无数组的缓存(如内存映射文件)不原地改写，分段偏移为缓存中的绝对位置，都需要外部长度头；
+   * 有数组的缓存按数组转换，分段偏移为数组下标。
+   *
+   * @return 样本大小(含长度前缀)，不含图像数据时返回0
+   */
+  public int convert(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return convert(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    mCount = 0;
+    mSampleSize = 0;
+    mHasVcl = false;
+    mConfigChanged = false;
+
+    NalScanner scanner = mScanner.reset(buffer);
+    if (!scanner.hasStartCode()) {
+      addSegment(buffer.position(), buffer.remaining(), false);
+      mHasVcl = true;
+      return mSampleSize;
+    }
+
+    while (scanner.next()) {
+      int type = scanner.getType();
+      if (type == NalScanner.NAL_SPS || type == NalScanner.NAL_PPS) {
+        byte[] nal = scanner.copy();
+        addParameterSet(type, nal, 0, nal.length);
+        if (!mInBand) {
+          continue;
+        }
+      } else if (type == NalScanner.NAL_AUD) {
+        continue;
+      }
+      mHasVcl |= scanner.isVcl();
+      addSegment(scanner.getOffset(), scanner.getLength(), true);
+    }
+    return mHasVcl ? mSampleSize : 0;
+  }
+
+  // 更新参数集，已就绪的配置发生变化时转为in-band
+  private void addParameterSet(int type, byte[] data, int offset, int length) {
+    boolean ready = mConfig.isReady();
+    if (mConfig.add(type, data, offset, length)) {
+      mConfigChanged = true;
+      mInBand |= ready;
+    }
+  }
+
+  // 本帧是否更新了参数集
+  public boolean isConfigChanged() {
+    return mConfigChanged;
+  }
+
+  // 参数集是否保留在样本中(中途变化之后)
+  public boolean isInBand() {
+    return mInBand;
+  }
+
+  public boolean hasVcl() {
+    return mHasVcl;
+  }
+
+  public int getSampleSize() {
+    return mSampleSize;
+  }
+
+  public int getSegmentCount() {
+    return mCount;
+  }
+
+  public int getSegmentOffset(int index) {
+    return mOffsets[index];
+  }
+
+  public int getSegmentLength(int index) {
+    return mLengths[index];
+  }
+
+  // 分段是否需要外部4字节长度头
+  public boolean needHeader(int index) {
+    return mNeedHeader[index];
+  }
+
+  private void addSegment(int offset, int length, boolean needHeader) {
+    mSampleSize += needHeader ? length + 4 : length;
+    // 与上一段连续则合并
+    if (!needHeader && mCount > 0 && !mNeedHeader[mCount - 1]
+            && mOffsets[mCount - 1] + mLengths[mCount - 1] == offset) {
+      mLengths[mCount - 1] += length;
+      return;
+    }
+    if (mCount == mOffsets.length) {
+      int capacity = mCount * 2;
+      int[] offsets = new int[capacity];
+      int[] lengths = new int[capacity];
+      boolean[] needHeaders = new boolean[capacity];
+      System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+      System.arraycopy(mLengths, 0, lengths, 0, mCount);
+      System.arraycopy(mNeedHeader, 0, needHeaders, 0, mCount);
+      mOffsets = offsets;
+      mLengths = lengths;
+      mNeedHeader = needHeaders;
+    }
+    mOffsets[mCount] = offset;
+    mLengths[mCount] = length;
+    mNeedHeader[mCount] = needHeader;
+    mCount++;
+  }
+}
@@ -0,0 +1,208 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 离线批量合成 - 把.h264(Annex-B)和.aac(ADTS)文件合成为MP4
+ *
+ * 输入文件以只读方式内存映射，AnnexBReader/AdtsParser在映射缓存上切分帧，
+ * 样本直接从映射缓存写入Mp4Writer，不经过帧缓存和实时队列。
+ * 多个文件在固定数量的工作线程上并行合成；等待队列满时由提交线程自己执行，限制积压。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-14
+ */
+public class BatchMuxer {
+  private static final String TAG = BatchMuxer.class.getSimpleName();
+  private static final int DEFAULT_FRAME_RATE = 25;
+  private static final int QUEUE_PER_THREAD = 2;  // 每个线程的等待任务数
+
+  private final ThreadPoolExecutor mExecutor;
+  private volatile int mFrameRate = DEFAULT_FRAME_RATE;
+
+  // 线程数与CPU核数相同
+  public BatchMuxer() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public BatchMuxer(int threads) {
+    threads = Math.max(threads, 1);
+    mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadFactory() {
+              private final AtomicInteger mIndex = new AtomicInteger();
+
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + "-" + mIndex.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+              }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  // 视频帧率(源文件没有时间戳，按帧率计算)，需在submit之前设置
+  public void setFrameRate(int frameRate) {
+    mFrameRate = Math.max(frameRate, 1);
+  }
+
+  public int getFrameRate() {
+    return mFrameRate;
+  }
+
+  /**
+   * 提交一个合成任务
+   *
+   * @param videoPath : H264 Annex-B文件，可为空
+   * @param audioPath : AAC ADTS文件，可为空
+   * @param outputPath : 输出MP4
+   * @return 结果，失败时get()抛出ExecutionException(原因为IOException)
+   */
+  public Future<Boolean> submit(final String videoPath, final String audioPath,
+                                final String outputPath) {
+    final int frameRate = mFrameRate;
+    return mExecutor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        return mux(videoPath, audioPath, outputPath, frameRate);
+      }
+    });
+  }
+
+  // 不再接受新任务，已提交的继续完成
+  public void shutdown() {
+    mExecutor.shutdown();
+  }
+
+  // 等待已提交的任务完成
+  public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+    return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 在当前线程合成一个文件
+   *
+   * @param frameRate : 视频帧率
+   * @return 是否写入了样本
+   */
+  public static boolean mux(String videoPath, String audioPath, String outputPath,
+                            int frameRate) throws IOException {
+    RandomAccessFile videoFile = null;
+    RandomAccessFile audioFile = null;
+    Mp4Writer writer = new Mp4Writer();
+    if (!writer.open(outputPath)) {
+      throw new IOException("open " + outputPath);
+    }
+    try {
+      ByteBuffer video = null;
+      ByteBuffer audio = null;
+      if (videoPath != null) {
+        videoFile = new RandomAccessFile(videoPath, "r");
+        video = map(videoFile, videoPath);
+      }
+      if (audioPath != null) {
+        audioFile = new RandomAccessFile(audioPath, "r");
+        audio = map(audioFile, audioPath);
+      }
+      return write(writer, video, audio, Math.max(frameRate, 1), outputPath);
+    } finally {
+      writer.close();
+      closeQuietly(videoFile);
+      closeQuietly(audioFile);
+    }
+  }
+
+  // 音视频按时间交织写入
+  private static boolean write(Mp4Writer writer, ByteBuffer video, ByteBuffer audio,
+                               int frameRate, String outputPath) throws IOException {
+    AnnexBReader reader = new AnnexBReader();
+    AdtsParser parser = new AdtsParser();
+    // 只用于取得图像尺寸
+    AvcConfig sizeConfig = new AvcConfig();
+    NalScanner scanner = new NalScanner();
+    ByteBuffer videoView = video != null ? video.duplicate() : null;
+    ByteBuffer audioView = audio != null ? audio.duplicate() : null;
+    boolean hasVideo = video != null && reader.reset(video).next();
+    boolean hasAudio = audio != null && parser.reset(audio).next();
+    long frames = 0;
+    long samples = 0;
+    int sampleRate = 0;
+    byte[] audioConfig = null;
+    boolean written = false;
+
+    while (hasVideo || hasAudio) {
+      long videoUs = frames * 1000000L / frameRate;
+      long audioUs = sampleRate > 0 ? samples * 1000000L / sampleRate : 0;
+      int result;
+      if (hasVideo && (!hasAudio || videoUs <= audioUs)) {
+        videoView.limit(reader.getOffset() + reader.getLength());
+        videoView.position(reader.getOffset());
+        if (sizeConfig.getWidth() == 0) {
+          // 第一个SPS确定尺寸
+          scanner.reset(videoView);
+          while (scanner.next()) {
+            if (scanner.getType() == NalScanner.NAL_SPS) {
+              byte[] sps = scanner.copy();
+              sizeConfig.add(NalScanner.NAL_SPS, sps, 0, sps.length);
+            }
+          }
+        }
+        result = writer.writeVideo(videoView, sizeConfig.getWidth(), sizeConfig.getHeight(),
+                reader.isKeyFrame(), videoUs);
+        frames++;
+        hasVideo = reader.next();
+      } else {
+        byte[] config = parser.getConfig();
+        if (config != audioConfig) {
+          audioConfig = config;
+          sampleRate = parser.getSampleRate();
+          writer.setAudioFormat(sampleRate, Math.max(parser.getChannelCount(), 1), config);
+          audioUs = samples * 1000000L / sampleRate;
+        }
+        audioView.limit(parser.getOffset() + parser.getLength());
+        audioView.position(parser.getOffset());
+        result = writer.writeAudio(audioView, audioUs);
+        samples += parser.getSamples();
+        hasAudio = parser.next();
+      }
+      if (result < 0) {
+        throw new IOException("write " + outputPath);
+      }
+      written |= result > 0;
+    }
+    return written;
+  }
+
+  // 只读映射整个文件
+  private static ByteBuffer map(RandomAccessFile file, String path) throws IOException {
+    FileChannel channel = file.getChannel();
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("file too large: " + path);
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+  }
+
+  private static void closeQuietly(RandomAccessFile file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
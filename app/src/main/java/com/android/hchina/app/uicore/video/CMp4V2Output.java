@@ -0,0 +1,77 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MP4输出 - 基于mp4v2库(JNI)
+ *
+ * mp4v2库只有一个全局文件句柄，同一时间只能有一个实例打开文件。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-02
+ */
+public class CMp4V2Output implements Mp4Output {
+  // 全局句柄是否被占用
+  private static final AtomicBoolean sBusy = new AtomicBoolean(false);
+  // 偏移不为0时的拷贝缓存
+  private byte[] mScratch;
+  private boolean mOpened;
+
+  // 全局句柄是否被占用
+  public static boolean isBusy() {
+    return sBusy.get();
+  }
+
+  @Override
+  public boolean open(String path) {
+    if (mOpened || !sBusy.compareAndSet(false, true)) {
+      return false;
+    }
+    mOpened = true;
+    CMp4V2.createMp4file(path);
+    return true;
+  }
+
+  @Override
+  public void setAudioFormat(int sampleRate, int channelCount, byte[] config) {
+    // mp4v2库从码流中获取配置
+    if (config != null) {
+      CMp4V2.writeAudio(config, config.length);
+    }
+  }
+
+  @Override
+  public int writeVideo(byte[] data, int offset, int size, int width, int height,
+                        boolean keyFrame, long timeUs) {
+    return CMp4V2.writeVideo(toArray(data, offset, size), size, width, height, keyFrame);
+  }
+
+  @Override
+  public int writeAudio(byte[] data, int offset, int size, long timeUs) {
+    return CMp4V2.writeAudio(toArray(data, offset, size), size);
+  }
+
+  @Override
+  public void close() {
+    if (!mOpened) {
+      return;
+    }
+    CMp4V2.closeMp4file();
+    mOpened = false;
+    sBusy.set(false);
+  }
+
+  private byte[] toArray(byte[] data, int offset, int size) {
+    if (offset == 0) {
+      return data;
+    }
+    if (mScratch == null || mScratch.length < size) {
+      mScratch = new byte[size];
+    }
+    System.arraycopy(data, offset, mScratch, 0, size);
+    return mScratch;
+  }
+}
@@ -0,0 +1,475 @@
+package com.android.hchina.app.uicore.video;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Surface;
+
+import androidx.annotation.RequiresApi;
+
+import com.hchina.android.api.HchinaAPI;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H264解码器池 - 保留已创建/已配置的MediaCodec，切换码流时复用，避免重新创建硬件解码器
+ *
+ * 取出时按代价从小到大选择空闲解码器:
+ *   同一Surface且尺寸兼容(相同，或支持自适应播放且不超过配置的最大尺寸) : flush后直接使用；
+ *   不同Surface(API 23)且尺寸兼容 : setOutputSurface + flush；
+ *   其他 : stop后按新格式重新configure(不重新创建)。
+ * 支持自适应播放的解码器按最大尺寸配置，分辨率变化不需要重新配置。
+ * 空闲超时或超出实例数/像素预算时释放最早空闲的解码器，超时由主线程定时在后台释放，
+ * 池不再使用时也不会一直占用硬件解码器；prewarm在后台预先创建解码器。
+ * 池中的解码器复用时不能更换回调，H264CodecDecoder使用同步模式(输入/渲染线程)。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-19
+ */
+public class DecoderPool {
+  private static final String TAG = DecoderPool.class.getSimpleName();
+  private static final String MIME_TYPE = "video/avc";
+  private static final int DEFAULT_MAX_INSTANCES = 4;
+  private static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+  // 自适应播放的默认最大尺寸(1080p)
+  private static final int DEFAULT_MAX_WIDTH = 1920;
+  private static final int DEFAULT_MAX_HEIGHT = 1088;
+
+  // 池中的解码器
+  public static final class Entry {
+    private final MediaCodec mCodec;
+    private final boolean mAdaptive;
+    // 已配置的尺寸和最大尺寸，未配置时为0
+    private int mWidth;
+    private int mHeight;
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private Surface mSurface;
+    private long mIdleSinceNs;
+
+    private Entry(MediaCodec codec, boolean adaptive) {
+      mCodec = codec;
+      mAdaptive = adaptive;
+    }
+
+    public MediaCodec getCodec() {
+      return mCodec;
+    }
+
+    // 是否支持自适应播放(分辨率变化不需重新配置)
+    public boolean isAdaptive() {
+      return mAdaptive;
+    }
+
+    private boolean isConfigured() {
+      return mSurface != null;
+    }
+
+    // 已配置且尺寸兼容
+    private boolean fits(int width, int height) {
+      if (!isConfigured()) {
+        return false;
+      }
+      if (mWidth == width && mHeight == height) {
+        return true;
+      }
+      return mAdaptive && width <= mMaxWidth && height <= mMaxHeight;
+    }
+
+    private long getPixels() {
+      return isConfigured() ? (long) mMaxWidth * mMaxHeight : 0;
+    }
+  }
+
+  // 空闲解码器，最近空闲的在最后
+  private final List<Entry> mIdle = new ArrayList<>();
+  private int mActive;
+  private int mMaxInstances = DEFAULT_MAX_INSTANCES;
+  private long mMaxIdlePixels = Long.MAX_VALUE;
+  private long mIdleTimeoutNs = DEFAULT_IDLE_TIMEOUT_MS * 1000000L;
+  private int mMaxWidth = DEFAULT_MAX_WIDTH;
+  private int mMaxHeight = DEFAULT_MAX_HEIGHT;
+  // 空闲超时定时(主线程)，释放在后台执行
+  private Handler mHandler;
+  private boolean mEvictScheduled;
+
+  // 统计
+  private long mReused;
+  private long mReconfigured;
+  private long mCreated;
+
+  private static DecoderPool sDefault = null;
+
+  public static synchronized DecoderPool getDefault() {
+    if (sDefault == null) {
+      sDefault = new DecoderPool();
+    }
+    return sDefault;
+  }
+
+  /**
+   * 设置预算
+   *
+   * @param maxInstances : 解码器总数(使用中 + 空闲)上限，超出时释放空闲的
+   * @param maxIdlePixels : 空闲解码器配置尺寸的像素总和上限，小于等于0表示不限
+   * @param idleTimeoutMs : 空闲超过该时间释放
+   */
+  public synchronized void setBudget(int maxInstances, long maxIdlePixels, long idleTimeoutMs) {
+    mMaxInstances = Math.max(maxInstances, 1);
+    mMaxIdlePixels = maxIdlePixels > 0 ? maxIdlePixels : Long.MAX_VALUE;
+    mIdleTimeoutNs = Math.max(idleTimeoutMs, 0) * 1000000L;
+    release(evict(System.nanoTime()));
+    scheduleEvict();
+  }
+
+  // 自适应播放的最大尺寸，新配置的解码器生效
+  public synchronized void setMaxSize(int width, int height) {
+    mMaxWidth = Math.max(width, 16);
+    mMaxHeight = Math.max(height, 16);
+  }
+
+  public synchronized int getIdleCount() {
+    return mIdle.size();
+  }
+
+  public synchronized int getActiveCount() {
+    return mActive;
+  }
+
+  // flush或更换Surface后直接使用的次数
+  public synchronized long getReusedCount() {
+    return mReused;
+  }
+
+  // 重新配置的次数
+  public synchronized long getReconfiguredCount() {
+    return mReconfigured;
+  }
+
+  // 新创建的次数
+  public synchronized long getCreatedCount() {
+    return mCreated;
+  }
+
+  /**
+   * 取出已配置并启动的解码器(同步模式)，用完后release
+   *
+   * @return 创建失败时返回null
+   */
+  public Entry acquire(int width, int height, int fps, Surface surface) {
+    if (width <= 0 || height <= 0 || surface == null) {
+      return null;
+    }
+
+    List<Entry> evicted;
+    Entry entry;
+    synchronized (this) {
+      evicted = evict(System.nanoTime());
+      entry = take(width, height, surface);
+      mActive++;
+    }
+    release(evicted);
+
+    if (entry != null && !prepare(entry, width, height, fps, surface)) {
+      release(entry);
+      entry = null;
+    }
+    if (entry == null) {
+      entry = create();
+      if (entry == null || !prepare(entry, width, height, fps, surface)) {
+        release(entry);
+        synchronized (this) {
+          mActive--;
+        }
+        return null;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * 归还解码器，保持配置等待复用
+   */
+  public void release(Entry entry, boolean reusable) {
+    if (entry == null) {
+      return;
+    }
+    List<Entry> evicted;
+    synchronized (this) {
+      mActive--;
+      if (reusable) {
+        entry.mIdleSinceNs = System.nanoTime();
+        mIdle.add(entry);
+        evicted = evict(entry.mIdleSinceNs);
+        scheduleEvict();
+      } else {
+        evicted = new ArrayList<>();
+        evicted.add(entry);
+      }
+    }
+    release(evicted);
+  }
+
+  /**
+   * 在后台预先创建解码器，使空闲解码器达到count个
+   */
+  public void prewarm(final int count) {
+    HchinaAPI.runTask(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          synchronized (DecoderPool.this) {
+            if (mIdle.size() >= count || mIdle.size() + mActive >= mMaxInstances) {
+              return;
+            }
+          }
+          Entry entry = create();
+          if (entry == null) {
+            return;
+          }
+          synchronized (DecoderPool.this) {
+            entry.mIdleSinceNs = System.nanoTime();
+            mIdle.add(entry);
+            scheduleEvict();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Surface销毁前调用，使用该Surface的空闲解码器改为未配置状态
+   */
+  public void onSurfaceDestroyed(Surface surface) {
+    List<Entry> entries = new ArrayList<>();
+    synchronized (this) {
+      for (Entry entry : mIdle) {
+        if (entry.mSurface == surface) {
+          entries.add(entry);
+        }
+      }
+      mIdle.removeAll(entries);
+    }
+    for (Entry entry : entries) {
+      try {
+        entry.mCodec.stop();
+        entry.mSurface = null;
+        entry.mWidth = 0;
+        entry.mHeight = 0;
+      } catch (IllegalStateException e) {
+        e.printStackTrace();
+        release(entry);
+        continue;
+      }
+      synchronized (this) {
+        mIdle.add(0, entry);
+        scheduleEvict();
+      }
+    }
+  }
+
+  // 释放全部空闲解码器(内存紧张时调用)
+  public void trim() {
+    List<Entry> entries;
+    synchronized (this) {
+      entries = new ArrayList<>(mIdle);
+      mIdle.clear();
+    }
+    release(entries);
+  }
+
+  // 选择代价最小的空闲解码器并移出
+  private Entry take(int width, int height, Surface surface) {
+    Entry best = null;
+    int bestCost = Integer.MAX_VALUE;
+    // 从最近空闲的开始
+    for (int i = mIdle.size() - 1; i >= 0; i--) {
+      Entry entry = mIdle.get(i);
+      int cost;
+      if (entry.fits(width, height)) {
+        cost = entry.mSurface == surface ? 0 : canSetSurface() ? 1 : 3;
+      } else {
+        cost = entry.isConfigured() ? 3 : 2;
+      }
+      if (cost < bestCost) {
+        best = entry;
+        bestCost = cost;
+      }
+    }
+    if (best != null) {
+      mIdle.remove(best);
+    }
+    return best;
+  }
+
+  // 按代价使用: flush / 更换Surface + flush / 重新配置
+  private boolean prepare(Entry entry, int width, int height, int fps, Surface surface) {
+    MediaCodec codec = entry.mCodec;
+    try {
+      if (entry.fits(width, height) && (entry.mSurface == surface || canSetSurface())) {
+        if (entry.mSurface != surface) {
+          setOutputSurface(codec, surface);
+          entry.mSurface = surface;
+        }
+        codec.flush();
+        synchronized (this) {
+          mReused++;
+        }
+        return true;
+      }
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      // Surface已失效等，改为重新配置
+      e.printStackTrace();
+    }
+
+    try {
+      if (entry.isConfigured()) {
+        codec.stop();
+        entry.mSurface = null;
+        synchronized (this) {
+          mReconfigured++;
+        }
+      }
+      int maxWidth = entry.mAdaptive ? Math.max(width, mMaxWidth) : width;
+      int maxHeight = entry.mAdaptive ? Math.max(height, mMaxHeight) : height;
+      MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+      if (entry.mAdaptive) {
+        format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+        format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+      }
+      H264CodecDecoder.setLowLatency(codec, format, fps);
+      codec.configure(format, surface, null, 0);
+      codec.start();
+      entry.mMaxWidth = maxWidth;
+      entry.mMaxHeight = maxHeight;
+      entry.mSurface = surface;
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    }
+    entry.mWidth = width;
+    entry.mHeight = height;
+    return true;
+  }
+
+  // 创建解码器(未配置)
+  private Entry create() {
+    try {
+      MediaCodec codec = MediaCodec.createDecoderByType(MIME_TYPE);
+      boolean adaptive = false;
+      MediaCodecInfo info = codec.getCodecInfo();
+      MediaCodecInfo.CodecCapabilities caps = info != null
+              ? info.getCapabilitiesForType(MIME_TYPE) : null;
+      if (caps != null) {
+        adaptive = caps.isFeatureSupported(
+                MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+      }
+      synchronized (this) {
+        mCreated++;
+      }
+      return new Entry(codec, adaptive);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * 移出需要释放的空闲解码器: 空闲超时的，以及超出实例数/像素预算时最早空闲的
+   */
+  private List<Entry> evict(long nowNs) {
+    List<Entry> evicted = new ArrayList<>();
+    long pixels = 0;
+    for (int i = mIdle.size() - 1; i >= 0; i--) {
+      Entry entry = mIdle.get(i);
+      if (nowNs - entry.mIdleSinceNs > mIdleTimeoutNs) {
+        evicted.add(mIdle.remove(i));
+      } else {
+        pixels += entry.getPixels();
+      }
+    }
+    while (!mIdle.isEmpty()
+            && (mIdle.size() + mActive > mMaxInstances || pixels > mMaxIdlePixels)) {
+      Entry entry = mIdle.remove(0);
+      pixels -= entry.getPixels();
+      evicted.add(entry);
+    }
+    return evicted;
+  }
+
+  // 在最早空闲的解码器超时时释放，之后还有空闲的继续定时(持有锁时调用)
+  private void scheduleEvict() {
+    if (mEvictScheduled || mIdle.isEmpty()) {
+      return;
+    }
+    long oldestNs = Long.MAX_VALUE;
+    for (Entry entry : mIdle) {
+      oldestNs = Math.min(oldestNs, entry.mIdleSinceNs);
+    }
+    long delayMs = (oldestNs + mIdleTimeoutNs - System.nanoTime()) / 1000000L + 1;
+    if (mHandler == null) {
+      mHandler = new Handler(Looper.getMainLooper());
+    }
+    mEvictScheduled = true;
+    mHandler.postDelayed(mEvictTimeout, Math.max(delayMs, 0));
+  }
+
+  private final Runnable mEvictTimeout = new Runnable() {
+    @Override
+    public void run() {
+      HchinaAPI.runTask(mEvictTask);
+    }
+  };
+
+  private final Runnable mEvictTask = new Runnable() {
+    @Override
+    public void run() {
+      List<Entry> evicted;
+      synchronized (DecoderPool.this) {
+        mEvictScheduled = false;
+        evicted = evict(System.nanoTime());
+        scheduleEvict();
+      }
+      release(evicted);
+    }
+  };
+
+  private void release(List<Entry> entries) {
+    for (Entry entry : entries) {
+      release(entry);
+    }
+  }
+
+  private static void release(Entry entry) {
+    if (entry == null) {
+      return;
+    }
+    try {
+      entry.mCodec.stop();
+    } catch (IllegalStateException e) {
+      // 未配置
+    }
+    try {
+      entry.mCodec.release();
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static boolean canSetSurface() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+  }
+
+  @RequiresApi(api = Build.VERSION_CODES.M)
+  private static void setOutputSurface(MediaCodec codec, Surface surface) {
+    codec.setOutputSurface(surface);
+  }
+}
@@ -0,0 +1,119 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * 帧缓存池 - 按2的幂划分尺寸等级，复用MediaFrame及其数据缓存
+ *
+ * 生产者obtain()借出帧并填充数据，交给复用器写入后recycle()归还，
+ * 稳态录制时每帧不再产生堆分配；每个等级缓存的帧数随队列和预录容量用ensureCapacity()增大，
+ * 否则积压的帧归还时超出上限被丢弃，之后又要重新分配。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-09
+ */
+public class FramePool {
+  private static final int MIN_SHIFT = 10;  // 1KB
+  private static final int MAX_SHIFT = 22;  // 4MB
+  private static final int DEFAULT_PER_CLASS = 32;
+
+  private final MediaFrame[][] mFrames;
+  private final int[] mCounts;
+  private final Object[] mLocks;
+
+  public FramePool() {
+    this(DEFAULT_PER_CLASS);
+  }
+
+  /**
+   * @param maxPerClass : 每个尺寸等级最多缓存的帧数
+   */
+  public FramePool(int maxPerClass) {
+    int classes = MAX_SHIFT - MIN_SHIFT + 1;
+    mFrames = new MediaFrame[classes][maxPerClass];
+    mCounts = new int[classes];
+    mLocks = new Object[classes];
+    for (int i = 0; i < classes; i++) {
+      mLocks[i] = new Object();
+    }
+  }
+
+  /**
+   * 保证每个尺寸等级至少能缓存perClass帧，只增不减
+   *
+   * @param perClass : 同时在途的最大帧数，一般为队列容量加预录容量
+   */
+  public void ensureCapacity(int perClass) {
+    for (int i = 0; i < mFrames.length; i++) {
+      synchronized (mLocks[i]) {
+        if (mFrames[i].length < perClass) {
+          MediaFrame[] frames = new MediaFrame[perClass];
+          System.arraycopy(mFrames[i], 0, frames, 0, mCounts[i]);
+          mFrames[i] = frames;
+        }
+      }
+    }
+  }
+
+  // 每个尺寸等级最多缓存的帧数
+  public int getCapacity() {
+    synchronized (mLocks[0]) {
+      return mFrames[0].length;
+    }
+  }
+
+  // 借出容量不小于size的帧
+  public MediaFrame obtain(int size) {
+    int sizeClass = getSizeClass(size);
+    if (sizeClass < 0) {
+      return new MediaFrame(size, -1);
+    }
+
+    synchronized (mLocks[sizeClass]) {
+      int count = mCounts[sizeClass];
+      if (count > 0) {
+        MediaFrame frame = mFrames[sizeClass][--count];
+        mFrames[sizeClass][count] = null;
+        mCounts[sizeClass] = count;
+        return frame;
+      }
+    }
+    return new MediaFrame(1 << (sizeClass + MIN_SHIFT), sizeClass);
+  }
+
+  // 归还
+  public void recycle(MediaFrame frame) {
+    if (frame == null || frame.sizeClass < 0) {
+      return;
+    }
+
+    frame.reset();
+    synchronized (mLocks[frame.sizeClass]) {
+      MediaFrame[] frames = mFrames[frame.sizeClass];
+      int count = mCounts[frame.sizeClass];
+      if (count < frames.length) {
+        frames[count] = frame;
+        mCounts[frame.sizeClass] = count + 1;
+      }
+    }
+  }
+
+  // 释放缓存
+  public void clear() {
+    for (int i = 0; i < mFrames.length; i++) {
+      synchronized (mLocks[i]) {
+        for (int j = 0; j < mCounts[i]; j++) {
+          mFrames[i][j] = null;
+        }
+        mCounts[i] = 0;
+      }
+    }
+  }
+
+  // 尺寸等级，超出范围返回-1
+  private static int getSizeClass(int size) {
+    int shift = size <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+    return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+  }
+}
@@ -0,0 +1,177 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 帧队列 - 有界队列 + 积压策略 + 丢帧统计
+ *
+ * 丢弃视频帧后一直丢到下一个关键帧，保证写入的码流始终可解码。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-15
+ */
+public class FrameQueue {
+  private static final long BLOCK_WAIT_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * 积压策略
+   *
+   * block : 队列满时阻塞生产者
+   * dropOldestGop : 积压超过水位时丢弃最早的GOP(音频丢弃最早的帧)
+   * dropNewest : 队列满时丢弃新帧
+   * dropAudioFirst : 视频积压时先丢音频，视频满时丢弃新帧
+   */
+  public enum Policy { block, dropOldestGop, dropNewest, dropAudioFirst }
+
+  private final SpscRingBuffer<MediaFrame> mBuffer;
+  private final FramePool mPool;
+  private final boolean mVideo;
+  private final int mHighWatermark;
+  private volatile Policy mPolicy = Policy.dropNewest;
+  private volatile boolean mClosed = false;
+  // 生产者: 丢帧后等待关键帧
+  private boolean mWaitKeyFrame = false;
+
+  private final AtomicLong mDroppedFrames = new AtomicLong();
+  private final AtomicLong mDroppedBytes = new AtomicLong();
+
+  public FrameQueue(int capacity, boolean video, FramePool pool) {
+    mBuffer = new SpscRingBuffer<>(capacity);
+    mPool = pool;
+    mVideo = video;
+    mHighWatermark = mBuffer.capacity() * 3 / 4;
+  }
+
+  public void setPolicy(Policy policy) {
+    if (policy != null) {
+      mPolicy = policy;
+    }
+  }
+
+  public Policy getPolicy() {
+    return mPolicy;
+  }
+
+  // 当前积压帧数
+  public int getDepth() {
+    return mBuffer.size();
+  }
+
+  public int getCapacity() {
+    return mBuffer.capacity();
+  }
+
+  // 积压是否超过水位
+  public boolean isCongested() {
+    return mBuffer.size() >= mHighWatermark;
+  }
+
+  public long getDroppedFrames() {
+    return mDroppedFrames.get();
+  }
+
+  public long getDroppedBytes() {
+    return mDroppedBytes.get();
+  }
+
+  // 关闭，唤醒阻塞的生产者
+  public void close() {
+    mClosed = true;
+  }
+
+  /**
+   * 入队(生产线程)，帧归队列所有，丢弃时回收
+   *
+   * @return 是否入队
+   */
+  public boolean offer(MediaFrame frame) {
+    if (mVideo && mWaitKeyFrame) {
+      if (!frame.isKeyFrame()) {
+        drop(frame);
+        return false;
+      }
+      mWaitKeyFrame = false;
+    }
+
+    if (mBuffer.offer(frame)) {
+      return true;
+    }
+
+    if (mPolicy == Policy.block) {
+      while (!mClosed) {
+        LockSupport.parkNanos(this, BLOCK_WAIT_NS);
+        if (mBuffer.offer(frame)) {
+          return true;
+        }
+      }
+    }
+
+    // 丢弃新帧，视频等待下一个关键帧
+    mWaitKeyFrame = mVideo;
+    drop(frame);
+    return false;
+  }
+
+  // 丢弃新帧(生产线程)，用于dropAudioFirst
+  public void reject(MediaFrame frame) {
+    mWaitKeyFrame = mVideo;
+    drop(frame);
+  }
+
+  // 出队(消费线程)，dropOldestGop策略下先削减积压
+  public MediaFrame poll() {
+    if (mPolicy == Policy.dropOldestGop && mBuffer.size() >= mHighWatermark) {
+      trim();
+    }
+    return mBuffer.poll();
+  }
+
+  public boolean isEmpty() {
+    return mBuffer.isEmpty();
+  }
+
+  // 清空并回收(消费线程)
+  public void clear() {
+    MediaFrame frame;
+    while ((frame = mBuffer.poll()) != null) {
+      mPool.recycle(frame);
+    }
+  }
+
+  // 丢弃最早的GOP: 视频丢到队列中下一个关键帧为止，音频丢到水位一半
+  private void trim() {
+    int count;
+    if (mVideo) {
+      count = 0;
+      int size = mBuffer.size();
+      for (int i = 1; i < size; i++) {
+        MediaFrame frame = mBuffer.peek(i);
+        if (frame != null && frame.isKeyFrame()) {
+          count = i;
+          break;
+        }
+      }
+    } else {
+      count = mBuffer.size() - mHighWatermark / 2;
+    }
+
+    for (int i = 0; i < count; i++) {
+      MediaFrame frame = mBuffer.poll();
+      if (frame == null) {
+        break;
+      }
+      drop(frame);
+    }
+  }
+
+  private void drop(MediaFrame frame) {
+    mDroppedFrames.incrementAndGet();
+    mDroppedBytes.addAndGet(frame.size);
+    mPool.recycle(frame);
+  }
+}
@@ -0,0 +1,206 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * GOP索引 - 录制时与MP4并行写入的关键帧索引文件(文件路径加.gop)，录制结束后保留
+ *
+ * 每个关键帧一条定长记录: 时间戳 -> 关键帧样本的文件偏移，以及此时最后写入的音频样本位置；
+ * 分片模式下每个分片一条，偏移为moof位置，样本序号为-1。
+ * 读取时只读映射整个索引，按时间二分查找，不解析MP4。
+ * 格式(大端): 头 MAGIC + VERSION；记录 timeUs videoOffset audioOffset videoSample audioSample
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-20
+ */
+public class GopIndex {
+  public static final String SUFFIX = ".gop";
+  private static final int MAGIC = 0x48434749;  // HCGI
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_SIZE = 32;
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final String mPath;
+  // 写入
+  private RandomAccessFile mFile;
+  private FileChannel mChannel;
+  private ByteBuffer mBuffer;
+  private long mLastTimeUs = Long.MIN_VALUE;
+  // 读取
+  private ByteBuffer mMap;
+  private int mCount;
+
+  // MP4文件对应的索引路径
+  public static String getPath(String mp4Path) {
+    return mp4Path + SUFFIX;
+  }
+
+  private GopIndex(String path) {
+    mPath = path;
+  }
+
+  // 创建索引(已存在时清空)
+  public static GopIndex create(String path) throws IOException {
+    GopIndex index = new GopIndex(path);
+    index.mFile = new RandomAccessFile(path, "rw");
+    index.mFile.setLength(0);
+    index.mChannel = index.mFile.getChannel();
+    index.mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    index.mBuffer.putInt(MAGIC);
+    index.mBuffer.putInt(VERSION);
+    return index;
+  }
+
+  // 映射索引读取，格式不对时抛出IOException；末尾不完整的记录忽略
+  public static GopIndex open(String path) throws IOException {
+    GopIndex index = new GopIndex(path);
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+        throw new IOException("bad gop index: " + path);
+      }
+      index.mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (index.mMap.getInt(0) != MAGIC || index.mMap.getInt(4) != VERSION) {
+        throw new IOException("bad gop index: " + path);
+      }
+      index.mCount = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+    } finally {
+      // 映射在关闭文件后仍然有效
+      file.close();
+    }
+    return index;
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  /**
+   * 记录关键帧，时间戳不大于上一条的忽略(保证有序)
+   *
+   * @param videoOffset : 关键帧样本(分片模式为moof)的文件偏移
+   * @param audioOffset : 最后写入的音频样本的文件偏移，没有音频时为-1
+   * @param videoSample : 关键帧的样本序号(从0开始)
+   * @param audioSample : 最后写入的音频样本序号，没有音频时为-1
+   */
+  public void add(long timeUs, long videoOffset, long audioOffset, int videoSample,
+                  int audioSample) throws IOException {
+    if (mBuffer == null || timeUs <= mLastTimeUs) {
+      return;
+    }
+    if (mBuffer.remaining() < RECORD_SIZE) {
+      flush();
+    }
+    mBuffer.putLong(timeUs);
+    mBuffer.putLong(videoOffset);
+    mBuffer.putLong(audioOffset);
+    mBuffer.putInt(videoSample);
+    mBuffer.putInt(audioSample);
+    mLastTimeUs = timeUs;
+  }
+
+  // 写出缓存中的记录
+  public void flush() throws IOException {
+    if (mChannel == null || mBuffer.position() == 0) {
+      return;
+    }
+    mBuffer.flip();
+    while (mBuffer.hasRemaining()) {
+      mChannel.write(mBuffer);
+    }
+    mBuffer.clear();
+  }
+
+  // 写出并落盘
+  public void force() throws IOException {
+    if (mChannel == null) {
+      return;
+    }
+    flush();
+    mChannel.force(false);
+  }
+
+  // 记录数
+  public int getCount() {
+    return mCount;
+  }
+
+  /**
+   * 查找不晚于timeUs的最后一个关键帧
+   *
+   * @return 记录序号，timeUs早于第一个关键帧时返回0，没有记录时返回-1
+   */
+  public int find(long timeUs) {
+    if (mCount == 0) {
+      return -1;
+    }
+    int low = 0;
+    int high = mCount - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (getTimeUs(mid) <= timeUs) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  public long getTimeUs(int index) {
+    return mMap.getLong(HEADER_SIZE + index * RECORD_SIZE);
+  }
+
+  public long getVideoOffset(int index) {
+    return mMap.getLong(HEADER_SIZE + index * RECORD_SIZE + 8);
+  }
+
+  public long getAudioOffset(int index) {
+    return mMap.getLong(HEADER_SIZE + index * RECORD_SIZE + 16);
+  }
+
+  public int getVideoSample(int index) {
+    return mMap.getInt(HEADER_SIZE + index * RECORD_SIZE + 24);
+  }
+
+  public int getAudioSample(int index) {
+    return mMap.getInt(HEADER_SIZE + index * RECORD_SIZE + 28);
+  }
+
+  // 写入时关闭前写出缓存
+  public void close() {
+    try {
+      flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    try {
+      if (mFile != null) {
+        mFile.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    mFile = null;
+    mChannel = null;
+    mBuffer = null;
+    mMap = null;
+    mCount = 0;
+  }
+
+  // 关闭并删除索引
+  public void delete() {
+    close();
+    new File(mPath).delete();
+  }
+}
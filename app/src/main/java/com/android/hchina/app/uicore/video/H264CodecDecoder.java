@@ -1,14 +1,32 @@
 package com.android.hchina.app.uicore.video;
 
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.view.Surface;
 
+import androidx.annotation.RequiresApi;
+
 import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * H264 MediaCodec解码类
  *
+ * onFrame只把帧放入有界输入队列，不等待解码器，不阻塞调用线程(网络接收线程)；
+ * 队列积压时丢弃最早的GOP，之后从关键帧继续。
+ * API 23及以上使用MediaCodec回调模式，在独立的HandlerThread上送入和渲染；
+ * 低版本由输入线程和渲染线程分别送入和取出。
+ * 输出帧从收到到解码完成超过迟到阈值时不渲染(连续丢帧有上限，画面不会停住)；
+ * 支持时设置低延迟解码、实时优先级和运行速率。
+ * 设置DecoderPool后从池中取得已配置的解码器(同步模式)，停止时归还，切换码流不重新创建。
+ *
  * copyright 2020 上海汁味信息科技有限公司 ----------------------------
  *            这不是一个自由软件，未经授权不许任何使用和传播。
  * @author li_guotao
@@ -21,47 +39,243 @@ public class H264CodecDecoder {
 
   private final static String MIME_TYPE = "video/avc"; // H.264 Advanced
   // Video
-  private final static int TIME_INTERNAL = 5;
+  private final static int DEFAULT_FPS = 25;
+  private static final int DEFAULT_QUEUE_CAPACITY = 8;
+  private static final long INPUT_TIMEOUT_US = 10000;  // 同步模式等待输入缓存
+  private static final long OUTPUT_TIMEOUT_US = 10000;  // 同步模式等待输出
+  private static final long RELEASE_TIMEOUT_MS = 500;
+  private static final int PENDING_SIZE = 64;  // 记录解码中的输入(2的幂)
+  private static final int MAX_LATE_DROPS = 2;  // 最多连续丢弃的迟到帧
+
   private MediaCodec mMediaCodec;
+  // 解码器池，为空时自己创建和释放解码器
+  private DecoderPool mPool;
+  private DecoderPool.Entry mPoolEntry;
   private int mCount;
+  private final NalScanner mScanner = new NalScanner();
+  // 是否已收到参数集或关键帧，之前的帧无法解码直接丢弃
+  private boolean mSynced;
   // params
   private int mWidth;
   private int mHeight;
   private int mFps;
 
+  // 输入队列(调用线程写入，送入线程读取)
+  private final FramePool mFramePool = new FramePool(DEFAULT_QUEUE_CAPACITY);
+  private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private FrameQueue.Policy mPolicy = FrameQueue.Policy.dropOldestGop;
+  private volatile FrameQueue mInput;
+  private final NalScanner mFeedScanner = new NalScanner();
+  private volatile boolean mRunning;
+
+  // 回调模式
+  private boolean mAsync;
+  private HandlerThread mThread;
+  private Handler mHandler;
+  private int[] mFreeInputs = new int[16];
+  private int mFreeCount;
+  private final AtomicBoolean mFeedPending = new AtomicBoolean(false);
+
+  // 同步模式
+  private Thread mInputThread;
+  private Thread mOutputThread;
+  private final Semaphore mInputSignal = new Semaphore(0);
+  private final MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+  // API 21以下的输入缓存数组
+  private ByteBuffer[] mInputBuffers;
+
+  // 解码中的输入(显示时间、收到时间)，用于计算延迟
+  private final long[] mPendingPts = new long[PENDING_SIZE];
+  private final long[] mPendingQueuedNs = new long[PENDING_SIZE];
+  private int mPendingHead;
+  private int mPendingTail;
+
+  // 迟到阈值(微秒)，小于0表示不丢帧
+  private volatile long mLateThresholdUs = -1;
+  private int mLateDrops;
+  private final AtomicLong mLateFrames = new AtomicLong();
+  private final AtomicLong mRenderedFrames = new AtomicLong();
+  // 收到到解码输出的延迟
+  private final LatencyHistogram mLatency = new LatencyHistogram();
+
   public H264CodecDecoder() {}
 
+  /**
+   * 设置输入队列，需在start之前调用
+   *
+   * @param capacity : 队列容量(帧)，向上取2的幂
+   * @param policy : 积压策略，默认丢弃最早的GOP
+   */
+  public void setQueue(int capacity, FrameQueue.Policy policy) {
+    mQueueCapacity = Math.max(capacity, 2);
+    if (policy != null) {
+      mPolicy = policy;
+    }
+  }
+
+  /**
+   * 使用解码器池，需在start之前调用
+   *
+   * @param pool : 为空时每次start创建新的解码器
+   */
+  public void setPool(DecoderPool pool) {
+    mPool = pool;
+  }
+
+  /**
+   * 设置迟到丢帧
+   *
+   * @param thresholdMs : 帧从收到到解码完成超过该时间时不渲染；小于0表示不丢帧
+   */
+  public void setLateFrameDrop(long thresholdMs) {
+    mLateThresholdUs = thresholdMs < 0 ? -1 : thresholdMs * 1000;
+  }
+
+  // 输入队列丢弃的帧数
+  public long getDroppedFrames() {
+    FrameQueue input = mInput;
+    return input != null ? input.getDroppedFrames() : 0;
+  }
+
+  // 迟到未渲染的帧数
+  public long getLateFrames() {
+    return mLateFrames.get();
+  }
+
+  public long getRenderedFrames() {
+    return mRenderedFrames.get();
+  }
+
+  // 收到到解码输出的延迟(微秒)
+  public LatencyHistogram getLatency() {
+    return mLatency;
+  }
+
   // 开始停止
   public void start(int width, int height, int fps, Surface surface) {
     if (width <= 0 || height <= 0 || surface == null) {
       return;
     }
 
-    if (this.mWidth != width || this.mHeight != height || this.mFps != fps) {
-      stop();
-    }
+    stop();
 
     this.mWidth = width;
     this.mHeight = height;
     this.mFps = fps;
 
+    DecoderPool pool = mPool;
     try {
-      // 初始化MediaFormat
-      MediaFormat mediaFormat =
-          MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-      mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mFps);
-      // 配置MediaFormat
-      mMediaCodec = MediaCodec.createDecoderByType(MIME_TYPE);
-      mMediaCodec.configure(mediaFormat, surface, null, 0);
-      mMediaCodec.start();
+      MediaFormat mediaFormat = null;
+      if (pool != null) {
+        // 池中的解码器已配置并启动，回调不能更换，使用同步模式
+        mPoolEntry = pool.acquire(mWidth, mHeight, mFps > 0 ? mFps : DEFAULT_FPS, surface);
+        if (mPoolEntry == null) {
+          return;
+        }
+        mMediaCodec = mPoolEntry.getCodec();
+      } else {
+        // 初始化MediaFormat
+        mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mFps > 0 ? mFps : DEFAULT_FPS);
+        // 配置MediaFormat
+        mMediaCodec = MediaCodec.createDecoderByType(MIME_TYPE);
+        setLowLatency(mMediaCodec, mediaFormat, mFps > 0 ? mFps : DEFAULT_FPS);
+      }
+
+      mInput = new FrameQueue(mQueueCapacity, true, mFramePool);
+      mInput.setPolicy(mPolicy);
+      mPendingHead = 0;
+      mPendingTail = 0;
+      mLateDrops = 0;
+      mSynced = false;
+      mRunning = true;
+      mAsync = pool == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+      if (mAsync) {
+        mThread = new HandlerThread(TAG, android.os.Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        setCallback();
+      }
+      if (pool == null) {
+        mMediaCodec.configure(mediaFormat, surface, null, 0);
+        mMediaCodec.start();
+      }
+      if (!mAsync) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+          mInputBuffers = mMediaCodec.getInputBuffers();
+        }
+        startThreads();
+      }
     } catch (Exception e) {
       e.printStackTrace();
+      // 出错的解码器不归还到池中
+      mRunning = false;
+      if (mPoolEntry != null) {
+        pool.release(mPoolEntry, false);
+        mPoolEntry = null;
+        mMediaCodec = null;
+      }
+      stop();
+    }
+  }
+
+  // 低延迟参数: API 30低延迟解码，API 23实时优先级和运行速率(DecoderPool配置时也使用)
+  static void setLowLatency(MediaCodec codec, MediaFormat format, int fps) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+      MediaCodecInfo info = codec.getCodecInfo();
+      MediaCodecInfo.CodecCapabilities caps = info != null
+              ? info.getCapabilitiesForType(MIME_TYPE) : null;
+      if (caps != null && caps.isFeatureSupported(
+              MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency)) {
+        format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+      }
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      format.setInteger(MediaFormat.KEY_PRIORITY, 0);  // 实时
+      // 按两倍帧率运行，缩短单帧解码时间
+      format.setInteger(MediaFormat.KEY_OPERATING_RATE, fps * 2);
     }
   }
 
   // 停止
   public void stop() {
-    if (mMediaCodec != null) {
+    mRunning = false;
+    if (mHandler != null) {
+      mHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          releaseCodec();
+        }
+      });
+      mThread.quitSafely();
+      join(mThread);
+      mHandler = null;
+      mThread = null;
+    } else {
+      mInputSignal.release();
+      join(mInputThread);
+      join(mOutputThread);
+      mInputThread = null;
+      mOutputThread = null;
+      releaseCodec();
+    }
+    mInputBuffers = null;
+    mFreeCount = 0;
+  }
+
+  private void releaseCodec() {
+    FrameQueue input = mInput;
+    if (input != null) {
+      input.close();
+      input.clear();
+      mInput = null;
+    }
+    if (mPoolEntry != null) {
+      // 归还到池中，保持配置
+      mPool.release(mPoolEntry, true);
+      mPoolEntry = null;
+      mMediaCodec = null;
+    } else if (mMediaCodec != null) {
       try {
         mMediaCodec.stop();
         mMediaCodec.release();
@@ -73,38 +287,259 @@ public class H264CodecDecoder {
     }
   }
 
-  // 帧数据
+  private static void join(Thread thread) {
+    if (thread == null) {
+      return;
+    }
+    try {
+      thread.join(RELEASE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // 帧数据(无时间戳时按帧率生成)
   public boolean onFrame(byte[] buffer, int offset, int length) {
-    if (mMediaCodec == null) {
+    long frameTimeUs = 1000000L / (mFps > 0 ? mFps : DEFAULT_FPS);
+    return onFrame(buffer, offset, length, mCount * frameTimeUs);
+  }
+
+  /**
+   * 帧数据，放入输入队列后立即返回(调用线程)
+   *
+   * @param presentationTimeUs : 源显示时间(微秒)
+   * @return 是否入队
+   */
+  public boolean onFrame(byte[] buffer, int offset, int length, long presentationTimeUs) {
+    FrameQueue input = mInput;
+    if (input == null || length <= 0) {
       return false;
     }
 
-    // 获取输入buffer index
-    ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-    // -1表示一直等待；0表示不等待；其他大于0的参数表示等待毫秒数
-    int inputBufferIndex = mMediaCodec.dequeueInputBuffer(-1);
-    if (inputBufferIndex < 0)
-      return false;
+    // 收到参数集或IDR之前丢弃
+    int flags = getFrameFlags(mScanner, buffer, offset, length);
+    if (!mSynced) {
+      if (flags == 0) {
+        return false;
+      }
+      mSynced = true;
+    }
 
-    ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-    // 清空buffer
-    inputBuffer.clear();
-    // put需要解码的数据
-    inputBuffer.put(buffer, offset, length);
-    // 解码
-    mMediaCodec.queueInputBuffer(inputBufferIndex, 0, length,
-                                 mCount * TIME_INTERNAL, 0);
+    MediaFrame frame = mFramePool.obtain(length);
+    frame.set(buffer, offset, length);
+    frame.width = mWidth;
+    frame.height = mHeight;
+    frame.frameType = flags != 0 ? MediaFrame.KEY_FRAME : 0;
+    frame.timeUs = presentationTimeUs;
+    frame.queuedNs = System.nanoTime();
     mCount++;
+    boolean queued = input.offer(frame);
+    signal();
+    return queued;
+  }
+
+  // 唤醒送入
+  private void signal() {
+    if (mAsync) {
+      Handler handler = mHandler;
+      if (handler != null && mFeedPending.compareAndSet(false, true)) {
+        handler.post(mFeedRunnable);
+      }
+    } else {
+      mInputSignal.release();
+    }
+  }
+
+  private final Runnable mFeedRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mFeedPending.set(false);
+      feed();
+    }
+  };
+
+  // 回调模式: 用空闲输入缓存读取输入队列(解码线程)
+  private void feed() {
+    FrameQueue input = mInput;
+    if (mMediaCodec == null || input == null) {
+      return;
+    }
+    try {
+      while (mFreeCount > 0) {
+        MediaFrame frame = input.poll();
+        if (frame == null) {
+          break;
+        }
+        queueInput(mFreeInputs[--mFreeCount], frame);
+        mFramePool.recycle(frame);
+      }
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // 同步模式: 输入线程和渲染线程
+  private void startThreads() {
+    final MediaCodec codec = mMediaCodec;
+    final FrameQueue input = mInput;
+    mInputSignal.drainPermits();
+    mInputThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DISPLAY);
+        try {
+          while (mRunning) {
+            MediaFrame frame = input.poll();
+            if (frame == null) {
+              mInputSignal.tryAcquire(INPUT_TIMEOUT_US, TimeUnit.MICROSECONDS);
+              continue;
+            }
+            int index = -1;
+            while (mRunning && index < 0) {
+              index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            }
+            if (index >= 0) {
+              queueInput(index, frame);
+            }
+            mFramePool.recycle(frame);
+          }
+        } catch (InterruptedException | IllegalStateException e) {
+          e.printStackTrace();
+        }
+      }
+    }, TAG + "-input");
+    mOutputThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DISPLAY);
+        MediaCodec.BufferInfo info = mOutputInfo;
+        try {
+          while (mRunning) {
+            // 输出缓存变化等信息不需处理(输出到Surface)
+            int index = codec.dequeueOutputBuffer(info, OUTPUT_TIMEOUT_US);
+            if (index >= 0) {
+              render(codec, index, info);
+            }
+          }
+        } catch (IllegalStateException e) {
+          e.printStackTrace();
+        }
+      }
+    }, TAG + "-output");
+    mInputThread.start();
+    mOutputThread.start();
+  }
+
+  private void queueInput(int index, MediaFrame frame) {
+    ByteBuffer inputBuffer = mInputBuffers != null
+            ? mInputBuffers[index] : mMediaCodec.getInputBuffer(index);
+    int size = Math.min(frame.size, inputBuffer.capacity());
+    // 只有参数集时按配置数据送入
+    int flags = frame.isKeyFrame()
+            ? getFrameFlags(mFeedScanner, frame.data, 0, frame.size) : 0;
+    inputBuffer.clear();
+    inputBuffer.put(frame.data, 0, size);
+    mMediaCodec.queueInputBuffer(index, 0, size, frame.timeUs,
+            flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG ? flags : 0);
+    if (flags == MediaCodec.BUFFER_FLAG_CODEC_CONFIG) {
+      return;
+    }
+
+    // 记录输入，满时覆盖最早的
+    synchronized (mPendingPts) {
+      int tail = mPendingTail & (PENDING_SIZE - 1);
+      mPendingPts[tail] = frame.timeUs;
+      mPendingQueuedNs[tail] = frame.queuedNs;
+      mPendingTail++;
+      if (mPendingTail - mPendingHead > PENDING_SIZE) {
+        mPendingHead = mPendingTail - PENDING_SIZE;
+      }
+    }
+  }
+
+  // 渲染或丢弃输出帧
+  private void render(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+    // 取出显示时间不晚于输出的输入，最后一个即输出对应的输入
+    long queuedNs = 0;
+    synchronized (mPendingPts) {
+      while (mPendingHead != mPendingTail) {
+        int head = mPendingHead & (PENDING_SIZE - 1);
+        if (mPendingPts[head] > info.presentationTimeUs) {
+          break;
+        }
+        queuedNs = mPendingQueuedNs[head];
+        mPendingHead++;
+      }
+    }
+
+    long latencyUs = queuedNs > 0 ? (System.nanoTime() - queuedNs) / 1000 : 0;
+    long thresholdUs = mLateThresholdUs;
+    boolean late = thresholdUs >= 0 && latencyUs > thresholdUs && mLateDrops < MAX_LATE_DROPS;
+    codec.releaseOutputBuffer(index, !late);
+    if (late) {
+      mLateDrops++;
+      mLateFrames.incrementAndGet();
+    } else {
+      mLateDrops = 0;
+      mRenderedFrames.incrementAndGet();
+    }
+    if (queuedNs > 0) {
+      mLatency.record(latencyUs);
+    }
+  }
 
-    // 获取输出buffer index
-    MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-    int outputBufferIndex = mMediaCodec.dequeueOutputBuffer(bufferInfo, 100);
-    // 循环解码，直到数据全部解码完成
-    while (outputBufferIndex >= 0) {
-      // true : 将解码的数据显示到surface上
-      mMediaCodec.releaseOutputBuffer(outputBufferIndex, true);
-      outputBufferIndex = mMediaCodec.dequeueOutputBuffer(bufferInfo, 0);
+  @RequiresApi(api = Build.VERSION_CODES.M)
+  private void setCallback() {
+    mMediaCodec.setCallback(new MediaCodec.Callback() {
+      @Override
+      public void onInputBufferAvailable(MediaCodec codec, int index) {
+        if (mFreeCount == mFreeInputs.length) {
+          int[] inputs = new int[mFreeCount * 2];
+          System.arraycopy(mFreeInputs, 0, inputs, 0, mFreeCount);
+          mFreeInputs = inputs;
+        }
+        mFreeInputs[mFreeCount++] = index;
+        feed();
+      }
+
+      @Override
+      public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        try {
+          render(codec, index, info);
+        } catch (IllegalStateException e) {
+          e.printStackTrace();
+        }
+      }
+
+      @Override
+      public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        e.printStackTrace();
+      }
+
+      @Override
+      public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+      }
+    }, mHandler);
+  }
+
+  // 帧标志: 仅含参数集返回BUFFER_FLAG_CODEC_CONFIG，含IDR返回BUFFER_FLAG_KEY_FRAME，否则返回0
+  private static int getFrameFlags(NalScanner scanner, byte[] buffer, int offset, int length) {
+    boolean config = false;
+    boolean vcl = false;
+    boolean idr = false;
+    scanner.reset(buffer, offset, length);
+    while (scanner.next()) {
+      int type = scanner.getType();
+      if (type == NalScanner.NAL_SPS || type == NalScanner.NAL_PPS) {
+        config = true;
+      } else if (scanner.isVcl()) {
+        vcl = true;
+        idr |= type == NalScanner.NAL_IDR;
+      }
+    }
+    if (config && !vcl) {
+      return MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
     }
-    return true;
+    return config || idr ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
   }
 }
@@ -3,7 +3,6 @@ package com.android.hchina.app.uicore.video;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Build;
@@ -12,8 +11,6 @@ import androidx.annotation.RequiresApi;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * H264 MediaCodec编码类
@@ -29,6 +26,7 @@ public class H264codecEncoder {
     private static final String VIDEO_EXT_FILE = "mp4";
     private static final boolean VIDEO = true;
     private static final boolean AUDIO = false;
+    private static final int FRAME_RATE = 30;
 
     // 状态
     public enum Status { unknown, init, start, stop }
@@ -41,9 +39,26 @@ public class H264codecEncoder {
     private Status mStatus = Status.unknown;
     private int mVideoTrack = -1;
     private int mAudioTrack = -1;
+    private final NalScanner mScanner = new NalScanner();
     private MediaCodec.BufferInfo mOutputVideoInfo = new MediaCodec.BufferInfo();
     private MediaCodec.BufferInfo mOutputAudioInfo = new MediaCodec.BufferInfo();
-    private long mStartTime = 0;
+    // 时间戳
+    private final TimestampEngine mTimestamps = new TimestampEngine(FRAME_RATE, 44100);
+    private long mLastTimeUs = 0;
+    // 复用的样本缓存(直接内存)
+    private ByteBuffer mVideoBuffer;
+    private ByteBuffer mAudioBuffer;
+    // 分片输出(fMP4)，MediaMuxer不支持分片，改用纯JAVA写入
+    private boolean mFragmented = false;
+    private long mFragmentMs = 0;
+    private Mp4Writer mWriter;
+    // faststart预计时长，MediaMuxer不支持，改用纯JAVA写入
+    private long mFaststartMs = 0;
+    private int mWriterSampleRate = 0;
+    // 每个AAC帧的采样数，HE/HE-v2为2048
+    private int mAudioFrameSize = AudioConfig.FRAME_SIZE;
+    // 音频格式，为空时按输入采样率的双声道LC
+    private AudioConfig mAudioConfig;
 
     private H264codecEncoder(Context context) {
         mContext = context;
@@ -53,8 +68,47 @@ public class H264codecEncoder {
         return mStatus;
     }
 
+    /**
+     * 设置分片输出(fMP4)，需在create之前调用
+     *
+     * @param enable : 是否分片
+     * @param durationMs : 分片时长(毫秒)，小于等于0表示每个关键帧一个分片
+     */
+    public void setFragmented(boolean enable, long durationMs) {
+        mFragmented = enable;
+        mFragmentMs = durationMs;
+    }
+
+    /**
+     * 设置faststart(moov在文件开头)，需在create之前调用；MediaMuxer不支持，改用纯JAVA写入
+     *
+     * @param durationMs : 预计录制时长(毫秒)，按此预留moov空间；小于等于0表示关闭
+     */
+    public void setFaststart(long durationMs) {
+        mFaststartMs = Math.max(durationMs, 0);
+    }
+
     // 创建
     public void create(String path) {
+        if (mFragmented || mFaststartMs > 0) {
+            mVideoPath = path;
+            mWriter = new Mp4Writer();
+            if (mFragmented) {
+                mWriter.setFragmented(mFragmentMs);
+            } else {
+                // 音频采样率此时未知，按设置的格式或48kHz估算
+                int sampleRate = mAudioConfig != null ? mAudioConfig.getSampleRate() : 48000;
+                mWriter.setFaststart(Mp4Writer.estimateMoovSize(mFaststartMs, FRAME_RATE, sampleRate));
+            }
+            mWriter.setInPlaceConversion(false);
+            if (mWriter.open(mVideoPath)) {
+                mStatus = Status.start;
+            } else {
+                mWriter = null;
+            }
+            return;
+        }
+
         try {
             mVideoPath = path;
             mMediaMuxer = new MediaMuxer(mVideoPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
@@ -66,6 +120,18 @@ public class H264codecEncoder {
 
     // 释放
     public void destory() {
+        if (mWriter != null) {
+            mStatus = Status.stop;
+            mWriter.close();
+            mWriter = null;
+            mWriterSampleRate = 0;
+            mAudioFrameSize = AudioConfig.FRAME_SIZE;
+            mVideoPath = null;
+            mTimestamps.reset();
+            mLastTimeUs = 0;
+            return;
+        }
+
         try {
             mStatus = Status.stop;
             writeEndStream();
@@ -77,52 +143,44 @@ public class H264codecEncoder {
         mVideoPath = null;
         mVideoTrack = -1;
         mAudioTrack = -1;
-        mStartTime = 0;
+        mTimestamps.reset();
+        mLastTimeUs = 0;
         mMediaMuxer = null;
+        mVideoBuffer = null;
+        mAudioBuffer = null;
     }
 
-    // 初始化SPS和PPS
+    // 初始化SPS和PPS(csd-0/csd-1带起始码，多组参数集时取第一组)
     private boolean initSpsAndPps(MediaFormat format, byte[] buffer, int length) {
         if (format == null || buffer == null || length <= 0) {
             return false;
         }
 
-        // 判断I帧，然后根据具体情况获取sps, pps
-        if ((buffer[4] & 0x1f) == 7) {
-            int save_x = 0;
-            Map<Integer, Integer> map = new HashMap<>();
-            byte[] save = new byte[length];
-            System.arraycopy(buffer, 0, save, 0, length);
-            for (int i = 0; i < save.length - 3; i++) {
-                if (save[i] == 0 && save[i + 1] == 0 && save[i + 2] == 0 && save[i + 3] == 1) {
-                    map.put(save_x, i);
-                    save_x++;
-                    i = i + 3;
-                } else if (save[i] == 0 && save[i + 1] == 0 && save[i + 2] == 1) {
-                    map.put(save_x, i);
-                    save_x++;
-                    i = i + 2;
-                }
-            }
-
-            if(map.size() <= 2) {
-                return false;
+        byte[] sps = null;
+        byte[] pps = null;
+        NalScanner scanner = mScanner.reset(buffer, 0, length);
+        while (scanner.next() && (sps == null || pps == null)) {
+            if (scanner.getType() == NalScanner.NAL_SPS && sps == null) {
+                sps = withStartCode(buffer, scanner.getOffset(), scanner.getLength());
+            } else if (scanner.getType() == NalScanner.NAL_PPS && pps == null) {
+                pps = withStartCode(buffer, scanner.getOffset(), scanner.getLength());
             }
+        }
 
-            int length_sps = map.get(1) - map.get(0) - 4;
-            int offset_sps = map.get(0) + 3;
-            byte[] sps = new byte[length_sps];
-            System.arraycopy(save, offset_sps, sps, 0, length_sps);
-
-            int length_pps = map.get(2) - map.get(1) - 4;
-            int offset_pps = map.get(1) + 3;
-            byte[] pps = new byte[length_pps];
-            System.arraycopy(save, offset_pps, pps, 0, length_pps);
-            format.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
-            format.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
-            return true;
+        if (sps == null || pps == null) {
+            return false;
         }
-        return false;
+        format.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+        format.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+        return true;
+    }
+
+    // 复制NAL并加4字节起始码
+    private static byte[] withStartCode(byte[] buffer, int offset, int length) {
+        byte[] nal = new byte[length + 4];
+        nal[3] = 1;
+        System.arraycopy(buffer, offset, nal, 4, length);
+        return nal;
     }
 
     // 初始化视频编码
@@ -136,23 +194,47 @@ public class H264codecEncoder {
             return;
         }
 
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
         mVideoTrack = mMediaMuxer.addTrack(format);
         startMux();
     }
 
+    /**
+     * 设置音频格式(声道数、profile、比特率)，需在create之前调用
+     *
+     * @param config : 为空时按输入采样率的双声道LC
+     */
+    public void setAudioConfig(AudioConfig config) {
+        mAudioConfig = config;
+    }
+
+    // 音频格式，未设置时由输入采样率确定
+    private AudioConfig getAudioConfig(int sampleRate) {
+        AudioConfig config = mAudioConfig;
+        if (config == null || config.getSampleRate() != AudioConfig.getSupportedSampleRate(sampleRate)) {
+            int channels = config != null ? config.getChannelCount() : 2;
+            int profile = config != null ? config.getProfile() : AudioConfig.PROFILE_LC;
+            config = new AudioConfig(sampleRate, channels, profile, 0);
+        }
+        return config;
+    }
+
     // 初始化音频编码
     private void initAudioCodec(int sampleRate) {
         if (mMediaMuxer == null || mAudioTrack != -1) {
             return;
         }
 
-        MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm", sampleRate, 2);
+        AudioConfig config = getAudioConfig(sampleRate);
+        mAudioFrameSize = config.getFrameSize();
+        int channels = config.getChannelCount();
+        MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm",
+                config.getSampleRate(), channels);
         // 指定PROFILE
-        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        format.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_STEREO); // CHANNEL_IN_STEREO 立体声
-        int bitRate = sampleRate * AudioFormat.ENCODING_PCM_16BIT * 2;
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate); // 比特率
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, config.getProfile());  // 与CodecProfileLevel取值相同
+        format.setInteger(MediaFormat.KEY_CHANNEL_MASK, channels == 1
+                ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate()); // 比特率
 //    format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 2);
 //    format.setInteger(MediaFormat.KEY_SAMPLE_RATE, sampleRate);
 //    format.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_STEREO);
@@ -182,7 +264,7 @@ public class H264codecEncoder {
 
         ByteBuffer buffer;
         MediaCodec.BufferInfo eos;
-        long presentationTimeUs = System.nanoTime() / 1000 - mStartTime;
+        long presentationTimeUs = mLastTimeUs;
 
         if (VIDEO && mVideoTrack != -1) {
             buffer = ByteBuffer.allocate(0);
@@ -199,13 +281,34 @@ public class H264codecEncoder {
         }
     }
 
-    // 增加视频(JLayer->notifyReceiveVideoData)
+    // 增加视频(JLayer->notifyReceiveVideoData)，以当前时间为时间戳
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     public void addVideo(byte[] data, int size, final int width, final int height, int frameType) {
+        addVideo(data, size, width, height, frameType, TimestampEngine.now());
+    }
+
+    /**
+     * 增加视频
+     *
+     * @param timeStampUs : 源时间戳(微秒)
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    public void addVideo(byte[] data, int size, final int width, final int height, int frameType,
+                         long timeStampUs) {
         if (!VIDEO) {
             return;
         }
 
+        if (mWriter != null) {
+            if (mStatus != Status.start || data == null || size <= 0) {
+                return;
+            }
+            long presentationTimeUs = mTimestamps.videoTime(timeStampUs);
+            mLastTimeUs = Math.max(mLastTimeUs, presentationTimeUs);
+            mWriter.writeVideo(data, 0, size, width, height, frameType == 3, presentationTimeUs);
+            return;
+        }
+
         if (frameType == 3) {
             initVideoCodec(data, size, width, height);
         }
@@ -219,36 +322,107 @@ public class H264codecEncoder {
             flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
         }
 
-        if (mStartTime == 0) {
-            mStartTime = System.nanoTime() / 1000;
+        mVideoBuffer = fillBuffer(mVideoBuffer, null, size);
+        if (!fillVideoSample(mVideoBuffer, data, size)) {
+            return;
         }
-
-        long presentationTimeUs = System.nanoTime() / 1000 - mStartTime;
-        ByteBuffer buffer = ByteBuffer.allocate(size);
-        buffer.put(data, 0, size);
-        mOutputVideoInfo.set(0, size, presentationTimeUs, flags);
-        mMediaMuxer.writeSampleData(mVideoTrack, buffer, mOutputVideoInfo);
+        long presentationTimeUs = mTimestamps.videoTime(timeStampUs);
+        mLastTimeUs = Math.max(mLastTimeUs, presentationTimeUs);
+        mOutputVideoInfo.set(0, mVideoBuffer.remaining(), presentationTimeUs, flags);
+        mMediaMuxer.writeSampleData(mVideoTrack, mVideoBuffer, mOutputVideoInfo);
     }
 
-    // 增加音视频(JLayer->notifyReceiveAudioData)
+    /**
+     * 增加音频(旧接口，毫秒时间戳)，每次一帧AAC
+     *
+     * @param timeStamp : 源时间戳(毫秒)，小于等于0时以当前时间为准
+     * @param seq : 帧序号，用于检测丢帧
+     * @deprecated 使用addAudio(data, size, sampleRate, seq, timeStampUs)，与addVideo同为微秒
+     */
+    @Deprecated
     public void addAudio(byte[] data, int size, int sampleRate, long timeStamp, int seq) {
+        long timeStampUs = timeStamp > 0 ? timeStamp * 1000 : TimestampEngine.now();
+        addAudio(data, size, sampleRate, seq, timeStampUs);
+    }
+
+    /**
+     * 增加音频(JLayer->notifyReceiveAudioData)，每次一帧AAC
+     *
+     * @param seq : 帧序号，用于检测丢帧
+     * @param timeStampUs : 源时间戳(微秒)，与addVideo相同
+     */
+    public void addAudio(byte[] data, int size, int sampleRate, int seq, long timeStampUs) {
         if (!AUDIO) {
             return;
         }
 
+        if (mWriter != null) {
+            if (mStatus != Status.start || data == null || size <= 0) {
+                return;
+            }
+            if (mWriterSampleRate != sampleRate) {
+                mWriterSampleRate = sampleRate;
+                AudioConfig config = getAudioConfig(sampleRate);
+                // 与MediaMuxer相同，按设置的profile生成AudioSpecificConfig
+                mWriter.setAudioFormat(config.getSampleRate(), config.getChannelCount(),
+                        Mp4Track.createAudioConfig(config.getProfile(), config.getSampleRate(),
+                                config.getChannelCount()));
+                mAudioFrameSize = config.getFrameSize();
+                mTimestamps.setSampleRate(sampleRate);
+            }
+            long presentationTimeUs = mTimestamps.audioTime(timeStampUs, mAudioFrameSize, seq);
+            mLastTimeUs = Math.max(mLastTimeUs, presentationTimeUs);
+            mWriter.writeAudio(data, 0, size, presentationTimeUs);
+            return;
+        }
+
         initAudioCodec(sampleRate);
         if (mMediaMuxer == null || mStatus != Status.start || data == null || size <= 0) {
             return;
         }
 
-        if ((VIDEO && mStartTime == 0) || (!VIDEO && mStartTime == 0)) {
-            mStartTime = System.nanoTime() / 1000;
+        mTimestamps.setSampleRate(sampleRate);
+        mAudioBuffer = fillBuffer(mAudioBuffer, data, size);
+        long presentationTimeUs = mTimestamps.audioTime(timeStampUs, mAudioFrameSize, seq);
+        mLastTimeUs = Math.max(mLastTimeUs, presentationTimeUs);
+        mOutputAudioInfo.set(0, size, presentationTimeUs, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        mMediaMuxer.writeSampleData(mAudioTrack, mAudioBuffer, mOutputAudioInfo);
+    }
+
+    // 复制视频帧，剥离SPS/PPS(已在csd中)和AUD，返回是否有图像数据
+    private boolean fillVideoSample(ByteBuffer buffer, byte[] data, int size) {
+        buffer.clear();
+        NalScanner scanner = mScanner.reset(data, 0, size);
+        if (!scanner.hasStartCode()) {
+            buffer.put(data, 0, size);
         }
+        while (scanner.next()) {
+            int type = scanner.getType();
+            if (type == NalScanner.NAL_SPS || type == NalScanner.NAL_PPS
+                    || type == NalScanner.NAL_AUD) {
+                continue;
+            }
+            int startCode = scanner.getStartCodeLength();
+            buffer.put(data, scanner.getOffset() - startCode, scanner.getLength() + startCode);
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
 
-        ByteBuffer buffer = ByteBuffer.allocate(size);
-        buffer.put(data, 0, size);
-        long presentationTimeUs = System.nanoTime() / 1000 - mStartTime;
-        mOutputAudioInfo.set(0, size, presentationTimeUs, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
-        mMediaMuxer.writeSampleData(mAudioTrack, buffer, mOutputAudioInfo);
+    // 复制到复用缓存(data为空时只分配)，容量不足时按2倍扩容
+    private static ByteBuffer fillBuffer(ByteBuffer buffer, byte[] data, int size) {
+        if (buffer == null || buffer.capacity() < size) {
+            int capacity = buffer == null ? 64 * 1024 : buffer.capacity();
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+        if (data != null) {
+            buffer.put(data, 0, size);
+        }
+        buffer.flip();
+        return buffer;
     }
 }
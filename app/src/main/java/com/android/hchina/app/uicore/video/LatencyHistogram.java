@@ -0,0 +1,88 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图 - 按2的幂分桶(微秒)，无锁，记录时不分配内存
+ *
+ * 第i个桶记录[2^(i-1), 2^i)微秒的样本，百分位返回所在桶的上限。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-03
+ */
+public class LatencyHistogram {
+  private static final int BUCKETS = 32;  // 最大约35分钟
+
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  // 记录一个样本(微秒)
+  public void record(long us) {
+    int bucket = us <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(us);
+    if (bucket >= BUCKETS) {
+      bucket = BUCKETS - 1;
+    }
+    mBuckets.incrementAndGet(bucket);
+    mCount.incrementAndGet();
+    mSum.addAndGet(us);
+    long max = mMax.get();
+    while (us > max && !mMax.compareAndSet(max, us)) {
+      max = mMax.get();
+    }
+  }
+
+  public long getCount() {
+    return mCount.get();
+  }
+
+  public long getMax() {
+    return mMax.get();
+  }
+
+  public long getMean() {
+    long count = mCount.get();
+    return count > 0 ? mSum.get() / count : 0;
+  }
+
+  /**
+   * 百分位(微秒)
+   *
+   * @param percentile : 0~100，如99表示p99
+   */
+  public long getPercentile(double percentile) {
+    long count = mCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += mBuckets.get(i);
+      if (seen >= target) {
+        return i == 0 ? 0 : Math.min((1L << i) - 1, mMax.get());
+      }
+    }
+    return mMax.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      mBuckets.set(i, 0);
+    }
+    mCount.set(0);
+    mSum.set(0);
+    mMax.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "n=" + getCount() + " mean=" + getMean() + "us p50=" + getPercentile(50)
+            + "us p99=" + getPercentile(99) + "us max=" + getMax() + "us";
+  }
+}
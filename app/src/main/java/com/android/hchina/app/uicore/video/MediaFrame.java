@@ -0,0 +1,65 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * 音视频帧 - 由FramePool分配和回收，数据缓存归帧所有
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-09
+ */
+public class MediaFrame {
+  public static final int KEY_FRAME = 3;  // 关键视频帧
+
+  // 数据缓存(长度可能大于size)
+  public final byte[] data;
+  public int size;
+  public int width;
+  public int height;
+  public int frameType;
+  // 源时间戳(微秒)，小于0表示未设置
+  public long timeUs = -1;
+  // 音频帧序号，小于0表示无序号
+  public int seq = -1;
+  // 入队时间(System.nanoTime)，用于统计排队延迟
+  public long queuedNs;
+  // 所属尺寸等级，-1表示不回收
+  final int sizeClass;
+
+  MediaFrame(int capacity, int sizeClass) {
+    this.data = new byte[capacity];
+    this.sizeClass = sizeClass;
+  }
+
+  // 判断是否有效
+  public boolean isValid() {
+    return size > 0;
+  }
+
+  // 关键帧
+  public boolean isKeyFrame() {
+    return frameType == KEY_FRAME;
+  }
+
+  public int capacity() {
+    return data.length;
+  }
+
+  // 复制数据
+  public void set(byte[] src, int offset, int length) {
+    System.arraycopy(src, offset, data, 0, length);
+    size = length;
+  }
+
+  // 清空属性
+  void reset() {
+    size = 0;
+    width = 0;
+    height = 0;
+    frameType = 0;
+    timeUs = -1;
+    seq = -1;
+    queuedNs = 0;
+  }
+}
@@ -0,0 +1,137 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MP4 Box构造器 - 大端序写入，支持嵌套Box长度回填
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-02
+ */
+public class Mp4Box {
+  private byte[] mData;
+  private int mSize;
+
+  public Mp4Box(int capacity) {
+    mData = new byte[Math.max(capacity, 64)];
+  }
+
+  // 清空(保留内存)
+  public void reset() {
+    mSize = 0;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public byte[] data() {
+    return mData;
+  }
+
+  // 包装为ByteBuffer(不复制)
+  public ByteBuffer toBuffer() {
+    return ByteBuffer.wrap(mData, 0, mSize);
+  }
+
+  // 复制为数组
+  public byte[] toArray() {
+    byte[] out = new byte[mSize];
+    System.arraycopy(mData, 0, out, 0, mSize);
+    return out;
+  }
+
+  // 开始Box，返回起始位置，由end()回填长度
+  public int start(String type) {
+    int pos = mSize;
+    putInt(0);
+    putType(type);
+    return pos;
+  }
+
+  // 开始FullBox
+  public int startFull(String type, int version, int flags) {
+    int pos = start(type);
+    putInt((version << 24) | (flags & 0xFFFFFF));
+    return pos;
+  }
+
+  // 结束Box，回填长度
+  public void end(int pos) {
+    setInt(pos, mSize - pos);
+  }
+
+  public void putType(String type) {
+    ensure(4);
+    for (int i = 0; i < 4; i++) {
+      mData[mSize++] = (byte) type.charAt(i);
+    }
+  }
+
+  public void putByte(int v) {
+    ensure(1);
+    mData[mSize++] = (byte) v;
+  }
+
+  public void putShort(int v) {
+    ensure(2);
+    mData[mSize++] = (byte) (v >> 8);
+    mData[mSize++] = (byte) v;
+  }
+
+  public void putInt(int v) {
+    ensure(4);
+    mData[mSize++] = (byte) (v >> 24);
+    mData[mSize++] = (byte) (v >> 16);
+    mData[mSize++] = (byte) (v >> 8);
+    mData[mSize++] = (byte) v;
+  }
+
+  public void putLong(long v) {
+    putInt((int) (v >>> 32));
+    putInt((int) v);
+  }
+
+  public void putBytes(byte[] src) {
+    putBytes(src, 0, src.length);
+  }
+
+  public void putBytes(byte[] src, int offset, int length) {
+    ensure(length);
+    System.arraycopy(src, offset, mData, mSize, length);
+    mSize += length;
+  }
+
+  // 写入length个0
+  public void putZero(int length) {
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      mData[mSize++] = 0;
+    }
+  }
+
+  // 改写指定位置的int
+  public void setInt(int pos, int v) {
+    mData[pos] = (byte) (v >> 24);
+    mData[pos + 1] = (byte) (v >> 16);
+    mData[pos + 2] = (byte) (v >> 8);
+    mData[pos + 3] = (byte) v;
+  }
+
+  // 改写指定位置的long
+  public void setLong(int pos, long v) {
+    setInt(pos, (int) (v >>> 32));
+    setInt(pos + 4, (int) v);
+  }
+
+  private void ensure(int length) {
+    if (mSize + length > mData.length) {
+      byte[] data = new byte[Math.max(mData.length * 2, mSize + length)];
+      System.arraycopy(mData, 0, data, 0, mSize);
+      mData = data;
+    }
+  }
+}
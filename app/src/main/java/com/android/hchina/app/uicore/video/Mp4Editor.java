@@ -0,0 +1,309 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MP4剪辑 - 按关键帧拼接/截取MP4，不解码不重新编码
+ *
+ * 只重写样本表：每个片段选中的样本所在的字节范围用FileChannel.transferTo整段复制到新的mdat
+ * (零拷贝)，样本位置按复制后的位置平移，时长沿用原样本表。
+ * 截取的开始对齐到不晚于开始时间的关键帧，结束对齐到不早于结束时间的关键帧(不含)，
+ * 音频取同一时间范围；每个片段最后一个音频样本的时长调整为与视频对齐，拼接后音画不累积偏差。
+ * 所有片段的样本描述(avcC/esds，含视频尺寸)和timescale需相同，否则抛出IOException。
+ * 用法:
+ *   new Mp4Editor().add("a.mp4").add("b.mp4", 10000000, 20000000).write("out.mp4");
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-21
+ */
+public class Mp4Editor {
+  private static final String TAG = Mp4Editor.class.getSimpleName();
+  private static final int MDAT_HEADER = 16;
+
+  // 片段: 文件及时间范围(微秒)
+  private static class Clip {
+    final String path;
+    final long startUs;
+    final long endUs;
+
+    Clip(String path, long startUs, long endUs) {
+      this.path = path;
+      this.startUs = startUs;
+      this.endUs = endUs;
+    }
+  }
+
+  private final List<Clip> mClips = new ArrayList<>();
+
+  // 输出轨道
+  private Mp4Track mVideoTrack;
+  private Mp4Track mAudioTrack;
+  private int mVideoSamples;
+  private int mAudioSamples;
+
+  // 拼接多个文件
+  public static void concat(String[] inputs, String output) throws IOException {
+    Mp4Editor editor = new Mp4Editor();
+    for (String input : inputs) {
+      editor.add(input);
+    }
+    editor.write(output);
+  }
+
+  // 截取[startUs, endUs)，按关键帧对齐
+  public static void trim(String input, String output, long startUs, long endUs)
+          throws IOException {
+    new Mp4Editor().add(input, startUs, endUs).write(output);
+  }
+
+  // 增加整个文件
+  public Mp4Editor add(String path) {
+    return add(path, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * 增加片段
+   *
+   * @param startUs : 开始时间，向前对齐到关键帧
+   * @param endUs : 结束时间，向后对齐到关键帧；Long.MAX_VALUE表示到文件结束
+   */
+  public Mp4Editor add(String path, long startUs, long endUs) {
+    mClips.add(new Clip(path, Math.max(startUs, 0), endUs));
+    return this;
+  }
+
+  // 上次输出的视频样本数
+  public int getVideoSampleCount() {
+    return mVideoSamples;
+  }
+
+  // 上次输出的音频样本数
+  public int getAudioSampleCount() {
+    return mAudioSamples;
+  }
+
+  /**
+   * 按顺序输出所有片段(ftyp + mdat + moov)，失败时删除输出文件
+   *
+   * @throws IOException 读写失败、片段格式不一致或没有样本时
+   */
+  public void write(String output) throws IOException {
+    mVideoTrack = null;
+    mAudioTrack = null;
+    mVideoSamples = 0;
+    mAudioSamples = 0;
+    RandomAccessFile file = new RandomAccessFile(output, "rw");
+    boolean done = false;
+    try {
+      file.setLength(0);
+      FileChannel channel = file.getChannel();
+      Mp4Box box = new Mp4Box(64);
+      Mp4Writer.putFtyp(box, false);
+      long mdatStart = box.size();
+      box.putInt(1);
+      box.putType("mdat");
+      box.putLong(0);
+      writeFully(channel, box.toBuffer(), 0);
+      channel.position(mdatStart + MDAT_HEADER);
+
+      for (Clip clip : mClips) {
+        Mp4Reader reader = Mp4Reader.open(clip.path);
+        try {
+          writeClip(reader, clip, channel);
+        } finally {
+          reader.close();
+        }
+      }
+      if (mVideoSamples == 0 && mAudioSamples == 0) {
+        throw new IOException("no samples: " + output);
+      }
+
+      long moovStart = channel.position();
+      List<Mp4Track> tracks = new ArrayList<>();
+      if (mVideoTrack != null) {
+        tracks.add(mVideoTrack);
+      }
+      if (mAudioTrack != null) {
+        tracks.add(mAudioTrack);
+      }
+      writeFully(channel, Mp4Writer.buildMoov(tracks.toArray(new Mp4Track[tracks.size()]),
+              false).toBuffer(), moovStart);
+      ByteBuffer size = ByteBuffer.allocate(8);
+      size.putLong(0, moovStart - mdatStart);
+      writeFully(channel, size, mdatStart + 8);
+      done = true;
+    } finally {
+      file.close();
+      if (!done) {
+        new File(output).delete();
+      }
+    }
+  }
+
+  // 选择片段的样本，复制数据并加入输出轨道
+  private void writeClip(Mp4Reader reader, Clip clip, FileChannel channel) throws IOException {
+    Mp4Reader.Track video = reader.getVideoTrack();
+    Mp4Reader.Track audio = reader.getAudioTrack();
+    if (video != null && video.hasCompositionOffsets()) {
+      throw new IOException("ctts not supported: " + clip.path);
+    }
+    if (mVideoTrack == null && mAudioTrack == null) {
+      // 第一个片段决定输出轨道
+      mVideoTrack = createTrack(video, 1);
+      mAudioTrack = createTrack(audio, video != null ? 2 : 1);
+    } else {
+      checkTrack(mVideoTrack, video, clip.path);
+      checkTrack(mAudioTrack, audio, clip.path);
+    }
+
+    // 视频按关键帧对齐，音频取同一时间范围
+    long startUs = clip.startUs;
+    long endUs = clip.endUs;
+    int videoStart = 0;
+    int videoEnd = 0;
+    if (video != null) {
+      int timescale = video.getTimescale();
+      long startTicks = toTicks(clip.startUs, timescale);
+      long endTicks = toTicks(clip.endUs, timescale);
+      long startAt = 0;
+      long endAt = video.getDuration();
+      videoEnd = video.getSampleCount();
+      long ticks = 0;
+      for (int i = 0; i < video.getSampleCount(); i++) {
+        if (video.isSyncSample(i)) {
+          if (ticks >= endTicks && i > videoStart) {
+            videoEnd = i;
+            endAt = ticks;
+            break;
+          }
+          if (ticks <= startTicks) {
+            videoStart = i;
+            startAt = ticks;
+          }
+        }
+        ticks += video.getSampleDelta(i);
+      }
+      startUs = startAt * 1000000L / timescale;
+      endUs = endAt * 1000000L / timescale;
+    }
+    int audioStart = 0;
+    int audioEnd = 0;
+    if (audio != null) {
+      int timescale = audio.getTimescale();
+      long startTicks = toTicks(startUs, timescale);
+      long endTicks = toTicks(endUs, timescale);
+      audioStart = audio.getSampleCount();
+      audioEnd = audio.getSampleCount();
+      long ticks = 0;
+      for (int i = 0; i < audio.getSampleCount(); i++) {
+        if (ticks >= startTicks && audioStart == audio.getSampleCount()) {
+          audioStart = i;
+        }
+        if (ticks >= endTicks) {
+          audioEnd = i;
+          break;
+        }
+        ticks += audio.getSampleDelta(i);
+      }
+    }
+    if (videoStart >= videoEnd && audioStart >= audioEnd) {
+      return;
+    }
+
+    // 选中样本所在的字节范围整段复制
+    long rangeStart = Long.MAX_VALUE;
+    long rangeEnd = 0;
+    for (int i = videoStart; i < videoEnd; i++) {
+      rangeStart = Math.min(rangeStart, video.getSampleOffset(i));
+      rangeEnd = Math.max(rangeEnd, video.getSampleOffset(i) + video.getSampleSize(i));
+    }
+    for (int i = audioStart; i < audioEnd; i++) {
+      rangeStart = Math.min(rangeStart, audio.getSampleOffset(i));
+      rangeEnd = Math.max(rangeEnd, audio.getSampleOffset(i) + audio.getSampleSize(i));
+    }
+    long base = channel.position() - rangeStart;
+    transfer(reader.getChannel(), rangeStart, rangeEnd - rangeStart, channel);
+
+    long videoTicks = 0;
+    for (int i = videoStart; i < videoEnd; i++) {
+      mVideoTrack.appendSample(video.getSampleOffset(i) + base, video.getSampleSize(i),
+              video.getSampleDelta(i), video.isSyncSample(i));
+      videoTicks += video.getSampleDelta(i);
+    }
+    // 有视频时最后一个音频样本的时长补齐到视频时长
+    long audioTarget = video != null && audio != null
+            ? videoTicks * audio.getTimescale() / video.getTimescale() : -1;
+    long audioTicks = 0;
+    for (int i = audioStart; i < audioEnd; i++) {
+      int delta = audio.getSampleDelta(i);
+      if (i == audioEnd - 1 && audioTarget > audioTicks) {
+        delta = (int) Math.min(audioTarget - audioTicks, Integer.MAX_VALUE);
+      }
+      mAudioTrack.appendSample(audio.getSampleOffset(i) + base, audio.getSampleSize(i),
+              delta, true);
+      audioTicks += delta;
+    }
+    mVideoSamples += videoEnd - videoStart;
+    mAudioSamples += audioEnd - audioStart;
+  }
+
+  private static Mp4Track createTrack(Mp4Reader.Track source, int trackId) {
+    if (source == null) {
+      return null;
+    }
+    Mp4Track track = new Mp4Track(trackId, source.isVideo(), source.getTimescale(),
+            source.getSampleCount() > 0 ? source.getSampleDelta(0) : 1);
+    track.setSize(source.getWidth(), source.getHeight());
+    track.setSampleEntry(source.getSampleEntry());
+    return track;
+  }
+
+  // 片段的轨道需与输出轨道一致
+  private static void checkTrack(Mp4Track track, Mp4Reader.Track source, String path)
+          throws IOException {
+    if (track == null && source == null) {
+      return;
+    }
+    if (track == null || source == null || track.getTimescale() != source.getTimescale()
+            || !Arrays.equals(track.getSampleEntry(), source.getSampleEntry())) {
+      throw new IOException("incompatible track: " + path);
+    }
+  }
+
+  private static long toTicks(long timeUs, int timescale) {
+    if (timeUs >= Long.MAX_VALUE / timescale) {
+      return Long.MAX_VALUE;
+    }
+    return timeUs * timescale / 1000000L;
+  }
+
+  // 零拷贝复制到输出末尾
+  private static void transfer(FileChannel src, long position, long length, FileChannel dst)
+          throws IOException {
+    while (length > 0) {
+      long count = src.transferTo(position, length, dst);
+      if (count <= 0) {
+        throw new IOException("transfer at " + position);
+      }
+      position += count;
+      length -= count;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MP4 分片轨道数据 - 缓存一个分片(moof+mdat)内单个轨道的样本
+ *
+ * 每个分片输出后复用内存，样本表大小只与分片时长有关，与录制时长无关。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-06
+ */
+public class Mp4Fragment {
+  private static final int INIT_CAPACITY = 64;
+  // sample_flags: 不依赖其他帧 / 依赖其他帧且非同步帧
+  private static final int FLAGS_SYNC = 0x02000000;
+  private static final int FLAGS_NON_SYNC = 0x01010000;
+
+  private final Mp4Track mTrack;
+  private byte[] mData = new byte[64 * 1024];
+  private int mDataSize;
+  private int[] mSizes = new int[INIT_CAPACITY];
+  private int[] mDeltas = new int[INIT_CAPACITY];
+  private boolean[] mSyncs = new boolean[INIT_CAPACITY];
+  private int mCount;
+  private long mFirstTicks = -1;
+  private long mLastTicks = -1;
+  private int mLastDelta;
+  private int mSampleSize;
+
+  public Mp4Fragment(Mp4Track track) {
+    mTrack = track;
+  }
+
+  public Mp4Track getTrack() {
+    return mTrack;
+  }
+
+  public int getSampleCount() {
+    return mCount;
+  }
+
+  public int getDataSize() {
+    return mDataSize;
+  }
+
+  public byte[] getData() {
+    return mData;
+  }
+
+  // 分片第一个样本的时间(微秒)
+  public long getFirstTimeUs() {
+    return mFirstTicks * 1000000L / mTrack.getTimescale();
+  }
+
+  // 开始一个样本
+  public void beginSample(long timeUs, boolean sync) {
+    long ticks = timeUs * mTrack.getTimescale() / 1000000L;
+    if (mCount > 0) {
+      long delta = ticks - mLastTicks;
+      mLastDelta = delta > 0 ? (int) delta : 1;
+      mDeltas[mCount - 1] = mLastDelta;
+    } else {
+      mFirstTicks = ticks;
+    }
+    if (mCount == mSizes.length) {
+      mSizes = grow(mSizes);
+      mDeltas = grow(mDeltas);
+      boolean[] syncs = new boolean[mSyncs.length * 2];
+      System.arraycopy(mSyncs, 0, syncs, 0, mSyncs.length);
+      mSyncs = syncs;
+    }
+    mLastTicks = ticks;
+    mSyncs[mCount] = sync;
+    mSampleSize = 0;
+  }
+
+  // 追加样本数据
+  public void append(byte[] data, int offset, int length) {
+    ensure(length);
+    System.arraycopy(data, offset, mData, mDataSize, length);
+    mDataSize += length;
+    mSampleSize += length;
+  }
+
+  // 追加buffer的[position, limit)，position移到limit
+  public void append(ByteBuffer buffer) {
+    int length = buffer.remaining();
+    ensure(length);
+    buffer.get(mData, mDataSize, length);
+    mDataSize += length;
+    mSampleSize += length;
+  }
+
+  // 追加4字节长度
+  public void appendInt(int v) {
+    ensure(4);
+    mData[mDataSize++] = (byte) (v >> 24);
+    mData[mDataSize++] = (byte) (v >> 16);
+    mData[mDataSize++] = (byte) (v >> 8);
+    mData[mDataSize++] = (byte) v;
+    mSampleSize += 4;
+  }
+
+  // 结束一个样本
+  public void endSample() {
+    mSizes[mCount] = mSampleSize;
+    mDeltas[mCount] = mLastDelta > 0 ? mLastDelta : mTrack.getDefaultDelta();
+    mCount++;
+  }
+
+  // 输出traf，返回trun中data_offset的位置以便回填
+  public int writeTraf(Mp4Box box) {
+    int traf = box.start("traf");
+    int tfhd = box.startFull("tfhd", 0, 0x020000);  // default-base-is-moof
+    box.putInt(mTrack.getTrackId());
+    box.end(tfhd);
+
+    int tfdt = box.startFull("tfdt", 1, 0);
+    box.putLong(mFirstTicks);
+    box.end(tfdt);
+
+    int trun = box.startFull("trun", 0, 0x000701);  // data-offset, duration, size, flags
+    box.putInt(mCount);
+    int dataOffsetPos = box.size();
+    box.putInt(0);
+    for (int i = 0; i < mCount; i++) {
+      box.putInt(mDeltas[i]);
+      box.putInt(mSizes[i]);
+      box.putInt(mSyncs[i] ? FLAGS_SYNC : FLAGS_NON_SYNC);
+    }
+    box.end(trun);
+    box.end(traf);
+    return dataOffsetPos;
+  }
+
+  // 清空，保留内存
+  public void reset() {
+    mDataSize = 0;
+    mCount = 0;
+    mFirstTicks = -1;
+  }
+
+  private void ensure(int length) {
+    if (mDataSize + length > mData.length) {
+      byte[] data = new byte[Math.max(mData.length * 2, mDataSize + length)];
+      System.arraycopy(mData, 0, data, 0, mDataSize);
+      mData = data;
+    }
+  }
+
+  private static int[] grow(int[] src) {
+    int[] dst = new int[src.length * 2];
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+}
@@ -0,0 +1,64 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * MP4输出接口 - 屏蔽CMp4V2(JNI)与纯JAVA写入的差异
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-02
+ */
+public interface Mp4Output {
+
+  // 创建输出(未打开)，用于替换MuxerSession的输出
+  interface Factory {
+    Mp4Output create();
+  }
+
+  /**
+   * 创建MP4文件
+   *
+   * @param path : 文件路径名称
+   * @return 是否成功
+   */
+  boolean open(String path);
+
+  /**
+   * 设置音频格式
+   *
+   * @param sampleRate : 采样率
+   * @param channelCount : 声道数
+   * @param config : AudioSpecificConfig, 为空时按采样率和声道数生成
+   */
+  void setAudioFormat(int sampleRate, int channelCount, byte[] config);
+
+  /**
+   * 写入视频(Annex-B)
+   *
+   * @param data : 视频数据
+   * @param offset : 数据偏移
+   * @param size : 数据大小
+   * @param width : 视频宽度
+   * @param height : 视频高度
+   * @param keyFrame : 关键帧
+   * @param timeUs : 显示时间(微秒)
+   * @return 小于0表示失败
+   */
+  int writeVideo(byte[] data, int offset, int size, int width, int height,
+                 boolean keyFrame, long timeUs);
+
+  /**
+   * 写入音频(AAC裸数据)
+   *
+   * @param data : 音频数据
+   * @param offset : 数据偏移
+   * @param size : 数据大小
+   * @param timeUs : 显示时间(微秒)
+   * @return 小于0表示失败
+   */
+  int writeAudio(byte[] data, int offset, int size, long timeUs);
+
+  /* 关闭MP4文件 */
+  void close();
+}
@@ -0,0 +1,411 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * MP4读取 - 解析非分片MP4的moov，展开每个轨道的样本表(位置、大小、时长、关键帧)
+ *
+ * 只读取顶层box头和moov，不读取样本数据；样本数据由调用者通过getChannel按位置访问。
+ * 每个样本占16字节内存(偏移 + 大小 + 时长)。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-21
+ */
+public class Mp4Reader {
+  private static final long UINT32_MAX = 0xFFFFFFFFL;
+  private static final int MAX_MOOV_SIZE = 256 * 1024 * 1024;
+
+  private static final int TYPE_MOOV = 0x6D6F6F76;
+  private static final int TYPE_MOOF = 0x6D6F6F66;
+  private static final int TYPE_MVEX = 0x6D766578;
+  private static final int TYPE_TRAK = 0x7472616B;
+  private static final int TYPE_TKHD = 0x746B6864;
+  private static final int TYPE_MDIA = 0x6D646961;
+  private static final int TYPE_MDHD = 0x6D646864;
+  private static final int TYPE_HDLR = 0x68646C72;
+  private static final int TYPE_MINF = 0x6D696E66;
+  private static final int TYPE_STBL = 0x7374626C;
+  private static final int TYPE_STSD = 0x73747364;
+  private static final int TYPE_STTS = 0x73747473;
+  private static final int TYPE_CTTS = 0x63747473;
+  private static final int TYPE_STSZ = 0x7374737A;
+  private static final int TYPE_STSC = 0x73747363;
+  private static final int TYPE_STCO = 0x7374636F;
+  private static final int TYPE_CO64 = 0x636F3634;
+  private static final int TYPE_STSS = 0x73747373;
+  private static final int HANDLER_VIDE = 0x76696465;
+  private static final int HANDLER_SOUN = 0x736F756E;
+
+  // 轨道样本表
+  public static class Track {
+    private int mTrackId;
+    private boolean mVideo;
+    private int mTimescale;
+    private byte[] mSampleEntry;
+    private int mSampleCount;
+    private long[] mOffsets;
+    private int[] mSizes;
+    private int[] mDeltas;
+    // 关键帧序号(从0开始，升序)，为空表示全部是关键帧
+    private int[] mSyncSamples;
+    private boolean mCompositionOffsets;
+    private long mDuration;
+
+    public int getTrackId() {
+      return mTrackId;
+    }
+
+    public boolean isVideo() {
+      return mVideo;
+    }
+
+    public int getTimescale() {
+      return mTimescale;
+    }
+
+    // stsd中的第一个样本描述(avc1/mp4a，含box头)
+    public byte[] getSampleEntry() {
+      return mSampleEntry;
+    }
+
+    // 视频尺寸(来自avc1)
+    public int getWidth() {
+      return mVideo && mSampleEntry.length >= 36 ? getShort(mSampleEntry, 32) : 0;
+    }
+
+    public int getHeight() {
+      return mVideo && mSampleEntry.length >= 36 ? getShort(mSampleEntry, 34) : 0;
+    }
+
+    public int getSampleCount() {
+      return mSampleCount;
+    }
+
+    public long getSampleOffset(int index) {
+      return mOffsets[index];
+    }
+
+    public int getSampleSize(int index) {
+      return mSizes[index];
+    }
+
+    // 样本时长(timescale单位)
+    public int getSampleDelta(int index) {
+      return mDeltas[index];
+    }
+
+    public boolean isSyncSample(int index) {
+      return mSyncSamples == null || Arrays.binarySearch(mSyncSamples, index) >= 0;
+    }
+
+    // 是否有ctts(显示时间与解码时间不同)
+    public boolean hasCompositionOffsets() {
+      return mCompositionOffsets;
+    }
+
+    // 轨道时长(timescale单位)
+    public long getDuration() {
+      return mDuration;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+      return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+  }
+
+  private final String mPath;
+  private RandomAccessFile mFile;
+  private FileChannel mChannel;
+  private Track mVideoTrack;
+  private Track mAudioTrack;
+
+  // moov解析
+  private ByteBuffer mMoov;
+  private int mBoxEnd;
+
+  private Mp4Reader(String path) {
+    mPath = path;
+  }
+
+  /**
+   * 打开文件并解析moov
+   *
+   * @throws IOException 没有moov、分片文件或格式错误时
+   */
+  public static Mp4Reader open(String path) throws IOException {
+    Mp4Reader reader = new Mp4Reader(path);
+    reader.mFile = new RandomAccessFile(path, "r");
+    try {
+      reader.mChannel = reader.mFile.getChannel();
+      reader.readMoov();
+      reader.parseMoov();
+    } catch (IOException | RuntimeException e) {
+      reader.close();
+      if (e instanceof IOException) {
+        throw (IOException) e;
+      }
+      throw new IOException("bad mp4: " + path, e);
+    } finally {
+      reader.mMoov = null;
+    }
+    return reader;
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  // 读取样本数据
+  public FileChannel getChannel() {
+    return mChannel;
+  }
+
+  // 第一个视频轨道，没有时为空
+  public Track getVideoTrack() {
+    return mVideoTrack;
+  }
+
+  // 第一个音频轨道，没有时为空
+  public Track getAudioTrack() {
+    return mAudioTrack;
+  }
+
+  public void close() {
+    try {
+      if (mFile != null) {
+        mFile.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    mFile = null;
+    mChannel = null;
+  }
+
+  // 遍历顶层box，读入moov
+  private void readMoov() throws IOException {
+    long length = mChannel.size();
+    ByteBuffer header = ByteBuffer.allocate(16);
+    long position = 0;
+    while (position + 8 <= length) {
+      header.clear();
+      header.limit((int) Math.min(16, length - position));
+      while (header.hasRemaining()) {
+        if (mChannel.read(header, position + header.position()) < 0) {
+          break;
+        }
+      }
+      long size = header.getInt(0) & UINT32_MAX;
+      int type = header.getInt(4);
+      if (size == 1 && header.position() == 16) {
+        size = header.getLong(8);
+      } else if (size == 0) {
+        size = length - position;
+      }
+      if (size < 8 || position + size > length) {
+        break;
+      }
+      if (type == TYPE_MOOF) {
+        throw new IOException("fragmented mp4: " + mPath);
+      }
+      if (type == TYPE_MOOV) {
+        if (size > MAX_MOOV_SIZE) {
+          throw new IOException("moov too large: " + mPath);
+        }
+        mMoov = ByteBuffer.allocate((int) size);
+        while (mMoov.hasRemaining()) {
+          if (mChannel.read(mMoov, position + mMoov.position()) < 0) {
+            throw new IOException("truncated moov: " + mPath);
+          }
+        }
+        return;
+      }
+      position += size;
+    }
+    throw new IOException("no moov: " + mPath);
+  }
+
+  private void parseMoov() throws IOException {
+    int end = mMoov.capacity();
+    if (findBox(8, end, TYPE_MVEX) >= 0) {
+      throw new IOException("fragmented mp4: " + mPath);
+    }
+    int position = 8;
+    while (true) {
+      int trak = findBox(position, end, TYPE_TRAK);
+      if (trak < 0) {
+        break;
+      }
+      position = mBoxEnd;
+      Track track = parseTrak(trak, mBoxEnd);
+      if (track == null) {
+        continue;
+      }
+      if (track.mVideo && mVideoTrack == null) {
+        mVideoTrack = track;
+      } else if (!track.mVideo && mAudioTrack == null) {
+        mAudioTrack = track;
+      }
+    }
+    if (mVideoTrack == null && mAudioTrack == null) {
+      throw new IOException("no track: " + mPath);
+    }
+  }
+
+  // 解析trak，不是音视频轨道时返回null
+  private Track parseTrak(int start, int end) throws IOException {
+    Track track = new Track();
+    int tkhd = findBox(start, end, TYPE_TKHD);
+    int mdia = findBox(start, end, TYPE_MDIA);
+    if (tkhd < 0 || mdia < 0) {
+      return null;
+    }
+    int mdiaEnd = mBoxEnd;
+    track.mTrackId = mMoov.getInt(tkhd + 4 + (mMoov.get(tkhd) == 1 ? 16 : 8));
+
+    int hdlr = findBox(mdia, mdiaEnd, TYPE_HDLR);
+    if (hdlr < 0) {
+      return null;
+    }
+    int handler = mMoov.getInt(hdlr + 8);
+    if (handler != HANDLER_VIDE && handler != HANDLER_SOUN) {
+      return null;
+    }
+    track.mVideo = handler == HANDLER_VIDE;
+    int mdhd = findBox(mdia, mdiaEnd, TYPE_MDHD);
+    int minf = findBox(mdia, mdiaEnd, TYPE_MINF);
+    if (mdhd < 0 || minf < 0) {
+      return null;
+    }
+    int stbl = findBox(minf, mBoxEnd, TYPE_STBL);
+    if (stbl < 0) {
+      return null;
+    }
+    int stblEnd = mBoxEnd;
+    track.mTimescale = mMoov.getInt(mdhd + 4 + (mMoov.get(mdhd) == 1 ? 16 : 8));
+    if (track.mTimescale <= 0) {
+      throw new IOException("bad timescale: " + mPath);
+    }
+
+    // stsd第一个样本描述
+    int stsd = findBox(stbl, stblEnd, TYPE_STSD);
+    if (stsd < 0 || mMoov.getInt(stsd + 4) < 1) {
+      throw new IOException("no sample entry: " + mPath);
+    }
+    int entrySize = mMoov.getInt(stsd + 8);
+    track.mSampleEntry = new byte[entrySize];
+    mMoov.position(stsd + 8);
+    mMoov.get(track.mSampleEntry);
+
+    track.mCompositionOffsets = findBox(stbl, stblEnd, TYPE_CTTS) >= 0;
+    parseSizes(track, stbl, stblEnd);
+    parseDeltas(track, stbl, stblEnd);
+    parseOffsets(track, stbl, stblEnd);
+    int stss = findBox(stbl, stblEnd, TYPE_STSS);
+    if (stss >= 0) {
+      int count = mMoov.getInt(stss + 4);
+      track.mSyncSamples = new int[count];
+      for (int i = 0; i < count; i++) {
+        track.mSyncSamples[i] = mMoov.getInt(stss + 8 + i * 4) - 1;
+      }
+    }
+    return track;
+  }
+
+  // stsz
+  private void parseSizes(Track track, int stbl, int end) throws IOException {
+    int stsz = findBox(stbl, end, TYPE_STSZ);
+    if (stsz < 0) {
+      throw new IOException("no stsz: " + mPath);
+    }
+    int sampleSize = mMoov.getInt(stsz + 4);
+    int count = mMoov.getInt(stsz + 8);
+    track.mSampleCount = count;
+    track.mSizes = new int[count];
+    for (int i = 0; i < count; i++) {
+      track.mSizes[i] = sampleSize != 0 ? sampleSize : mMoov.getInt(stsz + 12 + i * 4);
+    }
+  }
+
+  // stts展开为每个样本的时长
+  private void parseDeltas(Track track, int stbl, int end) throws IOException {
+    int stts = findBox(stbl, end, TYPE_STTS);
+    if (stts < 0) {
+      throw new IOException("no stts: " + mPath);
+    }
+    int entries = mMoov.getInt(stts + 4);
+    track.mDeltas = new int[track.mSampleCount];
+    int sample = 0;
+    for (int i = 0; i < entries && sample < track.mSampleCount; i++) {
+      int count = mMoov.getInt(stts + 8 + i * 8);
+      int delta = mMoov.getInt(stts + 12 + i * 8);
+      for (int j = 0; j < count && sample < track.mSampleCount; j++) {
+        track.mDeltas[sample++] = delta;
+        track.mDuration += delta;
+      }
+    }
+  }
+
+  // stsc + stco/co64展开为每个样本的位置
+  private void parseOffsets(Track track, int stbl, int end) throws IOException {
+    boolean large = false;
+    int stco = findBox(stbl, end, TYPE_STCO);
+    if (stco < 0) {
+      stco = findBox(stbl, end, TYPE_CO64);
+      large = true;
+    }
+    int stsc = findBox(stbl, end, TYPE_STSC);
+    if (stco < 0 || stsc < 0) {
+      throw new IOException("no chunk table: " + mPath);
+    }
+    int chunks = mMoov.getInt(stco + 4);
+    int entries = mMoov.getInt(stsc + 4);
+    track.mOffsets = new long[track.mSampleCount];
+    int sample = 0;
+    for (int i = 0; i < entries; i++) {
+      int first = mMoov.getInt(stsc + 8 + i * 12) - 1;
+      int perChunk = mMoov.getInt(stsc + 12 + i * 12);
+      int last = i + 1 < entries ? mMoov.getInt(stsc + 8 + (i + 1) * 12) - 1 : chunks;
+      for (int chunk = first; chunk < last && chunk < chunks; chunk++) {
+        long offset = large ? mMoov.getLong(stco + 8 + chunk * 8)
+                : mMoov.getInt(stco + 8 + chunk * 4) & UINT32_MAX;
+        for (int j = 0; j < perChunk && sample < track.mSampleCount; j++) {
+          track.mOffsets[sample] = offset;
+          offset += track.mSizes[sample];
+          sample++;
+        }
+      }
+    }
+    if (sample < track.mSampleCount) {
+      throw new IOException("bad chunk table: " + mPath);
+    }
+  }
+
+  /**
+   * 在[start, end)中查找子box
+   *
+   * @return box内容的开始位置，mBoxEnd为box结束位置；找不到返回-1
+   */
+  private int findBox(int start, int end, int type) {
+    int position = start;
+    while (position + 8 <= end) {
+      int size = mMoov.getInt(position);
+      if (size < 8 || position + size > end) {
+        return -1;
+      }
+      if (mMoov.getInt(position + 4) == type) {
+        mBoxEnd = position + size;
+        return position + 8;
+      }
+      position += size;
+    }
+    return -1;
+  }
+}
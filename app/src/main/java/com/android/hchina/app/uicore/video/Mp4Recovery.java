@@ -0,0 +1,515 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MP4修复 - 异常退出(没有写入moov)的录像原地重建为可播放的文件
+ *
+ * 只读取box头和NAL头，按64KB窗口顺序访问文件，不载入样本数据，GB级文件也只占很少内存。
+ * 有样本日志(SampleJournal)时按日志重建样本表；日志之后及没有日志时按4字节长度前缀扫描H264帧，
+ * 跳过无法识别的数据(没有日志时音频无法切分，只恢复视频，时间戳按帧率计算)。
+ * 截掉末尾不完整的样本，回填mdat长度并写入moov(有faststart预留空间且放得下时写在开头)；
+ * 分片文件(fMP4)截掉最后一个不完整的分片。
+ * 用法(启动时):
+ *   Mp4Recovery recovery = new Mp4Recovery();
+ *   if (recovery.recover(path) == Mp4Recovery.Result.recovered) { ... }
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-17
+ */
+public class Mp4Recovery {
+  private static final String TAG = Mp4Recovery.class.getSimpleName();
+  private static final int DEFAULT_FRAME_RATE = 25;
+  private static final int VIDEO_TIMESCALE = 90000;
+  private static final int WINDOW_SIZE = 64 * 1024;
+  // 扫描时跳过的无法识别数据(音频等)上限
+  private static final int MAX_GAP = 64 * 1024;
+  // 单个NAL长度上限，超过时认为不是NAL
+  private static final long MAX_NAL_SIZE = 16 * 1024 * 1024;
+  private static final long UINT32_MAX = 0xFFFFFFFFL;
+
+  private static final int TYPE_FTYP = 0x66747970;
+  private static final int TYPE_FREE = 0x66726565;
+  private static final int TYPE_SKIP = 0x736B6970;
+  private static final int TYPE_MDAT = 0x6D646174;
+  private static final int TYPE_MOOV = 0x6D6F6F76;
+  private static final int TYPE_MOOF = 0x6D6F6F66;
+
+  // complete已完整不需修复 / recovered已修复 / failed无法修复
+  public enum Result { complete, recovered, failed }
+
+  private int mFrameRate = DEFAULT_FRAME_RATE;
+  private int mVideoSamples;
+  private int mAudioSamples;
+
+  private FileChannel mChannel;
+  private long mLength;
+  // 读取窗口
+  private final ByteBuffer mWindow = ByteBuffer.allocate(WINDOW_SIZE);
+  private long mWindowStart;
+
+  // 顶层box
+  private long mFtypEnd;
+  private long mFreeStart;
+  private long mFreeSize;
+  private long mMdatStart;
+  private int mMdatHeader;
+  private boolean mHasMoov;
+  private long mMoovEnd;
+  private boolean mFragmented;
+  private long mFragmentEnd;
+
+  // 扫描得到的帧
+  private boolean mFrameKey;
+  private AvcConfig mScanConfig;
+
+  // 没有日志时视频的帧率
+  public void setFrameRate(int frameRate) {
+    mFrameRate = Math.max(frameRate, 1);
+  }
+
+  public int getFrameRate() {
+    return mFrameRate;
+  }
+
+  // 最近一次修复恢复的视频样本数
+  public int getVideoSampleCount() {
+    return mVideoSamples;
+  }
+
+  // 最近一次修复恢复的音频样本数
+  public int getAudioSampleCount() {
+    return mAudioSamples;
+  }
+
+  /**
+   * 修复文件，完成后删除样本日志
+   *
+   * @param path : MP4文件，日志为SampleJournal.getPath(path)
+   */
+  public Result recover(String path) {
+    mVideoSamples = 0;
+    mAudioSamples = 0;
+    String journalPath = SampleJournal.getPath(path);
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(path, "rw");
+      mChannel = file.getChannel();
+      mLength = mChannel.size();
+      mWindow.clear().limit(0);
+      mWindowStart = 0;
+      scanBoxes();
+
+      Result result;
+      if (mHasMoov && (mFragmented || mMdatStart < 0)) {
+        result = truncateFragments();
+      } else if (mHasMoov) {
+        result = Result.complete;
+      } else if (mMdatStart < 0) {
+        result = Result.failed;
+      } else {
+        result = rebuild(journalPath);
+      }
+      if (result != Result.failed) {
+        new File(journalPath).delete();
+      }
+      return result;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return Result.failed;
+    } finally {
+      mChannel = null;
+      mScanConfig = null;
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  // 遍历顶层box，遇到超出文件末尾或无法识别的box停止
+  private void scanBoxes() throws IOException {
+    mFtypEnd = 0;
+    mFreeStart = 0;
+    mFreeSize = 0;
+    mMdatStart = -1;
+    mMdatHeader = 0;
+    mHasMoov = false;
+    mMoovEnd = 0;
+    mFragmented = false;
+    mFragmentEnd = 0;
+
+    long position = 0;
+    int previous = 0;
+    while (fill(position, 8)) {
+      long size = getInt(position);
+      int type = (int) getInt(position + 4);
+      if (!isType(type)) {
+        break;
+      }
+      int header = 8;
+      if (size == 1) {
+        if (!fill(position + 8, 8)) {
+          break;
+        }
+        size = (getInt(position + 8) << 32) | getInt(position + 12);
+        header = 16;
+      }
+      // 长度为0(未回填)表示到文件末尾
+      if (size == 0) {
+        size = mLength - position;
+      }
+      if (size < header) {
+        break;
+      }
+
+      long end = position + size;
+      if (type == TYPE_FTYP && position == 0) {
+        mFtypEnd = end;
+      } else if ((type == TYPE_FREE || type == TYPE_SKIP) && position == mFtypEnd
+              && mFreeSize == 0) {
+        mFreeStart = position;
+        mFreeSize = size;
+      } else if (type == TYPE_MDAT) {
+        if (mMdatStart < 0) {
+          mMdatStart = position;
+          mMdatHeader = header;
+        }
+        if (previous == TYPE_MOOF && end <= mLength) {
+          mFragmentEnd = end;
+        }
+      } else if (type == TYPE_MOOV && end <= mLength) {
+        mHasMoov = true;
+        mMoovEnd = end;
+      } else if (type == TYPE_MOOF) {
+        mFragmented = true;
+      }
+      if (end > mLength) {
+        break;
+      }
+      previous = type;
+      position = end;
+    }
+  }
+
+  // 分片文件: 截掉最后一个完整分片之后的数据
+  private Result truncateFragments() throws IOException {
+    long end = Math.max(mMoovEnd, mFragmentEnd);
+    if (end >= mLength) {
+      return Result.complete;
+    }
+    mChannel.truncate(end);
+    mChannel.force(false);
+    return Result.recovered;
+  }
+
+  // 重建样本表并写入moov
+  private Result rebuild(String journalPath) throws IOException {
+    long dataStart = mMdatStart + mMdatHeader;
+    long end = dataStart;
+    Mp4Track video = null;
+    Mp4Track audio = null;
+    long firstVideoUs = -1;
+    long lastVideoUs = -1;
+
+    if (new File(journalPath).exists()) {
+      SampleJournal journal = null;
+      try {
+        journal = SampleJournal.open(journalPath);
+        int record;
+        while ((record = journal.next()) != SampleJournal.RECORD_END) {
+          if (record == SampleJournal.RECORD_TRACK) {
+            // 同一轨道再次记录时只更新样本描述(参数集中途变化后改为avc3)
+            Mp4Track known = video != null && video.getTrackId() == journal.getTrackId() ? video
+                    : audio != null && audio.getTrackId() == journal.getTrackId() ? audio : null;
+            if (known != null) {
+              known.setSampleEntry(journal.getSampleEntry());
+              continue;
+            }
+            Mp4Track track = new Mp4Track(journal.getTrackId(), journal.isVideo(),
+                    journal.getTimescale(), journal.getDefaultDelta());
+            track.setSize(journal.getWidth(), journal.getHeight());
+            track.setSampleEntry(journal.getSampleEntry());
+            if (track.isVideo() && video == null) {
+              video = track;
+            } else if (!track.isVideo() && audio == null) {
+              audio = track;
+            }
+            continue;
+          }
+
+          Mp4Track track = video != null && video.getTrackId() == journal.getTrackId() ? video
+                  : audio != null && audio.getTrackId() == journal.getTrackId() ? audio : null;
+          long offset = journal.getOffset();
+          if (track == null) {
+            continue;
+          }
+          // 数据未写入文件的样本及之后的样本丢弃
+          if (offset < dataStart || offset + journal.getSize() > mLength) {
+            break;
+          }
+          track.addSample(offset, journal.getSize(), journal.getTimeUs(), journal.isKeyFrame());
+          end = Math.max(end, offset + journal.getSize());
+          if (track == video) {
+            if (firstVideoUs < 0) {
+              firstVideoUs = journal.getTimeUs();
+            }
+            lastVideoUs = journal.getTimeUs();
+          }
+        }
+      } catch (IOException e) {
+        // 日志损坏时按扫描恢复
+        e.printStackTrace();
+      } finally {
+        if (journal != null) {
+          journal.close();
+        }
+      }
+    }
+
+    // 日志之后(或没有日志时全部)的视频帧
+    long frameUs = video != null && video.getSampleCount() > 1
+            ? (lastVideoUs - firstVideoUs) / (video.getSampleCount() - 1)
+            : 1000000L / mFrameRate;
+    if (video == null) {
+      mScanConfig = new AvcConfig();
+    }
+    long position = end;
+    while (position < mLength) {
+      long frameEnd = readFrame(position, true);
+      if (frameEnd < 0) {
+        position = resync(position);
+        if (position < 0) {
+          break;
+        }
+        continue;
+      }
+      if (video == null) {
+        if (!mFrameKey || !mScanConfig.isReady()) {
+          position = frameEnd;
+          continue;
+        }
+        int width = mScanConfig.getWidth();
+        int height = mScanConfig.getHeight();
+        video = new Mp4Track(audio != null ? audio.getTrackId() + 1 : 1, true, VIDEO_TIMESCALE,
+                VIDEO_TIMESCALE / mFrameRate);
+        video.setSize(width, height);
+        video.setSampleEntry(Mp4Track.createVideoEntry(width, height, mScanConfig.getAvcC()));
+      }
+      long timeUs = lastVideoUs < 0 ? 0 : lastVideoUs + frameUs;
+      video.addSample(position, (int) (frameEnd - position), timeUs, mFrameKey);
+      lastVideoUs = timeUs;
+      end = frameEnd;
+      position = frameEnd;
+    }
+
+    mVideoSamples = video != null ? video.getSampleCount() : 0;
+    mAudioSamples = audio != null ? audio.getSampleCount() : 0;
+    if (mVideoSamples == 0 && mAudioSamples == 0) {
+      return Result.failed;
+    }
+    Mp4Track[] tracks;
+    if (video != null && video.getSampleCount() > 0 && audio != null
+            && audio.getSampleCount() > 0) {
+      tracks = video.getTrackId() < audio.getTrackId()
+              ? new Mp4Track[] { video, audio } : new Mp4Track[] { audio, video };
+    } else {
+      tracks = new Mp4Track[] { mVideoSamples > 0 ? video : audio };
+    }
+
+    // 先截断并写入moov，最后回填mdat长度；中途再次异常退出可重新修复
+    long mdatSize = end - mMdatStart;
+    boolean extend = mMdatHeader == 8 && mdatSize > UINT32_MAX;
+    if (extend && (mFreeSize != 8 || mFreeStart + 8 != mMdatStart)) {
+      return Result.failed;
+    }
+    mChannel.truncate(end);
+    ByteBuffer moov = Mp4Writer.buildMoov(tracks, false).toBuffer();
+    boolean reserved = !extend && mFreeSize > 0 && mFreeStart + mFreeSize == mMdatStart
+            && Mp4Writer.writeReserved(mChannel, moov, mFreeStart, mFreeSize);
+    if (!reserved) {
+      long moovPosition = end;
+      while (moov.hasRemaining()) {
+        moovPosition += mChannel.write(moov, moovPosition);
+      }
+    }
+    mChannel.force(false);
+
+    ByteBuffer header = ByteBuffer.allocate(16);
+    if (mMdatHeader == 16) {
+      header.putLong(mdatSize).flip();
+      mChannel.write(header, mMdatStart + 8);
+    } else if (!extend) {
+      header.putInt((int) mdatSize).flip();
+      mChannel.write(header, mMdatStart);
+    } else {
+      // 32位长度不够时占用mdat之前的8字节free，改为64位长度
+      header.putInt(1).putInt(TYPE_MDAT).putLong(end - mFreeStart).flip();
+      mChannel.write(header, mFreeStart);
+    }
+    mChannel.force(false);
+    return Result.recovered;
+  }
+
+  /**
+   * 读取从position开始的一帧(4字节长度 + NAL，可包含多个NAL)
+   *
+   * @param collect : 收集帧中的SPS/PPS
+   * @return 帧结束位置，不是帧开始或帧不完整时返回-1
+   */
+  private long readFrame(long position, boolean collect) throws IOException {
+    long p = position;
+    boolean vcl = false;
+    boolean key = false;
+    while (fill(p, 5)) {
+      long length = getInt(p);
+      int header = getByte(p + 4);
+      if (!isNal(length, header)) {
+        break;
+      }
+      int type = header & 0x1F;
+      boolean first = isFirstNal(type, p);
+      if (p == position && !first) {
+        return -1;
+      }
+      if (vcl && first) {
+        break;
+      }
+      if (p + 4 + length > mLength) {
+        // 帧不完整
+        return -1;
+      }
+      if (collect && mScanConfig != null && (type == NalScanner.NAL_SPS || type == NalScanner.NAL_PPS)
+              && length <= WINDOW_SIZE && fill(p + 4, (int) length)) {
+        byte[] nal = new byte[(int) length];
+        for (int i = 0; i < nal.length; i++) {
+          nal[i] = (byte) getByte(p + 4 + i);
+        }
+        mScanConfig.add(type, nal, 0, nal.length);
+      }
+      vcl |= type == NalScanner.NAL_SLICE || type == NalScanner.NAL_IDR;
+      key |= type == NalScanner.NAL_IDR;
+      p += 4 + length;
+    }
+    if (collect) {
+      mFrameKey = key;
+    }
+    return vcl ? p : -1;
+  }
+
+  /**
+   * 跳过无法识别的数据，从position之后查找下一帧
+   *
+   * 帧之后要紧跟NAL、另一帧或不超过MAX_GAP的文件末尾(最后一帧之后通常还有音频)，
+   * 避免把音频数据误认为帧。
+   * @return 帧开始位置，找不到返回-1
+   */
+  private long resync(long position) throws IOException {
+    long limit = Math.min(position + MAX_GAP, mLength);
+    long p = position + 1;
+    while ((p = findFrame(p, limit)) >= 0) {
+      long end = readFrame(p, false);
+      if (mLength - end < MAX_GAP || (fill(end, 5) && isNal(getInt(end), getByte(end + 4)))
+              || findFrame(end, end + MAX_GAP) >= 0) {
+        return p;
+      }
+      p++;
+    }
+    return -1;
+  }
+
+  // [from, limit)中第一个完整帧的开始，找不到返回-1
+  private long findFrame(long from, long limit) throws IOException {
+    for (long p = from; p < limit; p++) {
+      if (readFrame(p, false) >= 0) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  // 可能是编码器输出的NAL(禁止位为0，类型为slice/IDR/SEI/SPS/PPS/AUD)
+  private static boolean isNal(long length, int header) {
+    if (length < 2 || length > MAX_NAL_SIZE || (header & 0x80) != 0) {
+      return false;
+    }
+    int type = header & 0x1F;
+    int refIdc = (header >> 5) & 0x03;
+    switch (type) {
+      case NalScanner.NAL_SLICE:
+        return true;
+      case NalScanner.NAL_IDR:
+      case NalScanner.NAL_SPS:
+      case NalScanner.NAL_PPS:
+        return refIdc != 0;
+      case NalScanner.NAL_SEI:
+      case NalScanner.NAL_AUD:
+        return refIdc == 0;
+      default:
+        return false;
+    }
+  }
+
+  // 是否开始新的一帧(与AnnexBReader相同)
+  private boolean isFirstNal(int type, long position) throws IOException {
+    switch (type) {
+      case NalScanner.NAL_AUD:
+      case NalScanner.NAL_SPS:
+      case NalScanner.NAL_PPS:
+      case NalScanner.NAL_SEI:
+        return true;
+      default:
+        // first_mb_in_slice为0时ue(v)的第一位为1
+        return fill(position + 5, 1) && (getByte(position + 5) & 0x80) != 0;
+    }
+  }
+
+  private static boolean isType(int type) {
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      int c = (type >> shift) & 0xFF;
+      if (c < 0x20 || c > 0x7E) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // 确保[position, position + length)在读取窗口中，超出文件末尾返回false
+  private boolean fill(long position, int length) throws IOException {
+    if (position < 0 || position + length > mLength) {
+      return false;
+    }
+    if (position >= mWindowStart && position + length <= mWindowStart + mWindow.limit()) {
+      return true;
+    }
+    mWindow.clear();
+    mWindow.limit((int) Math.min(WINDOW_SIZE, mLength - position));
+    mWindowStart = position;
+    while (mWindow.hasRemaining()) {
+      if (mChannel.read(mWindow, position + mWindow.position()) < 0) {
+        break;
+      }
+    }
+    mWindow.flip();
+    return position + length <= mWindowStart + mWindow.limit();
+  }
+
+  private int getByte(long position) {
+    return mWindow.get((int) (position - mWindowStart)) & 0xFF;
+  }
+
+  // 无符号32位
+  private long getInt(long position) {
+    return mWindow.getInt((int) (position - mWindowStart)) & UINT32_MAX;
+  }
+}
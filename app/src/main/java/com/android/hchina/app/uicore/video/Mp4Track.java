@@ -0,0 +1,467 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * MP4 轨道 - 增量构建stts/stsz/stsc/stco/stss样本表并输出trak
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-02
+ */
+public class Mp4Track {
+  public static final int MOVIE_TIMESCALE = 1000;
+  private static final int INIT_CAPACITY = 256;
+  private static final long UINT32_MAX = 0xFFFFFFFFL;
+
+  private final int mTrackId;
+  private final boolean mVideo;
+  private final int mTimescale;
+  private final int mDefaultDelta;
+  private int mWidth;
+  private int mHeight;
+  private byte[] mSampleEntry;
+  // 上次writeTrak时样本描述在box中的位置
+  private int mEntryPosition = -1;
+
+  // stsz
+  private int[] mSizes = new int[INIT_CAPACITY];
+  private int mSampleCount;
+  // stts(游程编码)
+  private int[] mSttsCounts = new int[16];
+  private int[] mSttsDeltas = new int[16];
+  private int mSttsEntries;
+  private int mDeltaCount;
+  // stss
+  private int[] mSyncSamples = new int[16];
+  private int mSyncCount;
+  // stco + 每块样本数
+  private long[] mChunkOffsets = new long[INIT_CAPACITY];
+  private int[] mChunkSamples = new int[INIT_CAPACITY];
+  private int mChunkCount;
+  private long mLastEnd = -1;
+
+  private long mDuration;
+  private long mLastTicks = -1;
+  private int mLastDelta;
+
+  public Mp4Track(int trackId, boolean video, int timescale, int defaultDelta) {
+    mTrackId = trackId;
+    mVideo = video;
+    mTimescale = timescale;
+    mDefaultDelta = defaultDelta;
+  }
+
+  public int getTrackId() {
+    return mTrackId;
+  }
+
+  public boolean isVideo() {
+    return mVideo;
+  }
+
+  public int getTimescale() {
+    return mTimescale;
+  }
+
+  // 缺省样本时长(timescale单位)
+  public int getDefaultDelta() {
+    return mDefaultDelta;
+  }
+
+  public int getSampleCount() {
+    return mSampleCount;
+  }
+
+  // 轨道时长(timescale单位)
+  public long getDuration() {
+    return mDuration;
+  }
+
+  // 视频尺寸
+  public void setSize(int width, int height) {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  // stsd中的样本描述(avc1/mp4a)
+  public void setSampleEntry(byte[] entry) {
+    mSampleEntry = entry;
+  }
+
+  public byte[] getSampleEntry() {
+    return mSampleEntry;
+  }
+
+  // 上次输出trak时样本描述相对box起点的位置，未输出时为-1
+  public int getEntryPosition() {
+    return mEntryPosition;
+  }
+
+  // 增加样本，时间戳单位微秒；前一个样本的时长由本次时间差决定
+  public void addSample(long offset, int size, long timeUs, boolean sync) {
+    long ticks = timeUs * mTimescale / 1000000L;
+    if (mSampleCount > 0) {
+      long delta = ticks - mLastTicks;
+      addDelta(delta > 0 ? (int) delta : 1);
+    }
+    mLastTicks = ticks;
+    addSampleEntry(offset, size, sync);
+  }
+
+  // 增加样本并直接给出其时长(timescale单位)，用于复制已有的样本表，不与addSample混用
+  public void appendSample(long offset, int size, int delta, boolean sync) {
+    addDelta(delta > 0 ? delta : 1);
+    addSampleEntry(offset, size, sync);
+  }
+
+  // 结束轨道，补齐最后一个样本的时长
+  public void finish() {
+    if (mSampleCount > mDeltaCount) {
+      addDelta(mLastDelta > 0 ? mLastDelta : mDefaultDelta);
+    }
+  }
+
+  private void addSampleEntry(long offset, int size, boolean sync) {
+    if (mSampleCount == mSizes.length) {
+      mSizes = grow(mSizes);
+    }
+    mSizes[mSampleCount++] = size;
+
+    if (sync) {
+      if (mSyncCount == mSyncSamples.length) {
+        mSyncSamples = grow(mSyncSamples);
+      }
+      mSyncSamples[mSyncCount++] = mSampleCount;
+    }
+
+    // 与本轨道上一个样本连续则归入同一块
+    if (offset == mLastEnd && mChunkCount > 0) {
+      mChunkSamples[mChunkCount - 1]++;
+    } else {
+      if (mChunkCount == mChunkOffsets.length) {
+        mChunkOffsets = grow(mChunkOffsets);
+        mChunkSamples = grow(mChunkSamples);
+      }
+      mChunkOffsets[mChunkCount] = offset;
+      mChunkSamples[mChunkCount] = 1;
+      mChunkCount++;
+    }
+    mLastEnd = offset + size;
+  }
+
+  private void addDelta(int delta) {
+    mDeltaCount++;
+    mDuration += delta;
+    mLastDelta = delta;
+    if (mSttsEntries > 0 && mSttsDeltas[mSttsEntries - 1] == delta) {
+      mSttsCounts[mSttsEntries - 1]++;
+      return;
+    }
+    if (mSttsEntries == mSttsCounts.length) {
+      mSttsCounts = grow(mSttsCounts);
+      mSttsDeltas = grow(mSttsDeltas);
+    }
+    mSttsCounts[mSttsEntries] = 1;
+    mSttsDeltas[mSttsEntries] = delta;
+    mSttsEntries++;
+  }
+
+  // 输出trak
+  public void writeTrak(Mp4Box box) {
+    long movieDuration = mDuration * MOVIE_TIMESCALE / mTimescale;
+    int trak = box.start("trak");
+    writeTkhd(box, movieDuration);
+
+    int mdia = box.start("mdia");
+    writeMdhd(box);
+    int hdlr = box.startFull("hdlr", 0, 0);
+    box.putInt(0);
+    box.putType(mVideo ? "vide" : "soun");
+    box.putZero(12);
+    box.putBytes((mVideo ? "VideoHandler" : "SoundHandler").getBytes());
+    box.putByte(0);
+    box.end(hdlr);
+
+    int minf = box.start("minf");
+    if (mVideo) {
+      int vmhd = box.startFull("vmhd", 0, 1);
+      box.putZero(8);
+      box.end(vmhd);
+    } else {
+      int smhd = box.startFull("smhd", 0, 0);
+      box.putZero(4);
+      box.end(smhd);
+    }
+    int dinf = box.start("dinf");
+    int dref = box.startFull("dref", 0, 0);
+    box.putInt(1);
+    int url = box.startFull("url ", 0, 1);
+    box.end(url);
+    box.end(dref);
+    box.end(dinf);
+    writeStbl(box);
+    box.end(minf);
+    box.end(mdia);
+    box.end(trak);
+  }
+
+  private void writeTkhd(Mp4Box box, long movieDuration) {
+    boolean large = movieDuration > UINT32_MAX;
+    int tkhd = box.startFull("tkhd", large ? 1 : 0, 3);
+    if (large) {
+      box.putLong(0);
+      box.putLong(0);
+      box.putInt(mTrackId);
+      box.putInt(0);
+      box.putLong(movieDuration);
+    } else {
+      box.putInt(0);
+      box.putInt(0);
+      box.putInt(mTrackId);
+      box.putInt(0);
+      box.putInt((int) movieDuration);
+    }
+    box.putZero(8);
+    box.putShort(0);  // layer
+    box.putShort(mVideo ? 0 : 1);  // alternate_group
+    box.putShort(mVideo ? 0 : 0x0100);  // volume
+    box.putShort(0);
+    writeMatrix(box);
+    box.putInt(mVideo ? mWidth << 16 : 0);
+    box.putInt(mVideo ? mHeight << 16 : 0);
+    box.end(tkhd);
+  }
+
+  private void writeMdhd(Mp4Box box) {
+    boolean large = mDuration > UINT32_MAX;
+    int mdhd = box.startFull("mdhd", large ? 1 : 0, 0);
+    if (large) {
+      box.putLong(0);
+      box.putLong(0);
+      box.putInt(mTimescale);
+      box.putLong(mDuration);
+    } else {
+      box.putInt(0);
+      box.putInt(0);
+      box.putInt(mTimescale);
+      box.putInt((int) mDuration);
+    }
+    box.putShort(0x55C4);  // und
+    box.putShort(0);
+    box.end(mdhd);
+  }
+
+  private void writeStbl(Mp4Box box) {
+    int stbl = box.start("stbl");
+
+    int stsd = box.startFull("stsd", 0, 0);
+    box.putInt(1);
+    mEntryPosition = box.size();
+    box.putBytes(mSampleEntry);
+    box.end(stsd);
+
+    int stts = box.startFull("stts", 0, 0);
+    box.putInt(mSttsEntries);
+    for (int i = 0; i < mSttsEntries; i++) {
+      box.putInt(mSttsCounts[i]);
+      box.putInt(mSttsDeltas[i]);
+    }
+    box.end(stts);
+
+    // 全部为关键帧时省略stss
+    if (mVideo && mSyncCount < mSampleCount) {
+      int stss = box.startFull("stss", 0, 0);
+      box.putInt(mSyncCount);
+      for (int i = 0; i < mSyncCount; i++) {
+        box.putInt(mSyncSamples[i]);
+      }
+      box.end(stss);
+    }
+
+    int stsc = box.startFull("stsc", 0, 0);
+    int countPos = box.size();
+    box.putInt(0);
+    int entries = 0;
+    for (int i = 0; i < mChunkCount; i++) {
+      if (i == 0 || mChunkSamples[i] != mChunkSamples[i - 1]) {
+        box.putInt(i + 1);
+        box.putInt(mChunkSamples[i]);
+        box.putInt(1);
+        entries++;
+      }
+    }
+    box.setInt(countPos, entries);
+    box.end(stsc);
+
+    int stsz = box.startFull("stsz", 0, 0);
+    box.putInt(0);
+    box.putInt(mSampleCount);
+    for (int i = 0; i < mSampleCount; i++) {
+      box.putInt(mSizes[i]);
+    }
+    box.end(stsz);
+
+    boolean co64 = mChunkCount > 0 && mChunkOffsets[mChunkCount - 1] > UINT32_MAX;
+    int stco = box.startFull(co64 ? "co64" : "stco", 0, 0);
+    box.putInt(mChunkCount);
+    for (int i = 0; i < mChunkCount; i++) {
+      if (co64) {
+        box.putLong(mChunkOffsets[i]);
+      } else {
+        box.putInt((int) mChunkOffsets[i]);
+      }
+    }
+    box.end(stco);
+
+    box.end(stbl);
+  }
+
+  // 单位矩阵
+  public static void writeMatrix(Mp4Box box) {
+    box.putInt(0x00010000);
+    box.putInt(0);
+    box.putInt(0);
+    box.putInt(0);
+    box.putInt(0x00010000);
+    box.putInt(0);
+    box.putInt(0);
+    box.putInt(0);
+    box.putInt(0x40000000);
+  }
+
+  // 创建avc1样本描述(含avcC)
+  public static byte[] createVideoEntry(int width, int height, byte[] avcC) {
+    return createVideoEntry(width, height, avcC, false);
+  }
+
+  /**
+   * 创建视频样本描述
+   *
+   * @param inBand : 样本中带SPS/PPS时为avc3，avcC为初始参数集
+   */
+  public static byte[] createVideoEntry(int width, int height, byte[] avcC, boolean inBand) {
+    Mp4Box box = new Mp4Box(128 + avcC.length);
+    int entry = box.start(inBand ? "avc3" : "avc1");
+    box.putZero(6);
+    box.putShort(1);  // data_reference_index
+    box.putZero(16);
+    box.putShort(width);
+    box.putShort(height);
+    box.putInt(0x00480000);
+    box.putInt(0x00480000);
+    box.putInt(0);
+    box.putShort(1);  // frame_count
+    box.putZero(32);  // compressorname
+    box.putShort(0x0018);
+    box.putShort(0xFFFF);
+
+    int avcc = box.start("avcC");
+    box.putBytes(avcC);
+    box.end(avcc);
+    box.end(entry);
+    return box.toArray();
+  }
+
+  // 创建mp4a样本描述(含esds)
+  public static byte[] createAudioEntry(int sampleRate, int channelCount, byte[] config) {
+    Mp4Box box = new Mp4Box(96 + config.length);
+    int mp4a = box.start("mp4a");
+    box.putZero(6);
+    box.putShort(1);  // data_reference_index
+    box.putZero(8);
+    box.putShort(channelCount);
+    box.putShort(16);
+    box.putZero(4);
+    box.putInt(sampleRate << 16);
+
+    int esds = box.startFull("esds", 0, 0);
+    box.putByte(0x03);  // ES_Descriptor
+    box.putByte(23 + config.length);
+    box.putShort(0);
+    box.putByte(0);
+    box.putByte(0x04);  // DecoderConfigDescriptor
+    box.putByte(15 + config.length);
+    box.putByte(0x40);  // AAC
+    box.putByte(0x15);  // AudioStream
+    box.putByte(0);
+    box.putShort(0);  // bufferSizeDB
+    box.putInt(0);  // maxBitrate
+    box.putInt(0);  // avgBitrate
+    box.putByte(0x05);  // DecoderSpecificInfo
+    box.putByte(config.length);
+    box.putBytes(config);
+    box.putByte(0x06);  // SLConfigDescriptor
+    box.putByte(1);
+    box.putByte(0x02);
+    box.end(esds);
+    box.end(mp4a);
+    return box.toArray();
+  }
+
+  /**
+   * 由profile、采样率和声道数生成AudioSpecificConfig
+   *
+   * HE/HE-v2使用显式信令: 核心为半采样率的LC，后跟输出采样率；HE-v2的核心为单声道(PS)
+   */
+  public static byte[] createAudioConfig(int profile, int sampleRate, int channelCount) {
+    int index = getSampleRateIndex(sampleRate);
+    if (profile == AudioConfig.PROFILE_HE || profile == AudioConfig.PROFILE_HE_V2) {
+      int channels = profile == AudioConfig.PROFILE_HE_V2 ? 1 : channelCount;
+      // 5位profile + 4位核心采样率 + 4位声道 + 4位输出采样率 + 5位LC + 3位GASpecificConfig
+      int bits = (profile << 27) | (getSampleRateIndex(sampleRate / 2) << 23) | (channels << 19)
+              | (index << 15) | (AudioConfig.PROFILE_LC << 10);
+      return new byte[] {(byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8),
+              (byte) bits};
+    }
+    byte[] config = new byte[2];
+    config[0] = (byte) ((profile << 3) | (index >> 1));
+    config[1] = (byte) (((index & 0x01) << 7) | (channelCount << 3));
+    return config;
+  }
+
+  // AudioSpecificConfig对应的每帧采样数
+  public static int getAudioFrameSize(byte[] config) {
+    return config != null && config.length > 0
+            ? AudioConfig.getFrameSize((config[0] & 0xff) >> 3) : AudioConfig.FRAME_SIZE;
+  }
+
+  private static final int[] SAMPLE_RATES = {
+          96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+  };
+
+  // 采样率索引
+  public static int getSampleRateIndex(int sampleRate) {
+    for (int i = 0; i < SAMPLE_RATES.length; i++) {
+      if (SAMPLE_RATES[i] == sampleRate) {
+        return i;
+      }
+    }
+    return 4;  // 44100
+  }
+
+  // 索引对应的采样率
+  public static int getSampleRate(int index) {
+    return index >= 0 && index < SAMPLE_RATES.length ? SAMPLE_RATES[index] : 0;
+  }
+
+  private static int[] grow(int[] src) {
+    int[] dst = new int[src.length * 2];
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+
+  private static long[] grow(long[] src) {
+    long[] dst = new long[src.length * 2];
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+}
@@ -0,0 +1,943 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * MP4输出 - 纯JAVA实现(ftyp + mdat + moov)
+ *
+ * 样本数据先合并到写缓存(默认1MB)，缓存满时按4KB对齐整块写入，
+ * 大样本与缓存一起聚集写入，不做整帧拷贝；样本表在写入过程中增量构建，关闭时输出moov。
+ * 分片模式下先输出moov，之后按关键帧/时长输出moof+mdat分片，
+ * 每个分片写完即落盘，异常退出时已完成的分片仍可播放。
+ * 分片模式的moov(初始化段)在第一个分片前输出，包含此时已有的轨道：第一个视频关键帧之前的音频
+ * 保留在第一个分片中；音频开始AUDIO_ONLY_US后仍没有视频时按纯音频输出，之后的视频不再写入；
+ * 关闭时还没有输出过分片(没有样本)也写出moov，文件总是ftyp+moov开头。
+ * faststart时在mdat之前预留free空间，关闭时moov放得下则写入预留位置(样本偏移不变，不搬移数据)，
+ * 放不下时仍写在文件末尾。
+ * 开启样本日志时每个样本的位置同时记录到SampleJournal，异常退出后由Mp4Recovery重建moov。
+ * 开启GOP索引时每个关键帧(分片模式为每个分片)的位置记录到GopIndex，录制结束后保留用于定位。
+ * H264参数集在录制中途变化时，之后的样本保留SPS/PPS，视频样本描述改为avc3。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-02
+ */
+public class Mp4Writer implements Mp4Output {
+  private static final String TAG = Mp4Writer.class.getSimpleName();
+  private static final int VIDEO_TIMESCALE = 90000;
+  private static final int DEFAULT_FRAME_RATE = 25;
+  private static final int AAC_FRAME_SIZE = 1024;
+  private static final int AAC_PROFILE_LC = 2;
+  private static final int MDAT_HEADER = 16;
+  // 仅有音频时的分片时长
+  private static final long AUDIO_FRAGMENT_US = 1000000L;
+  // 分片模式下等待第一个视频关键帧的最长音频时长，超过后按纯音频输出moov
+  private static final long AUDIO_ONLY_US = 10000000L;
+  private static final byte[] EMPTY = new byte[0];
+  private static final byte[] AVC3 = {'a', 'v', 'c', '3'};
+  private static final int WRAP_CACHE = 16;
+  // 写缓存
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+  public static final int MIN_BUFFER_SIZE = 256 * 1024;
+  public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+  private static final int ALIGN = 4096;
+  // faststart预留估算: 固定部分 + 每个样本的样本表大小
+  private static final int MOOV_BASE_SIZE = 4096;
+  private static final int MOOV_BYTES_PER_SAMPLE = 24;
+  private static final int ZERO_SIZE = 64 * 1024;
+
+  // 落盘策略: 不主动落盘 / 按时间间隔 / 每个分片(非分片模式为每次写缓存)
+  public enum SyncPolicy { none, interval, fragment }
+
+  private RandomAccessFile mFile;
+  private FileChannel mChannel;
+  // 当前写入位置
+  private long mPosition;
+  // 已写入文件的位置(不含写缓存中的数据)
+  private long mFilePosition;
+  private int mBufferSize = DEFAULT_BUFFER_SIZE;
+  private ByteBuffer mChunk;
+  private final ByteBuffer[] mChunkGather = new ByteBuffer[2];
+  // 落盘策略，为空时分片模式每个分片落盘，非分片模式不落盘
+  private SyncPolicy mSyncPolicy;
+  private long mSyncIntervalNs;
+  private long mLastSyncNs;
+  private long mMdatStart;
+  // faststart预留空间(free box)
+  private long mMoovReserve;
+  private int mFrameRate = DEFAULT_FRAME_RATE;
+  private long mMoovReserveStart;
+  private boolean mMoovAtStart;
+  // 样本日志
+  private boolean mJournalEnabled;
+  private SampleJournal mJournal;
+  // GOP索引
+  private boolean mGopIndexEnabled;
+  private GopIndex mGopIndex;
+  private long mLastAudioOffset = -1;
+  private int mNextTrackId = 1;
+  private Mp4Track mVideoTrack;
+  private Mp4Track mAudioTrack;
+
+  // H264参数集及Annex-B转换
+  private final AvcConfig mAvcConfig = new AvcConfig();
+  private final AvccConverter mConverter = new AvccConverter(mAvcConfig);
+  // 视频轨道创建时的avcC，参数集中途变化后样本描述改为avc3
+  private byte[] mVideoAvcC;
+  private boolean mVideoInBand;
+  private int mSampleRate = 44100;
+  private int mChannelCount = 2;
+  private byte[] mAudioConfig;
+
+  // 分片模式
+  private boolean mFragmented;
+  private long mFragmentDurationUs;
+  private boolean mMoovWritten;
+  private long mMoovPosition;
+  private int mSequence;
+  private Mp4Fragment mVideoFragment;
+  private Mp4Fragment mAudioFragment;
+  private Mp4Box mFragmentBox;
+  private final ByteBuffer[] mFragmentGather = new ByteBuffer[3];
+
+  // 4字节NAL长度 + 负载，聚集写入
+  private final ByteBuffer mLength = ByteBuffer.allocate(4);
+  private final ByteBuffer[] mGather = new ByteBuffer[2];
+  // 数组包装缓存(帧缓存池中的数组循环使用)
+  private final byte[][] mWrapArrays = new byte[WRAP_CACHE][];
+  private final ByteBuffer[] mWraps = new ByteBuffer[WRAP_CACHE];
+  private int mWrapNext;
+  // 直接缓存(内存映射文件)的视图
+  private ByteBuffer mViewSource;
+  private ByteBuffer mView;
+
+  /**
+   * 设置分片输出(fMP4)，需在open之前调用
+   *
+   * @param durationMs : 分片时长(毫秒)，分片从关键帧开始；小于等于0表示每个关键帧一个分片
+   */
+  public void setFragmented(long durationMs) {
+    mFragmented = true;
+    mFragmentDurationUs = durationMs * 1000;
+  }
+
+  public boolean isFragmented() {
+    return mFragmented;
+  }
+
+  /**
+   * 设置写缓存大小，需在open之前调用；分片模式按分片写入，不使用写缓存
+   *
+   * @param bytes : 256KB~4MB，按4KB取整；0表示不使用写缓存
+   */
+  public void setBufferSize(int bytes) {
+    if (bytes <= 0) {
+      mBufferSize = 0;
+      return;
+    }
+    bytes = Math.max(MIN_BUFFER_SIZE, Math.min(bytes, MAX_BUFFER_SIZE));
+    mBufferSize = bytes / ALIGN * ALIGN;
+  }
+
+  public int getBufferSize() {
+    return mBufferSize;
+  }
+
+  /**
+   * 设置落盘策略
+   *
+   * @param policy : none不主动落盘；interval按时间间隔；fragment每个分片(非分片模式为每次写缓存)
+   * @param intervalMs : interval策略的间隔(毫秒)
+   */
+  public void setSyncPolicy(SyncPolicy policy, long intervalMs) {
+    mSyncPolicy = policy;
+    mSyncIntervalNs = Math.max(intervalMs, 0) * 1000000L;
+  }
+
+  private SyncPolicy getSyncPolicy() {
+    if (mSyncPolicy != null) {
+      return mSyncPolicy;
+    }
+    return mFragmented ? SyncPolicy.fragment : SyncPolicy.none;
+  }
+
+  // 视频标称帧率(只有一帧时的样本时长)，需在open之前调用
+  public void setFrameRate(int frameRate) {
+    mFrameRate = Math.max(frameRate, 1);
+  }
+
+  /**
+   * 设置faststart(moov在mdat之前)，需在open之前调用；分片模式moov本来就在前面，忽略
+   *
+   * @param reserveBytes : 为moov预留的空间，可用estimateMoovSize估算；0表示不预留
+   */
+  public void setFaststart(long reserveBytes) {
+    mMoovReserve = Math.max(0, Math.min(reserveBytes, Integer.MAX_VALUE));
+  }
+
+  // 关闭后moov是否写在了mdat之前
+  public boolean isMoovAtStart() {
+    return mMoovAtStart;
+  }
+
+  /**
+   * 估算moov大小
+   *
+   * @param durationMs : 预计录制时长(毫秒)
+   * @param frameRate : 视频帧率，0表示无视频
+   * @param sampleRate : 音频采样率，0表示无音频
+   */
+  public static long estimateMoovSize(long durationMs, int frameRate, int sampleRate) {
+    long samples = durationMs * frameRate / 1000 + durationMs * sampleRate / AAC_FRAME_SIZE / 1000;
+    return MOOV_BASE_SIZE + samples * MOOV_BYTES_PER_SAMPLE;
+  }
+
+  /**
+   * 设置样本日志(文件路径加.journal)，需在open之前调用；正常关闭后删除，分片模式不需要
+   */
+  public void setJournal(boolean enable) {
+    mJournalEnabled = enable;
+  }
+
+  /**
+   * 设置GOP索引(文件路径加.gop)，需在open之前调用；录制结束后保留，用GopIndex.open读取
+   */
+  public void setGopIndex(boolean enable) {
+    mGopIndexEnabled = enable;
+  }
+
+  /**
+   * 是否允许原地改写视频数据(起始码改写为长度)，默认允许；
+   * 调用者之后还要使用原数据时需关闭
+   */
+  public void setInPlaceConversion(boolean inPlace) {
+    mConverter.setInPlace(inPlace);
+  }
+
+  @Override
+  public boolean open(String path) {
+    try {
+      mFile = new RandomAccessFile(path, "rw");
+      mFile.setLength(0);
+      mChannel = mFile.getChannel();
+      mPosition = 0;
+      mFilePosition = 0;
+      mLastSyncNs = System.nanoTime();
+      mLastAudioOffset = -1;
+      if (mGopIndexEnabled) {
+        openGopIndex(path);
+      }
+      if (mFragmented || mBufferSize == 0) {
+        mChunk = null;
+      } else if (mChunk == null || mChunk.capacity() != mBufferSize) {
+        mChunk = ByteBuffer.allocateDirect(mBufferSize);
+      } else {
+        mChunk.clear();
+      }
+
+      Mp4Box box = new Mp4Box(64);
+      putFtyp(box, mFragmented);
+      if (mFragmented) {
+        mFragmentBox = new Mp4Box(4096);
+        mSequence = 0;
+        mMoovWritten = false;
+        writeFully(box.toBuffer());
+        return true;
+      }
+
+      // faststart预留空间
+      mMoovAtStart = false;
+      mMoovReserveStart = box.size();
+      if (mMoovReserve >= 8) {
+        append(box.toBuffer());
+        appendFree(mMoovReserve);
+        box.reset();
+      }
+
+      // mdat使用64位长度，关闭时回填
+      mMdatStart = mPosition + box.size();
+      box.putInt(1);
+      box.putType("mdat");
+      box.putLong(0);
+      append(box.toBuffer());
+      if (mJournalEnabled) {
+        openJournal(path);
+      }
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      closeQuietly();
+      return false;
+    }
+  }
+
+  // 日志创建失败时不影响录制
+  private void openJournal(String path) {
+    try {
+      mJournal = SampleJournal.create(SampleJournal.getPath(path));
+    } catch (IOException e) {
+      e.printStackTrace();
+      mJournal = null;
+    }
+  }
+
+  // 索引创建失败时不影响录制
+  private void openGopIndex(String path) {
+    try {
+      mGopIndex = GopIndex.create(GopIndex.getPath(path));
+    } catch (IOException e) {
+      e.printStackTrace();
+      mGopIndex = null;
+    }
+  }
+
+  @Override
+  public void setAudioFormat(int sampleRate, int channelCount, byte[] config) {
+    mSampleRate = sampleRate;
+    mChannelCount = channelCount;
+    if (config != null) {
+      mAudioConfig = config;
+    }
+    // 分片模式下moov输出前更新音频轨道描述
+    if (mAudioTrack != null && !mMoovWritten && mAudioTrack.getSampleCount() == 0) {
+      byte[] audioConfig = mAudioConfig != null ? mAudioConfig
+              : Mp4Track.createAudioConfig(AAC_PROFILE_LC, mSampleRate, mChannelCount);
+      mAudioTrack.setSampleEntry(
+              Mp4Track.createAudioEntry(mSampleRate, mChannelCount, audioConfig));
+    }
+  }
+
+  @Override
+  public int writeVideo(byte[] data, int offset, int size, int width, int height,
+                        boolean keyFrame, long timeUs) {
+    if (mChannel == null || data == null || size <= 0) {
+      return -1;
+    }
+
+    // 剥离参数集并转换为长度前缀格式
+    int sampleSize = mConverter.convert(data, offset, size);
+    return writeVideoSample(data, null, sampleSize, width, height, keyFrame, timeUs);
+  }
+
+  /**
+   * 写入视频(Annex-B)，数据为buffer的[position, limit)，不改变其position
+   *
+   * 用于内存映射文件等直接缓存：NAL单元按分段从缓存写出，不复制整帧。
+   */
+  public int writeVideo(ByteBuffer buffer, int width, int height, boolean keyFrame, long timeUs) {
+    if (mChannel == null || buffer == null || !buffer.hasRemaining()) {
+      return -1;
+    }
+    if (buffer.hasArray()) {
+      return writeVideo(buffer.array(), buffer.arrayOffset() + buffer.position(),
+              buffer.remaining(), width, height, keyFrame, timeUs);
+    }
+
+    int sampleSize = mConverter.convert(buffer);
+    return writeVideoSample(null, buffer, sampleSize, width, height, keyFrame, timeUs);
+  }
+
+  // 写入转换后的视频样本，分段来自data或buffer
+  private int writeVideoSample(byte[] data, ByteBuffer buffer, int sampleSize, int width,
+                               int height, boolean keyFrame, long timeUs) {
+    // 等到有SPS/PPS的关键帧才创建视频轨道；分片模式已按纯音频输出moov时不再创建
+    if (mVideoTrack == null) {
+      if (!keyFrame || sampleSize == 0 || !mAvcConfig.isReady() || mMoovWritten) {
+        return 0;
+      }
+      mVideoTrack = new Mp4Track(mNextTrackId++, true, VIDEO_TIMESCALE,
+              VIDEO_TIMESCALE / mFrameRate);
+      mVideoTrack.setSize(width, height);
+      mVideoAvcC = mAvcConfig.getAvcC();
+      mVideoInBand = mConverter.isInBand();
+      mVideoTrack.setSampleEntry(
+              Mp4Track.createVideoEntry(width, height, mVideoAvcC, mVideoInBand));
+      if (mFragmented) {
+        mVideoFragment = new Mp4Fragment(mVideoTrack);
+      }
+    }
+
+    if (sampleSize == 0) {
+      return 0;
+    }
+
+    try {
+      if (mConverter.isConfigChanged() && mConverter.isInBand() && !mVideoInBand) {
+        switchToInBand();
+      }
+      if (mFragmented) {
+        if (keyFrame && isFragmentDue(timeUs)) {
+          flushFragment();
+        }
+        mVideoFragment.beginSample(timeUs, keyFrame);
+        writeSegments(data, buffer);
+        mVideoFragment.endSample();
+        return sampleSize;
+      }
+
+      long start = mPosition;
+      writeSegments(data, buffer);
+      addSample(mVideoTrack, start, sampleSize, timeUs, keyFrame);
+      return sampleSize;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
+  // 参数集中途变化: 之后的样本带SPS/PPS，视频样本描述改为avc3(avcC仍为初始参数集)
+  private void switchToInBand() throws IOException {
+    mVideoInBand = true;
+    mVideoTrack.setSampleEntry(Mp4Track.createVideoEntry(mVideoTrack.getWidth(),
+            mVideoTrack.getHeight(), mVideoAvcC, true));
+    if (mMoovWritten) {
+      // 分片模式moov已输出，原地改写样本描述类型，长度不变
+      ByteBuffer type = ByteBuffer.wrap(AVC3);
+      long position = mMoovPosition + mVideoTrack.getEntryPosition() + 4;
+      while (type.hasRemaining()) {
+        position += mChannel.write(type, position);
+      }
+    } else if (mJournal != null && mVideoTrack.getSampleCount() > 0) {
+      mJournal.writeTrack(mVideoTrack);
+    }
+  }
+
+  @Override
+  public int writeAudio(byte[] data, int offset, int size, long timeUs) {
+    if (mChannel == null || data == null || size <= 0) {
+      return -1;
+    }
+    return writeAudio(wrap(data, offset, size), timeUs);
+  }
+
+  // 写入音频(AAC裸数据)，数据为buffer的[position, limit)，position移到limit
+  public int writeAudio(ByteBuffer buffer, long timeUs) {
+    if (mChannel == null || buffer == null || !buffer.hasRemaining()) {
+      return -1;
+    }
+    int size = buffer.remaining();
+
+    if (mAudioTrack == null) {
+      // 分片模式moov已输出，不能再增加轨道
+      if (mMoovWritten) {
+        return 0;
+      }
+      createAudioTrack();
+    }
+
+    try {
+      if (mFragmented) {
+        // 没有视频时音频积累到分片时长输出；moov输出前等待第一个视频关键帧，最多AUDIO_ONLY_US
+        if (mVideoTrack == null && mAudioFragment.getSampleCount() > 0
+                && timeUs - mAudioFragment.getFirstTimeUs() >= (mMoovWritten
+                ? Math.max(mFragmentDurationUs, AUDIO_FRAGMENT_US) : AUDIO_ONLY_US)) {
+          flushFragment();
+        }
+        mAudioFragment.beginSample(timeUs, true);
+        mAudioFragment.append(buffer);
+        mAudioFragment.endSample();
+        return size;
+      }
+
+      long start = mPosition;
+      append(buffer);
+      addSample(mAudioTrack, start, size, timeUs, true);
+      return size;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return -1;
+    }
+  }
+
+  // 增加样本并记录到日志和GOP索引，轨道的第一个样本之前记录轨道描述
+  private void addSample(Mp4Track track, long offset, int size, long timeUs, boolean sync)
+          throws IOException {
+    track.addSample(offset, size, timeUs, sync);
+    if (mGopIndex != null) {
+      if (track == mAudioTrack) {
+        mLastAudioOffset = offset;
+      } else if (sync) {
+        mGopIndex.add(timeUs, offset, mLastAudioOffset, track.getSampleCount() - 1,
+                mAudioTrack != null ? mAudioTrack.getSampleCount() - 1 : -1);
+      }
+    }
+    if (mJournal != null) {
+      if (track.getSampleCount() == 1) {
+        mJournal.writeTrack(track);
+      }
+      mJournal.writeSample(track.getTrackId(), offset, size, timeUs, sync);
+    }
+  }
+
+  private void createAudioTrack() {
+    byte[] config = mAudioConfig != null ? mAudioConfig
+            : Mp4Track.createAudioConfig(AAC_PROFILE_LC, mSampleRate, mChannelCount);
+    mAudioTrack = new Mp4Track(mNextTrackId++, false, mSampleRate,
+            Mp4Track.getAudioFrameSize(config));
+    mAudioTrack.setSampleEntry(Mp4Track.createAudioEntry(mSampleRate, mChannelCount, config));
+    if (mFragmented) {
+      mAudioFragment = new Mp4Fragment(mAudioTrack);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (mChannel == null) {
+      return;
+    }
+
+    if (mFragmented) {
+      try {
+        flushFragment();
+        // 没有样本时也输出初始化段
+        writeFragmentedMoov();
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        closeQuietly();
+      }
+      return;
+    }
+
+    try {
+      long mdatSize = mPosition - mMdatStart;
+      flushChunk(false);
+      ByteBuffer moov = buildMoov(getTracks(), false).toBuffer();
+      mMoovAtStart = writeReserved(mChannel, moov, mMoovReserveStart, mMoovReserve);
+      if (!mMoovAtStart) {
+        writeFully(moov);
+      }
+      // 与Mp4Recovery.rebuild相同的顺序: moov落盘后回填mdat长度，再次落盘后才删除日志，
+      // 否则掉电后日志已删除而mdat长度仍为0，只能扫描修复
+      boolean sync = mJournal != null || getSyncPolicy() != SyncPolicy.none;
+      if (sync) {
+        mChannel.force(false);
+      }
+
+      ByteBuffer size = ByteBuffer.allocate(8);
+      size.putLong(0, mdatSize);
+      mChannel.write(size, mMdatStart + 8);
+      if (sync) {
+        mChannel.force(false);
+      }
+      if (mJournal != null) {
+        mJournal.delete();
+        mJournal = null;
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      closeQuietly();
+    }
+  }
+
+  // 是否到达分片边界
+  private boolean isFragmentDue(long timeUs) {
+    if (mVideoFragment.getSampleCount() == 0) {
+      return mAudioFragment != null && mAudioFragment.getSampleCount() > 0;
+    }
+    return mFragmentDurationUs <= 0
+            || timeUs - mVideoFragment.getFirstTimeUs() >= mFragmentDurationUs;
+  }
+
+  // 输出分片: moof + mdat，写完后落盘
+  private void flushFragment() throws IOException {
+    int videoSize = mVideoFragment != null ? mVideoFragment.getDataSize() : 0;
+    int audioSize = mAudioFragment != null ? mAudioFragment.getDataSize() : 0;
+    if (videoSize == 0 && audioSize == 0) {
+      return;
+    }
+
+    writeFragmentedMoov();
+
+    // 分片以关键帧开始，索引记录moof位置
+    if (mGopIndex != null && videoSize > 0) {
+      mGopIndex.add(mVideoFragment.getFirstTimeUs(), mPosition, mPosition, -1, -1);
+    }
+
+    Mp4Box box = mFragmentBox;
+    box.reset();
+    int moof = box.start("moof");
+    int mfhd = box.startFull("mfhd", 0, 0);
+    box.putInt(++mSequence);
+    box.end(mfhd);
+    int videoPos = videoSize > 0 ? mVideoFragment.writeTraf(box) : -1;
+    int audioPos = audioSize > 0 ? mAudioFragment.writeTraf(box) : -1;
+    box.end(moof);
+
+    // data_offset相对moof起始位置
+    int dataOffset = box.size() + 8;
+    if (videoPos >= 0) {
+      box.setInt(videoPos, dataOffset);
+      dataOffset += videoSize;
+    }
+    if (audioPos >= 0) {
+      box.setInt(audioPos, dataOffset);
+    }
+    box.putInt(8 + videoSize + audioSize);
+    box.putType("mdat");
+
+    mFragmentGather[0] = box.toBuffer();
+    mFragmentGather[1] = ByteBuffer.wrap(videoSize > 0 ? mVideoFragment.getData() : EMPTY,
+            0, videoSize);
+    mFragmentGather[2] = ByteBuffer.wrap(audioSize > 0 ? mAudioFragment.getData() : EMPTY,
+            0, audioSize);
+    long remaining = box.size() + videoSize + audioSize;
+    mPosition += remaining;
+    while (remaining > 0) {
+      remaining -= mChannel.write(mFragmentGather);
+    }
+    mFilePosition = mPosition;
+    sync();
+
+    if (mVideoFragment != null) {
+      mVideoFragment.reset();
+    }
+    if (mAudioFragment != null) {
+      mAudioFragment.reset();
+    }
+  }
+
+  // 分片模式的moov(初始化段)，只输出一次
+  private void writeFragmentedMoov() throws IOException {
+    if (mMoovWritten) {
+      return;
+    }
+    mMoovPosition = mPosition;
+    writeFully(buildMoov(getTracks(), true).toBuffer());
+    mMoovWritten = true;
+  }
+
+  // ftyp，分片模式兼容iso6
+  static void putFtyp(Mp4Box box, boolean fragmented) {
+    int ftyp = box.start("ftyp");
+    if (fragmented) {
+      box.putType("iso6");
+      box.putInt(0);
+      box.putType("iso6");
+      box.putType("isom");
+    } else {
+      box.putType("isom");
+      box.putInt(0x200);
+      box.putType("isom");
+      box.putType("iso2");
+    }
+    box.putType("avc1");
+    box.putType("mp41");
+    box.end(ftyp);
+  }
+
+  /**
+   * moov放得下时写入预留空间(free box)，余下部分仍为free box
+   *
+   * @param start : 预留空间在文件中的位置
+   * @param reserve : 预留空间大小(含free头)
+   * @return 是否已写入
+   */
+  static boolean writeReserved(FileChannel channel, ByteBuffer moov, long start, long reserve)
+          throws IOException {
+    long space = reserve - moov.remaining();
+    if (reserve < 8 || (space != 0 && space < 8)) {
+      return false;
+    }
+    long position = start;
+    while (moov.hasRemaining()) {
+      position += channel.write(moov, position);
+    }
+    if (space > 0) {
+      ByteBuffer free = ByteBuffer.allocate(8);
+      free.putInt(0, (int) space);
+      free.put(4, (byte) 'f').put(5, (byte) 'r').put(6, (byte) 'e').put(7, (byte) 'e');
+      channel.write(free, position);
+    }
+    return true;
+  }
+
+  /**
+   * 构建moov
+   *
+   * @param tracks : 按轨道ID排序
+   * @param fragmented : 分片模式(含mvex)
+   */
+  static Mp4Box buildMoov(Mp4Track[] tracks, boolean fragmented) {
+    long duration = 0;
+    int samples = 0;
+    int nextTrackId = 1;
+    for (Mp4Track track : tracks) {
+      nextTrackId = Math.max(nextTrackId, track.getTrackId() + 1);
+      track.finish();
+      duration = Math.max(duration,
+              track.getDuration() * Mp4Track.MOVIE_TIMESCALE / track.getTimescale());
+      samples += track.getSampleCount();
+    }
+
+    Mp4Box box = new Mp4Box(1024 + samples * 12);
+    int moov = box.start("moov");
+    int mvhd = box.startFull("mvhd", 0, 0);
+    box.putInt(0);
+    box.putInt(0);
+    box.putInt(Mp4Track.MOVIE_TIMESCALE);
+    box.putInt((int) Math.min(duration, 0xFFFFFFFFL));
+    box.putInt(0x00010000);  // rate
+    box.putShort(0x0100);  // volume
+    box.putZero(10);
+    Mp4Track.writeMatrix(box);
+    box.putZero(24);
+    box.putInt(nextTrackId);
+    box.end(mvhd);
+
+    for (Mp4Track track : tracks) {
+      track.writeTrak(box);
+    }
+
+    if (fragmented) {
+      int mvex = box.start("mvex");
+      for (Mp4Track track : tracks) {
+        int trex = box.startFull("trex", 0, 0);
+        box.putInt(track.getTrackId());
+        box.putInt(1);  // default_sample_description_index
+        box.putInt(0);
+        box.putInt(0);
+        box.putInt(0);
+        box.end(trex);
+      }
+      box.end(mvex);
+    }
+    box.end(moov);
+    return box;
+  }
+
+  private Mp4Track[] getTracks() {
+    if (mVideoTrack != null && mAudioTrack != null) {
+      return mVideoTrack.getTrackId() < mAudioTrack.getTrackId()
+              ? new Mp4Track[] { mVideoTrack, mAudioTrack }
+              : new Mp4Track[] { mAudioTrack, mVideoTrack };
+    } else if (mVideoTrack != null) {
+      return new Mp4Track[] { mVideoTrack };
+    } else if (mAudioTrack != null) {
+      return new Mp4Track[] { mAudioTrack };
+    }
+    return new Mp4Track[0];
+  }
+
+  // 写入转换后的视频分段，分段偏移为data下标或buffer中的位置
+  private void writeSegments(byte[] data, ByteBuffer buffer) throws IOException {
+    AvccConverter converter = mConverter;
+    for (int i = 0; i < converter.getSegmentCount(); i++) {
+      int offset = converter.getSegmentOffset(i);
+      int length = converter.getSegmentLength(i);
+      ByteBuffer segment = data != null ? wrap(data, offset, length) : view(buffer, offset, length);
+      if (mFragmented) {
+        if (converter.needHeader(i)) {
+          mVideoFragment.appendInt(length);
+        }
+        mVideoFragment.append(segment);
+      } else if (converter.needHeader(i)) {
+        writeNalUnit(segment);
+      } else {
+        append(segment);
+      }
+    }
+  }
+
+  // 写入4字节长度 + NAL
+  private void writeNalUnit(ByteBuffer nal) throws IOException {
+    int length = nal.remaining();
+    if (mChunk != null) {
+      appendInt(length);
+      append(nal);
+      return;
+    }
+
+    mLength.clear();
+    mLength.putInt(0, length);
+    mGather[0] = mLength;
+    mGather[1] = nal;
+    long remaining = 4 + length;
+    while (remaining > 0) {
+      remaining -= mChannel.write(mGather);
+    }
+    mPosition += 4 + length;
+    mFilePosition = mPosition;
+  }
+
+  // 追加数据到写缓存；大样本与缓存中的数据一起聚集写入，不拷贝
+  private void append(ByteBuffer buffer) throws IOException {
+    if (mChunk == null) {
+      writeFully(buffer);
+      return;
+    }
+    int length = buffer.remaining();
+    if (length >= mChunk.capacity() / 2) {
+      mChunk.flip();
+      mChunkGather[0] = mChunk;
+      mChunkGather[1] = buffer;
+      long remaining = mChunk.remaining() + length;
+      mFilePosition += remaining;
+      while (remaining > 0) {
+        remaining -= mChannel.write(mChunkGather);
+      }
+      mChunk.clear();
+      mPosition += length;
+      sync();
+      return;
+    }
+    if (length > mChunk.remaining()) {
+      flushChunk(true);
+    }
+    mChunk.put(buffer);
+    mPosition += length;
+  }
+
+  // 追加free box(含8字节头)
+  private void appendFree(long size) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putInt((int) size);
+    header.put((byte) 'f').put((byte) 'r').put((byte) 'e').put((byte) 'e');
+    header.flip();
+    append(header);
+    ByteBuffer zero = ByteBuffer.allocate((int) Math.min(size - 8, ZERO_SIZE));
+    for (long remaining = size - 8; remaining > 0; remaining -= zero.limit()) {
+      zero.clear();
+      zero.limit((int) Math.min(remaining, zero.capacity()));
+      append(zero);
+    }
+  }
+
+  private void appendInt(int v) throws IOException {
+    if (mChunk.remaining() < 4) {
+      flushChunk(true);
+    }
+    mChunk.putInt(v);
+    mPosition += 4;
+  }
+
+  /**
+   * 写出写缓存
+   *
+   * @param aligned : 只写到4KB对齐的文件位置，余下部分留在缓存中
+   */
+  private void flushChunk(boolean aligned) throws IOException {
+    if (mChunk == null || mChunk.position() == 0) {
+      return;
+    }
+    mChunk.flip();
+    int length = mChunk.limit();
+    if (aligned) {
+      int excess = (int) ((mFilePosition + length) % ALIGN);
+      if (excess < length) {
+        mChunk.limit(length - excess);
+      }
+    }
+    while (mChunk.hasRemaining()) {
+      mFilePosition += mChannel.write(mChunk);
+    }
+    mChunk.limit(length);
+    mChunk.compact();
+    sync();
+  }
+
+  // 分片或写缓存写出后按策略落盘
+  private void sync() throws IOException {
+    SyncPolicy policy = getSyncPolicy();
+    long now = System.nanoTime();
+    boolean force = policy == SyncPolicy.fragment
+            || (policy == SyncPolicy.interval && now - mLastSyncNs >= mSyncIntervalNs);
+    if (force) {
+      mChannel.force(false);
+      mLastSyncNs = now;
+    }
+    // 日志和索引随数据写出，落盘在数据之后
+    if (mJournal != null) {
+      if (force) {
+        mJournal.force();
+      } else {
+        mJournal.flush();
+      }
+    }
+    if (mGopIndex != null) {
+      if (force) {
+        mGopIndex.force();
+      } else {
+        mGopIndex.flush();
+      }
+    }
+  }
+
+  // 复用数组的包装对象
+  private ByteBuffer wrap(byte[] data, int offset, int length) {
+    ByteBuffer buffer = null;
+    for (int i = 0; i < WRAP_CACHE; i++) {
+      if (mWrapArrays[i] == data) {
+        buffer = mWraps[i];
+        break;
+      }
+    }
+    if (buffer == null) {
+      buffer = ByteBuffer.wrap(data);
+      mWrapArrays[mWrapNext] = data;
+      mWraps[mWrapNext] = buffer;
+      mWrapNext = (mWrapNext + 1) % WRAP_CACHE;
+    }
+    buffer.limit(offset + length);
+    buffer.position(offset);
+    return buffer;
+  }
+
+  // 直接缓存中[offset, offset + length)的视图(同一缓存复用)
+  private ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+    if (mViewSource != buffer) {
+      mViewSource = buffer;
+      mView = buffer.duplicate();
+    }
+    mView.limit(offset + length);
+    mView.position(offset);
+    return mView;
+  }
+
+  // 直接写入文件(写缓存需为空)
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      mChannel.write(buffer);
+    }
+    mPosition += length;
+    mFilePosition = mPosition;
+  }
+
+  private void closeQuietly() {
+    try {
+      if (mFile != null) {
+        mFile.close();
+      }
+      // 未正常关闭时保留日志
+      if (mJournal != null) {
+        mJournal.flush();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    if (mJournal != null) {
+      mJournal.close();
+      mJournal = null;
+    }
+    // 写出余下的索引记录并保留
+    if (mGopIndex != null) {
+      mGopIndex.close();
+      mGopIndex = null;
+    }
+    mFile = null;
+    mChannel = null;
+    mViewSource = null;
+    mView = null;
+    for (int i = 0; i < WRAP_CACHE; i++) {
+      mWrapArrays[i] = null;
+      mWraps[i] = null;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录制统计 - 各轨道收发帧数、队列积压、入队到写入的延迟、写入字节数、错误数和丢帧数
+ *
+ * 计数器均为原子变量，直方图预先分配，可在录制线程上直接调用。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-03
+ */
+public class MuxerMetrics {
+  // 单个轨道
+  public static class Track {
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mWriteErrors = new AtomicLong();
+    // 出队后未写入而丢弃的帧(不在队列统计中)
+    private final AtomicLong mDiscardedFrames = new AtomicLong();
+    private final AtomicLong mDiscardedBytes = new AtomicLong();
+    // 超出编码器输入缓存而截断的帧及丢弃的字节
+    private final AtomicLong mTruncatedFrames = new AtomicLong();
+    private final AtomicLong mTruncatedBytes = new AtomicLong();
+    // 入队到写入文件的延迟
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private volatile FrameQueue mQueue;
+
+    // 生产线程收到一帧
+    public void onFrameIn() {
+      mFramesIn.incrementAndGet();
+    }
+
+    /**
+     * 写入一帧
+     *
+     * @param size : 帧大小
+     * @param queuedNs : 入队时间(System.nanoTime)，小于等于0表示未知
+     * @param result : 写入返回值，小于0表示失败
+     */
+    public void onFrameWritten(int size, long queuedNs, int result) {
+      if (result < 0) {
+        mWriteErrors.incrementAndGet();
+        return;
+      }
+      mFramesOut.incrementAndGet();
+      mBytesWritten.addAndGet(size);
+      if (queuedNs > 0) {
+        mLatency.record((System.nanoTime() - queuedNs) / 1000);
+      }
+    }
+
+    // 出队后丢弃一帧(如所属分段已关闭的音频)，计入丢帧数
+    public void onFrameDiscarded(int size) {
+      mDiscardedFrames.incrementAndGet();
+      mDiscardedBytes.addAndGet(size);
+    }
+
+    // 一帧只写入了一部分，lostBytes为丢弃的字节数
+    public void onFrameTruncated(int lostBytes) {
+      mTruncatedFrames.incrementAndGet();
+      mTruncatedBytes.addAndGet(lostBytes);
+    }
+
+    void setQueue(FrameQueue queue) {
+      mQueue = queue;
+    }
+
+    public long getFramesIn() {
+      return mFramesIn.get();
+    }
+
+    public long getFramesOut() {
+      return mFramesOut.get();
+    }
+
+    public long getBytesWritten() {
+      return mBytesWritten.get();
+    }
+
+    public long getWriteErrors() {
+      return mWriteErrors.get();
+    }
+
+    public LatencyHistogram getLatency() {
+      return mLatency;
+    }
+
+    // 当前积压帧数
+    public int getQueueDepth() {
+      FrameQueue queue = mQueue;
+      return queue != null ? queue.getDepth() : 0;
+    }
+
+    // 丢帧数(队列丢弃 + 出队后丢弃)
+    public long getDroppedFrames() {
+      FrameQueue queue = mQueue;
+      return (queue != null ? queue.getDroppedFrames() : 0) + mDiscardedFrames.get();
+    }
+
+    public long getDroppedBytes() {
+      FrameQueue queue = mQueue;
+      return (queue != null ? queue.getDroppedBytes() : 0) + mDiscardedBytes.get();
+    }
+
+    // 出队后丢弃的帧数
+    public long getDiscardedFrames() {
+      return mDiscardedFrames.get();
+    }
+
+    public long getTruncatedFrames() {
+      return mTruncatedFrames.get();
+    }
+
+    public long getTruncatedBytes() {
+      return mTruncatedBytes.get();
+    }
+
+    void reset() {
+      mFramesIn.set(0);
+      mFramesOut.set(0);
+      mBytesWritten.set(0);
+      mWriteErrors.set(0);
+      mDiscardedFrames.set(0);
+      mDiscardedBytes.set(0);
+      mTruncatedFrames.set(0);
+      mTruncatedBytes.set(0);
+      mLatency.reset();
+    }
+
+    @Override
+    public String toString() {
+      return "in=" + getFramesIn() + " out=" + getFramesOut() + " bytes=" + getBytesWritten()
+              + " errors=" + getWriteErrors() + " depth=" + getQueueDepth()
+              + " dropped=" + getDroppedFrames() + " truncated=" + getTruncatedFrames()
+              + " latency[" + mLatency + "]";
+    }
+  }
+
+  private final Track mVideo = new Track();
+  private final Track mAudio = new Track();
+  // 音频编码耗时(输入编码器到输出)
+  private final LatencyHistogram mEncodeTime = new LatencyHistogram();
+  private final AtomicLong mErrors = new AtomicLong();
+  private volatile Throwable mLastError;
+
+  public Track getVideo() {
+    return mVideo;
+  }
+
+  public Track getAudio() {
+    return mAudio;
+  }
+
+  public LatencyHistogram getEncodeTime() {
+    return mEncodeTime;
+  }
+
+  // 异常
+  public void onError(Throwable e) {
+    mErrors.incrementAndGet();
+    mLastError = e;
+  }
+
+  public long getErrors() {
+    return mErrors.get();
+  }
+
+  public Throwable getLastError() {
+    return mLastError;
+  }
+
+  // 关联队列(积压和丢帧数从队列读取)
+  void setQueues(FrameQueue video, FrameQueue audio) {
+    mVideo.setQueue(video);
+    mAudio.setQueue(audio);
+  }
+
+  public void reset() {
+    mVideo.reset();
+    mAudio.reset();
+    mEncodeTime.reset();
+    mErrors.set(0);
+    mLastError = null;
+  }
+
+  @Override
+  public String toString() {
+    return "video{" + mVideo + "} audio{" + mAudio + "} encode[" + mEncodeTime + "] errors="
+            + getErrors();
+  }
+}
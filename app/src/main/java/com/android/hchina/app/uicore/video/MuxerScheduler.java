@@ -0,0 +1,114 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 复用线程池 - 多个MuxerSession共用固定数量的工作线程
+ *
+ * 有数据的会话进入就绪队列，工作线程按先进先出取出会话，每次最多处理QUANTUM帧后
+ * 重新排到队尾，保证多路录制之间轮转公平；同一会话同一时间只在一个线程上运行。
+ * 也可以不创建工作线程，由外部Executor执行每次调度(如测试中手动执行，结果可重复)。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-29
+ */
+public class MuxerScheduler {
+  private static final String TAG = MuxerScheduler.class.getSimpleName();
+  public static final int QUANTUM = 8;  // 每次调度最多处理的帧数(每个队列)
+  private static final int MAX_THREADS = 4;
+
+  // 就绪会话
+  private final ConcurrentLinkedQueue<MuxerSession> mReady = new ConcurrentLinkedQueue<>();
+  // 就绪会话数
+  private final Semaphore mPending = new Semaphore(0);
+  private final Thread[] mWorkers;
+  // 外部执行调度时不为空
+  private final Executor mExecutor;
+  private volatile boolean mShutdown = false;
+
+  private static MuxerScheduler sDefault = null;
+
+  // 默认线程池(线程数与CPU核数相同，最多4个)
+  public static synchronized MuxerScheduler getDefault() {
+    if (sDefault == null) {
+      int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+      sDefault = new MuxerScheduler(threads);
+    }
+    return sDefault;
+  }
+
+  public MuxerScheduler(int threads) {
+    mExecutor = null;
+    mWorkers = new Thread[Math.max(threads, 1)];
+    for (int i = 0; i < mWorkers.length; i++) {
+      mWorkers[i] = new Thread(new Worker(), TAG + "-" + i);
+      mWorkers[i].setDaemon(true);
+      mWorkers[i].start();
+    }
+  }
+
+  /**
+   * 不创建工作线程，每次调度交给executor执行
+   *
+   * @param executor : 执行会话的一轮处理，同一会话不会同时提交两次
+   */
+  public MuxerScheduler(Executor executor) {
+    mExecutor = executor;
+    mWorkers = new Thread[0];
+  }
+
+  public int getThreadCount() {
+    return mWorkers.length;
+  }
+
+  // 会话进入就绪队列(由会话保证不重复入队)
+  void schedule(MuxerSession session) {
+    mReady.offer(session);
+    if (mExecutor != null) {
+      mExecutor.execute(mRunReady);
+    } else {
+      mPending.release();
+    }
+  }
+
+  // 外部执行: 每次处理一个就绪会话
+  private final Runnable mRunReady = new Runnable() {
+    @Override
+    public void run() {
+      MuxerSession session = mShutdown ? null : mReady.poll();
+      if (session != null) {
+        session.execute(QUANTUM);
+      }
+    }
+  };
+
+  // 关闭线程池，已就绪的会话不再处理
+  public void shutdown() {
+    mShutdown = true;
+    mPending.release(mWorkers.length);
+  }
+
+  // 工作线程
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      while (!mShutdown) {
+        try {
+          mPending.acquire();
+        } catch (InterruptedException e) {
+          break;
+        }
+
+        MuxerSession session = mReady.poll();
+        if (session != null) {
+          session.execute(QUANTUM);
+        }
+      }
+    }
+  }
+}
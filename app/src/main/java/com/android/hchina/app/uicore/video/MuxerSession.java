@@ -0,0 +1,1083 @@
+package com.android.hchina.app.uicore.video;
+
+import com.hchina.android.api.HchinaAPI;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 复用会话 - 一路录制(H264+AAC)写一个MP4文件
+ *
+ * 每个会话有独立的队列、音频编码器和文件句柄，多个会话可同时录制，
+ * 由MuxerScheduler的工作线程轮流处理。mp4v2写入方式同一时间只能有一个会话使用。
+ * 设置分段后按时长或大小在关键帧处切换文件，编码器和工作线程不中断，旧文件在后台关闭。
+ * 音频直通模式下addAudio传入ADTS格式的AAC，去掉帧头后直接写入，不经过MediaCodec。
+ * 音频编码器、MP4输出和后台任务可以替换(默认AacEncoder、按设置选择写入方式、HchinaAPI.runTask)，
+ * 替换后会话不依赖android，可在JVM上运行。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-29
+ */
+public class MuxerSession {
+  private static final int DEFAULT_FRAME_RATE = 25;
+
+  private static final boolean VIDEO = true;
+  private static final boolean AUDIO = true;
+  private static final int VIDEO_CAPACITY = 128;  // 视频队列容量
+  private static final int AUDIO_CAPACITY = 256;  // 音频队列容量
+  // 分段后等待旧文件音频的最长时间(视频时长)，队列中还有音频时继续等待
+  private static final long CLOSE_DELAY_US = 1000000L;
+  private static final long FINISH_TIMEOUT_NS = 1000000000L;  // 结束时等待编码器输出EOS的最长时间
+  private static final int ENCODE_RETRIES = 10;  // 编码器输入缓存一直没有空闲时，一帧PCM最多重试的次数
+
+  private final MuxerScheduler mScheduler;
+  private volatile Status mStatus = Status.unknown;
+  // 时间戳(采样率在start时按编码格式更新)
+  private final TimestampEngine mTimestamps = new TimestampEngine(DEFAULT_FRAME_RATE, 32000);
+  // 视频队列(单生产者单消费者)
+  private volatile FrameQueue mVideoList;
+  // 音频队列(单生产者单消费者)
+  private volatile FrameQueue mAudioList;
+  // 编码后音频队列(编码线程生产，工作线程写入)
+  private volatile FrameQueue mEncodedList;
+  private int mVideoCapacity = VIDEO_CAPACITY;
+  private int mAudioCapacity = AUDIO_CAPACITY;
+  private FrameQueue.Policy mPolicy = FrameQueue.Policy.dropNewest;
+  // 帧缓存池
+  private final FramePool mFramePool;
+  // 音频编码，工厂为空时使用AacEncoder
+  private AudioEncoder.Factory mAudioEncoderFactory;
+  private AudioEncoder mAudioEncoder;
+  private boolean mAsyncAudio = true;
+  // 同步编码时编码器未接收的PCM帧(工作线程)，下次调度重试
+  private MediaFrame mPendingAudio;
+  private int mEncodeRetries;
+  private volatile byte[] mAudioConfig;
+  // 音频编码格式，输入格式不同时在生产线程转换
+  private AudioConfig mAudioFormat = AudioConfig.getDefault();
+  private PcmConverter mConverter;
+  // 音频直通(ADTS)
+  private boolean mPassThrough = false;
+  private final AdtsParser mAdtsParser = new AdtsParser();
+  private int mAudioSampleRate;
+  private int mAudioChannels;
+  // 预录缓存，开始后由生产线程在下一帧到达时取出
+  private PreRollBuffer mPreRoll;
+  private volatile boolean mPreRollVideo;
+  private volatile boolean mPreRollAudio;
+  // 统计
+  private final MuxerMetrics mMetrics = new MuxerMetrics();
+  // 是否已在就绪队列或正在处理
+  private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+  private boolean mFinished = false;
+  private boolean mFinishing = false;  // 编码器已送入EOS，等待剩余输出
+  private long mFinishDeadlineNs;
+  // MP4输出
+  private VideoMuxer.Backend mBackend = VideoMuxer.Backend.mp4v2;
+  private volatile Mp4Output mOutput;
+  // 输出工厂，为空时按写入方式创建
+  private Mp4Output.Factory mOutputFactory;
+  // 后台任务(关闭分段文件)，为空时使用HchinaAPI.runTask
+  private Executor mExecutor;
+  // 分片输出(fMP4)
+  private boolean mFragmented = false;
+  private long mFragmentMs = 0;
+  // 纯JAVA写入的写缓存及落盘策略
+  private int mBufferSize = Mp4Writer.DEFAULT_BUFFER_SIZE;
+  private Mp4Writer.SyncPolicy mSyncPolicy;
+  private long mSyncIntervalMs;
+  // faststart预计时长，0表示不预留
+  private long mFaststartMs;
+  private int mFrameRate = DEFAULT_FRAME_RATE;
+  private boolean mJournal;
+  private boolean mGopIndex;
+
+  // 分段录制
+  private SegmentCallback mSegmentCallback;
+  private long mSegmentDurationUs;
+  private long mSegmentMaxBytes;
+  private int mSegmentIndex;
+  private String mSegmentPath;
+  private long mSegmentBaseUs;  // 分段起点(会话时间)，写入时减去
+  private long mSegmentStartUs;  // 分段第一帧视频的时间，小于0表示未开始
+  private long mSegmentBytes;
+  private byte[] mLastAudioConfig;
+  // 直通时上一次addAudio末尾不完整的ADTS帧，及其源时间和序号，接在下一次数据之前
+  private byte[] mAdtsCarry = new byte[0];
+  private int mAdtsCarrySize;
+  private long mAdtsCarryUs;
+  private int mAdtsCarrySeq;
+  private byte[] mAdtsJoin = new byte[0];
+  // 上一个分段，等音频写到分段点后在后台关闭
+  private Mp4Output mClosingOutput;
+  private String mClosingPath;
+  private int mClosingIndex;
+  private long mClosingBaseUs;
+
+  // 状态
+  public enum Status { unknown, init, start, stop }
+
+  // 分段回调
+  public interface SegmentCallback {
+    /**
+     * 下一个分段的文件路径
+     *
+     * @param index : 分段序号，第一个文件为0
+     * @return 为空时不切换，继续写当前文件
+     */
+    String getNextPath(int index);
+
+    // 分段文件已关闭(后台线程调用)
+    void onSegmentFinished(String path, int index);
+
+    // 分段文件打开失败，会话已结束(工作线程调用)
+    void onSegmentFailed(String path, int index);
+  }
+
+  public MuxerSession() {
+    this(MuxerScheduler.getDefault(), new FramePool());
+  }
+
+  /**
+   * @param scheduler : 处理本会话的线程池
+   * @param pool : 帧缓存池，可在多个会话间共用
+   */
+  public MuxerSession(MuxerScheduler scheduler, FramePool pool) {
+    mScheduler = scheduler;
+    mFramePool = pool;
+    mVideoList = createQueue(true, 0);
+    mAudioList = createQueue(false, 0);
+    mEncodedList = new FrameQueue(mAudioCapacity, false, mFramePool);
+    mMetrics.setQueues(mVideoList, mAudioList);
+  }
+
+  private FrameQueue createQueue(boolean video, int extra) {
+    int capacity = (video ? mVideoCapacity : mAudioCapacity) + extra;
+    FrameQueue queue = new FrameQueue(capacity, video, mFramePool);
+    queue.setPolicy(mPolicy);
+    return queue;
+  }
+
+  public Status getStatus() {
+    return mStatus;
+  }
+
+  // 设置写入方式，需在start之前调用
+  public void setBackend(VideoMuxer.Backend backend) {
+    if (backend != null) {
+      mBackend = backend;
+    }
+  }
+
+  public VideoMuxer.Backend getBackend() {
+    return mBackend;
+  }
+
+  /**
+   * 设置分片输出(fMP4)，需在start之前调用；分片模式固定使用纯JAVA写入
+   *
+   * @param enable : 是否分片
+   * @param durationMs : 分片时长(毫秒)，小于等于0表示每个关键帧一个分片
+   */
+  public void setFragmented(boolean enable, long durationMs) {
+    mFragmented = enable;
+    mFragmentMs = durationMs;
+  }
+
+  /**
+   * 设置纯JAVA写入的写缓存及落盘策略，需在start之前调用
+   *
+   * @param bufferSize : 写缓存大小(256KB~4MB)，0表示不使用
+   * @param policy : 落盘策略，为空时使用默认(分片模式每个分片落盘)
+   * @param intervalMs : interval策略的落盘间隔(毫秒)
+   */
+  public void setWriteBuffer(int bufferSize, Mp4Writer.SyncPolicy policy, long intervalMs) {
+    mBufferSize = bufferSize;
+    mSyncPolicy = policy;
+    mSyncIntervalMs = intervalMs;
+  }
+
+  /**
+   * 设置视频标称帧率，需在start之前调用
+   *
+   * 视频时间戳按实际的源时间间隔估计帧间隔，不依赖标称帧率；标称帧率用于faststart预留空间的估算。
+   */
+  public void setFrameRate(int frameRate) {
+    mFrameRate = Math.max(frameRate, 1);
+  }
+
+  public int getFrameRate() {
+    return mFrameRate;
+  }
+
+  /**
+   * 设置faststart(moov在文件开头，边下载边播放)，需在start之前调用；固定使用纯JAVA写入
+   *
+   * 按预计时长在文件开头为moov预留空间，实际录制超出预留时moov仍写在文件末尾。
+   *
+   * @param durationMs : 预计录制时长(毫秒)，分段录制时为分段时长；小于等于0表示关闭
+   */
+  public void setFaststart(long durationMs) {
+    mFaststartMs = Math.max(durationMs, 0);
+  }
+
+  /**
+   * 设置样本日志，需在start之前调用；固定使用纯JAVA写入(分片模式不需要)
+   *
+   * 录制时每个样本的位置记录到文件路径加.journal的日志，正常关闭后删除；
+   * 异常退出后由Mp4Recovery按日志重建moov。
+   */
+  public void setJournal(boolean enable) {
+    mJournal = enable;
+  }
+
+  /**
+   * 设置GOP索引，需在start之前调用；固定使用纯JAVA写入
+   *
+   * 每个关键帧的时间和文件偏移记录到文件路径加.gop的索引，录制结束后保留，用GopIndex定位。
+   */
+  public void setGopIndex(boolean enable) {
+    mGopIndex = enable;
+  }
+
+  /**
+   * 替换音频编码器，需在start之前调用
+   *
+   * @param factory : 为空时使用AacEncoder(MediaCodec)
+   */
+  public void setAudioEncoderFactory(AudioEncoder.Factory factory) {
+    mAudioEncoderFactory = factory;
+  }
+
+  /**
+   * 替换MP4输出，需在start之前调用；设置后写入方式、分片等输出设置不再生效
+   *
+   * @param factory : 为空时按写入方式创建Mp4Writer/CMp4V2Output
+   */
+  public void setOutputFactory(Mp4Output.Factory factory) {
+    mOutputFactory = factory;
+  }
+
+  /**
+   * 替换后台任务的执行方式(分段切换后关闭旧文件)，需在start之前调用
+   *
+   * @param executor : 为空时使用HchinaAPI.runTask
+   */
+  public void setExecutor(Executor executor) {
+    mExecutor = executor;
+  }
+
+  /**
+   * 设置分段录制，需在start之前调用；到达时长或大小后在下一个关键帧切换文件
+   *
+   * @param durationMs : 分段时长(毫秒)，小于等于0表示不按时长
+   * @param maxBytes : 分段大小(字节)，小于等于0表示不按大小
+   * @param callback : 提供下一个文件路径并通知文件关闭，为空表示不分段
+   */
+  public void setSegment(long durationMs, long maxBytes, SegmentCallback callback) {
+    mSegmentDurationUs = durationMs * 1000;
+    mSegmentMaxBytes = maxBytes;
+    mSegmentCallback = callback;
+  }
+
+  // 当前分段序号
+  public int getSegmentIndex() {
+    return mSegmentIndex;
+  }
+
+  /**
+   * 设置队列容量，需在start之前调用；容量向上取2的幂
+   *
+   * @param videoCapacity : 视频队列容量(帧)
+   * @param audioCapacity : 音频队列容量(帧)
+   */
+  public void setQueueCapacity(int videoCapacity, int audioCapacity) {
+    mVideoCapacity = Math.max(videoCapacity, 2);
+    mAudioCapacity = Math.max(audioCapacity, 2);
+  }
+
+  /**
+   * 设置音频是否异步编码，需在start之前调用
+   *
+   * @param async : true在独立线程回调模式编码(API 23及以上)，false在工作线程同步编码
+   */
+  public void setAsyncAudio(boolean async) {
+    mAsyncAudio = async;
+  }
+
+  /**
+   * 设置音频编码格式，需在start之前调用；设置了输入格式且与编码格式不同时先重采样/下混
+   *
+   * @param config : 为空时使用默认(32kHz双声道LC)
+   */
+  public void setAudioConfig(AudioConfig config) {
+    mAudioFormat = config != null ? config : AudioConfig.getDefault();
+  }
+
+  public AudioConfig getAudioConfig() {
+    return mAudioFormat;
+  }
+
+  /**
+   * 设置音频直通，需在start之前调用
+   *
+   * @param enable : true时addAudio传入ADTS格式的AAC(可包含多帧)，按帧头得到格式后直接写入；
+   *               false时传入PCM，由AacEncoder编码；直通时帧序号按ADTS帧计数
+   */
+  public void setAudioPassThrough(boolean enable) {
+    mPassThrough = enable;
+  }
+
+  public boolean isAudioPassThrough() {
+    return mPassThrough;
+  }
+
+  // 设置积压策略
+  public void setDropPolicy(FrameQueue.Policy policy) {
+    if (policy == null) {
+      return;
+    }
+    mPolicy = policy;
+    mVideoList.setPolicy(policy);
+    mAudioList.setPolicy(policy);
+  }
+
+  public FrameQueue.Policy getDropPolicy() {
+    return mPolicy;
+  }
+
+  // 统计(收发帧数、积压、延迟、写入字节数、错误数、丢帧数)
+  public MuxerMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  // 视频队列(积压帧数、丢帧数、丢弃字节数)
+  public FrameQueue getVideoQueue() {
+    return mVideoList;
+  }
+
+  // 音频队列(积压帧数、丢帧数、丢弃字节数)
+  public FrameQueue getAudioQueue() {
+    return mAudioList;
+  }
+
+  /**
+   * 开始，一个会话只能开始一次
+   *
+   * @return mp4v2已被其他会话占用或文件创建失败时返回false
+   */
+  public boolean start(String path) {
+    return start(path, null);
+  }
+
+  /**
+   * 开始，先写入预录缓存中从最近关键帧开始的数据
+   *
+   * 预录数据在各自生产线程下一次addVideo/addAudio时入队，保证队列单生产者；
+   * 时间起点为预录的起始关键帧。预录缓存从这里开始flush，不再接受新帧，stop时结束。
+   *
+   * @param preRoll : 预录缓存，可为空
+   */
+  public boolean start(String path, PreRollBuffer preRoll) {
+    if (path == null || path.length() == 0 || mStatus != Status.unknown) {
+      return false;
+    }
+
+    Mp4Output output = createOutput();
+    if (!output.open(path)) {
+      return false;
+    }
+    mOutput = output;
+    mSegmentIndex = 0;
+    mSegmentPath = path;
+    mSegmentBaseUs = 0;
+    mSegmentStartUs = -1;
+    mSegmentBytes = 0;
+    mLastAudioConfig = null;
+    mAdtsCarrySize = 0;
+    mAudioSampleRate = mAudioFormat.getSampleRate();
+    mAudioChannels = mAudioFormat.getChannelCount();
+    mConverter = mPassThrough ? null : mAudioFormat.createConverter();
+
+    // 队列需容纳预录数据
+    mVideoList = createQueue(true, preRoll != null ? preRoll.getVideoCount() : 0);
+    mAudioList = createQueue(false, preRoll != null ? preRoll.getAudioCount() : 0);
+    mEncodedList = new FrameQueue(mAudioCapacity, false, mFramePool);  // 不阻塞编码线程
+    // 队列满时在途的帧都能归还到缓存池
+    mFramePool.ensureCapacity(Math.max(mVideoList.getCapacity(),
+            Math.max(mAudioList.getCapacity(), mEncodedList.getCapacity())));
+    mAudioConfig = null;
+    mMetrics.reset();
+    mMetrics.setQueues(mVideoList, mAudioList);
+    mTimestamps.setFrameRate(mFrameRate);
+    mTimestamps.reset();
+    mTimestamps.setSampleRate(mAudioSampleRate);
+    if (preRoll != null) {
+      long startUs = preRoll.beginFlush();
+      if (startUs >= 0) {
+        mTimestamps.setOrigin(startUs);
+      }
+      mPreRoll = preRoll;
+      mPreRollVideo = true;
+      mPreRollAudio = true;
+    }
+    mOutput.setAudioFormat(mAudioSampleRate, mAudioChannels, null);
+    if (!mPassThrough) {
+      initAudioCodec();
+    }
+    mStatus = Status.init;
+    return true;
+  }
+
+  private Mp4Output createOutput() {
+    if (mOutputFactory != null) {
+      return mOutputFactory.create();
+    }
+    if (mFragmented || mBackend == VideoMuxer.Backend.java || mFaststartMs > 0 || mJournal
+            || mGopIndex) {
+      Mp4Writer writer = new Mp4Writer();
+      if (mFragmented) {
+        writer.setFragmented(mFragmentMs);
+      } else if (mFaststartMs > 0) {
+        writer.setFaststart(Mp4Writer.estimateMoovSize(mFaststartMs, mFrameRate,
+                mAudioFormat.getSampleRate()));
+      }
+      writer.setFrameRate(mFrameRate);
+      writer.setJournal(mJournal && !mFragmented);
+      writer.setGopIndex(mGopIndex);
+      writer.setBufferSize(mBufferSize);
+      writer.setSyncPolicy(mSyncPolicy, mSyncIntervalMs);
+      return writer;
+    }
+    return new CMp4V2Output();
+  }
+
+  // 结束(队列中的帧由工作线程写完，编码器输出剩余数据后在工作线程关闭文件)
+  public void stop() {
+    if (mStatus == Status.unknown) {
+      mStatus = Status.stop;
+      return;
+    }
+    mStatus = Status.stop;
+    closeQueues();
+    signal();
+  }
+
+  // 关闭队列，阻塞在入队的生产者返回，之后入队的帧丢弃
+  private void closeQueues() {
+    if (mPreRoll != null) {
+      mPreRoll.endFlush();
+    }
+    mVideoList.close();
+    mAudioList.close();
+    mEncodedList.close();
+  }
+
+  // 是否已结束并关闭文件
+  public boolean isFinished() {
+    return mStatus == Status.stop && !mScheduled.get() && mOutput == null;
+  }
+
+  // 是否占用mp4v2的全局句柄(文件关闭后为false)
+  public boolean isUsingMp4v2() {
+    return mOutput instanceof CMp4V2Output;
+  }
+
+  // 是否在录制(start之后，stop之前)
+  public boolean isRecording() {
+    Status status = mStatus;
+    return status == Status.init || status == Status.start;
+  }
+
+  // 请求调度
+  private void signal() {
+    if (mScheduled.compareAndSet(false, true)) {
+      mScheduler.schedule(this);
+    }
+  }
+
+  // 工作线程处理一轮，处理完仍有数据时重新排队
+  void execute(int quantum) {
+    try {
+      process(quantum);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      mMetrics.onError(e);
+    }
+    mScheduled.set(false);
+    // 处理期间到达的数据没有触发调度，重新检查
+    if (hasPending()) {
+      signal();
+    }
+  }
+
+  private boolean hasPending() {
+    if (mFinished || mOutput == null) {
+      return false;
+    }
+    AudioEncoder encoder = mAudioEncoder;
+    if (mStatus == Status.stop) {
+      // 等待编码器输出EOS时不占用工作线程，由输出回调或超时任务调度
+      return !mFinishing || encoder == null || encoder.isFinished() || !mEncodedList.isEmpty()
+              || System.nanoTime() - mFinishDeadlineNs >= 0;
+    }
+    boolean syncAudio = encoder == null || !encoder.isAsync();
+    return !mVideoList.isEmpty() || (syncAudio && !mAudioList.isEmpty())
+            || !mEncodedList.isEmpty() || mAudioConfig != null || mPendingAudio != null;
+  }
+
+  private void process(int quantum) {
+    if (mFinished || mOutput == null) {
+      return;
+    }
+    AudioEncoder encoder = mAudioEncoder;
+    boolean syncAudio = encoder == null || !encoder.isAsync();
+    // 结束时先写完队列中的帧(仍按quantum轮转)，队列空后再结束编码器，编码器输出完后关闭文件
+    if (mStatus == Status.stop && mVideoList.isEmpty()
+            && (!syncAudio || (mAudioList.isEmpty() && mPendingAudio == null))) {
+      if (encoder != null && !finishAudioEncoder(encoder)) {
+        return;
+      }
+      mFinished = true;
+      destory();
+      return;
+    }
+
+    MediaFrame frame;
+    for (int i = 0; i < quantum && (frame = mVideoList.poll()) != null; i++) {
+      writeVideoFrame(frame);
+      mFramePool.recycle(frame);
+      // 切换分段失败，会话已结束
+      if (mFinished) {
+        return;
+      }
+    }
+
+    // 回调模式下PCM由编码线程读取
+    if (syncAudio) {
+      for (int i = 0; i < quantum && (frame = pollAudio()) != null; i++) {
+        if (mPassThrough) {
+          writeAdtsFrame(frame);
+        } else if (encoder != null && !encoder.encode(frame)) {
+          retryAudio(frame);
+          break;
+        }
+        mFramePool.recycle(frame);
+      }
+    }
+    writeEncodedAudio(quantum);
+  }
+
+  // 先取编码器上次未接收的帧
+  private MediaFrame pollAudio() {
+    MediaFrame frame = mPendingAudio;
+    if (frame != null) {
+      mPendingAudio = null;
+      return frame;
+    }
+    mEncodeRetries = 0;
+    return mAudioList.poll();
+  }
+
+  // 编码器输入缓存没有空闲: 保留到下次调度，超过重试次数后丢弃并计数
+  private void retryAudio(MediaFrame frame) {
+    if (++mEncodeRetries > ENCODE_RETRIES) {
+      mMetrics.getAudio().onFrameDiscarded(frame.size);
+      mFramePool.recycle(frame);
+      return;
+    }
+    mPendingAudio = frame;
+  }
+
+  // 释放(编码器已输出完或超时，释放后写完剩余输出，再关闭文件)
+  private void destory() {
+    AudioEncoder encoder = mAudioEncoder;
+    if (encoder != null) {
+      encoder.release();
+      mAudioEncoder = null;
+    }
+
+    try {
+      if (mOutput != null) {
+        writeEncodedAudio(Integer.MAX_VALUE);
+      }
+      if (mClosingOutput != null) {
+        mClosingOutput.close();
+        notifySegmentFinished(mClosingPath, mClosingIndex);
+        mClosingOutput = null;
+      }
+      if (mOutput != null) {
+        mOutput.close();
+        notifySegmentFinished(mSegmentPath, mSegmentIndex);
+      }
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
+      mMetrics.onError(e);
+    }
+    // stop之后入队的帧
+    if (mPendingAudio != null) {
+      mMetrics.getAudio().onFrameDiscarded(mPendingAudio.size);
+      mFramePool.recycle(mPendingAudio);
+      mPendingAudio = null;
+    }
+    // 最后一次addAudio末尾不完整的ADTS帧
+    if (mAdtsCarrySize > 0) {
+      mMetrics.getAudio().onFrameDiscarded(mAdtsCarrySize);
+      mAdtsCarrySize = 0;
+    }
+    mVideoList.clear();
+    mAudioList.clear();
+    mEncodedList.clear();
+    mOutput = null;
+  }
+
+  /**
+   * 编码器输入结束: 第一次调用时送入EOS，之后每轮写入已有的输出
+   *
+   * 不在工作线程上等待，回调模式下编码器输出EOS时onAudioFinished调度会话，
+   * 最多等待FINISH_TIMEOUT_NS，超时由后台任务调度。
+   *
+   * @return 编码器已输出完或已超时
+   */
+  private boolean finishAudioEncoder(AudioEncoder encoder) {
+    if (!mFinishing) {
+      mFinishing = true;
+      mFinishDeadlineNs = System.nanoTime() + FINISH_TIMEOUT_NS;
+      try {
+        encoder.finish();
+      } catch (IllegalStateException e) {
+        e.printStackTrace();
+        mMetrics.onError(e);
+        return true;
+      }
+      if (!encoder.isFinished()) {
+        scheduleFinishTimeout(mFinishDeadlineNs);
+      }
+    }
+    writeEncodedAudio(Integer.MAX_VALUE);
+    return encoder.isFinished() || System.nanoTime() - mFinishDeadlineNs >= 0;
+  }
+
+  // 到达结束期限时调度一次(编码器没有输出EOS)
+  private void scheduleFinishTimeout(final long deadlineNs) {
+    runTask(new Runnable() {
+      @Override
+      public void run() {
+        long waitNs;
+        while ((waitNs = deadlineNs - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(this, waitNs);
+        }
+        signal();
+      }
+    });
+  }
+
+  private void notifySegmentFinished(String path, int index) {
+    if (mSegmentCallback != null) {
+      mSegmentCallback.onSegmentFinished(path, index);
+    }
+  }
+
+  // 是否需要在当前关键帧切换文件
+  private boolean isSegmentDue(long presentationTimeUs) {
+    if (mSegmentCallback == null || mSegmentStartUs < 0) {
+      return false;
+    }
+    return (mSegmentDurationUs > 0 && presentationTimeUs - mSegmentStartUs >= mSegmentDurationUs)
+            || (mSegmentMaxBytes > 0 && mSegmentBytes >= mSegmentMaxBytes);
+  }
+
+  // 切换到下一个文件，关键帧presentationTimeUs作为新文件的起点
+  private void rollover(long presentationTimeUs) {
+    String path = mSegmentCallback.getNextPath(mSegmentIndex + 1);
+    if (path == null || path.length() == 0) {
+      return;
+    }
+
+    Mp4Output next = createOutput();
+    finishClosing();
+    if (next instanceof CMp4V2Output) {
+      // mp4v2只有一个全局句柄，需先关闭当前文件
+      writeEncodedAudio(Integer.MAX_VALUE);
+      mOutput.close();
+      notifySegmentFinished(mSegmentPath, mSegmentIndex);
+      if (!next.open(path)) {
+        // 当前文件已关闭，无法继续写入: 按stop结束会话，释放编码器和队列中的帧
+        mMetrics.onError(new IllegalStateException("open " + path));
+        mOutput = null;
+        mStatus = Status.stop;
+        closeQueues();
+        mFinished = true;
+        destory();
+        if (mSegmentCallback != null) {
+          mSegmentCallback.onSegmentFailed(path, mSegmentIndex + 1);
+        }
+        return;
+      }
+    } else if (!next.open(path)) {
+      // 打开失败时继续写当前文件
+      mMetrics.onError(new IllegalStateException("open " + path));
+      return;
+    } else {
+      mClosingOutput = mOutput;
+      mClosingPath = mSegmentPath;
+      mClosingIndex = mSegmentIndex;
+      mClosingBaseUs = mSegmentBaseUs;
+    }
+
+    next.setAudioFormat(mAudioSampleRate, mAudioChannels, mLastAudioConfig);
+    mOutput = next;
+    mSegmentIndex++;
+    mSegmentPath = path;
+    mSegmentBaseUs = presentationTimeUs;
+    mSegmentStartUs = presentationTimeUs;
+    mSegmentBytes = 0;
+    if (mAudioEncoder == null && !mPassThrough) {
+      finishClosing();
+    }
+  }
+
+  // 在后台关闭上一个分段
+  private void finishClosing() {
+    final Mp4Output output = mClosingOutput;
+    if (output == null) {
+      return;
+    }
+    final String path = mClosingPath;
+    final int index = mClosingIndex;
+    mClosingOutput = null;
+    runTask(new Runnable() {
+      @Override
+      public void run() {
+        output.close();
+        notifySegmentFinished(path, index);
+      }
+    });
+  }
+
+  // 后台任务，没有设置时使用HchinaAPI.runTask
+  private void runTask(Runnable task) {
+    if (mExecutor != null) {
+      mExecutor.execute(task);
+    } else {
+      HchinaAPI.runTask(task);
+    }
+  }
+
+  // 初始化音频编码
+  private void initAudioCodec() {
+    AudioEncoder.Factory factory = mAudioEncoderFactory != null
+            ? mAudioEncoderFactory : AacEncoder.FACTORY;
+    AudioEncoder encoder = factory.create(mFramePool, mTimestamps, mAudioListener);
+    encoder.setMetrics(mMetrics);
+    if (encoder.start(mAudioFormat, mAudioList, mAsyncAudio)) {
+      mAudioEncoder = encoder;
+    }
+  }
+
+  // 编码输出: 复制到帧缓存后交给工作线程写入，文件只有一个写线程
+  private final AudioEncoder.Listener mAudioListener = new AudioEncoder.Listener() {
+    @Override
+    public void onAudioConfig(byte[] config) {
+      mAudioConfig = config;
+      signal();
+    }
+
+    @Override
+    public void onAudioFrame(ByteBuffer buffer, long presentationTimeUs, long queuedNs) {
+      MediaFrame frame = mFramePool.obtain(buffer.remaining());
+      frame.size = buffer.remaining();
+      buffer.get(frame.data, 0, frame.size);
+      frame.timeUs = presentationTimeUs;
+      // 延迟从PCM入队开始计算
+      frame.queuedNs = queuedNs;
+      if (mEncodedList.offer(frame)) {
+        signal();
+      }
+    }
+
+    @Override
+    public void onAudioFinished() {
+      signal();
+    }
+  };
+
+  /**
+   * 借出帧，填充后通过addVideo(MediaFrame)/addAudio(MediaFrame)交回
+   *
+   * @param size : 需要的数据大小
+   */
+  public MediaFrame obtainFrame(int size) {
+    return mFramePool.obtain(size);
+  }
+
+  // 归还未使用的帧
+  public void recycleFrame(MediaFrame frame) {
+    mFramePool.recycle(frame);
+  }
+
+  /**
+   * 增加视频
+   *
+   * @param timeStampUs : 源时间戳(微秒)，如采集时间
+   */
+  public void addVideo(byte[] data, int size, int width, int height, int frameType,
+                       long timeStampUs) {
+    if (!VIDEO || !isRecording() || data == null || size <= 0) {
+      return;
+    }
+
+    MediaFrame frame = mFramePool.obtain(size);
+    frame.set(data, 0, size);
+    frame.width = width;
+    frame.height = height;
+    frame.frameType = frameType;
+    frame.timeUs = timeStampUs;
+    addVideo(frame);
+  }
+
+  // 增加视频(帧归会话所有，写入后回收)；只能在同一个线程调用
+  public void addVideo(MediaFrame frame) {
+    if (!VIDEO || !isRecording()) {
+      mFramePool.recycle(frame);
+      return;
+    }
+
+    // 未设置时间戳时以入队时间为准，排队延迟不计入
+    if (frame.timeUs < 0) {
+      frame.timeUs = TimestampEngine.now();
+    }
+    if (mPreRollVideo) {
+      mPreRollVideo = false;
+      MediaFrame preRolled;
+      while ((preRolled = mPreRoll.pollVideo()) != null) {
+        offerVideo(preRolled);
+      }
+    }
+    offerVideo(frame);
+  }
+
+  private void offerVideo(MediaFrame frame) {
+    frame.queuedNs = System.nanoTime();
+    mMetrics.getVideo().onFrameIn();
+
+    if (mVideoList.offer(frame)) {
+      signal();
+    }
+  }
+
+  /**
+   * 增加音频(PCM)
+   *
+   * @param timeStampUs : 源时间戳(微秒)
+   * @param seq : 帧序号，用于检测丢帧，小于0表示无序号
+   */
+  public void addAudio(byte[] data, int size, long timeStampUs, int seq) {
+    if (!AUDIO || !isRecording() || data == null || size <= 0) {
+      return;
+    }
+
+    MediaFrame frame = mFramePool.obtain(size);
+    frame.set(data, 0, size);
+    frame.timeUs = timeStampUs;
+    frame.seq = seq;
+    addAudio(frame);
+  }
+
+  // 增加音频(帧归会话所有，写入后回收)；只能在同一个线程调用
+  public void addAudio(MediaFrame frame) {
+    if (!AUDIO || !isRecording()) {
+      mFramePool.recycle(frame);
+      return;
+    }
+
+    if (frame.timeUs < 0) {
+      frame.timeUs = TimestampEngine.now();
+    }
+    if (mPreRollAudio) {
+      mPreRollAudio = false;
+      MediaFrame preRolled;
+      while ((preRolled = mPreRoll.pollAudio()) != null) {
+        offerAudio(preRolled);
+      }
+    }
+    offerAudio(frame);
+  }
+
+  private void offerAudio(MediaFrame frame) {
+    frame = convertAudio(frame);
+    frame.queuedNs = System.nanoTime();
+    mMetrics.getAudio().onFrameIn();
+
+    // 视频积压时先丢音频
+    if (mPolicy == FrameQueue.Policy.dropAudioFirst && mVideoList.isCongested()) {
+      mAudioList.reject(frame);
+      return;
+    }
+
+    if (mAudioList.offer(frame)) {
+      AudioEncoder encoder = mAudioEncoder;
+      if (encoder != null && encoder.isAsync()) {
+        encoder.signal();
+      } else {
+        signal();
+      }
+    }
+  }
+
+  // 输入格式与编码格式不同时转换为编码格式(生产线程)
+  private MediaFrame convertAudio(MediaFrame frame) {
+    PcmConverter converter = mConverter;
+    if (converter == null || !frame.isValid()) {
+      return frame;
+    }
+    MediaFrame converted = mFramePool.obtain(converter.getOutputSize(frame.size));
+    converted.size = converter.convert(frame.data, 0, frame.size, converted.data, 0);
+    converted.timeUs = frame.timeUs;
+    converted.seq = frame.seq;
+    mFramePool.recycle(frame);
+    return converted;
+  }
+
+  // 写入编码后的音频
+  private void writeEncodedAudio(int quantum) {
+    byte[] config = mAudioConfig;
+    if (config != null) {
+      mAudioConfig = null;
+      mLastAudioConfig = config;
+      mOutput.setAudioFormat(mAudioSampleRate, mAudioChannels, config);
+    }
+
+    MediaFrame frame;
+    for (int i = 0; i < quantum && (frame = mEncodedList.poll()) != null; i++) {
+      if (frame.isValid()) {
+        boolean traced = MuxerTrace.begin("MuxerSession.writeAudio");
+        long presentationTimeUs = mTimestamps.audioOutputTime(frame.timeUs);
+        writeAudioSample(frame.data, 0, frame.size, presentationTimeUs, frame.queuedNs);
+        MuxerTrace.end(traced);
+      }
+      mFramePool.recycle(frame);
+    }
+  }
+
+  // 写入直通音频：逐个ADTS帧去掉帧头后写入，格式变化时更新音频轨道
+  private void writeAdtsFrame(MediaFrame frame) {
+    if (!frame.isValid()) {
+      return;
+    }
+    boolean traced = MuxerTrace.begin("MuxerSession.writeAdts");
+    byte[] data = frame.data;
+    int size = frame.size;
+    long sourceUs = frame.timeUs;
+    int seq = frame.seq;
+    if (mAdtsCarrySize > 0) {
+      // 上一次末尾不完整的帧接在本次数据之前，时间和序号从该帧算起
+      size = mAdtsCarrySize + frame.size;
+      if (mAdtsJoin.length < size) {
+        mAdtsJoin = new byte[size];
+      }
+      data = mAdtsJoin;
+      System.arraycopy(mAdtsCarry, 0, data, 0, mAdtsCarrySize);
+      System.arraycopy(frame.data, 0, data, mAdtsCarrySize, frame.size);
+      sourceUs = mAdtsCarryUs;
+      seq = mAdtsCarrySeq;
+      mAdtsCarrySize = 0;
+    }
+    AdtsParser parser = mAdtsParser.reset(data, 0, size);
+    while (parser.next()) {
+      byte[] config = parser.getConfig();
+      if (config != mLastAudioConfig) {
+        mLastAudioConfig = config;
+        mAudioSampleRate = parser.getSampleRate();
+        mAudioChannels = Math.max(parser.getChannelCount(), 1);
+        mTimestamps.setSampleRate(mAudioSampleRate);
+        mOutput.setAudioFormat(mAudioSampleRate, mAudioChannels, config);
+      }
+      // 一次传入多帧时，后续帧的源时间按采样数推算；序号按ADTS帧计数，同一帧的后续数据块不带序号
+      long presentationTimeUs = mTimestamps.audioTime(sourceUs, parser.getSamples(),
+              parser.isFrameStart() ? seq : -1);
+      writeAudioSample(data, parser.getOffset(), parser.getLength(), presentationTimeUs,
+              frame.queuedNs);
+      sourceUs += parser.getSamples() * 1000000L / mAudioSampleRate;
+      if (seq >= 0 && parser.isFrameStart()) {
+        seq++;
+      }
+    }
+    // 多个数据块又没有CRC、无法拆分的帧
+    int rejectedBytes = parser.getRejectedBytes();
+    for (int i = parser.getRejectedFrames(); i > 0; i--) {
+      int part = rejectedBytes / i;
+      mMetrics.getAudio().onFrameDiscarded(part);
+      rejectedBytes -= part;
+    }
+    // 末尾不完整的帧留到下一次
+    int remaining = size - parser.getPosition();
+    if (remaining > 0) {
+      if (mAdtsCarry.length < remaining) {
+        mAdtsCarry = new byte[remaining];
+      }
+      System.arraycopy(data, parser.getPosition(), mAdtsCarry, 0, remaining);
+      mAdtsCarrySize = remaining;
+      mAdtsCarryUs = sourceUs;
+      mAdtsCarrySeq = seq;
+    }
+    MuxerTrace.end(traced);
+  }
+
+  // 写入一帧AAC，分段点之前的音频仍写入上一个文件；所属分段已关闭时丢弃并计数，不写入负的时间戳
+  private void writeAudioSample(byte[] data, int offset, int size, long presentationTimeUs,
+                                long queuedNs) {
+    Mp4Output output = mOutput;
+    long baseUs = mSegmentBaseUs;
+    if (mSegmentIndex > 0 && presentationTimeUs < mSegmentBaseUs) {
+      if (mClosingOutput == null || presentationTimeUs < mClosingBaseUs) {
+        mMetrics.getAudio().onFrameDiscarded(size);
+        return;
+      }
+      output = mClosingOutput;
+      baseUs = mClosingBaseUs;
+    } else if (mClosingOutput != null) {
+      finishClosing();
+    }
+    int result = output.writeAudio(data, offset, size, presentationTimeUs - baseUs);
+    mMetrics.getAudio().onFrameWritten(size, queuedNs, result);
+    if (result > 0 && output == mOutput) {
+      mSegmentBytes += result;
+    }
+  }
+
+  // 写入视频帧数据
+  private void writeVideoFrame(MediaFrame frame) {
+    if (frame != null && frame.isValid()) {
+      boolean traced = MuxerTrace.begin("MuxerSession.writeVideo");
+      long presentationTimeUs = mTimestamps.videoTime(frame.timeUs);
+      if (frame.isKeyFrame() && isSegmentDue(presentationTimeUs)) {
+        rollover(presentationTimeUs);
+        if (mOutput == null) {
+          MuxerTrace.end(traced);
+          return;
+        }
+      }
+      int result = mOutput.writeVideo(frame.data, 0, frame.size, frame.width,
+              frame.height, frame.isKeyFrame(), presentationTimeUs - mSegmentBaseUs);
+      mMetrics.getVideo().onFrameWritten(frame.size, frame.queuedNs, result);
+      if (result > 0) {
+        if (mSegmentStartUs < 0) {
+          mSegmentStartUs = presentationTimeUs;
+        }
+        mSegmentBytes += result;
+      }
+      // 音频迟迟未到分段点且没有待写入的音频时不再等待，之后到达的旧分段音频丢弃
+      if (mClosingOutput != null && presentationTimeUs - mSegmentBaseUs >= CLOSE_DELAY_US
+              && mAudioList.isEmpty() && mEncodedList.isEmpty()) {
+        finishClosing();
+      }
+      MuxerTrace.end(traced);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.android.hchina.app.uicore.video;
+
+import android.os.Trace;
+
+/**
+ * systrace标记 - 默认关闭，打开后在录制热点路径输出Trace片段
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-03
+ */
+public final class MuxerTrace {
+  private static volatile boolean sEnabled = false;
+
+  private MuxerTrace() {
+  }
+
+  public static void setEnabled(boolean enabled) {
+    sEnabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return sEnabled;
+  }
+
+  /**
+   * 开始片段，返回值传给end()，保证中途开关时begin/end仍成对
+   *
+   * @return 是否输出了片段
+   */
+  public static boolean begin(String name) {
+    if (sEnabled) {
+      Trace.beginSection(name);
+      return true;
+    }
+    return false;
+  }
+
+  public static void end(boolean traced) {
+    if (traced) {
+      Trace.endSection();
+    }
+  }
+}
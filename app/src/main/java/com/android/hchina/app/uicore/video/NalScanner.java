@@ -0,0 +1,194 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H264 Annex-B NAL单元扫描器 - 原地遍历，不复制数据、不装箱
+ *
+ * 支持3字节/4字节起始码，查找起始码时按3字节步进跳过不可能的位置。
+ * 用法:
+ *   scanner.reset(data, offset, size);
+ *   while (scanner.next()) { scanner.getType(); scanner.getOffset(); scanner.getLength(); }
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-17
+ */
+public class NalScanner {
+  public static final int NAL_SLICE = 1;
+  public static final int NAL_IDR = 5;
+  public static final int NAL_SEI = 6;
+  public static final int NAL_SPS = 7;
+  public static final int NAL_PPS = 8;
+  public static final int NAL_AUD = 9;
+
+  private byte[] mArray;
+  private ByteBuffer mBuffer;
+  private int mBegin;
+  private int mEnd;
+  // 下一个起始码位置
+  private int mNext;
+
+  // 当前NAL单元
+  private int mOffset;
+  private int mLength;
+  private int mStartCodeLength;
+  private int mType;
+
+  // 扫描数组
+  public NalScanner reset(byte[] data, int offset, int size) {
+    mArray = data;
+    mBuffer = null;
+    mBegin = offset;
+    mEnd = offset + size;
+    mNext = findStartCode(offset);
+    mLength = 0;
+    return this;
+  }
+
+  // 扫描ByteBuffer[position, limit)，不改变其position
+  public NalScanner reset(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return reset(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+    mArray = null;
+    mBuffer = buffer;
+    mBegin = buffer.position();
+    mEnd = buffer.limit();
+    mNext = findStartCode(buffer.position());
+    mLength = 0;
+    return this;
+  }
+
+  // 移到下一个NAL单元
+  public boolean next() {
+    while (mNext >= 0) {
+      int start = mNext;
+      int nal = start + 3;
+      int next = findStartCode(nal);
+      int end = next < 0 ? mEnd : next;
+      // 下一个4字节起始码的前导0不属于本单元
+      while (next >= 0 && end > nal && get(end - 1) == 0) {
+        end--;
+      }
+      mNext = next;
+      if (end > nal) {
+        mOffset = nal;
+        mLength = end - nal;
+        mStartCodeLength = start > mBegin && get(start - 1) == 0 ? 4 : 3;
+        mType = get(nal) & 0x1f;
+        return true;
+      }
+    }
+    mLength = 0;
+    return false;
+  }
+
+  // 整段中是否有起始码
+  public boolean hasStartCode() {
+    return mNext >= 0 || mLength > 0;
+  }
+
+  // NAL类型
+  public int getType() {
+    return mType;
+  }
+
+  // NAL数据起始位置(不含起始码)
+  public int getOffset() {
+    return mOffset;
+  }
+
+  // NAL数据长度(不含起始码)
+  public int getLength() {
+    return mLength;
+  }
+
+  // 起始码长度: 3或4
+  public int getStartCodeLength() {
+    return mStartCodeLength;
+  }
+
+  // 当前NAL的数据数组(扫描ByteBuffer且无数组时为null)
+  public byte[] getArray() {
+    return mArray;
+  }
+
+  // 复制当前NAL数据
+  public byte[] copy() {
+    byte[] out = new byte[mLength];
+    if (mArray != null) {
+      System.arraycopy(mArray, mOffset, out, 0, mLength);
+    } else {
+      for (int i = 0; i < mLength; i++) {
+        out[i] = mBuffer.get(mOffset + i);
+      }
+    }
+    return out;
+  }
+
+  // 是否是视频编码层(slice)
+  public boolean isVcl() {
+    return mType >= NAL_SLICE && mType <= NAL_IDR;
+  }
+
+  // 判断关键帧(含IDR)
+  public static boolean isKeyFrame(byte[] data, int offset, int size, NalScanner scanner) {
+    scanner.reset(data, offset, size);
+    while (scanner.next()) {
+      if (scanner.getType() == NAL_IDR) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int get(int index) {
+    return mArray != null ? mArray[index] : mBuffer.get(index);
+  }
+
+  // 查找00 00 01，返回第一个0的位置
+  private int findStartCode(int from) {
+    if (mArray != null) {
+      return findStartCode(mArray, from, mEnd);
+    }
+    int i = from + 2;
+    while (i < mEnd) {
+      int b = mBuffer.get(i);
+      if (b > 1 || b < 0) {
+        i += 3;
+      } else if (b == 0) {
+        i++;
+      } else if (mBuffer.get(i - 1) == 0 && mBuffer.get(i - 2) == 0) {
+        return i - 2;
+      } else {
+        i += 3;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * 查找起始码: 检查窗口末字节，大于1时00 00 01不可能覆盖该字节，直接跳3字节
+   *
+   * @return 00 00 01中第一个0的位置，没有返回-1
+   */
+  public static int findStartCode(byte[] data, int from, int end) {
+    int i = from + 2;
+    while (i < end) {
+      int b = data[i];
+      if (b > 1 || b < 0) {
+        i += 3;
+      } else if (b == 0) {
+        i++;
+      } else if (data[i - 1] == 0 && data[i - 2] == 0) {
+        return i - 2;
+      } else {
+        i += 3;
+      }
+    }
+    return -1;
+  }
+}
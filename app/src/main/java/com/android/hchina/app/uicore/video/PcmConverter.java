@@ -0,0 +1,136 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * PCM转换 - 16位交织PCM的声道转换(下混/复制)和线性插值重采样
+ *
+ * 输出为单声道时取各声道平均，输出为双声道时单声道输入复制、多声道输入取前两个声道。
+ * 重采样使用16.16定点步长，跨调用保留插值位置和上一采样，连续调用之间没有接缝；
+ * 不分配内存，只能在同一个线程调用。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-12
+ */
+public class PcmConverter {
+  private static final int SHIFT = 16;
+  private static final long ONE = 1L << SHIFT;
+
+  private final int mInputRate;
+  private final int mInputChannels;
+  private final int mOutputRate;
+  private final int mOutputChannels;
+  private final long mStep;  // 每个输出采样对应的输入位置增量(定点)
+
+  // 插值位置(定点，相对本次输入第一帧，-1帧为上次的最后一帧)
+  private long mPosition;
+  private final int[] mLast;
+
+  public PcmConverter(int inputRate, int inputChannels, int outputRate, int outputChannels) {
+    mInputRate = Math.max(inputRate, 1);
+    mInputChannels = Math.max(inputChannels, 1);
+    mOutputRate = Math.max(outputRate, 1);
+    mOutputChannels = outputChannels > 1 ? 2 : 1;
+    mStep = ((long) mInputRate << SHIFT) / mOutputRate;
+    mLast = new int[mOutputChannels];
+  }
+
+  public int getInputRate() {
+    return mInputRate;
+  }
+
+  public int getInputChannels() {
+    return mInputChannels;
+  }
+
+  public int getOutputRate() {
+    return mOutputRate;
+  }
+
+  public int getOutputChannels() {
+    return mOutputChannels;
+  }
+
+  // 输入size字节时输出的最大字节数
+  public int getOutputSize(int size) {
+    long frames = size / (2 * mInputChannels);
+    return (int) (frames * mOutputRate / mInputRate + 2) * 2 * mOutputChannels;
+  }
+
+  // 重新开始(输入不连续时调用)
+  public void reset() {
+    mPosition = 0;
+    for (int i = 0; i < mLast.length; i++) {
+      mLast[i] = 0;
+    }
+  }
+
+  /**
+   * 转换
+   *
+   * @param in : 输入PCM
+   * @param offset : 输入偏移
+   * @param size : 输入大小(字节)
+   * @param out : 输出缓存，容量至少getOutputSize(size)
+   * @param outOffset : 输出偏移
+   * @return 输出字节数
+   */
+  public int convert(byte[] in, int offset, int size, byte[] out, int outOffset) {
+    int frames = size / (2 * mInputChannels);
+    if (frames <= 0) {
+      return 0;
+    }
+
+    int o = outOffset;
+    if (mInputRate == mOutputRate) {
+      // 采样率相同只做声道转换
+      for (int i = 0; i < frames; i++) {
+        for (int c = 0; c < mOutputChannels; c++) {
+          o = put(out, o, sample(in, offset, i, c));
+        }
+      }
+      return o - outOffset;
+    }
+
+    long position = mPosition;
+    while ((position >> SHIFT) + 1 < frames) {
+      int index = (int) (position >> SHIFT);
+      long fraction = position & (ONE - 1);
+      for (int c = 0; c < mOutputChannels; c++) {
+        int a = index < 0 ? mLast[c] : sample(in, offset, index, c);
+        int b = sample(in, offset, index + 1, c);
+        o = put(out, o, a + (int) (((b - a) * fraction) >> SHIFT));
+      }
+      position += mStep;
+    }
+    mPosition = position - ((long) frames << SHIFT);
+    for (int c = 0; c < mOutputChannels; c++) {
+      mLast[c] = sample(in, offset, frames - 1, c);
+    }
+    return o - outOffset;
+  }
+
+  // 第frame帧转换为输出声道channel的采样
+  private int sample(byte[] in, int offset, int frame, int channel) {
+    int base = offset + frame * mInputChannels * 2;
+    if (mOutputChannels == 1 && mInputChannels > 1) {
+      int sum = 0;
+      for (int c = 0; c < mInputChannels; c++) {
+        sum += read(in, base + c * 2);
+      }
+      return sum / mInputChannels;
+    }
+    return read(in, base + Math.min(channel, mInputChannels - 1) * 2);
+  }
+
+  private static int read(byte[] in, int index) {
+    return (in[index] & 0xFF) | (in[index + 1] << 8);
+  }
+
+  private static int put(byte[] out, int index, int value) {
+    out[index] = (byte) value;
+    out[index + 1] = (byte) (value >> 8);
+    return index + 2;
+  }
+}
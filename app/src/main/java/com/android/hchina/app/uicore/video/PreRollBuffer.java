@@ -0,0 +1,266 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * 预录缓存 - 未录制时保留最近N秒的视频(按GOP组织)和音频
+ *
+ * 超过时长、帧数或字节数上限时整GOP淘汰最早的数据，保证缓存总是从关键帧开始；
+ * 淘汰的GOP每加入一帧回收两帧，避免一次回收整个GOP超出FramePool的容量；
+ * 帧来自FramePool，淘汰即回收，稳定运行时不分配内存。
+ * 开始录制时调用beginFlush()确定起始关键帧，之后由各自的生产线程取出写入；
+ * flush期间拒绝新加入的帧(由调用者改为送入会话)，避免淘汰已确定的起始关键帧，录制结束时endFlush()。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-07
+ */
+public class PreRollBuffer {
+  private static final int VIDEO_CAPACITY = 512;
+  private static final int AUDIO_CAPACITY = 1024;
+  private static final int EVICT_PER_FRAME = 2;  // 每加入一帧最多回收的已淘汰帧
+
+  private final FramePool mFramePool;
+  private final long mDurationUs;
+  private final long mMaxBytes;
+  private long mBytes;
+
+  // 视频帧(绝对序号取模)
+  private final MediaFrame[] mVideo;
+  private final int mVideoMask;
+  private long mVideoHead;
+  private long mVideoTail;
+  // 有效关键帧的序号，第一个有效关键帧之前的帧已淘汰、等待回收
+  private final long[] mKeys;
+  private final int mKeyMask;
+  private long mKeyHead;
+  private long mKeyTail;
+
+  // 音频帧
+  private final MediaFrame[] mAudio;
+  private final int mAudioMask;
+  private long mAudioHead;
+  private long mAudioTail;
+  // beginFlush之后、endFlush之前
+  private boolean mFlushing;
+
+  /**
+   * @param pool : 帧缓存池，淘汰的帧回收到池中
+   * @param durationMs : 保留时长(毫秒)
+   * @param maxBytes : 最大字节数(音视频合计)
+   */
+  public PreRollBuffer(FramePool pool, long durationMs, long maxBytes) {
+    this(pool, durationMs, maxBytes, VIDEO_CAPACITY, AUDIO_CAPACITY);
+  }
+
+  public PreRollBuffer(FramePool pool, long durationMs, long maxBytes,
+                       int videoCapacity, int audioCapacity) {
+    mFramePool = pool;
+    mDurationUs = durationMs * 1000;
+    mMaxBytes = maxBytes;
+    mVideo = new MediaFrame[powerOfTwo(videoCapacity)];
+    mVideoMask = mVideo.length - 1;
+    mKeys = new long[mVideo.length];
+    mKeyMask = mKeys.length - 1;
+    mAudio = new MediaFrame[powerOfTwo(audioCapacity)];
+    mAudioMask = mAudio.length - 1;
+  }
+
+  private static int powerOfTwo(int capacity) {
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    return size;
+  }
+
+  public long getDurationMs() {
+    return mDurationUs / 1000;
+  }
+
+  // 最多缓存的视频帧数
+  public int getVideoCapacity() {
+    return mVideo.length;
+  }
+
+  public int getAudioCapacity() {
+    return mAudio.length;
+  }
+
+  public synchronized int getVideoCount() {
+    return (int) (mVideoTail - mVideoHead);
+  }
+
+  public synchronized int getAudioCount() {
+    return (int) (mAudioTail - mAudioHead);
+  }
+
+  public synchronized long getBytes() {
+    return mBytes;
+  }
+
+  // 缓存的时长(微秒)，从第一个关键帧算起
+  public synchronized long getBufferedUs() {
+    if (mKeyTail == mKeyHead) {
+      return 0;
+    }
+    MediaFrame first = mVideo[(int) getFirstLive() & mVideoMask];
+    MediaFrame last = mVideo[(int) (mVideoTail - 1) & mVideoMask];
+    return last.timeUs - first.timeUs;
+  }
+
+  /**
+   * 增加视频帧
+   *
+   * @return 是否加入(帧归缓存所有)；flush期间返回false，帧仍归调用者
+   */
+  public synchronized boolean addVideo(MediaFrame frame) {
+    if (mFlushing) {
+      return false;
+    }
+    if (mVideoTail - mVideoHead == mVideo.length) {
+      // 缓存已满且没有已淘汰的帧时淘汰最早的GOP
+      if (mVideoHead == getFirstLive() && mKeyTail > mKeyHead) {
+        mKeyHead++;
+      }
+      evictVideoTo(mVideoHead + 1);
+    }
+    if (frame.isKeyFrame()) {
+      mKeys[(int) mKeyTail & mKeyMask] = mVideoTail;
+      mKeyTail++;
+    }
+    mVideo[(int) mVideoTail & mVideoMask] = frame;
+    mVideoTail++;
+    mBytes += frame.size;
+
+    // 保留能覆盖时长的最近一个关键帧之后的数据
+    while (mKeyTail - mKeyHead >= 2) {
+      MediaFrame second = mVideo[(int) mKeys[(int) (mKeyHead + 1) & mKeyMask] & mVideoMask];
+      if (frame.timeUs - second.timeUs < mDurationUs && mBytes <= mMaxBytes) {
+        break;
+      }
+      mKeyHead++;
+    }
+    // 第一个有效关键帧之前的帧无法解码，逐步回收
+    evictVideoTo(Math.min(getFirstLive(), mVideoHead + EVICT_PER_FRAME));
+    trimAudio();
+    return true;
+  }
+
+  // 第一个有效关键帧的序号，没有关键帧时所有帧都无效
+  private long getFirstLive() {
+    return mKeyTail > mKeyHead ? mKeys[(int) mKeyHead & mKeyMask] : mVideoTail;
+  }
+
+  // 增加音频帧，同addVideo
+  public synchronized boolean addAudio(MediaFrame frame) {
+    if (mFlushing) {
+      return false;
+    }
+    if (mAudioTail - mAudioHead == mAudio.length) {
+      evictAudio();
+    }
+    mAudio[(int) mAudioTail & mAudioMask] = frame;
+    mAudioTail++;
+    mBytes += frame.size;
+
+    while (mBytes > mMaxBytes && mAudioTail - mAudioHead > 1) {
+      evictAudio();
+    }
+    trimAudio();
+    return true;
+  }
+
+  /**
+   * 开始输出：丢弃起始关键帧之前的数据，之后拒绝新加入的帧直到endFlush
+   *
+   * @return 起始关键帧的时间戳(微秒)，没有关键帧时返回-1
+   */
+  public synchronized long beginFlush() {
+    mFlushing = true;
+    evictVideoTo(getFirstLive());
+    if (mKeyTail == mKeyHead) {
+      return -1;
+    }
+    long startUs = mVideo[(int) mKeys[(int) mKeyHead & mKeyMask] & mVideoMask].timeUs;
+    while (mAudioTail > mAudioHead && mAudio[(int) mAudioHead & mAudioMask].timeUs < startUs) {
+      evictAudio();
+    }
+    return startUs;
+  }
+
+  // 结束输出(录制结束)，回收未取出的帧，重新开始缓存
+  public synchronized void endFlush() {
+    if (mFlushing) {
+      mFlushing = false;
+      clear();
+    }
+  }
+
+  public synchronized boolean isFlushing() {
+    return mFlushing;
+  }
+
+  // 取出最早的视频帧，帧归调用者所有
+  public synchronized MediaFrame pollVideo() {
+    if (mVideoHead == mVideoTail) {
+      return null;
+    }
+    int index = (int) mVideoHead & mVideoMask;
+    MediaFrame frame = mVideo[index];
+    mVideo[index] = null;
+    if (mKeyHead < mKeyTail && mKeys[(int) mKeyHead & mKeyMask] == mVideoHead) {
+      mKeyHead++;
+    }
+    mVideoHead++;
+    mBytes -= frame.size;
+    return frame;
+  }
+
+  // 取出最早的音频帧，帧归调用者所有
+  public synchronized MediaFrame pollAudio() {
+    if (mAudioHead == mAudioTail) {
+      return null;
+    }
+    int index = (int) mAudioHead & mAudioMask;
+    MediaFrame frame = mAudio[index];
+    mAudio[index] = null;
+    mAudioHead++;
+    mBytes -= frame.size;
+    return frame;
+  }
+
+  // 清空并回收
+  public synchronized void clear() {
+    evictVideoTo(mVideoTail);
+    while (mAudioTail > mAudioHead) {
+      evictAudio();
+    }
+  }
+
+  // 淘汰序号end之前的视频帧
+  private void evictVideoTo(long end) {
+    while (mVideoHead < end) {
+      mFramePool.recycle(pollVideo());
+    }
+  }
+
+  private void evictAudio() {
+    mFramePool.recycle(pollAudio());
+  }
+
+  // 音频不早于第一个视频关键帧，且不超过时长
+  private void trimAudio() {
+    if (mAudioTail == mAudioHead) {
+      return;
+    }
+    long newest = mAudio[(int) (mAudioTail - 1) & mAudioMask].timeUs;
+    long start = newest - mDurationUs;
+    if (mVideoTail > mVideoHead) {
+      start = mVideo[(int) mVideoHead & mVideoMask].timeUs;
+    }
+    while (mAudioTail > mAudioHead && mAudio[(int) mAudioHead & mAudioMask].timeUs < start) {
+      evictAudio();
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 样本日志 - 录制时与MP4并行写入的小索引文件(轨道描述 + 每个样本的位置、大小、时间戳)
+ *
+ * 异常退出时MP4没有moov，Mp4Recovery按日志重建样本表；正常关闭后日志删除。
+ * 记录先合并到8KB缓存，随MP4数据一起写出/落盘；末尾不完整的记录读取时忽略。
+ * 格式(大端): 头 MAGIC + VERSION；
+ *   轨道 'T' trackId video timescale defaultDelta width height entryLength entry；
+ *   样本 'S' (trackId | 关键帧0x80) offset size timeUs
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-17
+ */
+public class SampleJournal {
+  public static final String SUFFIX = ".journal";
+  private static final int MAGIC = 0x48434A4C;  // HCJL
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int SAMPLE_RECORD_SIZE = 22;
+  private static final int KEY_FLAG = 0x80;
+  private static final int MAX_ENTRY_SIZE = 64 * 1024;
+
+  // next()的返回值
+  public static final int RECORD_END = 0;
+  public static final int RECORD_TRACK = 'T';
+  public static final int RECORD_SAMPLE = 'S';
+
+  private final String mPath;
+  // 写入
+  private RandomAccessFile mFile;
+  private FileChannel mChannel;
+  private ByteBuffer mBuffer;
+  // 读取
+  private DataInputStream mInput;
+
+  // 当前记录
+  private int mTrackId;
+  private boolean mVideo;
+  private int mTimescale;
+  private int mDefaultDelta;
+  private int mWidth;
+  private int mHeight;
+  private byte[] mSampleEntry;
+  private long mOffset;
+  private int mSize;
+  private long mTimeUs;
+  private boolean mKeyFrame;
+
+  // MP4文件对应的日志路径
+  public static String getPath(String mp4Path) {
+    return mp4Path + SUFFIX;
+  }
+
+  private SampleJournal(String path) {
+    mPath = path;
+  }
+
+  // 创建日志(已存在时清空)
+  public static SampleJournal create(String path) throws IOException {
+    SampleJournal journal = new SampleJournal(path);
+    journal.mFile = new RandomAccessFile(path, "rw");
+    journal.mFile.setLength(0);
+    journal.mChannel = journal.mFile.getChannel();
+    journal.mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    journal.mBuffer.putInt(MAGIC);
+    journal.mBuffer.putInt(VERSION);
+    return journal;
+  }
+
+  // 打开日志读取，格式不对时抛出IOException
+  public static SampleJournal open(String path) throws IOException {
+    SampleJournal journal = new SampleJournal(path);
+    journal.mInput = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+    try {
+      if (journal.mInput.readInt() != MAGIC || journal.mInput.readInt() != VERSION) {
+        throw new IOException("bad journal: " + path);
+      }
+    } catch (IOException e) {
+      journal.close();
+      throw e;
+    }
+    return journal;
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  // 记录轨道描述，轨道写入第一个样本时调用
+  public void writeTrack(Mp4Track track) throws IOException {
+    byte[] entry = track.getSampleEntry();
+    int length = 1 + 1 + 1 + 4 + 4 + 2 + 2 + 4 + entry.length;
+    if (mBuffer.remaining() < length) {
+      flush();
+    }
+    if (mBuffer.remaining() < length) {
+      mBuffer = grow(mBuffer, length);
+    }
+    mBuffer.put((byte) RECORD_TRACK);
+    mBuffer.put((byte) track.getTrackId());
+    mBuffer.put((byte) (track.isVideo() ? 1 : 0));
+    mBuffer.putInt(track.getTimescale());
+    mBuffer.putInt(track.getDefaultDelta());
+    mBuffer.putShort((short) track.getWidth());
+    mBuffer.putShort((short) track.getHeight());
+    mBuffer.putInt(entry.length);
+    mBuffer.put(entry);
+  }
+
+  // 记录样本
+  public void writeSample(int trackId, long offset, int size, long timeUs, boolean keyFrame)
+          throws IOException {
+    if (mBuffer.remaining() < SAMPLE_RECORD_SIZE) {
+      flush();
+    }
+    mBuffer.put((byte) RECORD_SAMPLE);
+    mBuffer.put((byte) ((trackId & 0x7F) | (keyFrame ? KEY_FLAG : 0)));
+    mBuffer.putLong(offset);
+    mBuffer.putInt(size);
+    mBuffer.putLong(timeUs);
+  }
+
+  // 写出缓存中的记录
+  public void flush() throws IOException {
+    if (mChannel == null || mBuffer.position() == 0) {
+      return;
+    }
+    mBuffer.flip();
+    while (mBuffer.hasRemaining()) {
+      mChannel.write(mBuffer);
+    }
+    mBuffer.clear();
+  }
+
+  // 写出并落盘
+  public void force() throws IOException {
+    if (mChannel == null) {
+      return;
+    }
+    flush();
+    mChannel.force(false);
+  }
+
+  /**
+   * 读取下一条记录
+   *
+   * @return RECORD_TRACK/RECORD_SAMPLE；结束或记录不完整时返回RECORD_END
+   */
+  public int next() throws IOException {
+    if (mInput == null) {
+      return RECORD_END;
+    }
+    try {
+      int type = mInput.read();
+      if (type == RECORD_SAMPLE) {
+        int flags = mInput.readUnsignedByte();
+        mTrackId = flags & 0x7F;
+        mKeyFrame = (flags & KEY_FLAG) != 0;
+        mOffset = mInput.readLong();
+        mSize = mInput.readInt();
+        mTimeUs = mInput.readLong();
+        return RECORD_SAMPLE;
+      } else if (type == RECORD_TRACK) {
+        mTrackId = mInput.readUnsignedByte();
+        mVideo = mInput.readUnsignedByte() != 0;
+        mTimescale = mInput.readInt();
+        mDefaultDelta = mInput.readInt();
+        mWidth = mInput.readUnsignedShort();
+        mHeight = mInput.readUnsignedShort();
+        int length = mInput.readInt();
+        if (length <= 0 || length > MAX_ENTRY_SIZE) {
+          return RECORD_END;
+        }
+        mSampleEntry = new byte[length];
+        mInput.readFully(mSampleEntry);
+        return RECORD_TRACK;
+      }
+    } catch (EOFException e) {
+      // 最后一条记录不完整
+    }
+    return RECORD_END;
+  }
+
+  public int getTrackId() {
+    return mTrackId;
+  }
+
+  // 轨道记录
+  public boolean isVideo() {
+    return mVideo;
+  }
+
+  public int getTimescale() {
+    return mTimescale;
+  }
+
+  public int getDefaultDelta() {
+    return mDefaultDelta;
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  public byte[] getSampleEntry() {
+    return mSampleEntry;
+  }
+
+  // 样本记录
+  public long getOffset() {
+    return mOffset;
+  }
+
+  public int getSize() {
+    return mSize;
+  }
+
+  public long getTimeUs() {
+    return mTimeUs;
+  }
+
+  public boolean isKeyFrame() {
+    return mKeyFrame;
+  }
+
+  // 关闭(不写出缓存)
+  public void close() {
+    try {
+      if (mFile != null) {
+        mFile.close();
+      }
+      if (mInput != null) {
+        mInput.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    mFile = null;
+    mChannel = null;
+    mInput = null;
+  }
+
+  // 关闭并删除日志
+  public void delete() {
+    close();
+    new File(mPath).delete();
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int length) {
+    ByteBuffer dst = ByteBuffer.allocate(buffer.position() + length);
+    buffer.flip();
+    dst.put(buffer);
+    return dst;
+  }
+}
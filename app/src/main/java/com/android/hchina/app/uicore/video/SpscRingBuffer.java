@@ -0,0 +1,96 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者环形队列 - 无锁，容量固定(2的幂)
+ *
+ * offer()只能在一个生产线程调用，poll()/peek()只能在一个消费线程调用。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-13
+ */
+public class SpscRingBuffer<E> {
+  private final Object[] mBuffer;
+  private final int mMask;
+  // 消费位置
+  private final AtomicLong mHead = new AtomicLong();
+  // 生产位置
+  private final AtomicLong mTail = new AtomicLong();
+  // 生产者缓存的消费位置，减少对mHead的读取
+  private long mHeadCache;
+
+  public SpscRingBuffer(int capacity) {
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    mBuffer = new Object[size];
+    mMask = size - 1;
+  }
+
+  public int capacity() {
+    return mBuffer.length;
+  }
+
+  // 入队，队列满时返回false
+  public boolean offer(E e) {
+    long tail = mTail.get();
+    if (tail - mHeadCache >= mBuffer.length) {
+      mHeadCache = mHead.get();
+      if (tail - mHeadCache >= mBuffer.length) {
+        return false;
+      }
+    }
+    mBuffer[(int) tail & mMask] = e;
+    mTail.lazySet(tail + 1);
+    return true;
+  }
+
+  // 出队，队列空时返回null
+  @SuppressWarnings("unchecked")
+  public E poll() {
+    long head = mHead.get();
+    if (head >= mTail.get()) {
+      return null;
+    }
+    int index = (int) head & mMask;
+    E e = (E) mBuffer[index];
+    mBuffer[index] = null;
+    mHead.lazySet(head + 1);
+    return e;
+  }
+
+  // 查看队首
+  @SuppressWarnings("unchecked")
+  public E peek() {
+    long head = mHead.get();
+    if (head >= mTail.get()) {
+      return null;
+    }
+    return (E) mBuffer[(int) head & mMask];
+  }
+
+  // 查看队首之后第index个元素(仅消费线程)，越界返回null
+  @SuppressWarnings("unchecked")
+  public E peek(int index) {
+    long head = mHead.get();
+    if (index < 0 || head + index >= mTail.get()) {
+      return null;
+    }
+    return (E) mBuffer[(int) (head + index) & mMask];
+  }
+
+  // 当前长度(近似值)
+  public int size() {
+    long size = mTail.get() - mHead.get();
+    return size < 0 ? 0 : (int) size;
+  }
+
+  public boolean isEmpty() {
+    return mHead.get() >= mTail.get();
+  }
+}
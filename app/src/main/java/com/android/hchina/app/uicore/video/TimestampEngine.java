@@ -0,0 +1,233 @@
+package com.android.hchina.app.uicore.video;
+
+/**
+ * 时间戳引擎 - 由源时间戳生成单调递增的音视频显示时间
+ *
+ * 视频: 按帧间隔预测下一帧时间，源时间戳的抖动经低通滤波后修正，偏差过大时重新同步；
+ *       帧间隔按最近若干帧的源时间跨度估计(帧数不足时使用源时间)，间隔为数倍时按丢帧处理；
+ * 音频: 按已写入的采样数计算时间，与源时间戳偏差过大或序号不连续时重新同步；
+ * 两个轨道共用同一个时间起点，输出时间保证单调递增。
+ * 视频和音频可以在不同线程调用，同一轨道需在同一线程调用。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-23
+ */
+public class TimestampEngine {
+  private static final long US = 1000000L;
+  // 视频偏差修正系数(1/8)
+  private static final int VIDEO_FILTER_SHIFT = 3;
+  // 视频重新同步阈值(帧间隔的倍数)
+  private static final int VIDEO_RESYNC_FRAMES = 2;
+  // 音频重新同步阈值
+  private static final long AUDIO_RESYNC_US = 100000L;
+  // 估计帧间隔使用的帧数及最少帧数
+  private static final int INTERVAL_HISTORY = 32;
+  private static final int INTERVAL_MIN_COUNT = 3;
+
+  private long mNominalIntervalUs;
+  private int mSampleRate;
+  // 时间起点(源时间)
+  private volatile long mOriginUs = -1;
+
+  // 视频
+  private long mVideoLastUs = -1;
+  private int mVideoOutliers;
+  // 最近的帧(环形): 源时间及帧号(丢帧时帧号跳过)
+  private final long[] mSourceTimes = new long[INTERVAL_HISTORY];
+  private final long[] mFrameNumbers = new long[INTERVAL_HISTORY];
+  private int mHistoryCount;
+  private int mHistoryNext;
+  private long mFrameNumber;
+  private long mFrameIntervalUs;
+  // 音频: 同步点源时间 + 同步后累计采样数
+  private long mAudioBaseUs = -1;
+  private long mAudioSamples;
+  private int mAudioSeq = -1;
+  private long mAudioLastUs = -1;
+  private long mAudioOutLastUs = -1;
+
+  /**
+   * @param frameRate : 视频标称帧率，估计出实际帧间隔之前使用
+   * @param sampleRate : 音频采样率
+   */
+  public TimestampEngine(int frameRate, int sampleRate) {
+    setFrameRate(frameRate);
+    mSampleRate = sampleRate;
+  }
+
+  // 视频标称帧率，在reset之前或同一视频线程调用
+  public void setFrameRate(int frameRate) {
+    mNominalIntervalUs = US / Math.max(frameRate, 1);
+    if (mHistoryCount < INTERVAL_MIN_COUNT) {
+      mFrameIntervalUs = mNominalIntervalUs;
+    }
+  }
+
+  // 当前使用的视频帧间隔(微秒)
+  public long getFrameInterval() {
+    return mFrameIntervalUs;
+  }
+
+  // 音频采样率变化时重新同步
+  public void setSampleRate(int sampleRate) {
+    if (sampleRate > 0 && sampleRate != mSampleRate) {
+      mSampleRate = sampleRate;
+      mAudioBaseUs = -1;
+    }
+  }
+
+  // 重置
+  public void reset() {
+    mOriginUs = -1;
+    mVideoLastUs = -1;
+    mVideoOutliers = 0;
+    mHistoryCount = 0;
+    mHistoryNext = 0;
+    mFrameNumber = 0;
+    mFrameIntervalUs = mNominalIntervalUs;
+    mAudioBaseUs = -1;
+    mAudioSamples = 0;
+    mAudioSeq = -1;
+    mAudioLastUs = -1;
+    mAudioOutLastUs = -1;
+  }
+
+  // 当前时钟(微秒)，无源时间戳时使用
+  public static long now() {
+    return System.nanoTime() / 1000;
+  }
+
+  // 指定时间起点(源时间)，之后的时间戳均相对该起点
+  public void setOrigin(long sourceUs) {
+    mOriginUs = sourceUs;
+  }
+
+  public long getOrigin() {
+    return mOriginUs;
+  }
+
+  /**
+   * 视频帧显示时间
+   *
+   * @param sourceUs : 源时间戳(微秒)
+   * @return 相对起点的显示时间(微秒)
+   */
+  public long videoTime(long sourceUs) {
+    long time = relative(sourceUs);
+    if (mVideoLastUs < 0) {
+      mVideoLastUs = time;
+      addFrame(time);
+      return time;
+    }
+    addFrame(time);
+    if (mHistoryCount < INTERVAL_MIN_COUNT) {
+      // 帧间隔未知时直接使用源时间
+      mVideoLastUs = Math.max(time, mVideoLastUs + 1);
+      return mVideoLastUs;
+    }
+
+    // 间隔为帧间隔的数倍时按丢帧预测，不计为异常
+    long interval = mFrameIntervalUs;
+    long frames = Math.max(1, (time - mVideoLastUs + interval / 2) / interval);
+    long expected = mVideoLastUs + frames * interval;
+    long error = time - expected;
+    long pts;
+    if (Math.abs(error) > mFrameIntervalUs * VIDEO_RESYNC_FRAMES) {
+      // 单帧异常按预测值处理；连续异常说明丢帧或帧率变化，重新同步
+      pts = ++mVideoOutliers < 2 ? expected : time;
+    } else {
+      mVideoOutliers = 0;
+      pts = expected + (error >> VIDEO_FILTER_SHIFT);
+    }
+    if (pts <= mVideoLastUs) {
+      pts = mVideoLastUs + 1;
+    }
+    mVideoLastUs = pts;
+    return pts;
+  }
+
+  /**
+   * 记录帧的源时间并更新帧间隔
+   *
+   * 帧号按与上一帧的间隔是帧间隔的几倍累加(丢帧时跳过)，帧间隔 = 源时间跨度 / 帧号差，
+   * 抖动只影响首尾两帧；源时间回退或跳变超过1秒时重新估计。
+   */
+  private void addFrame(long time) {
+    if (mHistoryCount > 0) {
+      int lastIndex = (mHistoryNext + INTERVAL_HISTORY - 1) % INTERVAL_HISTORY;
+      long delta = time - mSourceTimes[lastIndex];
+      if (delta <= 0 || delta >= US) {
+        mHistoryCount = 0;
+      } else {
+        long interval = mHistoryCount >= 2 ? mFrameIntervalUs : delta;
+        mFrameNumber += Math.max(1, (delta + interval / 2) / interval);
+      }
+    }
+    mSourceTimes[mHistoryNext] = time;
+    mFrameNumbers[mHistoryNext] = mFrameNumber;
+    mHistoryNext = (mHistoryNext + 1) % INTERVAL_HISTORY;
+    if (mHistoryCount < INTERVAL_HISTORY) {
+      mHistoryCount++;
+    }
+    if (mHistoryCount >= 2) {
+      int first = (mHistoryNext + INTERVAL_HISTORY - mHistoryCount) % INTERVAL_HISTORY;
+      mFrameIntervalUs = (time - mSourceTimes[first]) / (mFrameNumber - mFrameNumbers[first]);
+    }
+  }
+
+  /**
+   * 音频帧显示时间
+   *
+   * @param sourceUs : 源时间戳(微秒)
+   * @param samples : 本帧采样数(每声道)
+   * @param seq : 帧序号，小于0表示无序号
+   * @return 相对起点的显示时间(微秒)
+   */
+  public long audioTime(long sourceUs, int samples, int seq) {
+    long time = relative(sourceUs);
+    boolean gap = seq >= 0 && mAudioSeq >= 0 && seq != mAudioSeq + 1;
+    mAudioSeq = seq;
+
+    long pts = mAudioBaseUs < 0 ? time : mAudioBaseUs + mAudioSamples * US / mSampleRate;
+    if (mAudioBaseUs < 0 || gap || Math.abs(time - pts) > AUDIO_RESYNC_US) {
+      mAudioBaseUs = time;
+      mAudioSamples = 0;
+      pts = time;
+    }
+    if (pts <= mAudioLastUs) {
+      pts = mAudioLastUs + 1;
+    }
+    mAudioSamples += samples;
+    mAudioLastUs = pts;
+    return pts;
+  }
+
+  // 编码器输出的音频时间，保证单调递增
+  public long audioOutputTime(long pts) {
+    if (pts <= mAudioOutLastUs) {
+      pts = mAudioOutLastUs + 1;
+    }
+    mAudioOutLastUs = pts;
+    return pts;
+  }
+
+  private long relative(long sourceUs) {
+    long origin = mOriginUs;
+    if (origin < 0) {
+      origin = initOrigin(sourceUs);
+    }
+    long time = sourceUs - origin;
+    return time < 0 ? 0 : time;
+  }
+
+  // 第一个到达的样本确定起点
+  private synchronized long initOrigin(long sourceUs) {
+    if (mOriginUs < 0) {
+      mOriginUs = sourceUs;
+    }
+    return mOriginUs;
+  }
+}
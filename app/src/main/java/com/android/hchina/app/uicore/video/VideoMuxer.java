@@ -1,21 +1,12 @@
 package com.android.hchina.app.uicore.video;
 
 import android.annotation.SuppressLint;
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
-import android.text.TextUtils;
-
-import com.hchina.android.api.HchinaAPI;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * 视频合成 - 写MP4视频文件(H264+AAC)
  *
+ * 单例，内部使用一个默认MuxerSession；同时录制多路时直接创建多个MuxerSession。
+ *
  * copyright 2020 上海汁味信息科技有限公司 ----------------------------
  *            这不是一个自由软件，未经授权不许任何使用和传播。
  * @author li_guotao
@@ -25,47 +16,52 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class VideoMuxer {
   private static final String TAG = VideoMuxer.class.getSimpleName();
   public static final String VIDEO_EXT_FILE = "mp4";
-
-  private static final String VIDEO_MIME_TYPE = "video/avc";
-  private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
-  private static final int FRAME_RATE = 25;
-  private static final int SAMPLE_RATE = 32000;
-  private static final int ADT_HEADER = 7;
-  private static final int CHANNEL_COUNT = 2;
-
-  private static final boolean VIDEO = true;
-  private static final boolean AUDIO = true;
-  private static final int KEY_FRAME = 3;  // 关键视频帧
-  private static final int WAIT_TIME = 30;  // 等待时间
-
-  // 视频路径
-  private Status mStatus = Status.unknown;
-  private MediaCodec.BufferInfo mOutputAudioInfo = new MediaCodec.BufferInfo();
-  private long mStartTime = 0;
-  // 视频队列
-  private Queue<VideoFrame> mVideoList;
-  // 音频队列
-  private Queue<AudioFrame> mAudioList;
-  // 音视频对象锁
-  private final Object mAVMutex = new Object();
-  private final Object mWaitObject = new Object();
-  // 音视频线程
-  private AVThread mAVThread = null;
-
-  private MediaCodec mAudioMediaCodec;
-  private ByteBuffer[] mAudioInputBufferArray;
-  private ByteBuffer[] mAudioOutputBufferArray;
+  private static final long FINISH_WAIT_MS = 1000;  // 等待上一个会话关闭文件
+
+  // 当前会话，每次start创建新会话，旧会话在工作线程中结束
+  private volatile MuxerSession mSession;
+  private final FramePool mFramePool = new FramePool();
+  // 会话配置
+  private Backend mBackend = Backend.mp4v2;
+  private boolean mFragmented = false;
+  private long mFragmentMs = 0;
+  private int mBufferSize = Mp4Writer.DEFAULT_BUFFER_SIZE;
+  private Mp4Writer.SyncPolicy mSyncPolicy;
+  private long mSyncIntervalMs;
+  private long mFaststartMs = 0;
+  private int mFrameRate = 25;
+  private boolean mJournal = false;
+  private boolean mGopIndex = false;
+  private int mVideoCapacity = 0;
+  private int mAudioCapacity = 0;
+  private boolean mAsyncAudio = true;
+  private boolean mPassThrough = false;
+  private AudioConfig mAudioConfig;
+  private FrameQueue.Policy mPolicy = FrameQueue.Policy.dropNewest;
+  private long mSegmentMs = 0;
+  private long mSegmentBytes = 0;
+  private MuxerSession.SegmentCallback mSegmentCallback;
+  // 预录缓存(未录制时保存最近的音视频)
+  private volatile PreRollBuffer mPreRoll;
 
   // 状态
   public enum Status { unknown, init, start, stop }
 
-  // 视频帧
+  // 写入方式: mp4v2库(JNI) / 纯JAVA
+  public enum Backend { mp4v2, java }
+
+  /**
+   * 视频帧(旧接口)
+   *
+   * @deprecated 使用obtainVideoFrame借出MediaFrame，填充后addVideo(MediaFrame)交回
+   */
+  @Deprecated
   public static class VideoFrame {
-    byte[] data;
-    int size;
-    int width;
-    int height;
-    int frameType;
+    public byte[] data;
+    public int size;
+    public int width;
+    public int height;
+    public int frameType;
 
     // 判断是否有效
     public boolean isValid() {
@@ -73,10 +69,15 @@ public class VideoMuxer {
     }
   }
 
-  // 音频帧
+  /**
+   * 音频帧(旧接口)
+   *
+   * @deprecated 使用obtainAudioFrame借出MediaFrame，填充后addAudio(MediaFrame)交回
+   */
+  @Deprecated
   public static class AudioFrame {
-    byte[] data;
-    int size;
+    public byte[] data;
+    public int size;
 
     // 判断是否有效
     public boolean isValid() {
@@ -86,7 +87,7 @@ public class VideoMuxer {
 
   // 单例句柄
   @SuppressLint("StaticFieldLeak") private static VideoMuxer instance = null;
-  public static VideoMuxer getInstance() {
+  public static synchronized VideoMuxer getInstance() {
     if (instance == null) {
       instance = new VideoMuxer();
     }
@@ -94,197 +95,391 @@ public class VideoMuxer {
   }
 
   private VideoMuxer() {
-    mVideoList = new ConcurrentLinkedQueue<>();
-    mAudioList = new ConcurrentLinkedQueue<>();
+    mSession = createSession();
+  }
+
+  private MuxerSession createSession() {
+    MuxerSession session = new MuxerSession(MuxerScheduler.getDefault(), mFramePool);
+    session.setBackend(mBackend);
+    session.setFragmented(mFragmented, mFragmentMs);
+    session.setWriteBuffer(mBufferSize, mSyncPolicy, mSyncIntervalMs);
+    session.setFrameRate(mFrameRate);
+    session.setFaststart(mFaststartMs);
+    session.setJournal(mJournal);
+    session.setGopIndex(mGopIndex);
+    if (mVideoCapacity > 0) {
+      session.setQueueCapacity(mVideoCapacity, mAudioCapacity);
+    }
+    session.setAsyncAudio(mAsyncAudio);
+    session.setAudioPassThrough(mPassThrough);
+    session.setAudioConfig(mAudioConfig);
+    session.setDropPolicy(mPolicy);
+    session.setSegment(mSegmentMs, mSegmentBytes, mSegmentCallback);
+    return session;
+  }
+
+  // 当前会话
+  public MuxerSession getSession() {
+    return mSession;
   }
 
   public Status getStatus() {
-    return mStatus;
+    return Status.valueOf(mSession.getStatus().name());
   }
 
-  // 开始
-  public boolean start(String path) {
-    if (TextUtils.isEmpty(path)) {
-      return false;
+  // 设置写入方式，需在start之前调用
+  public void setBackend(Backend backend) {
+    if (backend != null) {
+      mBackend = backend;
     }
+  }
 
-    mStatus = Status.init;
-    CMp4V2.createMp4file(path);
-    initAudioCodec();
-    mAVThread = new AVThread();
-    HchinaAPI.runTask(mAVThread);
-    return true;
+  public Backend getBackend() {
+    return mBackend;
   }
 
-  // 结束
-  public void stop() {
-    mStatus = Status.stop;
-    synchronized (mAVMutex) {
-      mVideoList.clear();
-      mAudioList.clear();
-    }
+  /**
+   * 设置分片输出(fMP4)，需在start之前调用；分片模式固定使用纯JAVA写入
+   *
+   * @param enable : 是否分片
+   * @param durationMs : 分片时长(毫秒)，小于等于0表示每个关键帧一个分片
+   */
+  public void setFragmented(boolean enable, long durationMs) {
+    mFragmented = enable;
+    mFragmentMs = durationMs;
   }
 
-  // 释放
-  private void destory() {
-    try {
-      CMp4V2.closeMp4file();
-      if(mAudioMediaCodec != null) {
-        mAudioMediaCodec.stop();
-        mAudioMediaCodec.release();
-      }
-    } catch (IllegalStateException e) {
-      e.printStackTrace();
+  /**
+   * 设置纯JAVA写入的写缓存及落盘策略，需在start之前调用
+   *
+   * @param bufferSize : 写缓存大小(256KB~4MB)，0表示不使用
+   * @param policy : 落盘策略，为空时使用默认(分片模式每个分片落盘)
+   * @param intervalMs : interval策略的落盘间隔(毫秒)
+   */
+  public void setWriteBuffer(int bufferSize, Mp4Writer.SyncPolicy policy, long intervalMs) {
+    mBufferSize = bufferSize;
+    mSyncPolicy = policy;
+    mSyncIntervalMs = intervalMs;
+  }
+
+  /**
+   * 设置faststart(moov在文件开头，边下载边播放)，需在start之前调用；固定使用纯JAVA写入
+   *
+   * @param durationMs : 预计录制时长(毫秒)，按此预留moov空间，超出时moov写在末尾；小于等于0表示关闭
+   */
+  public void setFaststart(long durationMs) {
+    mFaststartMs = durationMs;
+  }
+
+  /**
+   * 设置样本日志，需在start之前调用；固定使用纯JAVA写入
+   *
+   * 异常退出后用Mp4Recovery按日志修复文件，正常关闭后日志删除。
+   */
+  public void setJournal(boolean enable) {
+    mJournal = enable;
+  }
+
+  /**
+   * 设置GOP索引，需在start之前调用；固定使用纯JAVA写入
+   *
+   * 录制结束后保留文件路径加.gop的索引，GopIndex.open映射后按时间二分查找关键帧位置。
+   */
+  public void setGopIndex(boolean enable) {
+    mGopIndex = enable;
+  }
+
+  /**
+   * 设置视频标称帧率，需在start之前调用；时间戳按实际帧间隔，标称帧率用于faststart预留空间的估算
+   */
+  public void setFrameRate(int frameRate) {
+    mFrameRate = Math.max(frameRate, 1);
+    mSession.setFrameRate(mFrameRate);
+  }
+
+  /**
+   * 设置队列容量，需在start之前调用；容量向上取2的幂
+   *
+   * @param videoCapacity : 视频队列容量(帧)
+   * @param audioCapacity : 音频队列容量(帧)
+   */
+  public void setQueueCapacity(int videoCapacity, int audioCapacity) {
+    mVideoCapacity = Math.max(videoCapacity, 2);
+    mAudioCapacity = Math.max(audioCapacity, 2);
+  }
+
+  /**
+   * 设置音频是否异步编码，需在start之前调用
+   *
+   * @param async : true在独立线程回调模式编码(API 23及以上)，false在工作线程同步编码
+   */
+  public void setAsyncAudio(boolean async) {
+    mAsyncAudio = async;
+  }
+
+  /**
+   * 设置音频编码格式，需在start之前调用
+   *
+   * 例如16kHz单声道语音：setAudioConfig(AudioConfig.voice().setInput(44100, 2))，
+   * 采集格式不同时先重采样/下混再编码；为空时使用默认(32kHz双声道LC)。
+   */
+  public void setAudioConfig(AudioConfig config) {
+    mAudioConfig = config;
+  }
+
+  /**
+   * 设置音频直通，需在start之前调用
+   *
+   * @param enable : true时addAudio传入ADTS格式的AAC，去掉帧头后直接写入，不再编码
+   */
+  public void setAudioPassThrough(boolean enable) {
+    mPassThrough = enable;
+  }
+
+  /**
+   * 设置分段录制，需在start之前调用；到达时长或大小后在下一个关键帧切换到新文件
+   *
+   * @param durationMs : 分段时长(毫秒)，小于等于0表示不按时长
+   * @param maxBytes : 分段大小(字节)，小于等于0表示不按大小
+   * @param callback : 提供下一个文件路径并通知文件关闭，为空表示不分段
+   */
+  public void setSegment(long durationMs, long maxBytes, MuxerSession.SegmentCallback callback) {
+    mSegmentMs = durationMs;
+    mSegmentBytes = maxBytes;
+    mSegmentCallback = callback;
+  }
+
+  /**
+   * 设置预录，开启后未录制时也缓存最近的音视频，start时从最近的关键帧开始写入
+   *
+   * @param durationMs : 预录时长(毫秒)，小于等于0表示关闭
+   * @param maxBytes : 预录最多占用的内存(字节)
+   */
+  public synchronized void setPreRoll(long durationMs, long maxBytes) {
+    PreRollBuffer old = mPreRoll;
+    PreRollBuffer preRoll = durationMs > 0
+            ? new PreRollBuffer(mFramePool, durationMs, maxBytes) : null;
+    if (preRoll != null) {
+      // 预录缓存淘汰和开始录制时取出的帧都能归还到缓存池
+      mFramePool.ensureCapacity(
+              Math.max(preRoll.getVideoCapacity(), preRoll.getAudioCapacity()));
     }
+    mPreRoll = preRoll;
+    if (old != null) {
+      old.clear();
+    }
+  }
 
-    mAVThread = null;
-    mStartTime = 0;
-    mAudioMediaCodec = null;
+  public PreRollBuffer getPreRoll() {
+    return mPreRoll;
   }
 
-  // 初始化音频编码
-  private void initAudioCodec() {
-    if (mAudioMediaCodec != null) {
+  // 设置积压策略
+  public void setDropPolicy(FrameQueue.Policy policy) {
+    if (policy == null) {
       return;
     }
+    mPolicy = policy;
+    mSession.setDropPolicy(policy);
+  }
 
-    try {
-      mAudioMediaCodec = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
-      MediaFormat format =
-              MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, SAMPLE_RATE, CHANNEL_COUNT);
-      format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-      format.setInteger(MediaFormat.KEY_BIT_RATE, 320000);  // 比特率
-      format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 100 * 1024);
-      mAudioMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-      mAudioMediaCodec.start();
-
-      mAudioInputBufferArray = mAudioMediaCodec.getInputBuffers();
-      mAudioOutputBufferArray = mAudioMediaCodec.getOutputBuffers();
-      mOutputAudioInfo = new MediaCodec.BufferInfo();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  public FrameQueue.Policy getDropPolicy() {
+    return mPolicy;
   }
 
-  // 音视频线程
-  private class AVThread implements Runnable {
-    @Override
-    public void run() {
-      do {
-        synchronized (mAVMutex) {
-          do {
-            if (!mVideoList.isEmpty()) {
-              writeVideoFrame(mVideoList.poll());
-            }
-          } while (!mVideoList.isEmpty());
-
-          do {
-            if (!mAudioList.isEmpty()) {
-              AudioFrame frame = mAudioList.poll();
-              if (frame != null && frame.isValid()) {
-                encodeAudioData(frame.data, frame.size);
-              }
-            }
-          } while (!mAudioList.isEmpty());
-        }
+  // 当前会话的统计
+  public MuxerMetrics getMetrics() {
+    return mSession.getMetrics();
+  }
+
+  // 视频队列(积压帧数、丢帧数、丢弃字节数)
+  public FrameQueue getVideoQueue() {
+    return mSession.getVideoQueue();
+  }
 
+  // 音频队列(积压帧数、丢帧数、丢弃字节数)
+  public FrameQueue getAudioQueue() {
+    return mSession.getAudioQueue();
+  }
+
+  // 开始
+  public synchronized boolean start(String path) {
+    MuxerSession session = mSession;
+    if (session.getStatus() != MuxerSession.Status.unknown) {
+      session.stop();
+      // mp4v2只有一个全局句柄，需等上一个文件关闭；其他写入方式各自一个文件，不等待
+      long deadline = System.currentTimeMillis() + FINISH_WAIT_MS;
+      while (session.isUsingMp4v2() && !session.isFinished()
+              && System.currentTimeMillis() < deadline) {
         try {
-          synchronized (mWaitObject) {
-            mWaitObject.wait(WAIT_TIME);
-          }
+          Thread.sleep(10);
         } catch (InterruptedException e) {
-          e.printStackTrace();
+          Thread.currentThread().interrupt();
+          break;
         }
-
-      } while (mStatus != Status.stop);
-      destory();
+      }
+      session = createSession();
     }
+    PreRollBuffer preRoll = mPreRoll;
+    if (preRoll == null) {
+      if (!session.start(path, null)) {
+        return false;
+      }
+      mSession = session;
+      return true;
+    }
+    // 持有预录缓存的锁直到新会话发布: 生产线程此后加入预录缓存被拒绝时，读到的一定是新会话
+    synchronized (preRoll) {
+      if (!session.start(path, preRoll)) {
+        return false;
+      }
+      mSession = session;
+    }
+    return true;
   }
 
-  // 增加视频
-  public void addVideo(byte[] data, int size, final int width, final int height, int frameType) {
-    if (!VIDEO || mStatus == Status.stop) {
-      return;
+  // 结束(队列由工作线程清空)
+  public void stop() {
+    mSession.stop();
+  }
+
+  /**
+   * 借出视频帧，填充data/size/width/height/frameType后通过addVideo(MediaFrame)交回
+   *
+   * @param size : 需要的数据大小
+   */
+  public MediaFrame obtainVideoFrame(int size) {
+    return mFramePool.obtain(size);
+  }
+
+  /**
+   * 借出音频帧，填充data/size后通过addAudio(MediaFrame)交回
+   *
+   * @param size : 需要的数据大小
+   */
+  public MediaFrame obtainAudioFrame(int size) {
+    return mFramePool.obtain(size);
+  }
+
+  // 归还未使用的帧
+  public void recycleFrame(MediaFrame frame) {
+    mFramePool.recycle(frame);
+  }
+
+  /**
+   * 增加视频(旧接口)，数据复制到缓存池的帧，调用者可继续使用frame
+   *
+   * @deprecated 使用addVideo(MediaFrame)
+   */
+  @Deprecated
+  public void addVideo(VideoFrame frame) {
+    if (frame != null && frame.isValid()) {
+      addVideo(frame.data, frame.size, frame.width, frame.height, frame.frameType);
     }
+  }
 
-    synchronized (mAVMutex) {
-      VideoFrame frame = new VideoFrame();
-      frame.data = data;
-      frame.size = size;
-      frame.width = width;
-      frame.height = height;
-      frame.frameType = frameType;
-      mVideoList.add(frame);
+  /**
+   * 增加音频(旧接口)，同addVideo(VideoFrame)
+   *
+   * @deprecated 使用addAudio(MediaFrame)
+   */
+  @Deprecated
+  public void addAudio(AudioFrame frame) {
+    if (frame != null && frame.isValid()) {
+      addAudio(frame.data, frame.size);
     }
   }
 
-  // 增加音视频
-  public void addAudio(byte[] data, int size) {
-    if (!AUDIO || mStatus == Status.stop) {
+  // 增加视频(以当前时间为时间戳)
+  public void addVideo(byte[] data, int size, final int width, final int height, int frameType) {
+    addVideo(data, size, width, height, frameType, TimestampEngine.now());
+  }
+
+  /**
+   * 增加视频
+   *
+   * @param timeStampUs : 源时间戳(微秒)，如采集时间
+   */
+  public void addVideo(byte[] data, int size, final int width, final int height, int frameType,
+                       long timeStampUs) {
+    MuxerSession session = mSession;
+    if (session.isRecording() || mPreRoll == null) {
+      session.addVideo(data, size, width, height, frameType, timeStampUs);
       return;
     }
-
-    synchronized (mAVMutex) {
-      AudioFrame frame = new AudioFrame();
-      frame.data = data;
-      frame.size = size;
-      mAudioList.add(frame);
+    if (data == null || size <= 0) {
+      return;
     }
+
+    MediaFrame frame = mFramePool.obtain(size);
+    frame.set(data, 0, size);
+    frame.width = width;
+    frame.height = height;
+    frame.frameType = frameType;
+    frame.timeUs = timeStampUs;
+    addVideo(frame);
   }
 
-  // 编码音频数据
-  private void encodeAudioData(byte[] data, int size) {
-    if (mAudioMediaCodec == null || data == null || size <= 0) {
+  // 增加视频(帧归复用器所有，写入后回收)；只能在同一个线程调用
+  public void addVideo(MediaFrame frame) {
+    MuxerSession session = mSession;
+    PreRollBuffer preRoll = mPreRoll;
+    if (session.isRecording() || preRoll == null) {
+      session.addVideo(frame);
       return;
     }
 
-    // dequeueInputBuffer（time）需要传入一个时间值，-1表示一直等待，0表示不等待有可能会丢帧，其他表示等待多少毫秒
-    int inputIndex = mAudioMediaCodec.dequeueInputBuffer(-1);  // 获取输入缓存的index
-    if (inputIndex >= 0) {
-      ByteBuffer inputByteBuf = mAudioInputBufferArray[inputIndex];
-      inputByteBuf.clear();
-      inputByteBuf.put(data);  // 添加数据
-      inputByteBuf.limit(size);  // 限制ByteBuffer的访问长度
-      mAudioMediaCodec.queueInputBuffer(inputIndex, 0, size, 0, 0);
+    // 未录制时进入预录缓存；正在开始录制(flush)时被拒绝，送入新会话
+    if (frame.timeUs < 0) {
+      frame.timeUs = TimestampEngine.now();
     }
-
-    int outputIndex = mAudioMediaCodec.dequeueOutputBuffer(mOutputAudioInfo, 0);
-    if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-      MediaFormat format = mAudioMediaCodec.getOutputFormat();
+    if (!preRoll.addVideo(frame)) {
+      mSession.addVideo(frame);
     }
+  }
 
-    while (outputIndex >= 0) {
-      writeAudioFrame(outputIndex);
-      mAudioMediaCodec.releaseOutputBuffer(outputIndex, false);
-      outputIndex = mAudioMediaCodec.dequeueOutputBuffer(mOutputAudioInfo, 0);
-    }
+  // 增加音视频(以当前时间为时间戳)
+  public void addAudio(byte[] data, int size) {
+    addAudio(data, size, TimestampEngine.now(), -1);
   }
 
-  // 写入音频帧数据
-  private void writeAudioFrame(int outputIndex) {
-    if (outputIndex < 0) {
+  /**
+   * 增加音频(PCM)
+   *
+   * @param timeStampUs : 源时间戳(微秒)
+   * @param seq : 帧序号，用于检测丢帧，小于0表示无序号
+   */
+  public void addAudio(byte[] data, int size, long timeStampUs, int seq) {
+    MuxerSession session = mSession;
+    if (session.isRecording() || mPreRoll == null) {
+      session.addAudio(data, size, timeStampUs, seq);
+      return;
+    }
+    if (data == null || size <= 0) {
       return;
     }
 
-    // 获取缓存信息的长度
-    int byteBufSize = mOutputAudioInfo.size;
-    ByteBuffer buffer = mAudioOutputBufferArray[outputIndex];
-    buffer.position(mOutputAudioInfo.offset);
-    buffer.limit(mOutputAudioInfo.offset + mOutputAudioInfo.size);
-
-    long presentationTimeUs = System.nanoTime() / 1000 - mStartTime;
-    byte[] targetByte = new byte[mOutputAudioInfo.size];
-    buffer.get(targetByte, 0, byteBufSize);
-    buffer.position(mOutputAudioInfo.offset);
-    mOutputAudioInfo.presentationTimeUs = presentationTimeUs;
-    CMp4V2.writeAudio(targetByte, mOutputAudioInfo.size);
+    MediaFrame frame = mFramePool.obtain(size);
+    frame.set(data, 0, size);
+    frame.timeUs = timeStampUs;
+    frame.seq = seq;
+    addAudio(frame);
   }
 
-  // 写入视频帧数据
-  private void writeVideoFrame(VideoFrame frame) {
-    if (frame != null && frame.isValid()) {
-      CMp4V2.writeVideo(frame.data, frame.size, frame.width,
-              frame.height, frame.frameType == KEY_FRAME);
+  // 增加音频(帧归复用器所有，写入后回收)；只能在同一个线程调用
+  public void addAudio(MediaFrame frame) {
+    MuxerSession session = mSession;
+    PreRollBuffer preRoll = mPreRoll;
+    if (session.isRecording() || preRoll == null) {
+      session.addAudio(frame);
+      return;
+    }
+
+    if (frame.timeUs < 0) {
+      frame.timeUs = TimestampEngine.now();
+    }
+    if (!preRoll.addAudio(frame)) {
+      mSession.addAudio(frame);
     }
   }
 }
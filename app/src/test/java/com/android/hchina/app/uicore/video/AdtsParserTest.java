@@ -0,0 +1,180 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AdtsParser测试 - 单块帧、有CRC的多块帧拆分、无CRC的多块帧跳过计数、末尾不完整的帧
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class AdtsParserTest {
+  private static final int SAMPLE_RATE_INDEX = 4;  // 44100
+  private static final int CHANNEL_COUNT = 2;
+
+  private final AdtsParser mParser = new AdtsParser();
+
+  // 生成ADTS帧(AAC LC)，多块且有CRC时写入各块位置，每块后面加2字节CRC
+  static byte[] adts(boolean crc, byte[]... blocks) {
+    int header = AdtsParser.HEADER_SIZE;
+    if (crc) {
+      header += 2 * (blocks.length - 1) + AdtsParser.CRC_SIZE;
+    }
+    int length = header;
+    for (byte[] block : blocks) {
+      length += block.length + (crc && blocks.length > 1 ? AdtsParser.CRC_SIZE : 0);
+    }
+    byte[] frame = new byte[length];
+    frame[0] = (byte) 0xFF;
+    frame[1] = (byte) (crc ? 0xF0 : 0xF1);
+    frame[2] = (byte) ((1 << 6) | (SAMPLE_RATE_INDEX << 2) | (CHANNEL_COUNT >> 2));
+    frame[3] = (byte) (((CHANNEL_COUNT & 3) << 6) | (length >> 11));
+    frame[4] = (byte) (length >> 3);
+    frame[5] = (byte) (((length & 7) << 5) | 0x1F);
+    frame[6] = (byte) (0xFC | (blocks.length - 1));
+    int pos = header;
+    for (int i = 0; i < blocks.length; i++) {
+      if (crc && i > 0) {
+        int position = pos - header;
+        frame[AdtsParser.HEADER_SIZE + 2 * (i - 1)] = (byte) (position >> 8);
+        frame[AdtsParser.HEADER_SIZE + 2 * (i - 1) + 1] = (byte) position;
+      }
+      System.arraycopy(blocks[i], 0, frame, pos, blocks[i].length);
+      pos += blocks[i].length + (crc && blocks.length > 1 ? AdtsParser.CRC_SIZE : 0);
+    }
+    return frame;
+  }
+
+  static byte[] block(int value, int size) {
+    byte[] block = new byte[size];
+    for (int i = 0; i < size; i++) {
+      block[i] = (byte) (value + i);
+    }
+    return block;
+  }
+
+  static byte[] concat(byte[]... parts) {
+    int length = 0;
+    for (byte[] part : parts) {
+      length += part.length;
+    }
+    byte[] data = new byte[length];
+    int pos = 0;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, data, pos, part.length);
+      pos += part.length;
+    }
+    return data;
+  }
+
+  private void assertBlock(byte[] data, byte[] expected) {
+    assertEquals(expected.length, mParser.getLength());
+    byte[] actual = new byte[mParser.getLength()];
+    System.arraycopy(data, mParser.getOffset(), actual, 0, actual.length);
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void singleBlockFrames() {
+    byte[] a = block(1, 100);
+    byte[] b = block(2, 120);
+    // 有CRC的单块帧只去掉帧头的CRC
+    byte[] data = concat(new byte[] {0, 0x12}, adts(false, a), adts(true, b));
+    mParser.reset(data, 0, data.length);
+    assertTrue(mParser.next());
+    assertTrue(mParser.isFrameStart());
+    assertBlock(data, a);
+    assertEquals(44100, mParser.getSampleRate());
+    assertEquals(CHANNEL_COUNT, mParser.getChannelCount());
+    assertArrayEquals(new byte[] {0x12, 0x10}, mParser.getConfig());
+    assertTrue(mParser.next());
+    assertBlock(data, b);
+    assertFalse(mParser.next());
+    assertEquals(data.length, mParser.getPosition());
+    assertEquals(0, mParser.getRejectedFrames());
+  }
+
+  @Test
+  public void multiBlockWithCrcSplit() {
+    byte[] a = block(1, 50);
+    byte[] b = block(2, 60);
+    byte[] c = block(3, 70);
+    byte[] d = block(4, 80);
+    byte[] data = concat(adts(true, a, b, c), adts(false, d));
+    mParser.reset(ByteBuffer.wrap(data));
+    assertTrue(mParser.next());
+    assertTrue(mParser.isFrameStart());
+    assertBlock(data, a);
+    assertEquals(AdtsParser.SAMPLES_PER_BLOCK, mParser.getSamples());
+    assertTrue(mParser.next());
+    assertFalse(mParser.isFrameStart());
+    assertBlock(data, b);
+    assertTrue(mParser.next());
+    assertFalse(mParser.isFrameStart());
+    assertBlock(data, c);
+    assertTrue(mParser.next());
+    assertTrue(mParser.isFrameStart());
+    assertBlock(data, d);
+    assertFalse(mParser.next());
+    assertEquals(0, mParser.getRejectedFrames());
+  }
+
+  // 没有CRC的多块帧没有块位置，整帧跳过并计数
+  @Test
+  public void multiBlockWithoutCrcRejected() {
+    byte[] a = block(1, 50);
+    byte[] b = block(2, 60);
+    byte[] rejected = adts(false, block(5, 40), block(6, 40));
+    byte[] data = concat(adts(false, a), rejected, adts(false, b));
+    mParser.reset(data, 0, data.length);
+    assertTrue(mParser.next());
+    assertBlock(data, a);
+    assertTrue(mParser.next());
+    assertBlock(data, b);
+    assertFalse(mParser.next());
+    assertEquals(1, mParser.getRejectedFrames());
+    assertEquals(rejected.length, mParser.getRejectedBytes());
+  }
+
+  // 块位置超出帧: 跳过该帧剩余的块
+  @Test
+  public void multiBlockBadPositionRejected() {
+    byte[] frame = adts(true, block(1, 50), block(2, 60));
+    frame[AdtsParser.HEADER_SIZE] = 0x7F;
+    byte[] b = block(3, 30);
+    byte[] data = concat(frame, adts(false, b));
+    mParser.reset(data, 0, data.length);
+    assertTrue(mParser.next());
+    assertBlock(data, b);
+    assertFalse(mParser.next());
+    assertEquals(1, mParser.getRejectedFrames());
+  }
+
+  // 末尾不完整的帧不返回，位置停在该帧开始处
+  @Test
+  public void partialFrameAtEnd() {
+    byte[] a = adts(false, block(1, 50));
+    byte[] b = adts(false, block(2, 60));
+    byte[] data = concat(a, b);
+    for (int cut = 1; cut < b.length; cut++) {
+      mParser.reset(data, 0, data.length - cut);
+      assertTrue(mParser.next());
+      assertFalse(mParser.next());
+      assertEquals(a.length, mParser.getPosition());
+    }
+    // 接上剩余部分后从该帧继续
+    mParser.reset(data, a.length, b.length);
+    assertTrue(mParser.next());
+    assertBlock(data, block(2, 60));
+  }
+}
@@ -0,0 +1,145 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AvccConverter/AvcConfig测试 - 参数集剥离、id相同时替换、中途变化后转为in-band
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class AvccConverterTest {
+  // seq_parameter_set_id = 0，640x480
+  static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x02, (byte) 0x80,
+          (byte) 0xf6, (byte) 0x84};
+  // seq_parameter_set_id = 0，内容不同(1280x720)
+  static final byte[] SPS_CHANGED = {0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40,
+          0x16, (byte) 0xe8, 0x40};
+  // seq_parameter_set_id = 1
+  static final byte[] SPS_ID1 = {0x67, 0x42, (byte) 0xc0, 0x1f, 0x5a, 0x02, (byte) 0x80};
+  // pic_parameter_set_id = 0
+  static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+  static final byte[] PPS_CHANGED = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+  static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x21, 0x43};
+  static final byte[] SLICE = {0x41, (byte) 0x9a, 0x02, 0x04};
+  static final byte[] AUD = {0x09, (byte) 0xf0};
+
+  private final AvcConfig mConfig = new AvcConfig();
+  private final AvccConverter mConverter = new AvccConverter(mConfig);
+
+  @Test
+  public void sameIdReplaces() {
+    assertTrue(mConfig.add(NalScanner.NAL_SPS, SPS, 0, SPS.length));
+    assertFalse(mConfig.add(NalScanner.NAL_SPS, SPS, 0, SPS.length));
+    assertTrue(mConfig.add(NalScanner.NAL_SPS, SPS_CHANGED, 0, SPS_CHANGED.length));
+    assertEquals(1, mConfig.getSpsList().size());
+    assertArrayEquals(SPS_CHANGED, mConfig.getSps());
+    assertTrue(mConfig.add(NalScanner.NAL_SPS, SPS_ID1, 0, SPS_ID1.length));
+    assertEquals(2, mConfig.getSpsList().size());
+
+    assertTrue(mConfig.add(NalScanner.NAL_PPS, PPS, 0, PPS.length));
+    assertTrue(mConfig.add(NalScanner.NAL_PPS, PPS_CHANGED, 0, PPS_CHANGED.length));
+    assertEquals(1, mConfig.getPpsList().size());
+  }
+
+  @Test
+  public void sizeFromSps() {
+    mConfig.add(NalScanner.NAL_SPS, SPS, 0, SPS.length);
+    assertEquals(640, mConfig.getWidth());
+    assertEquals(480, mConfig.getHeight());
+    // 替换后重新解析
+    mConfig.add(NalScanner.NAL_SPS, SPS_CHANGED, 0, SPS_CHANGED.length);
+    assertEquals(1280, mConfig.getWidth());
+    assertEquals(720, mConfig.getHeight());
+  }
+
+  @Test
+  public void avcC() {
+    mConfig.add(NalScanner.NAL_SPS, SPS, 0, SPS.length);
+    assertEquals(null, mConfig.getAvcC());
+    mConfig.add(NalScanner.NAL_PPS, PPS, 0, PPS.length);
+    byte[] avcC = mConfig.getAvcC();
+    assertEquals(1, avcC[0]);
+    assertEquals(SPS[1], avcC[1]);
+    assertEquals(SPS[3], avcC[3]);
+    assertEquals(0xE1, avcC[5] & 0xff);
+    assertEquals(SPS.length, ((avcC[6] & 0xff) << 8) | (avcC[7] & 0xff));
+    assertArrayEquals(SPS, Arrays.copyOfRange(avcC, 8, 8 + SPS.length));
+    assertEquals(1, avcC[8 + SPS.length]);
+  }
+
+  // 关键帧中的SPS/PPS和AUD剥离，4字节起始码原地改为长度
+  @Test
+  public void stripsParameterSets() {
+    byte[] frame = StreamGenerator.annexB(AUD, SPS, PPS, IDR);
+    int size = mConverter.convert(frame, 0, frame.length);
+    assertEquals(4 + IDR.length, size);
+    assertTrue(mConverter.isConfigChanged());
+    assertFalse(mConverter.isInBand());
+    assertTrue(mConfig.isReady());
+    assertEquals(1, mConverter.getSegmentCount());
+    assertFalse(mConverter.needHeader(0));
+    int offset = mConverter.getSegmentOffset(0);
+    assertEquals(IDR.length, frame[offset + 3]);
+    assertEquals(IDR[0], frame[offset + 4]);
+
+    // 重复的参数集不算变化
+    frame = StreamGenerator.annexB(SPS, PPS, IDR);
+    assertEquals(4 + IDR.length, mConverter.convert(frame, 0, frame.length));
+    assertFalse(mConverter.isConfigChanged());
+    assertFalse(mConverter.isInBand());
+  }
+
+  // 已就绪后参数集变化(id相同): 替换并从这一帧起保留在样本中
+  @Test
+  public void changeMidStreamGoesInBand() {
+    byte[] frame = StreamGenerator.annexB(SPS, PPS, IDR);
+    mConverter.convert(frame, 0, frame.length);
+    frame = StreamGenerator.annexB(SLICE);
+    assertEquals(4 + SLICE.length, mConverter.convert(frame, 0, frame.length));
+
+    frame = StreamGenerator.annexB(SPS_CHANGED, PPS, IDR);
+    int size = mConverter.convert(frame, 0, frame.length);
+    assertTrue(mConverter.isConfigChanged());
+    assertTrue(mConverter.isInBand());
+    assertEquals(12 + SPS_CHANGED.length + PPS.length + IDR.length, size);
+    assertEquals(1, mConfig.getSpsList().size());
+    assertArrayEquals(SPS_CHANGED, mConfig.getSps());
+
+    // 之后的帧仍带参数集
+    frame = StreamGenerator.annexB(SPS_CHANGED, PPS, IDR);
+    size = mConverter.convert(frame, 0, frame.length);
+    assertFalse(mConverter.isConfigChanged());
+    assertEquals(12 + SPS_CHANGED.length + PPS.length + IDR.length, size);
+  }
+
+  // 3字节起始码和不允许原地改写时都需要外部长度头
+  @Test
+  public void externalHeaders() {
+    mConverter.setInPlace(false);
+    byte[] frame = StreamGenerator.annexB(SPS, PPS, IDR);
+    byte[] copy = frame.clone();
+    assertEquals(4 + IDR.length, mConverter.convert(frame, 0, frame.length));
+    assertArrayEquals(copy, frame);
+    assertEquals(1, mConverter.getSegmentCount());
+    assertTrue(mConverter.needHeader(0));
+    assertEquals(IDR.length, mConverter.getSegmentLength(0));
+
+    mConverter.setInPlace(true);
+    byte[] shortCode = {0, 0, 1, 0x65, 0x11, 0x22, 0, 0, 1, 0x41, 0x33};
+    assertEquals(4 + 3 + 4 + 2, mConverter.convert(shortCode, 0, shortCode.length));
+    assertEquals(2, mConverter.getSegmentCount());
+    assertTrue(mConverter.needHeader(0));
+    assertTrue(mConverter.needHeader(1));
+  }
+}
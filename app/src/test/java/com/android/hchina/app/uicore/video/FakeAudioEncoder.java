@@ -0,0 +1,156 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 模拟音频编码 - 不依赖MediaCodec，在JVM上代替AacEncoder
+ *
+ * 只支持同步模式：每积累1024个采样输出一帧固定大小的AAC(内容无意义)，
+ * 显示时间与AacEncoder相同，由TimestampEngine按采样数计算；finish时剩余不足一帧的采样也输出一帧。
+ * setBusy模拟输入缓存没有空闲，encode返回false；setDeferFinish模拟回调模式，finish后由completeFinish输出EOS。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-22
+ */
+public class FakeAudioEncoder implements AudioEncoder {
+  private static final int AAC_FRAME_SIZE = 1024;
+  private static final int AAC_PROFILE_LC = 2;
+
+  public static final AudioEncoder.Factory FACTORY = new AudioEncoder.Factory() {
+    @Override
+    public AudioEncoder create(FramePool pool, TimestampEngine timestamps, Listener listener) {
+      return new FakeAudioEncoder(timestamps, listener);
+    }
+  };
+
+  private final TimestampEngine mTimestamps;
+  private final Listener mListener;
+  private MuxerMetrics mMetrics;
+  private int mSampleRate;
+  private int mChannelCount;
+  private byte[] mOutput;
+  // 未输出的采样数及其起始时间
+  private int mPendingSamples;
+  private long mPendingPts;
+  private long mFrames;
+  private boolean mFinished;
+  private boolean mDeferFinish;
+  private int mBusyCalls;
+  private long mRejected;
+
+  public FakeAudioEncoder(TimestampEngine timestamps, Listener listener) {
+    mTimestamps = timestamps;
+    mListener = listener;
+  }
+
+  @Override
+  public void setMetrics(MuxerMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  @Override
+  public boolean start(AudioConfig config, FrameQueue input, boolean async) {
+    mSampleRate = config.getSampleRate();
+    mChannelCount = config.getChannelCount();
+    mOutput = new byte[Math.max(config.getBitRate() / 8 * AAC_FRAME_SIZE / mSampleRate, 8)];
+    for (int i = 0; i < mOutput.length; i++) {
+      mOutput[i] = (byte) (i + 1);
+    }
+    mPendingSamples = 0;
+    mFrames = 0;
+    mFinished = false;
+    mListener.onAudioConfig(
+            Mp4Track.createAudioConfig(AAC_PROFILE_LC, mSampleRate, mChannelCount));
+    return true;
+  }
+
+  @Override
+  public boolean isAsync() {
+    return false;
+  }
+
+  @Override
+  public void signal() {
+  }
+
+  // 之后calls次encode不接收输入
+  public void setBusy(int calls) {
+    mBusyCalls = calls;
+  }
+
+  // 因输入缓存没有空闲而未接收的次数
+  public long getRejectedCount() {
+    return mRejected;
+  }
+
+  @Override
+  public boolean encode(MediaFrame frame) {
+    if (mOutput == null || !frame.isValid()) {
+      return true;
+    }
+    if (mBusyCalls > 0) {
+      mBusyCalls--;
+      mRejected++;
+      return false;
+    }
+
+    long startNs = System.nanoTime();
+    int samples = frame.size / (2 * mChannelCount);
+    long pts = mTimestamps.audioTime(frame.timeUs, samples, frame.seq);
+    if (mPendingSamples == 0) {
+      mPendingPts = pts;
+    }
+    mPendingSamples += samples;
+    while (mPendingSamples >= AAC_FRAME_SIZE) {
+      mListener.onAudioFrame(ByteBuffer.wrap(mOutput), mPendingPts, frame.queuedNs);
+      mPendingPts += AAC_FRAME_SIZE * 1000000L / mSampleRate;
+      mPendingSamples -= AAC_FRAME_SIZE;
+      mFrames++;
+    }
+    if (mMetrics != null) {
+      mMetrics.getEncodeTime().record((System.nanoTime() - startNs) / 1000);
+    }
+    return true;
+  }
+
+  // finish时只输出剩余数据，之后调用completeFinish才结束
+  public void setDeferFinish(boolean defer) {
+    mDeferFinish = defer;
+  }
+
+  @Override
+  public void finish() {
+    if (mOutput != null && mPendingSamples > 0) {
+      mListener.onAudioFrame(ByteBuffer.wrap(mOutput), mPendingPts, 0);
+      mPendingSamples = 0;
+      mFrames++;
+    }
+    if (!mDeferFinish) {
+      completeFinish();
+    }
+  }
+
+  // 输出EOS(模拟编码线程回调)
+  public void completeFinish() {
+    mFinished = true;
+    mListener.onAudioFinished();
+  }
+
+  @Override
+  public boolean isFinished() {
+    return mFinished;
+  }
+
+  // 已输出的AAC帧数
+  public long getFrameCount() {
+    return mFrames;
+  }
+
+  @Override
+  public void release() {
+    mOutput = null;
+  }
+}
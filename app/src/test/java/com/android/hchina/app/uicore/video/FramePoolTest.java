@@ -0,0 +1,72 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FramePool测试 - 按尺寸等级复用、容量随队列增大
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class FramePoolTest {
+
+  @Test
+  public void reusesBySizeClass() {
+    FramePool pool = new FramePool(4);
+    MediaFrame frame = pool.obtain(3000);
+    assertEquals(4096, frame.capacity());
+    frame.size = 3000;
+    frame.timeUs = 1;
+    pool.recycle(frame);
+
+    MediaFrame again = pool.obtain(4096);
+    assertSame(frame, again);
+    assertEquals(0, again.size);
+    assertEquals(-1, again.timeUs);
+    assertNotSame(frame, pool.obtain(3000));
+    assertEquals(8192, pool.obtain(4097).capacity());
+    assertEquals(1024, pool.obtain(1).capacity());
+  }
+
+  // 超过4MB的帧不缓存
+  @Test
+  public void oversized() {
+    FramePool pool = new FramePool(4);
+    MediaFrame frame = pool.obtain(5 * 1024 * 1024);
+    assertEquals(5 * 1024 * 1024, frame.capacity());
+    pool.recycle(frame);
+    assertNotSame(frame, pool.obtain(5 * 1024 * 1024));
+  }
+
+  // 归还超过上限的帧被丢弃；增大容量后全部保留，已缓存的帧不丢失
+  @Test
+  public void ensureCapacity() {
+    FramePool pool = new FramePool(4);
+    List<MediaFrame> frames = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      frames.add(pool.obtain(2000));
+    }
+    pool.recycle(frames.get(0));
+    pool.ensureCapacity(16);
+    assertEquals(16, pool.getCapacity());
+    pool.ensureCapacity(8);
+    assertEquals(16, pool.getCapacity());
+    for (int i = 1; i < 16; i++) {
+      pool.recycle(frames.get(i));
+    }
+    for (int i = 0; i < 16; i++) {
+      assertTrue(frames.contains(pool.obtain(2000)));
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * GopIndex测试 - 查找边界、乱序记录、不完整的索引，以及Mp4Writer写出的索引指向关键帧
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class GopIndexTest {
+  private static final long GOP_US = 2000000;
+  private static final long FIRST_US = 500000;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private String newPath(String name) {
+    return new File(mFolder.getRoot(), name).getPath();
+  }
+
+  // count条记录，时间FIRST_US + i * GOP_US
+  private String createIndex(String name, int count) throws IOException {
+    String path = newPath(name);
+    GopIndex index = GopIndex.create(path);
+    for (int i = 0; i < count; i++) {
+      index.add(FIRST_US + i * GOP_US, 1000 + i * 100, 900 + i * 100, i * 50, i * 86);
+    }
+    index.close();
+    return path;
+  }
+
+  @Test
+  public void findBoundaries() throws IOException {
+    // 超过写缓存，中途写出多次
+    int count = 1000;
+    GopIndex index = GopIndex.open(createIndex("find.gop", count));
+    assertEquals(count, index.getCount());
+    // 第一个关键帧之前
+    assertEquals(0, index.find(0));
+    assertEquals(0, index.find(Long.MIN_VALUE));
+    assertEquals(0, index.find(FIRST_US));
+    // 两条之间取前一条，等于时取这一条
+    assertEquals(0, index.find(FIRST_US + GOP_US - 1));
+    assertEquals(1, index.find(FIRST_US + GOP_US));
+    assertEquals(499, index.find(FIRST_US + 500 * GOP_US - 1));
+    // 最后一个关键帧之后
+    long last = FIRST_US + (count - 1) * GOP_US;
+    assertEquals(count - 1, index.find(last));
+    assertEquals(count - 1, index.find(last + GOP_US * 10));
+    assertEquals(count - 1, index.find(Long.MAX_VALUE));
+
+    assertEquals(last, index.getTimeUs(count - 1));
+    assertEquals(1000 + 7 * 100, index.getVideoOffset(7));
+    assertEquals(900 + 7 * 100, index.getAudioOffset(7));
+    assertEquals(7 * 50, index.getVideoSample(7));
+    assertEquals(7 * 86, index.getAudioSample(7));
+    index.close();
+  }
+
+  // 没有记录时返回-1，只有一条时总是返回0
+  @Test
+  public void emptyAndSingle() throws IOException {
+    GopIndex index = GopIndex.open(createIndex("empty.gop", 0));
+    assertEquals(0, index.getCount());
+    assertEquals(-1, index.find(FIRST_US));
+    index.close();
+
+    index = GopIndex.open(createIndex("single.gop", 1));
+    assertEquals(0, index.find(0));
+    assertEquals(0, index.find(FIRST_US * 100));
+    index.close();
+  }
+
+  // 时间戳不大于上一条的记录忽略
+  @Test
+  public void outOfOrderIgnored() throws IOException {
+    String path = newPath("order.gop");
+    GopIndex writer = GopIndex.create(path);
+    writer.add(1000, 1, -1, 0, -1);
+    writer.add(1000, 2, -1, 1, -1);
+    writer.add(500, 3, -1, 2, -1);
+    writer.add(3000, 4, -1, 3, -1);
+    writer.close();
+
+    GopIndex index = GopIndex.open(path);
+    assertEquals(2, index.getCount());
+    assertEquals(1, index.getVideoOffset(index.find(2999)));
+    assertEquals(4, index.getVideoOffset(index.find(3000)));
+    index.close();
+  }
+
+  // 异常退出时末尾不完整的记录忽略；格式不对时抛出异常
+  @Test
+  public void truncatedAndInvalid() throws IOException {
+    String path = createIndex("truncated.gop", 10);
+    RandomAccessFile file = new RandomAccessFile(path, "rw");
+    file.setLength(file.length() - 5);
+    file.close();
+    GopIndex index = GopIndex.open(path);
+    assertEquals(9, index.getCount());
+    assertEquals(8, index.find(Long.MAX_VALUE));
+    index.close();
+
+    file = new RandomAccessFile(path, "rw");
+    file.writeInt(0);
+    file.close();
+    try {
+      GopIndex.open(path);
+      fail("bad magic accepted");
+    } catch (IOException e) {
+      // 预期
+    }
+  }
+
+  private static byte[] read(String path, long position, int length) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      byte[] data = new byte[length];
+      file.seek(position);
+      file.readFully(data);
+      return data;
+    } finally {
+      file.close();
+    }
+  }
+
+  private static void record(Mp4Writer writer, String path, StreamGenerator stream, int frames) {
+    writer.setGopIndex(true);
+    assertTrue(writer.open(path));
+    assertEquals(frames, stream.write(writer, 0, frames, false));
+    writer.close();
+  }
+
+  // Mp4Writer写出的索引: 每个关键帧一条，偏移处是IDR样本
+  @Test
+  public void writerIndexPointsToKeyFrames() throws IOException {
+    StreamGenerator stream = StreamGenerator.create("480p");
+    String path = newPath("index.mp4");
+    record(new Mp4Writer(), path, stream, 260);
+
+    GopIndex index = GopIndex.open(GopIndex.getPath(path));
+    assertEquals(6, index.getCount());
+    for (int i = 0; i < index.getCount(); i++) {
+      assertEquals(stream.getVideoTimeUs(i * 50), index.getTimeUs(i));
+      assertEquals(i * 50, index.getVideoSample(i));
+      byte[] sample = read(path, index.getVideoOffset(i), 5);
+      assertEquals(NalScanner.NAL_IDR, sample[4] & 0x1f);
+      assertTrue(index.getAudioOffset(i) < index.getVideoOffset(i));
+    }
+    // 第一个关键帧之前没有音频
+    assertEquals(-1, index.getAudioSample(0));
+    assertEquals(index.getCount() - 1, index.find(stream.getVideoTimeUs(259)));
+    assertEquals(2, index.find(stream.getVideoTimeUs(149)));
+    index.close();
+  }
+
+  // 分片模式每个分片一条，偏移处是moof，样本序号为-1
+  @Test
+  public void fragmentedIndexPointsToMoof() throws IOException {
+    StreamGenerator stream = StreamGenerator.create("480p");
+    String path = newPath("fragmented.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    writer.setFragmented(2000);
+    record(writer, path, stream, 260);
+
+    GopIndex index = GopIndex.open(GopIndex.getPath(path));
+    assertTrue(index.getCount() > 1);
+    for (int i = 0; i < index.getCount(); i++) {
+      assertEquals("moof", new String(read(path, index.getVideoOffset(i) + 4, 4), "US-ASCII"));
+      assertEquals(-1, index.getVideoSample(i));
+    }
+    index.close();
+  }
+}
@@ -0,0 +1,50 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 手动执行的后台任务 - 任务先排队，由测试线程调用runPending()执行，结果可重复
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-22
+ */
+public class ManualExecutor implements Executor {
+  private final List<Runnable> mTasks = new ArrayList<>();
+  private int mExecuted;
+
+  @Override
+  public synchronized void execute(Runnable task) {
+    mTasks.add(task);
+  }
+
+  // 执行已排队的任务(执行期间新加入的任务也会执行)
+  public int runPending() {
+    int count = 0;
+    Runnable task;
+    while ((task = poll()) != null) {
+      task.run();
+      count++;
+    }
+    synchronized (this) {
+      mExecuted += count;
+    }
+    return count;
+  }
+
+  private synchronized Runnable poll() {
+    return mTasks.isEmpty() ? null : mTasks.remove(0);
+  }
+
+  public synchronized int getPendingCount() {
+    return mTasks.size();
+  }
+
+  public synchronized int getExecutedCount() {
+    return mExecuted;
+  }
+}
@@ -0,0 +1,238 @@
+package com.android.hchina.app.uicore.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 内存输出 - 不写文件，只记录写入的帧数、字节数和时间戳，用于在JVM上检查复用结果
+ *
+ * 可设置每次写入的延迟(模拟慢存储)和第几次写入开始失败(模拟存储错误)。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-22
+ */
+public class MemoryOutput implements Mp4Output {
+
+  // 创建内存输出并保留，按创建顺序(分段顺序)取回
+  public static class Factory implements Mp4Output.Factory {
+    private final List<MemoryOutput> mOutputs = new ArrayList<>();
+    private long mWriteDelayUs;
+    private long mFailAfter = -1;
+
+    // 每次写入的延迟(微秒)
+    public Factory setWriteDelay(long delayUs) {
+      mWriteDelayUs = delayUs;
+      return this;
+    }
+
+    // 第count次写入起返回失败，小于0表示不失败
+    public Factory setFailAfter(long count) {
+      mFailAfter = count;
+      return this;
+    }
+
+    @Override
+    public synchronized Mp4Output create() {
+      MemoryOutput output = new MemoryOutput();
+      output.mWriteDelayUs = mWriteDelayUs;
+      output.mFailAfter = mFailAfter;
+      mOutputs.add(output);
+      return output;
+    }
+
+    public synchronized List<MemoryOutput> getOutputs() {
+      return new ArrayList<>(mOutputs);
+    }
+  }
+
+  private long mWriteDelayUs;
+  private long mFailAfter = -1;
+  private long mWrites;
+
+  private volatile String mPath;
+  private volatile boolean mClosed;
+  private int mSampleRate;
+  private int mChannelCount;
+  private byte[] mAudioConfig;
+  private int mWidth;
+  private int mHeight;
+
+  private long mVideoFrames;
+  private long mKeyFrames;
+  private long mVideoBytes;
+  private long mFirstVideoUs = -1;
+  private long mLastVideoUs = -1;
+  private long mAudioFrames;
+  private long mAudioBytes;
+  private long mFirstAudioUs = -1;
+  private long mLastAudioUs = -1;
+  // 时间戳不递增的次数
+  private long mVideoDisorder;
+  private long mAudioDisorder;
+  // 第一帧视频是否为关键帧
+  private boolean mStartsWithKeyFrame;
+
+  @Override
+  public boolean open(String path) {
+    mPath = path;
+    return true;
+  }
+
+  @Override
+  public void setAudioFormat(int sampleRate, int channelCount, byte[] config) {
+    mSampleRate = sampleRate;
+    mChannelCount = channelCount;
+    if (config != null) {
+      mAudioConfig = config;
+    }
+  }
+
+  @Override
+  public int writeVideo(byte[] data, int offset, int size, int width, int height,
+                        boolean keyFrame, long timeUs) {
+    if (!beginWrite()) {
+      return -1;
+    }
+    if (mVideoFrames == 0) {
+      mStartsWithKeyFrame = keyFrame;
+      mFirstVideoUs = timeUs;
+    } else if (timeUs <= mLastVideoUs) {
+      mVideoDisorder++;
+    }
+    mLastVideoUs = timeUs;
+    mWidth = width;
+    mHeight = height;
+    mVideoFrames++;
+    mVideoBytes += size;
+    if (keyFrame) {
+      mKeyFrames++;
+    }
+    return size;
+  }
+
+  @Override
+  public int writeAudio(byte[] data, int offset, int size, long timeUs) {
+    if (!beginWrite()) {
+      return -1;
+    }
+    if (mAudioFrames == 0) {
+      mFirstAudioUs = timeUs;
+    } else if (timeUs <= mLastAudioUs) {
+      mAudioDisorder++;
+    }
+    mLastAudioUs = timeUs;
+    mAudioFrames++;
+    mAudioBytes += size;
+    return size;
+  }
+
+  // 关闭后或注入失败时返回false
+  private boolean beginWrite() {
+    if (mClosed || mPath == null) {
+      return false;
+    }
+    mWrites++;
+    if (mFailAfter >= 0 && mWrites > mFailAfter) {
+      return false;
+    }
+    if (mWriteDelayUs > 0) {
+      try {
+        Thread.sleep(mWriteDelayUs / 1000, (int) (mWriteDelayUs % 1000) * 1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    mClosed = true;
+  }
+
+  public String getPath() {
+    return mPath;
+  }
+
+  public boolean isClosed() {
+    return mClosed;
+  }
+
+  public int getSampleRate() {
+    return mSampleRate;
+  }
+
+  public int getChannelCount() {
+    return mChannelCount;
+  }
+
+  public byte[] getAudioConfig() {
+    return mAudioConfig;
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  public long getVideoFrames() {
+    return mVideoFrames;
+  }
+
+  public long getKeyFrames() {
+    return mKeyFrames;
+  }
+
+  public long getVideoBytes() {
+    return mVideoBytes;
+  }
+
+  public long getAudioFrames() {
+    return mAudioFrames;
+  }
+
+  public long getAudioBytes() {
+    return mAudioBytes;
+  }
+
+  public long getFirstVideoUs() {
+    return mFirstVideoUs;
+  }
+
+  public long getLastVideoUs() {
+    return mLastVideoUs;
+  }
+
+  public long getFirstAudioUs() {
+    return mFirstAudioUs;
+  }
+
+  public long getLastAudioUs() {
+    return mLastAudioUs;
+  }
+
+  public long getVideoDisorder() {
+    return mVideoDisorder;
+  }
+
+  public long getAudioDisorder() {
+    return mAudioDisorder;
+  }
+
+  public boolean startsWithKeyFrame() {
+    return mStartsWithKeyFrame;
+  }
+
+  @Override
+  public String toString() {
+    return mPath + ": video " + mVideoFrames + " (" + mKeyFrames + " key, " + mVideoBytes
+            + " bytes, " + mFirstVideoUs + ".." + mLastVideoUs + "us), audio " + mAudioFrames
+            + " (" + mAudioBytes + " bytes, " + mFirstAudioUs + ".." + mLastAudioUs + "us)";
+  }
+}
@@ -0,0 +1,465 @@
+package com.android.hchina.app.uicore.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MP4结构检查 - 测试用，不经过Mp4Reader，按字节逐个解析box
+ *
+ * 检查box长度嵌套正确并覆盖整个文件；按样本表(stts/stss/stsc/stsz/stco/co64)或分片(moof/traf/trun)
+ * 算出每个样本的字节范围，要求都落在mdat内且互不重叠；统计各轨道的样本数、关键帧数和时长。
+ * 结构错误时抛出AssertionError。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class Mp4BoxChecker {
+  private static final List<String> CONTAINERS = Arrays.asList(
+          "moov", "trak", "mdia", "minf", "stbl", "dinf", "edts", "mvex", "moof", "traf");
+  // sample_is_non_sync_sample
+  private static final int FLAG_NON_SYNC = 0x10000;
+
+  // 单个轨道
+  public static class Track {
+    private int mTrackId;
+    private String mHandler;
+    private int mTimescale;
+    private String mSampleEntry;
+    private int mSamples;
+    private int mSyncSamples;
+    private long mDuration;
+    private long mBaseTime = -1;
+    // 样本表
+    private long[] mDeltas;
+    private int[] mSyncs;
+    private int[] mChunks;
+    private int[] mSizes;
+    private long[] mOffsets;
+    // trex默认值
+    private int mDefaultDuration;
+    private int mDefaultSize;
+    private int mDefaultFlags;
+
+    public int getTrackId() {
+      return mTrackId;
+    }
+
+    // vide / soun
+    public String getHandler() {
+      return mHandler;
+    }
+
+    public int getTimescale() {
+      return mTimescale;
+    }
+
+    // avc1 / avc3 / mp4a
+    public String getSampleEntry() {
+      return mSampleEntry;
+    }
+
+    public int getSampleCount() {
+      return mSamples;
+    }
+
+    public int getSyncSampleCount() {
+      return mSyncSamples;
+    }
+
+    public long getDuration() {
+      return mDuration;
+    }
+
+    public long getDurationUs() {
+      return mTimescale > 0 ? mDuration * 1000000L / mTimescale : 0;
+    }
+
+    // 第一个分片的tfdt，非分片文件为-1
+    public long getBaseTime() {
+      return mBaseTime;
+    }
+  }
+
+  private final byte[] mData;
+  private final List<String> mTopLevel = new ArrayList<>();
+  private final List<long[]> mMdats = new ArrayList<>();
+  private final List<long[]> mSamples = new ArrayList<>();
+  private final Map<Integer, Track> mTracks = new LinkedHashMap<>();
+  private Track mTrack;
+  // 当前分片
+  private long mMoofStart;
+  private int mLastSequence;
+  private int mFragments;
+  private Track mFragmentTrack;
+  private long mBaseOffset;
+  private int mFragmentDuration;
+  private int mFragmentSize;
+  private int mFragmentFlags;
+
+  private Mp4BoxChecker(byte[] data) {
+    mData = data;
+  }
+
+  // 读取并检查整个文件
+  public static Mp4BoxChecker check(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    byte[] data;
+    try {
+      data = new byte[(int) raf.length()];
+      raf.readFully(data);
+    } finally {
+      raf.close();
+    }
+    return check(data);
+  }
+
+  public static Mp4BoxChecker check(byte[] data) {
+    Mp4BoxChecker checker = new Mp4BoxChecker(data);
+    checker.walk(0, data.length, true);
+    checker.checkSamples();
+    return checker;
+  }
+
+  // 顶层box类型(按文件顺序)
+  public List<String> getTopLevel() {
+    return mTopLevel;
+  }
+
+  public int getFragmentCount() {
+    return mFragments;
+  }
+
+  public List<Track> getTracks() {
+    return new ArrayList<>(mTracks.values());
+  }
+
+  // 按handler取轨道，不存在时为空
+  public Track getTrack(String handler) {
+    for (Track track : mTracks.values()) {
+      if (handler.equals(track.mHandler)) {
+        return track;
+      }
+    }
+    return null;
+  }
+
+  private void walk(long start, long end, boolean top) {
+    long pos = start;
+    while (pos < end) {
+      require(end - pos >= 8, "truncated box header at " + pos);
+      long size = u32(pos);
+      String type = type(pos + 4);
+      int header = 8;
+      if (size == 1) {
+        require(end - pos >= 16, "truncated largesize at " + pos);
+        size = u64(pos + 8);
+        header = 16;
+      } else if (size == 0) {
+        require(top, "size 0 inside container at " + pos);
+        size = end - pos;
+      }
+      require(size >= header && pos + size <= end,
+              "box " + type + " at " + pos + " size " + size + " exceeds parent end " + end);
+      if (top) {
+        mTopLevel.add(type);
+      }
+      long body = pos + header;
+      long boxEnd = pos + size;
+      if (CONTAINERS.contains(type)) {
+        enter(type, pos);
+        walk(body, boxEnd, false);
+        leave(type);
+      } else {
+        leaf(type, body, boxEnd);
+      }
+      pos = boxEnd;
+    }
+    require(pos == end, "boxes do not fill parent");
+  }
+
+  private void enter(String type, long start) {
+    if ("trak".equals(type)) {
+      mTrack = new Track();
+    } else if ("moof".equals(type)) {
+      mMoofStart = start;
+      mFragments++;
+    }
+  }
+
+  private void leave(String type) {
+    if ("trak".equals(type)) {
+      require(mTrack.mTrackId > 0, "trak without tkhd");
+      require(!mTracks.containsKey(mTrack.mTrackId), "duplicate track " + mTrack.mTrackId);
+      buildSampleTable(mTrack);
+      mTracks.put(mTrack.mTrackId, mTrack);
+      mTrack = null;
+    } else if ("traf".equals(type)) {
+      mFragmentTrack = null;
+    }
+  }
+
+  private void leaf(String type, long body, long end) {
+    if ("mdat".equals(type)) {
+      mMdats.add(new long[] {body, end});
+      return;
+    }
+    if (mTrack != null) {
+      trackBox(type, body, end);
+    } else if ("trex".equals(type)) {
+      Track track = mTracks.get((int) u32(body + 4));
+      require(track != null, "trex for unknown track");
+      track.mDefaultDuration = (int) u32(body + 12);
+      track.mDefaultSize = (int) u32(body + 16);
+      track.mDefaultFlags = (int) u32(body + 20);
+    } else if ("mfhd".equals(type)) {
+      int sequence = (int) u32(body + 4);
+      require(sequence > mLastSequence, "fragment sequence not increasing");
+      mLastSequence = sequence;
+    } else if ("tfhd".equals(type)) {
+      tfhd(body);
+    } else if ("tfdt".equals(type)) {
+      require(mFragmentTrack != null, "tfdt before tfhd");
+      long time = mData[(int) body] == 1 ? u64(body + 4) : u32(body + 4);
+      if (mFragmentTrack.mBaseTime < 0) {
+        mFragmentTrack.mBaseTime = time;
+      }
+      require(time >= mFragmentTrack.mDuration,
+              "tfdt " + time + " before end of previous fragment " + mFragmentTrack.mDuration);
+      mFragmentTrack.mDuration = time;
+    } else if ("trun".equals(type)) {
+      trun(body);
+    }
+  }
+
+  private void trackBox(String type, long body, long end) {
+    int version = mData[(int) body];
+    long pos = body + 4;
+    if ("tkhd".equals(type)) {
+      mTrack.mTrackId = (int) u32(pos + (version == 1 ? 16 : 8));
+    } else if ("mdhd".equals(type)) {
+      mTrack.mTimescale = (int) u32(pos + (version == 1 ? 16 : 8));
+    } else if ("hdlr".equals(type)) {
+      mTrack.mHandler = type(pos + 4);
+    } else if ("stsd".equals(type)) {
+      require(u32(pos) >= 1, "empty stsd");
+      mTrack.mSampleEntry = type(pos + 8);
+    } else if ("stts".equals(type)) {
+      int count = (int) u32(pos);
+      int total = 0;
+      for (int i = 0; i < count; i++) {
+        total += (int) u32(pos + 4 + i * 8);
+      }
+      long[] deltas = new long[total];
+      int from = 0;
+      for (int i = 0; i < count; i++) {
+        int samples = (int) u32(pos + 4 + i * 8);
+        Arrays.fill(deltas, from, from + samples, u32(pos + 8 + i * 8));
+        from += samples;
+      }
+      mTrack.mDeltas = deltas;
+    } else if ("stss".equals(type)) {
+      int count = (int) u32(pos);
+      mTrack.mSyncs = new int[count];
+      for (int i = 0; i < count; i++) {
+        mTrack.mSyncs[i] = (int) u32(pos + 4 + i * 4);
+      }
+    } else if ("stsc".equals(type)) {
+      int count = (int) u32(pos);
+      mTrack.mChunks = new int[count * 2];
+      for (int i = 0; i < count; i++) {
+        mTrack.mChunks[i * 2] = (int) u32(pos + 4 + i * 12);
+        mTrack.mChunks[i * 2 + 1] = (int) u32(pos + 8 + i * 12);
+      }
+    } else if ("stsz".equals(type)) {
+      int sampleSize = (int) u32(pos);
+      int count = (int) u32(pos + 4);
+      mTrack.mSizes = new int[count];
+      for (int i = 0; i < count; i++) {
+        mTrack.mSizes[i] = sampleSize != 0 ? sampleSize : (int) u32(pos + 8 + i * 4);
+      }
+    } else if ("stco".equals(type) || "co64".equals(type)) {
+      boolean large = "co64".equals(type);
+      int count = (int) u32(pos);
+      mTrack.mOffsets = new long[count];
+      for (int i = 0; i < count; i++) {
+        mTrack.mOffsets[i] = large ? u64(pos + 4 + i * 8) : u32(pos + 4 + i * 4);
+      }
+    }
+  }
+
+  // 样本表展开为每个样本的字节范围
+  private void buildSampleTable(Track track) {
+    require(track.mSizes != null && track.mDeltas != null && track.mChunks != null
+            && track.mOffsets != null, "incomplete stbl in track " + track.mTrackId);
+    int count = track.mSizes.length;
+    require(track.mDeltas.length == count,
+            "stts has " + track.mDeltas.length + " samples, stsz " + count);
+    int sample = 0;
+    for (int chunk = 1; chunk <= track.mOffsets.length; chunk++) {
+      int perChunk = 0;
+      for (int i = 0; i < track.mChunks.length; i += 2) {
+        if (track.mChunks[i] <= chunk) {
+          perChunk = track.mChunks[i + 1];
+        }
+      }
+      long offset = track.mOffsets[chunk - 1];
+      for (int i = 0; i < perChunk; i++) {
+        require(sample < count, "stsc describes more samples than stsz");
+        mSamples.add(new long[] {offset, offset + track.mSizes[sample]});
+        offset += track.mSizes[sample];
+        sample++;
+      }
+    }
+    require(sample == count, "stsc describes " + sample + " samples, stsz " + count);
+    for (long delta : track.mDeltas) {
+      track.mDuration += delta;
+    }
+    track.mSamples = count;
+    track.mSyncSamples = track.mSyncs != null ? track.mSyncs.length : count;
+    if (track.mSyncs != null) {
+      for (int index : track.mSyncs) {
+        require(index >= 1 && index <= count, "stss index " + index + " out of range");
+      }
+    }
+  }
+
+  private void tfhd(long body) {
+    int flags = (int) u32(body) & 0xffffff;
+    long pos = body + 4;
+    Track track = mTracks.get((int) u32(pos));
+    require(track != null, "traf for unknown track");
+    pos += 4;
+    mFragmentTrack = track;
+    mBaseOffset = mMoofStart;
+    mFragmentDuration = track.mDefaultDuration;
+    mFragmentSize = track.mDefaultSize;
+    mFragmentFlags = track.mDefaultFlags;
+    if ((flags & 0x01) != 0) {
+      mBaseOffset = u64(pos);
+      pos += 8;
+    }
+    if ((flags & 0x02) != 0) {
+      pos += 4;
+    }
+    if ((flags & 0x08) != 0) {
+      mFragmentDuration = (int) u32(pos);
+      pos += 4;
+    }
+    if ((flags & 0x10) != 0) {
+      mFragmentSize = (int) u32(pos);
+      pos += 4;
+    }
+    if ((flags & 0x20) != 0) {
+      mFragmentFlags = (int) u32(pos);
+    }
+  }
+
+  private void trun(long body) {
+    require(mFragmentTrack != null, "trun before tfhd");
+    int flags = (int) u32(body) & 0xffffff;
+    long pos = body + 4;
+    int count = (int) u32(pos);
+    pos += 4;
+    long offset = mBaseOffset;
+    if ((flags & 0x001) != 0) {
+      offset += (int) u32(pos);
+      pos += 4;
+    }
+    int firstFlags = -1;
+    if ((flags & 0x004) != 0) {
+      firstFlags = (int) u32(pos);
+      pos += 4;
+    }
+    for (int i = 0; i < count; i++) {
+      long duration = mFragmentDuration;
+      int size = mFragmentSize;
+      int sampleFlags = mFragmentFlags;
+      if ((flags & 0x100) != 0) {
+        duration = u32(pos);
+        pos += 4;
+      }
+      if ((flags & 0x200) != 0) {
+        size = (int) u32(pos);
+        pos += 4;
+      }
+      if ((flags & 0x400) != 0) {
+        sampleFlags = (int) u32(pos);
+        pos += 4;
+      }
+      if ((flags & 0x800) != 0) {
+        pos += 4;
+      }
+      if (i == 0 && firstFlags >= 0) {
+        sampleFlags = firstFlags;
+      }
+      mSamples.add(new long[] {offset, offset + size});
+      offset += size;
+      mFragmentTrack.mSamples++;
+      mFragmentTrack.mDuration += duration;
+      if ((sampleFlags & FLAG_NON_SYNC) == 0) {
+        mFragmentTrack.mSyncSamples++;
+      }
+    }
+  }
+
+  // 样本都在mdat内且互不重叠
+  private void checkSamples() {
+    Collections.sort(mSamples, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+      }
+    });
+    long last = 0;
+    for (long[] sample : mSamples) {
+      require(sample[0] >= last, "sample at " + sample[0] + " overlaps previous sample");
+      boolean inside = false;
+      for (long[] mdat : mMdats) {
+        if (sample[0] >= mdat[0] && sample[1] <= mdat[1]) {
+          inside = true;
+          break;
+        }
+      }
+      require(inside, "sample " + sample[0] + ".." + sample[1] + " outside mdat");
+      last = sample[1];
+    }
+  }
+
+  private long u32(long pos) {
+    int p = (int) pos;
+    require(p + 4 <= mData.length, "read past end at " + pos);
+    return ((mData[p] & 0xffL) << 24) | ((mData[p + 1] & 0xff) << 16)
+            | ((mData[p + 2] & 0xff) << 8) | (mData[p + 3] & 0xff);
+  }
+
+  private long u64(long pos) {
+    return (u32(pos) << 32) | u32(pos + 4);
+  }
+
+  private String type(long pos) {
+    int p = (int) pos;
+    require(p + 4 <= mData.length, "read past end at " + pos);
+    char[] chars = new char[4];
+    for (int i = 0; i < 4; i++) {
+      chars[i] = (char) (mData[p + i] & 0xff);
+    }
+    return new String(chars);
+  }
+
+  private static void require(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Mp4Editor测试 - 不在关键帧上的截取范围、跨越文件末尾的范围、拼接及格式不一致的拼接
+ *
+ * 源文件10秒，25帧，2秒一个关键帧；输出按字节检查结构，样本数据与源文件一致。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class Mp4EditorTest {
+  private static final int FRAMES = 250;
+  private static final int GOP = 50;
+  private static final long FRAME_US = 40000;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final StreamGenerator mStream = StreamGenerator.create("480p");
+
+  private String newPath(String name) {
+    return new File(mFolder.getRoot(), name).getPath();
+  }
+
+  // 写入FRAMES帧视频和对应的音频
+  private String record(String name, StreamGenerator stream) {
+    String path = newPath(name);
+    Mp4Writer writer = new Mp4Writer();
+    assertTrue(writer.open(path));
+    assertEquals(FRAMES, stream.write(writer, 0, FRAMES, false));
+    writer.close();
+    return path;
+  }
+
+  private static byte[] readSample(Mp4Reader reader, Mp4Reader.Track track, int index)
+          throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(track.getSampleSize(index));
+    FileChannel channel = reader.getChannel();
+    long position = track.getSampleOffset(index);
+    while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+      // 读满为止
+    }
+    return buffer.array();
+  }
+
+  /**
+   * 检查输出: 结构、视频样本数及关键帧数、音画时长一致，视频样本数据与源文件第first帧起相同
+   */
+  private void checkOutput(String output, String source, int first, int frames)
+          throws IOException {
+    Mp4BoxChecker checker = Mp4BoxChecker.check(new File(output));
+    Mp4BoxChecker.Track video = checker.getTrack("vide");
+    Mp4BoxChecker.Track audio = checker.getTrack("soun");
+    assertEquals(frames, video.getSampleCount());
+    assertEquals(frames / GOP, video.getSyncSampleCount());
+    assertEquals(frames * FRAME_US, video.getDurationUs());
+    // 最后一个音频样本的时长补齐到视频时长
+    assertTrue(Math.abs(audio.getDurationUs() - video.getDurationUs()) < 1000);
+
+    Mp4Reader out = Mp4Reader.open(output);
+    Mp4Reader in = Mp4Reader.open(source);
+    try {
+      Mp4Reader.Track outVideo = out.getVideoTrack();
+      Mp4Reader.Track inVideo = in.getVideoTrack();
+      assertTrue(outVideo.isSyncSample(0));
+      for (int i = 0; i < frames; i += 7) {
+        assertTrue("sample " + i, ByteBuffer.wrap(readSample(in, inVideo, first + i))
+                .equals(ByteBuffer.wrap(readSample(out, outVideo, i))));
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+  }
+
+  // 开始和结束都不在关键帧上: 开始向前对齐到2秒，结束向后对齐到8秒
+  @Test
+  public void trimNotOnKeyFrame() throws IOException {
+    String source = record("source.mp4", mStream);
+    String output = newPath("trim.mp4");
+    Mp4Editor editor = new Mp4Editor().add(source, 3300000, 7100000);
+    editor.write(output);
+    assertEquals(3 * GOP, editor.getVideoSampleCount());
+    checkOutput(output, source, GOP, 3 * GOP);
+  }
+
+  // 范围在一个GOP内: 输出整个GOP
+  @Test
+  public void trimInsideOneGop() throws IOException {
+    String source = record("source.mp4", mStream);
+    String output = newPath("gop.mp4");
+    Mp4Editor.trim(source, output, 4500000, 4600000);
+    checkOutput(output, source, 2 * GOP, GOP);
+  }
+
+  // 正好在关键帧上的范围不扩展；结束超过文件末尾时到文件结束
+  @Test
+  public void trimOnKeyFrameAndPastEnd() throws IOException {
+    String source = record("source.mp4", mStream);
+    String output = newPath("key.mp4");
+    Mp4Editor.trim(source, output, 2000000, 6000000);
+    checkOutput(output, source, GOP, 2 * GOP);
+
+    output = newPath("tail.mp4");
+    Mp4Editor.trim(source, output, 6100000, 60000000);
+    checkOutput(output, source, 3 * GOP, FRAMES - 3 * GOP);
+
+    // 开始晚于最后一个关键帧: 最后一个GOP
+    output = newPath("last.mp4");
+    Mp4Editor.trim(source, output, 9900000, Long.MAX_VALUE);
+    checkOutput(output, source, 4 * GOP, GOP);
+  }
+
+  // 拼接两个截取片段: 样本数和时长相加
+  @Test
+  public void concatClips() throws IOException {
+    String source = record("source.mp4", mStream);
+    String output = newPath("concat.mp4");
+    Mp4Editor editor = new Mp4Editor().add(source, 0, 2500000).add(source, 8000000,
+            Long.MAX_VALUE);
+    editor.write(output);
+    assertEquals(3 * GOP, editor.getVideoSampleCount());
+    Mp4BoxChecker checker = Mp4BoxChecker.check(new File(output));
+    Mp4BoxChecker.Track video = checker.getTrack("vide");
+    assertEquals(3 * GOP, video.getSampleCount());
+    assertEquals(3, video.getSyncSampleCount());
+    assertEquals(3 * GOP * FRAME_US, video.getDurationUs());
+    Mp4BoxChecker.Track audio = checker.getTrack("soun");
+    assertEquals(editor.getAudioSampleCount(), audio.getSampleCount());
+    assertTrue(Math.abs(audio.getDurationUs() - video.getDurationUs()) < 1000);
+
+    Mp4Editor.concat(new String[] {source, source}, output);
+    assertEquals(2 * FRAMES, Mp4BoxChecker.check(new File(output)).getTrack("vide")
+            .getSampleCount());
+  }
+
+  // 样本描述不同(分辨率不同)的文件不能拼接，输出文件删除
+  @Test
+  public void concatIncompatible() throws IOException {
+    String a = record("a.mp4", mStream);
+    String b = record("b.mp4", StreamGenerator.create("720p"));
+    String output = newPath("bad.mp4");
+    try {
+      Mp4Editor.concat(new String[] {a, b}, output);
+      fail("incompatible clips accepted");
+    } catch (IOException e) {
+      // 预期
+    }
+    assertFalse(new File(output).exists());
+  }
+}
@@ -0,0 +1,151 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Mp4Fragment测试 - 样本时长、扩容、复用，以及按字节检查输出的traf
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class Mp4FragmentTest {
+  private static final int TIMESCALE = 90000;
+  private static final int DEFAULT_DELTA = 3600;
+  private static final int TRACK_ID = 3;
+  private static final int FLAGS_SYNC = 0x02000000;
+  private static final int FLAGS_NON_SYNC = 0x01010000;
+
+  private final Mp4Fragment mFragment = new Mp4Fragment(
+          new Mp4Track(TRACK_ID, true, TIMESCALE, DEFAULT_DELTA));
+
+  // 一个样本: 4字节长度 + size字节数据
+  private void addSample(long timeUs, boolean sync, int size) {
+    mFragment.beginSample(timeUs, sync);
+    mFragment.appendInt(size);
+    mFragment.append(new byte[size], 0, size);
+    mFragment.endSample();
+  }
+
+  // traf中的trun样本项(时长、大小、标志)，检查tfhd/tfdt
+  private int[] parseTraf(long baseTicks, int count) {
+    Mp4Box box = new Mp4Box(256);
+    int dataOffsetPos = mFragment.writeTraf(box);
+    ByteBuffer data = ByteBuffer.wrap(box.toArray());
+    assertEquals(data.limit(), data.getInt(0));
+    assertEquals("traf", type(data, 4));
+    // tfhd: default-base-is-moof
+    int pos = 8;
+    assertEquals("tfhd", type(data, pos + 4));
+    assertEquals(0x020000, data.getInt(pos + 8));
+    assertEquals(TRACK_ID, data.getInt(pos + 12));
+    pos += data.getInt(pos);
+    // tfdt版本1
+    assertEquals("tfdt", type(data, pos + 4));
+    assertEquals(0x01000000, data.getInt(pos + 8));
+    assertEquals(baseTicks, data.getLong(pos + 12));
+    pos += data.getInt(pos);
+    // trun: data-offset、时长、大小、标志
+    assertEquals("trun", type(data, pos + 4));
+    assertEquals(pos + data.getInt(pos), data.limit());
+    assertEquals(0x000701, data.getInt(pos + 8));
+    assertEquals(count, data.getInt(pos + 12));
+    assertEquals(pos + 16, dataOffsetPos);
+    assertEquals(0, data.getInt(dataOffsetPos));
+    int[] entries = new int[count * 3];
+    for (int i = 0; i < entries.length; i++) {
+      entries[i] = data.getInt(pos + 20 + i * 4);
+    }
+    return entries;
+  }
+
+  private static String type(ByteBuffer data, int pos) {
+    return new String(new char[] {(char) data.get(pos), (char) data.get(pos + 1),
+            (char) data.get(pos + 2), (char) data.get(pos + 3)});
+  }
+
+  @Test
+  public void deltasAndFlags() {
+    addSample(1000000, true, 100);
+    addSample(1040000, false, 200);
+    addSample(1080000, false, 300);
+    assertEquals(3, mFragment.getSampleCount());
+    assertEquals(600 + 3 * 4, mFragment.getDataSize());
+    assertEquals(1000000, mFragment.getFirstTimeUs());
+
+    int[] entries = parseTraf(TIMESCALE, 3);
+    // 最后一个样本沿用前一个的时长
+    int[] expected = {
+            3600, 104, FLAGS_SYNC,
+            3600, 204, FLAGS_NON_SYNC,
+            3600, 304, FLAGS_NON_SYNC};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("entry " + i, expected[i], entries[i]);
+    }
+  }
+
+  // 只有一个样本时用默认时长；时间不增加时时长为1
+  @Test
+  public void singleSampleAndNonIncreasingTime() {
+    addSample(0, true, 10);
+    int[] entries = parseTraf(0, 1);
+    assertEquals(DEFAULT_DELTA, entries[0]);
+
+    mFragment.reset();
+    addSample(2000000, true, 10);
+    addSample(2000000, false, 10);
+    addSample(2040000, false, 10);
+    entries = parseTraf(2 * TIMESCALE, 3);
+    assertEquals(1, entries[0]);
+    assertEquals(3600, entries[3]);
+    assertEquals(3600, entries[6]);
+  }
+
+  // 复用: reset后从新的时间开始，第一个样本的时长按下一个样本计算；单样本分片沿用上一分片的时长
+  @Test
+  public void resetKeepsLastDelta() {
+    addSample(0, true, 10);
+    addSample(20000, false, 10);
+    mFragment.reset();
+    assertEquals(0, mFragment.getSampleCount());
+    assertEquals(0, mFragment.getDataSize());
+    addSample(40000, true, 10);
+    int[] entries = parseTraf(3600, 1);
+    assertEquals(1800, entries[0]);
+  }
+
+  // 样本数和数据超过初始容量时扩容，数据保持顺序
+  @Test
+  public void growsBeyondInitialCapacity() {
+    int count = 500;
+    int size = 1000;
+    for (int i = 0; i < count; i++) {
+      mFragment.beginSample(i * 40000L, i % 50 == 0);
+      mFragment.appendInt(i);
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      buffer.put(0, (byte) i);
+      mFragment.append(buffer);
+      assertEquals(size, buffer.position());
+      mFragment.endSample();
+    }
+    assertEquals(count, mFragment.getSampleCount());
+    assertEquals(count * (size + 4), mFragment.getDataSize());
+    byte[] data = mFragment.getData();
+    for (int i = 0; i < count; i += 37) {
+      int pos = i * (size + 4);
+      assertEquals(i, ByteBuffer.wrap(data, pos, 4).getInt());
+      assertEquals((byte) i, data[pos + 4]);
+    }
+    int[] entries = parseTraf(0, count);
+    for (int i = 0; i < count; i++) {
+      assertEquals(size + 4, entries[i * 3 + 1]);
+      assertEquals(i % 50 == 0 ? FLAGS_SYNC : FLAGS_NON_SYNC, entries[i * 3 + 2]);
+    }
+  }
+}
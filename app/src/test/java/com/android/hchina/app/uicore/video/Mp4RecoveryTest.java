@@ -0,0 +1,236 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mp4Recovery测试 - 录制中途复制文件和样本日志模拟异常退出，截断在样本中间后修复
+ *
+ * 修复后的文件按字节检查结构，样本数与日志中数据完整的样本一致。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class Mp4RecoveryTest {
+  private static final int FRAMES = 300;
+  private static final int CRASH_FRAME = 200;  // 在这一帧之后复制文件
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private final StreamGenerator mStream = StreamGenerator.create("480p");
+  private final Mp4Recovery mRecovery = new Mp4Recovery();
+  // 日志中数据完整的样本数
+  private int mJournalVideo;
+  private int mJournalAudio;
+  // 修复得到的样本数
+  private int mVideoSamples;
+  private int mAudioSamples;
+
+  private File newFile(String name) {
+    return new File(mFolder.getRoot(), name);
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    FileInputStream in = new FileInputStream(from);
+    FileOutputStream out = new FileOutputStream(to);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        out.write(buffer, 0, length);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  private static void truncate(File file, long length) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(length);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * 写入FRAMES帧视频和对应的音频，第CRASH_FRAME帧之后把文件和日志复制到crash
+   *
+   * @param changeSps : 复制之前的某个关键帧改用另一个SPS(id相同)
+   */
+  private void record(Mp4Writer writer, File file, File crash, boolean changeSps)
+          throws IOException {
+    writer.setBufferSize(Mp4Writer.MIN_BUFFER_SIZE);
+    writer.setJournal(true);
+    assertTrue(writer.open(file.getPath()));
+    int half = CRASH_FRAME / 2;
+    assertEquals(half, mStream.write(writer, 0, half, false));
+    if (changeSps) {
+      mStream.setKeyFrame(StreamGenerator.annexB(AvccConverterTest.SPS, AvccConverterTest.PPS,
+              AvccConverterTest.IDR));
+    }
+    assertEquals(CRASH_FRAME + 1 - half, mStream.write(writer, half, CRASH_FRAME + 1, false));
+    copy(file, crash);
+    File journal = new File(SampleJournal.getPath(file.getPath()));
+    if (journal.exists()) {
+      copy(journal, new File(SampleJournal.getPath(crash.getPath())));
+    }
+    assertEquals(FRAMES - CRASH_FRAME - 1, mStream.write(writer, CRASH_FRAME + 1, FRAMES, false));
+    writer.close();
+  }
+
+  // 统计日志中数据在length之内的样本(遇到第一个不完整的样本为止)，返回最后一个完整样本的结束位置
+  private long countJournal(File crash, long length) throws IOException {
+    mJournalVideo = 0;
+    mJournalAudio = 0;
+    long end = 0;
+    SampleJournal journal = SampleJournal.open(SampleJournal.getPath(crash.getPath()));
+    try {
+      int videoTrack = 0;
+      int record;
+      while ((record = journal.next()) != SampleJournal.RECORD_END) {
+        if (record == SampleJournal.RECORD_TRACK) {
+          if (journal.isVideo()) {
+            videoTrack = journal.getTrackId();
+          }
+          continue;
+        }
+        if (journal.getOffset() + journal.getSize() > length) {
+          break;
+        }
+        if (journal.getTrackId() == videoTrack) {
+          mJournalVideo++;
+        } else {
+          mJournalAudio++;
+        }
+        end = Math.max(end, journal.getOffset() + journal.getSize());
+      }
+    } finally {
+      journal.close();
+    }
+    return end;
+  }
+
+  private Mp4BoxChecker recover(File crash) throws IOException {
+    assertEquals(Mp4Recovery.Result.recovered, mRecovery.recover(crash.getPath()));
+    mVideoSamples = mRecovery.getVideoSampleCount();
+    mAudioSamples = mRecovery.getAudioSampleCount();
+    assertFalse(new File(SampleJournal.getPath(crash.getPath())).exists());
+    Mp4BoxChecker checker = Mp4BoxChecker.check(crash);
+    // 再次修复时文件已完整
+    assertEquals(Mp4Recovery.Result.complete, mRecovery.recover(crash.getPath()));
+    return checker;
+  }
+
+  // 正常关闭的文件不需修复
+  @Test
+  public void completeFile() throws IOException {
+    File file = newFile("complete.mp4");
+    record(new Mp4Writer(), file, newFile("unused.mp4"), false);
+    long length = file.length();
+    assertEquals(Mp4Recovery.Result.complete, mRecovery.recover(file.getPath()));
+    assertEquals(length, file.length());
+  }
+
+  // 按日志修复，文件截断在最后一个完整样本之后的样本中间
+  @Test
+  public void journalTruncatedInsideSample() throws IOException {
+    File crash = newFile("crash.mp4");
+    record(new Mp4Writer(), newFile("journal.mp4"), crash, false);
+    long sampleEnd = countJournal(crash, crash.length());
+    truncate(crash, sampleEnd - 100);
+    countJournal(crash, crash.length());
+    assertTrue(mJournalVideo > 0 && mJournalVideo < CRASH_FRAME);
+    assertTrue(mJournalAudio > 0);
+
+    Mp4BoxChecker checker = recover(crash);
+    assertEquals(mJournalVideo, mVideoSamples);
+    assertEquals(mJournalAudio, mAudioSamples);
+    assertEquals(mJournalVideo, checker.getTrack("vide").getSampleCount());
+    assertEquals(mJournalAudio, checker.getTrack("soun").getSampleCount());
+    assertEquals("avc1", checker.getTrack("vide").getSampleEntry());
+  }
+
+  /**
+   * 没有日志: 扫描视频帧，截掉不完整的帧，音频跳过
+   *
+   * 参数集只在样本描述中时扫描无法生成样本描述，从SPS/PPS改为in-band的关键帧开始恢复。
+   */
+  @Test
+  public void scanTruncatedInsideSample() throws IOException {
+    File crash = newFile("scan.mp4");
+    record(new Mp4Writer(), newFile("scan-source.mp4"), crash, true);
+    long sampleEnd = countJournal(crash, crash.length());
+    truncate(crash, sampleEnd - 100);
+    countJournal(crash, crash.length());
+    new File(SampleJournal.getPath(crash.getPath())).delete();
+
+    mRecovery.setFrameRate(mStream.getFrameRate());
+    Mp4BoxChecker checker = recover(crash);
+    int gop = mStream.getFrameRate() * 2;
+    int expected = mJournalVideo - CRASH_FRAME / 2;
+    assertEquals(expected, mVideoSamples);
+    assertEquals(0, mAudioSamples);
+    assertEquals(1, checker.getTracks().size());
+    Mp4BoxChecker.Track video = checker.getTrack("vide");
+    assertEquals("avc1", video.getSampleEntry());
+    assertEquals(expected, video.getSampleCount());
+    assertEquals((expected + gop - 1) / gop, video.getSyncSampleCount());
+    assertEquals(expected * 1000000L / mStream.getFrameRate(), video.getDurationUs());
+  }
+
+  // 只有带外参数集的文件没有日志时无法修复，文件不变
+  @Test
+  public void scanWithoutParameterSetsFails() throws IOException {
+    File crash = newFile("no-sps.mp4");
+    record(new Mp4Writer(), newFile("no-sps-source.mp4"), crash, false);
+    new File(SampleJournal.getPath(crash.getPath())).delete();
+    long length = crash.length();
+    assertEquals(Mp4Recovery.Result.failed, mRecovery.recover(crash.getPath()));
+    assertEquals(length, crash.length());
+  }
+
+  // 日志中途记录了avc3样本描述(SPS变化)，修复后的文件使用avc3
+  @Test
+  public void journalWithAvc3Entry() throws IOException {
+    File crash = newFile("avc3.mp4");
+    record(new Mp4Writer(), newFile("avc3-source.mp4"), crash, true);
+    long sampleEnd = countJournal(crash, crash.length());
+    truncate(crash, sampleEnd - 1);
+
+    Mp4BoxChecker checker = recover(crash);
+    assertEquals("avc3", checker.getTrack("vide").getSampleEntry());
+    assertTrue(mVideoSamples > CRASH_FRAME / 2);
+  }
+
+  // 分片文件: 截掉最后一个不完整的分片
+  @Test
+  public void fragmentedTruncatedInsideFragment() throws IOException {
+    File crash = newFile("fragmented.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    writer.setFragmented(1000);
+    record(writer, newFile("fragmented-source.mp4"), crash, false);
+    truncate(crash, crash.length() - 100);
+
+    Mp4BoxChecker checker = recover(crash);
+    assertEquals("mdat", checker.getTopLevel().get(checker.getTopLevel().size() - 1));
+    assertTrue(checker.getFragmentCount() > 0);
+    assertTrue(checker.getTrack("vide").getSampleCount() < CRASH_FRAME);
+  }
+}
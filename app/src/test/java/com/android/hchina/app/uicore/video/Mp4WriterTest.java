@@ -0,0 +1,301 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mp4Writer测试 - 写入模拟码流，按字节检查文件结构、样本数和时长
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class Mp4WriterTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final long FRAME_US = 40000;
+  private static final int SAMPLE_RATE = 44100;
+  private static final long AUDIO_US = 1024 * 1000000L / SAMPLE_RATE;
+  private static final byte[] AAC = new byte[256];
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private File newFile(String name) {
+    return new File(mFolder.getRoot(), name);
+  }
+
+  // 每gop帧一个关键帧，关键帧带sps
+  private static void writeVideo(Mp4Writer writer, int start, int count, int gop, byte[] sps) {
+    for (int i = start; i < start + count; i++) {
+      boolean key = i % gop == 0;
+      byte[] frame = key
+              ? StreamGenerator.annexB(sps, AvccConverterTest.PPS, AvccConverterTest.IDR)
+              : StreamGenerator.annexB(AvccConverterTest.SLICE);
+      assertEquals(true, writer.writeVideo(frame, 0, frame.length, WIDTH, HEIGHT, key,
+              i * FRAME_US) > 0);
+    }
+  }
+
+  // 从fromUs开始按帧时长写入音频，直到toUs，返回帧数
+  private static int writeAudio(Mp4Writer writer, long fromUs, long toUs) {
+    int count = 0;
+    for (long time = fromUs; time < toUs; time += AUDIO_US) {
+      assertEquals(AAC.length, writer.writeAudio(AAC, 0, AAC.length, time));
+      count++;
+    }
+    return count;
+  }
+
+  private static byte[] readAll(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] data = new byte[(int) raf.length()];
+      raf.readFully(data);
+      return data;
+    } finally {
+      raf.close();
+    }
+  }
+
+  // 普通模式: ftyp + mdat + moov；写缓存大小和输入方式不影响输出
+  @Test
+  public void plainFile() throws Exception {
+    StreamGenerator stream = StreamGenerator.create("480p");
+    int frames = 300;
+    File[] files = {newFile("plain.mp4"), newFile("unbuffered.mp4"), newFile("direct.mp4")};
+    for (int i = 0; i < files.length; i++) {
+      Mp4Writer writer = new Mp4Writer();
+      if (i == 1) {
+        writer.setBufferSize(0);
+      }
+      assertTrue(writer.open(files[i].getPath()));
+      assertEquals(frames, stream.write(writer, 0, frames, i == 2));
+      writer.close();
+    }
+
+    Mp4BoxChecker checker = Mp4BoxChecker.check(files[0]);
+    assertEquals(Arrays.asList("ftyp", "mdat", "moov"), checker.getTopLevel());
+    Mp4BoxChecker.Track video = checker.getTrack("vide");
+    Mp4BoxChecker.Track audio = checker.getTrack("soun");
+    assertEquals("avc1", video.getSampleEntry());
+    assertEquals(frames, video.getSampleCount());
+    assertEquals(frames / stream.getFrameCount(), video.getSyncSampleCount());
+    assertEquals(frames * FRAME_US, video.getDurationUs());
+    assertEquals(StreamGenerator.SAMPLE_RATE, audio.getTimescale());
+    assertTrue(Math.abs(audio.getDurationUs() - video.getDurationUs()) <= AUDIO_US);
+    byte[] expected = readAll(files[0]);
+    assertTrue(Arrays.equals(expected, readAll(files[1])));
+    assertTrue(Arrays.equals(expected, readAll(files[2])));
+  }
+
+  // faststart: moov写在预留位置(mdat之前)，剩余空间为free，样本位置不变
+  @Test
+  public void faststartFile() throws Exception {
+    StreamGenerator stream = StreamGenerator.create("480p");
+    int frames = 300;
+    File plain = newFile("plain.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    assertTrue(writer.open(plain.getPath()));
+    assertEquals(frames, stream.write(writer, 0, frames, false));
+    writer.close();
+
+    File file = newFile("faststart.mp4");
+    writer = new Mp4Writer();
+    writer.setFaststart(Mp4Writer.estimateMoovSize(frames * FRAME_US / 1000,
+            stream.getFrameRate(), StreamGenerator.SAMPLE_RATE));
+    assertTrue(writer.open(file.getPath()));
+    assertEquals(frames, stream.write(writer, 0, frames, false));
+    writer.close();
+    assertTrue(writer.isMoovAtStart());
+
+    Mp4BoxChecker checker = Mp4BoxChecker.check(file);
+    assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), checker.getTopLevel());
+    Mp4BoxChecker.Track video = checker.getTrack("vide");
+    assertEquals(frames, video.getSampleCount());
+    assertEquals(checker.getTrack("soun").getSampleCount(),
+            Mp4BoxChecker.check(plain).getTrack("soun").getSampleCount());
+  }
+
+  // 预留空间不够时moov写在末尾，预留空间保留为free
+  @Test
+  public void faststartReserveTooSmall() throws Exception {
+    StreamGenerator stream = StreamGenerator.create("480p");
+    File file = newFile("small-reserve.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    writer.setFaststart(256);
+    assertTrue(writer.open(file.getPath()));
+    assertEquals(100, stream.write(writer, 0, 100, false));
+    writer.close();
+    assertEquals(false, writer.isMoovAtStart());
+
+    Mp4BoxChecker checker = Mp4BoxChecker.check(file);
+    assertEquals(Arrays.asList("ftyp", "free", "mdat", "moov"), checker.getTopLevel());
+    assertEquals(100, checker.getTrack("vide").getSampleCount());
+  }
+
+  private Mp4Writer openFragmented(File file) {
+    Mp4Writer writer = new Mp4Writer();
+    writer.setFragmented(1000);
+    assertEquals(true, writer.open(file.getPath()));
+    writer.setAudioFormat(SAMPLE_RATE, 2, null);
+    return writer;
+  }
+
+  // 分片模式第一个关键帧之前的音频保留在第一个分片中
+  @Test
+  public void fragmentedKeepsLeadingAudio() throws Exception {
+    File file = newFile("leading.mp4");
+    Mp4Writer writer = openFragmented(file);
+    // 音频从0开始，视频从520ms开始
+    int audio = writeAudio(writer, 0, 13 * FRAME_US);
+    for (int i = 0; i < 100; i++) {
+      int index = i + 13;
+      boolean key = i % 25 == 0;
+      byte[] frame = key
+              ? StreamGenerator.annexB(AvccConverterTest.SPS, AvccConverterTest.PPS,
+              AvccConverterTest.IDR) : StreamGenerator.annexB(AvccConverterTest.SLICE);
+      writer.writeVideo(frame, 0, frame.length, WIDTH, HEIGHT, key, index * FRAME_US);
+      audio += writeAudio(writer, audio * AUDIO_US, (index + 1) * FRAME_US);
+    }
+    writer.close();
+
+    Mp4BoxChecker checker = Mp4BoxChecker.check(file);
+    assertEquals("moov", checker.getTopLevel().get(1));
+    assertEquals(100, checker.getTrack("vide").getSampleCount());
+    assertEquals(audio, checker.getTrack("soun").getSampleCount());
+    assertEquals(0, checker.getTrack("soun").getBaseTime());
+  }
+
+  // 只有音频: 等待AUDIO_ONLY_US后按纯音频输出，之后的视频不写入
+  @Test
+  public void fragmentedAudioOnly() throws Exception {
+    File file = newFile("audio-only.mp4");
+    Mp4Writer writer = openFragmented(file);
+    int audio = writeAudio(writer, 0, 12000000);
+    byte[] key = StreamGenerator.annexB(AvccConverterTest.SPS, AvccConverterTest.PPS,
+            AvccConverterTest.IDR);
+    assertEquals(0, writer.writeVideo(key, 0, key.length, WIDTH, HEIGHT, true, 12000000));
+    audio += writeAudio(writer, 12000000, 15000000);
+    writer.close();
+
+    Mp4BoxChecker checker = Mp4BoxChecker.check(file);
+    assertEquals(1, checker.getTracks().size());
+    assertEquals(audio, checker.getTrack("soun").getSampleCount());
+    assertTrue(checker.getFragmentCount() > 1);
+  }
+
+  // 没有样本(或只有关键帧之前的视频)时关闭: 仍输出ftyp+moov
+  @Test
+  public void fragmentedCloseWithoutFragments() throws Exception {
+    File file = newFile("empty.mp4");
+    Mp4Writer writer = openFragmented(file);
+    writer.close();
+    Mp4BoxChecker checker = Mp4BoxChecker.check(file);
+    assertEquals(Arrays.asList("ftyp", "moov"), checker.getTopLevel());
+    assertEquals(0, checker.getTracks().size());
+
+    file = newFile("no-key.mp4");
+    writer = openFragmented(file);
+    byte[] slice = StreamGenerator.annexB(AvccConverterTest.SLICE);
+    assertEquals(0, writer.writeVideo(slice, 0, slice.length, WIDTH, HEIGHT, false, 0));
+    writer.close();
+    assertEquals(Arrays.asList("ftyp", "moov"), Mp4BoxChecker.check(file).getTopLevel());
+
+    // 只有关键帧之前的音频
+    file = newFile("audio-before-key.mp4");
+    writer = openFragmented(file);
+    int audio = writeAudio(writer, 0, 300000);
+    writer.close();
+    checker = Mp4BoxChecker.check(file);
+    assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat"), checker.getTopLevel());
+    assertEquals(audio, checker.getTrack("soun").getSampleCount());
+  }
+
+  // HE/HE-v2: esds中为显式SBR信令的AudioSpecificConfig，单个样本的时长为2048
+  @Test
+  public void heAacConfig() throws Exception {
+    byte[] he = Mp4Track.createAudioConfig(AudioConfig.PROFILE_HE, SAMPLE_RATE, 2);
+    assertTrue(Arrays.equals(new byte[] {0x2b, (byte) 0x92, 0x08, 0x00}, he));
+    byte[] hev2 = Mp4Track.createAudioConfig(AudioConfig.PROFILE_HE_V2, SAMPLE_RATE, 2);
+    assertTrue(Arrays.equals(new byte[] {(byte) 0xeb, (byte) 0x8a, 0x08, 0x00}, hev2));
+    assertEquals(AudioConfig.SBR_FRAME_SIZE, Mp4Track.getAudioFrameSize(hev2));
+    assertEquals(AudioConfig.FRAME_SIZE, Mp4Track.getAudioFrameSize(
+            Mp4Track.createAudioConfig(AudioConfig.PROFILE_LC, SAMPLE_RATE, 2)));
+
+    File file = newFile("he.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    assertTrue(writer.open(file.getPath()));
+    writer.setAudioFormat(SAMPLE_RATE, 2, he);
+    assertEquals(AAC.length, writer.writeAudio(AAC, 0, AAC.length, 0));
+    writer.close();
+    Mp4BoxChecker.Track track = Mp4BoxChecker.check(file).getTrack("soun");
+    assertEquals(1, track.getSampleCount());
+    assertEquals(AudioConfig.SBR_FRAME_SIZE, track.getDuration());
+    // DecoderSpecificInfo: tag 0x05 + 长度 + config
+    byte[] data = readAll(file);
+    boolean found = false;
+    for (int i = 0; i + 6 <= data.length && !found; i++) {
+      found = data[i] == 0x05 && data[i + 1] == he.length
+              && Arrays.equals(he, Arrays.copyOfRange(data, i + 2, i + 6));
+    }
+    assertTrue(found);
+  }
+
+  // 中途SPS变化(id相同): 样本描述改为avc3，样本数不变
+  @Test
+  public void spsChangeWritesAvc3() throws Exception {
+    File file = newFile("change.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    writer.open(file.getPath());
+    writeVideo(writer, 0, 50, 25, AvccConverterTest.SPS);
+    writeVideo(writer, 50, 50, 25, AvccConverterTest.SPS_CHANGED);
+    writer.close();
+
+    Mp4BoxChecker.Track track = Mp4BoxChecker.check(file).getTrack("vide");
+    assertNotNull(track);
+    assertEquals("avc3", track.getSampleEntry());
+    assertEquals(100, track.getSampleCount());
+    assertEquals(4, track.getSyncSampleCount());
+  }
+
+  @Test
+  public void sameSpsKeepsAvc1() throws Exception {
+    File file = newFile("same.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    writer.open(file.getPath());
+    writeVideo(writer, 0, 100, 25, AvccConverterTest.SPS);
+    writer.close();
+    assertEquals("avc1", Mp4BoxChecker.check(file).getTrack("vide").getSampleEntry());
+  }
+
+  // 分片模式下moov已写出，变化后原位改为avc3
+  @Test
+  public void spsChangeFragmented() throws Exception {
+    File file = newFile("change-frag.mp4");
+    Mp4Writer writer = new Mp4Writer();
+    writer.setFragmented(1000);
+    writer.open(file.getPath());
+    writeVideo(writer, 0, 50, 25, AvccConverterTest.SPS);
+    writeVideo(writer, 50, 50, 25, AvccConverterTest.SPS_CHANGED);
+    writer.close();
+
+    Mp4BoxChecker checker = Mp4BoxChecker.check(file);
+    Mp4BoxChecker.Track track = checker.getTrack("vide");
+    assertEquals("avc3", track.getSampleEntry());
+    assertEquals(100, track.getSampleCount());
+    assertEquals(4, checker.getFragmentCount());
+  }
+}
@@ -0,0 +1,441 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MuxerSession在JVM上的完整流程测试 - 模拟码流按源时间交织送入，跑队列、调度、音频编码、分段和写入
+ *
+ * 调度和后台任务都由ManualExecutor在测试线程执行，每送入RUN_EVERY帧执行一次，结果可重复；
+ * 队列使用默认容量和丢帧策略，检查没有丢帧。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class MuxerSessionTest {
+  private static final long SOURCE_BASE_US = 1000000000L;  // 源时间起点，模拟采集时钟
+  private static final long MAX_AV_DIFF_US = 100000;  // 音画时长最大差
+  private static final int RUN_EVERY = 16;
+
+  @Rule
+  public TemporaryFolder mFolder = new TemporaryFolder();
+
+  private StreamGenerator mStream = StreamGenerator.create("480p");
+  private final ManualExecutor mExecutor = new ManualExecutor();
+  private final MemoryOutput.Factory mMemory = new MemoryOutput.Factory();
+  private final List<String> mPaths = new ArrayList<>();
+  private int mVideoFrames;
+  private int mAudioFrames;
+  // ADTS不按帧边界送入: 每次送入上一帧的后mAdtsCut字节和本帧的前一部分
+  private boolean mAdtsSplit;
+  private int mAdtsCut;
+
+  private MuxerSession createSession(boolean adts) {
+    MuxerSession session = new MuxerSession(new MuxerScheduler(mExecutor), new FramePool());
+    session.setAudioEncoderFactory(FakeAudioEncoder.FACTORY);
+    session.setExecutor(mExecutor);
+    session.setAsyncAudio(false);
+    session.setAudioPassThrough(adts);
+    session.setAudioConfig(new AudioConfig(StreamGenerator.SAMPLE_RATE,
+            StreamGenerator.CHANNEL_COUNT));
+    return session;
+  }
+
+  private void setSegment(MuxerSession session, long segmentMs) {
+    session.setSegment(segmentMs, 0, new MuxerSession.SegmentCallback() {
+      @Override
+      public String getNextPath(int index) {
+        return getPath(index);
+      }
+
+      @Override
+      public void onSegmentFinished(String path, int index) {
+      }
+
+      @Override
+      public void onSegmentFailed(String path, int index) {
+      }
+    });
+  }
+
+  private String getPath(int index) {
+    String path = new File(mFolder.getRoot(), "session-" + index + ".mp4").getPath();
+    mPaths.add(path);
+    return path;
+  }
+
+  /**
+   * 按源时间交织送入视频和音频
+   *
+   * @param runEvery : 每送入多少帧执行一次调度，0表示不执行
+   */
+  private void feed(MuxerSession session, long durationUs, boolean adts, int runEvery) {
+    feed(session, durationUs, adts, runEvery, 0, 0, 0);
+  }
+
+  /**
+   * @param audioLagUs : 音频比同一源时间的视频晚送入的时间，模拟音频采集落后
+   * @param stallAtUs : 从这个源时间开始音频停顿
+   * @param stallUs : 停顿时长，停顿期间的音频在视频送到停顿结束时一起送入
+   */
+  private void feed(MuxerSession session, long durationUs, boolean adts, int runEvery,
+                    long audioLagUs, long stallAtUs, long stallUs) {
+    long videoUs = mStream.getVideoTimeUs(mVideoFrames);
+    long audioUs = StreamGenerator.getAudioTimeUs(mAudioFrames);
+    int count = 0;
+    while (videoUs < durationUs || audioUs < durationUs) {
+      long releaseUs = audioUs >= stallAtUs && audioUs < stallAtUs + stallUs
+              ? stallAtUs + stallUs : audioUs;
+      if (videoUs < durationUs && videoUs <= releaseUs + audioLagUs) {
+        byte[] frame = mStream.getVideoFrame(mVideoFrames);
+        session.addVideo(frame, frame.length, mStream.getWidth(), mStream.getHeight(),
+                mStream.isKeyFrame(mVideoFrames) ? MediaFrame.KEY_FRAME : 0,
+                SOURCE_BASE_US + videoUs);
+        mVideoFrames++;
+        videoUs = mStream.getVideoTimeUs(mVideoFrames);
+      } else {
+        byte[] frame = adts ? mStream.getAdtsFrame() : mStream.getPcmFrame();
+        if (adts && mAdtsSplit) {
+          frame = splitAdts(frame);
+        }
+        session.addAudio(frame, frame.length, SOURCE_BASE_US + audioUs, mAudioFrames);
+        mAudioFrames++;
+        audioUs = StreamGenerator.getAudioTimeUs(mAudioFrames);
+      }
+      if (runEvery > 0 && ++count % runEvery == 0) {
+        mExecutor.runPending();
+      }
+    }
+  }
+
+  // 上一帧的后mAdtsCut字节加本帧去掉后cut字节，cut随帧变化，包括切在帧头内
+  private byte[] splitAdts(byte[] adts) {
+    int cut = mAudioFrames * 7 % adts.length;
+    byte[] chunk = new byte[mAdtsCut + adts.length - cut];
+    System.arraycopy(adts, adts.length - mAdtsCut, chunk, 0, mAdtsCut);
+    System.arraycopy(adts, 0, chunk, mAdtsCut, adts.length - cut);
+    mAdtsCut = cut;
+    return chunk;
+  }
+
+  private void stop(MuxerSession session) {
+    stopAllowingDrops(session);
+    MuxerMetrics metrics = session.getMetrics();
+    assertEquals(0, metrics.getVideo().getDroppedFrames());
+    assertEquals(0, metrics.getAudio().getDroppedFrames());
+  }
+
+  private void stopAllowingDrops(MuxerSession session) {
+    session.stop();
+    mExecutor.runPending();
+    assertTrue(session.isFinished());
+    assertEquals(0, mExecutor.getPendingCount());
+    MuxerMetrics metrics = session.getMetrics();
+    assertEquals(String.valueOf(metrics.getLastError()), 0, metrics.getErrors());
+  }
+
+  // 内存输出: 帧数、每段以关键帧开始、时间戳递增、音画时长
+  private void checkMemory() {
+    checkMemory(0);
+  }
+
+  // discardedAudio: 出队后丢弃的音频帧数
+  private void checkMemory(long discardedAudio) {
+    List<MemoryOutput> outputs = mMemory.getOutputs();
+    long video = 0;
+    long audio = 0;
+    for (MemoryOutput output : outputs) {
+      video += output.getVideoFrames();
+      audio += output.getAudioFrames();
+      assertTrue(output.getPath(), output.isClosed());
+      assertTrue(output.getPath(), output.startsWithKeyFrame());
+      assertEquals(output.getPath(), 0, output.getVideoDisorder());
+      assertEquals(output.getPath(), 0, output.getAudioDisorder());
+      assertTrue(output.getPath(), output.getFirstAudioUs() >= 0);
+    }
+    assertEquals(mVideoFrames, video);
+    assertEquals(mAudioFrames, audio + discardedAudio);
+    MemoryOutput last = outputs.get(outputs.size() - 1);
+    assertTrue(last.toString(),
+            Math.abs(last.getLastVideoUs() - last.getLastAudioUs()) <= MAX_AV_DIFF_US);
+  }
+
+  @Test
+  public void pcmToMemory() {
+    MuxerSession session = createSession(false);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 60000000L, false, RUN_EVERY);
+    stop(session);
+    assertEquals(1, mMemory.getOutputs().size());
+    checkMemory();
+  }
+
+  @Test
+  public void adtsSegmentsToMemory() {
+    MuxerSession session = createSession(true);
+    session.setOutputFactory(mMemory);
+    setSegment(session, 10000);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 30000000L, true, RUN_EVERY);
+    stop(session);
+    assertEquals(3, mMemory.getOutputs().size());
+    checkMemory();
+  }
+
+  // ADTS帧跨两次addAudio: 不完整的部分留到下一次，最后一帧的前半部分在结束时丢弃并计数
+  @Test
+  public void adtsSplitAcrossCalls() {
+    MuxerSession session = createSession(true);
+    session.setOutputFactory(mMemory);
+    setSegment(session, 5000);
+    assertTrue(session.start(getPath(0)));
+    mAdtsSplit = true;
+    feed(session, 12000000L, true, RUN_EVERY);
+    stopAllowingDrops(session);
+    MuxerMetrics.Track audio = session.getMetrics().getAudio();
+    assertEquals(mAdtsCut > 0 ? 1 : 0, audio.getDiscardedFrames());
+    assertEquals(0, session.getMetrics().getVideo().getDroppedFrames());
+    assertEquals(2, mMemory.getOutputs().size());
+    checkMemory(audio.getDiscardedFrames());
+  }
+
+  // 音频落后超过分段关闭的等待时间，但一直在送入: 旧文件等到音频写到分段点再关闭
+  @Test
+  public void segmentsWithLaggingAudio() {
+    MuxerSession session = createSession(false);
+    session.setOutputFactory(mMemory);
+    setSegment(session, 5000);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 20000000L, false, RUN_EVERY, 1500000, 0, 0);
+    stop(session);
+    assertEquals(4, mMemory.getOutputs().size());
+    checkMemory();
+  }
+
+  // 分段点(6秒处的关键帧)前音频停顿超过等待时间: 旧分段关闭后到达的音频丢弃并计数，新文件中没有负的时间戳
+  @Test
+  public void segmentsWithStalledAudio() {
+    MuxerSession session = createSession(false);
+    session.setOutputFactory(mMemory);
+    setSegment(session, 5000);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 20000000L, false, RUN_EVERY, 0, 5500000, 2500000);
+    stopAllowingDrops(session);
+    MuxerMetrics.Track audio = session.getMetrics().getAudio();
+    assertTrue(audio.getDiscardedFrames() > 0);
+    assertEquals(audio.getDiscardedFrames(), audio.getDroppedFrames());
+    assertEquals(0, session.getMetrics().getVideo().getDroppedFrames());
+    assertEquals(4, mMemory.getOutputs().size());
+    checkMemory(audio.getDiscardedFrames());
+  }
+
+  // stop时队列中还有帧: 全部写入，编码器剩余数据也写入
+  @Test
+  public void stopWithQueuedFrames() {
+    MuxerSession session = createSession(false);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    // 4秒: 100帧视频、172帧音频，都在默认队列容量内
+    feed(session, 4000000L, false, 0);
+    assertTrue(session.getVideoQueue().getDepth() > 0);
+    assertTrue(session.getAudioQueue().getDepth() > 0);
+    stop(session);
+    checkMemory();
+  }
+
+  private FakeAudioEncoder mEncoder;
+
+  // 记录创建的模拟编码器
+  private void captureEncoder(MuxerSession session) {
+    session.setAudioEncoderFactory(new AudioEncoder.Factory() {
+      @Override
+      public AudioEncoder create(FramePool pool, TimestampEngine timestamps,
+                                 AudioEncoder.Listener listener) {
+        mEncoder = new FakeAudioEncoder(timestamps, listener);
+        return mEncoder;
+      }
+    });
+  }
+
+  // 编码器暂时不接收输入: 帧保留到下次调度重试，不丢帧
+  @Test
+  public void encoderBusyRetries() {
+    MuxerSession session = createSession(false);
+    captureEncoder(session);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 2000000L, false, RUN_EVERY);
+    mEncoder.setBusy(5);
+    feed(session, 4000000L, false, RUN_EVERY);
+    stop(session);
+    assertEquals(5, mEncoder.getRejectedCount());
+    checkMemory();
+  }
+
+  // 回调模式结束: 工作线程送入EOS后不等待，编码器输出EOS时再调度关闭文件
+  @Test
+  public void encoderFinishDoesNotBlock() {
+    MuxerSession session = createSession(false);
+    captureEncoder(session);
+    ManualExecutor timers = new ManualExecutor();
+    session.setExecutor(timers);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 2000000L, false, RUN_EVERY);
+    mEncoder.setDeferFinish(true);
+    session.stop();
+    mExecutor.runPending();
+    // 没有关闭也没有重新排队，超时任务在后台等待
+    assertFalse(session.isFinished());
+    assertEquals(0, mExecutor.getPendingCount());
+    assertEquals(1, timers.getPendingCount());
+
+    mEncoder.completeFinish();
+    assertEquals(1, mExecutor.getPendingCount());
+    mExecutor.runPending();
+    assertTrue(session.isFinished());
+    checkMemory();
+  }
+
+  // 编码器一直不输出EOS: 超时后由后台任务调度关闭文件
+  @Test
+  public void encoderFinishTimeout() {
+    MuxerSession session = createSession(false);
+    captureEncoder(session);
+    ManualExecutor timers = new ManualExecutor();
+    session.setExecutor(timers);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 2000000L, false, RUN_EVERY);
+    mEncoder.setDeferFinish(true);
+    session.stop();
+    mExecutor.runPending();
+    assertFalse(session.isFinished());
+
+    timers.runPending();
+    mExecutor.runPending();
+    assertTrue(session.isFinished());
+    assertFalse(mEncoder.isFinished());
+    checkMemory();
+  }
+
+  // 编码器一直不接收输入: 每帧重试有限次数后丢弃并计数，stop仍能结束
+  @Test
+  public void encoderStalledDiscards() {
+    MuxerSession session = createSession(false);
+    captureEncoder(session);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 2000000L, false, RUN_EVERY);
+    mEncoder.setBusy(Integer.MAX_VALUE);
+    feed(session, 3000000L, false, RUN_EVERY);
+    stopAllowingDrops(session);
+    MuxerMetrics.Track audio = session.getMetrics().getAudio();
+    assertEquals(0, session.getMetrics().getVideo().getDroppedFrames());
+    assertTrue(audio.getDiscardedFrames() > 0);
+    assertEquals(audio.getDiscardedFrames(), audio.getDroppedFrames());
+    assertEquals(mAudioFrames, audio.getFramesIn());
+  }
+
+  // 写入失败计入错误数，不影响结束
+  @Test
+  public void writeFailure() {
+    MuxerSession session = createSession(false);
+    mMemory.setFailAfter(50);
+    session.setOutputFactory(mMemory);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 4000000L, false, RUN_EVERY);
+    session.stop();
+    mExecutor.runPending();
+    assertTrue(session.isFinished());
+    MuxerMetrics metrics = session.getMetrics();
+    assertEquals(mVideoFrames + mAudioFrames - 50,
+            metrics.getVideo().getWriteErrors() + metrics.getAudio().getWriteErrors());
+  }
+
+  // 纯JAVA写入文件，按字节检查结构和样本数
+  @Test
+  public void javaWriterFile() throws Exception {
+    MuxerSession session = createSession(false);
+    session.setBackend(VideoMuxer.Backend.java);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 20000000L, false, RUN_EVERY);
+    stop(session);
+    checkFiles();
+  }
+
+  // 实际30帧/秒，标称帧率仍为默认的25: 视频时长与音频一致
+  @Test
+  public void frameRateAboveNominal() throws Exception {
+    mStream = new StreamGenerator(640, 480, 800000, 30, 60);
+    MuxerSession session = createSession(false);
+    session.setBackend(VideoMuxer.Backend.java);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 20000000L, false, RUN_EVERY);
+    stop(session);
+    checkFiles();
+  }
+
+  @Test
+  public void fragmentedFile() throws Exception {
+    MuxerSession session = createSession(true);
+    session.setFragmented(true, 1000);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 20000000L, true, RUN_EVERY);
+    stop(session);
+    checkFiles();
+  }
+
+  @Test
+  public void faststartSegmentFiles() throws Exception {
+    MuxerSession session = createSession(false);
+    session.setFaststart(10000);
+    setSegment(session, 10000);
+    assertTrue(session.start(getPath(0)));
+    feed(session, 30000000L, false, RUN_EVERY);
+    stop(session);
+    assertEquals(3, mPaths.size());
+    for (String path : mPaths) {
+      List<String> boxes = Mp4BoxChecker.check(new File(path)).getTopLevel();
+      assertTrue(path + " " + boxes, boxes.indexOf("moov") < boxes.indexOf("mdat"));
+    }
+    checkFiles();
+  }
+
+  private void checkFiles() throws Exception {
+    long video = 0;
+    long audio = 0;
+    long videoUs = 0;
+    long audioUs = 0;
+    for (String path : mPaths) {
+      Mp4BoxChecker checker = Mp4BoxChecker.check(new File(path));
+      assertEquals(path, "ftyp", checker.getTopLevel().get(0));
+      Mp4BoxChecker.Track videoTrack = checker.getTrack("vide");
+      Mp4BoxChecker.Track audioTrack = checker.getTrack("soun");
+      assertNotNull(path, videoTrack);
+      assertNotNull(path, audioTrack);
+      assertTrue(path, videoTrack.getSyncSampleCount() > 0);
+      video += videoTrack.getSampleCount();
+      audio += audioTrack.getSampleCount();
+      videoUs = videoTrack.getDurationUs();
+      audioUs = audioTrack.getDurationUs();
+    }
+    assertEquals(mVideoFrames, video);
+    assertEquals(mAudioFrames, audio);
+    assertFalse(videoUs + " vs " + audioUs, Math.abs(videoUs - audioUs) > MAX_AV_DIFF_US);
+  }
+}
@@ -0,0 +1,137 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * NalScanner测试 - 3/4字节起始码、跳跃查找与逐字节查找一致、起始码被缓存边界切开、ByteBuffer
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class NalScannerTest {
+  private final NalScanner mScanner = new NalScanner();
+
+  private void assertNal(byte[] data, byte[] expected, int startCodeLength) {
+    assertTrue(mScanner.next());
+    assertEquals(expected[0] & 0x1f, mScanner.getType());
+    assertEquals(startCodeLength, mScanner.getStartCodeLength());
+    byte[] actual = new byte[mScanner.getLength()];
+    System.arraycopy(data, mScanner.getOffset(), actual, 0, actual.length);
+    assertArrayEquals(expected, actual);
+    assertArrayEquals(expected, mScanner.copy());
+  }
+
+  // 逐字节查找00 00 01
+  private static int findNaive(byte[] data, int from, int end) {
+    for (int i = from; i + 2 < end; i++) {
+      if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void threeAndFourByteStartCodes() {
+    byte[] sps = AvccConverterTest.SPS;
+    byte[] pps = AvccConverterTest.PPS;
+    byte[] idr = AvccConverterTest.IDR;
+    // 起始码前的无效数据跳过；3字节起始码后跟4字节起始码
+    byte[] data = AdtsParserTest.concat(new byte[] {0x12, 0x34}, new byte[] {0, 0, 1}, sps,
+            StreamGenerator.annexB(pps, idr));
+    mScanner.reset(data, 0, data.length);
+    assertTrue(mScanner.hasStartCode());
+    assertNal(data, sps, 3);
+    assertNal(data, pps, 4);
+    assertNal(data, idr, 4);
+    assertFalse(mScanner.next());
+    assertTrue(NalScanner.isKeyFrame(data, 0, data.length, mScanner));
+
+    byte[] slice = StreamGenerator.annexB(AvccConverterTest.SLICE);
+    assertFalse(NalScanner.isKeyFrame(slice, 0, slice.length, mScanner));
+    mScanner.reset(new byte[] {0x65, 0x12, 0x34}, 0, 3);
+    assertFalse(mScanner.hasStartCode());
+    assertFalse(mScanner.next());
+  }
+
+  // 按3字节跳跃的查找不能漏掉任何位置的起始码
+  @Test
+  public void findStartCodeMatchesNaive() {
+    Random random = new Random(1);
+    byte[] data = new byte[4096];
+    for (int i = 0; i < data.length; i++) {
+      int r = random.nextInt(8);
+      data[i] = (byte) (r < 4 ? 0 : r < 6 ? 1 : random.nextInt(256));
+    }
+    for (int from = 0; from < data.length; from++) {
+      int end = data.length - from % 7;
+      assertEquals("from " + from, findNaive(data, from, end),
+              NalScanner.findStartCode(data, from, end));
+    }
+  }
+
+  /**
+   * 起始码被切开: 前一段以00结尾、后一段从起始码中间开始
+   *
+   * 每段单独扫描，不读取范围外的字节；前一段末尾的0计入最后一个NAL，
+   * 后一段只剩"00 01"、"01"或为空时没有起始码。
+   */
+  @Test
+  public void startCodeSplitAtRangeEnd() {
+    byte[] sps = AvccConverterTest.SPS;
+    byte[] idr = AvccConverterTest.IDR;
+    // 两边加上范围外的数据，检查不会越界读取
+    byte[] stream = StreamGenerator.annexB(sps, idr);
+    byte[] data = AdtsParserTest.concat(new byte[] {0, 0}, stream, new byte[] {0, 0, 1, 9});
+    int base = 2;
+    int code = base + 4 + sps.length;  // 第二个起始码00 00 00 01的位置
+    for (int cut = code; cut <= code + 4; cut++) {
+      // 前一段: 只有SPS，末尾不完整起始码的0计入SPS；完整起始码后没有数据时不返回空NAL
+      mScanner.reset(data, base, cut - base);
+      assertTrue(mScanner.next());
+      assertEquals(NalScanner.NAL_SPS, mScanner.getType());
+      assertEquals(cut == code + 4 ? sps.length : sps.length + cut - code, mScanner.getLength());
+      assertFalse(mScanner.next());
+
+      // 后一段
+      mScanner.reset(data, cut, base + stream.length - cut);
+      if (cut <= code + 1) {
+        assertNal(data, idr, cut == code ? 4 : 3);
+      } else {
+        assertFalse(mScanner.hasStartCode());
+      }
+      assertFalse(mScanner.next());
+    }
+  }
+
+  // ByteBuffer: 有数组、直接缓存，只扫描[position, limit)
+  @Test
+  public void scanByteBuffer() {
+    byte[] stream = StreamGenerator.annexB(AvccConverterTest.AUD, AvccConverterTest.SPS,
+            AvccConverterTest.IDR);
+    byte[] data = AdtsParserTest.concat(new byte[] {0, 0, 1, 9}, stream, new byte[] {0, 0, 1, 9});
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data);
+    ByteBuffer[] buffers = {ByteBuffer.wrap(data), direct};
+    for (ByteBuffer buffer : buffers) {
+      buffer.limit(4 + stream.length).position(4);
+      mScanner.reset(buffer);
+      assertNal(data, AvccConverterTest.AUD, 4);
+      assertNal(data, AvccConverterTest.SPS, 4);
+      assertNal(data, AvccConverterTest.IDR, 4);
+      assertFalse(mScanner.next());
+      assertEquals(4, buffer.position());
+    }
+  }
+}
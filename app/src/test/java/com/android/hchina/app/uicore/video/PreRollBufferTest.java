@@ -0,0 +1,198 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PreRollBuffer测试 - 按GOP淘汰、flush期间拒绝新帧、开始录制时生产线程并发送入
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class PreRollBufferTest {
+  private static final long FRAME_US = 40000;
+  private static final int GOP = 25;
+  private static final long AUDIO_US = 23220;
+
+  private final FramePool mPool = new FramePool();
+  private final StreamGenerator mStream = StreamGenerator.create("480p");
+
+  private MediaFrame videoFrame(int index) {
+    byte[] data = mStream.getVideoFrame(index);
+    MediaFrame frame = mPool.obtain(data.length);
+    frame.set(data, 0, data.length);
+    frame.width = mStream.getWidth();
+    frame.height = mStream.getHeight();
+    frame.frameType = index % GOP == 0 ? MediaFrame.KEY_FRAME : 0;
+    frame.timeUs = index * FRAME_US;
+    return frame;
+  }
+
+  private MediaFrame audioFrame(int index) {
+    byte[] data = mStream.getPcmFrame();
+    MediaFrame frame = mPool.obtain(data.length);
+    frame.set(data, 0, data.length);
+    frame.timeUs = index * AUDIO_US;
+    frame.seq = index;
+    return frame;
+  }
+
+  // 保留至少覆盖时长的最近关键帧之后的数据，总是从关键帧开始
+  @Test
+  public void keepsWholeGops() {
+    PreRollBuffer buffer = new PreRollBuffer(mPool, 2000, Long.MAX_VALUE);
+    for (int i = 0; i < 260; i++) {
+      assertTrue(buffer.addVideo(videoFrame(i)));
+    }
+    assertEquals(200 * FRAME_US, buffer.beginFlush());
+    assertEquals(60, buffer.getVideoCount());
+    MediaFrame first = buffer.pollVideo();
+    assertTrue(first.isKeyFrame());
+    assertEquals(200 * FRAME_US, first.timeUs);
+  }
+
+  @Test
+  public void byteLimit() {
+    int size = mStream.getVideoFrame(1).length;
+    PreRollBuffer buffer = new PreRollBuffer(mPool, 60000, size * 40L);
+    for (int i = 0; i < 200; i++) {
+      buffer.addVideo(videoFrame(i));
+    }
+    assertTrue(buffer.getBytes() <= size * 40L + mStream.getVideoFrame(0).length);
+    assertEquals(175 * FRAME_US, buffer.beginFlush());
+  }
+
+  // 音频不早于起始关键帧
+  @Test
+  public void audioFromStartKey() {
+    PreRollBuffer buffer = new PreRollBuffer(mPool, 1000, Long.MAX_VALUE);
+    int audio = 0;
+    for (int i = 0; i < 100; i++) {
+      buffer.addVideo(videoFrame(i));
+      while (audio * AUDIO_US <= i * FRAME_US) {
+        buffer.addAudio(audioFrame(audio++));
+      }
+    }
+    long startUs = buffer.beginFlush();
+    assertEquals(50 * FRAME_US, startUs);
+    MediaFrame first = buffer.pollAudio();
+    assertTrue(first.timeUs >= startUs);
+    assertTrue(first.timeUs - startUs < AUDIO_US);
+  }
+
+  // flush期间拒绝新帧(帧仍归调用者)，endFlush回收剩余帧并重新开始缓存
+  @Test
+  public void flushRejectsNewFrames() {
+    PreRollBuffer buffer = new PreRollBuffer(mPool, 2000, Long.MAX_VALUE);
+    for (int i = 0; i < 60; i++) {
+      buffer.addVideo(videoFrame(i));
+      buffer.addAudio(audioFrame(i));
+    }
+    assertEquals(0, buffer.beginFlush());
+    assertTrue(buffer.isFlushing());
+    int count = buffer.getVideoCount();
+
+    MediaFrame late = videoFrame(60);
+    assertFalse(buffer.addVideo(late));
+    assertFalse(buffer.addAudio(audioFrame(60)));
+    assertEquals(count, buffer.getVideoCount());
+    // 新的关键帧不能淘汰已确定的起始关键帧
+    assertFalse(buffer.addVideo(videoFrame(75)));
+    assertEquals(0, buffer.pollVideo().timeUs);
+
+    buffer.endFlush();
+    assertFalse(buffer.isFlushing());
+    assertEquals(0, buffer.getVideoCount());
+    assertEquals(0, buffer.getAudioCount());
+    assertNull(buffer.pollVideo());
+    assertTrue(buffer.addVideo(late));
+  }
+
+  /**
+   * 开始录制时生产线程持续送入: 与VideoMuxer相同，先送入预录缓存，被拒绝时送入会话；
+   * 会话在预录缓存的锁内开始并发布。写入的帧连续且有序。
+   */
+  @Test
+  public void producerDuringStart() throws Exception {
+    final PreRollBuffer buffer = new PreRollBuffer(mPool, 3000, Long.MAX_VALUE);
+    final ManualExecutor executor = new ManualExecutor();
+    MemoryOutput.Factory memory = new MemoryOutput.Factory();
+    final MuxerSession session = new MuxerSession(new MuxerScheduler(executor), mPool);
+    session.setOutputFactory(memory);
+    session.setAudioEncoderFactory(FakeAudioEncoder.FACTORY);
+    session.setExecutor(executor);
+    session.setAsyncAudio(false);
+    session.setAudioConfig(new AudioConfig(StreamGenerator.SAMPLE_RATE,
+            StreamGenerator.CHANNEL_COUNT));
+    session.setQueueCapacity(4096, 4096);
+    final MuxerSession[] published = new MuxerSession[1];
+    final int total = 1000;
+    final int[] produced = new int[1];
+
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < total; i++) {
+          MediaFrame frame = videoFrame(i);
+          MuxerSession current;
+          synchronized (published) {
+            current = published[0];
+          }
+          if (current != null && current.isRecording()) {
+            current.addVideo(frame);
+          } else if (!buffer.addVideo(frame)) {
+            synchronized (published) {
+              published[0].addVideo(frame);
+            }
+          }
+          synchronized (produced) {
+            produced[0] = i + 1;
+          }
+          Thread.yield();
+        }
+      }
+    });
+    producer.start();
+    while (getCount(produced) < 200) {
+      Thread.yield();
+    }
+    synchronized (buffer) {
+      assertTrue(session.start("pre-roll", buffer));
+      synchronized (published) {
+        published[0] = session;
+      }
+    }
+    while (producer.isAlive()) {
+      executor.runPending();
+      Thread.yield();
+    }
+    producer.join();
+    session.stop();
+    executor.runPending();
+    assertTrue(session.isFinished());
+    assertEquals(0, session.getMetrics().getVideo().getDroppedFrames());
+
+    MemoryOutput output = memory.getOutputs().get(0);
+    assertTrue(output.startsWithKeyFrame());
+    assertEquals(0, output.getVideoDisorder());
+    // 从预录的某个关键帧开始到最后一帧，中间没有缺失
+    long frames = output.getVideoFrames();
+    assertEquals(0, (total - frames) % GOP);
+    assertTrue(frames > total - 200);
+    assertEquals(frames - 1,
+            (output.getLastVideoUs() - output.getFirstVideoUs() + FRAME_US / 2) / FRAME_US);
+  }
+
+  private static int getCount(int[] produced) {
+    synchronized (produced) {
+      return produced[0];
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package com.android.hchina.app.uicore.video;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 模拟码流 - 按分辨率、码率、帧率、GOP生成H264(Annex-B)和AAC帧(裸数据/ADTS)，以及PCM
+ *
+ * 负载为随机非零字节，不会出现伪起始码；关键帧带SPS/PPS，大小约为普通帧的4倍。
+ * 音频为44.1kHz双声道LC，每帧1024个采样。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-31
+ */
+public class StreamGenerator {
+  private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01,
+          0x40, 0x16, (byte) 0xe8, 0x40};
+  private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+  private static final int KEY_WEIGHT = 4;  // 关键帧相对普通帧的大小
+  public static final int SAMPLE_RATE = 44100;
+  public static final int AUDIO_BIT_RATE = 64000;
+  public static final int AAC_FRAME_SIZE = 1024;
+  public static final int CHANNEL_COUNT = 2;
+  private static final int ADTS_HEADER_SIZE = 7;
+  private static final int AAC_PROFILE_LC = 2;
+  private static final int SAMPLE_RATE_INDEX = 4;  // 44100
+
+  private final int mWidth;
+  private final int mHeight;
+  private final int mFrameRate;
+  private final byte[][] mFrames;
+  private final byte[] mAudioFrame;
+  private final byte[] mAdtsFrame;
+  private final byte[] mPcmFrame;
+
+  /**
+   * @param width : 宽
+   * @param height : 高
+   * @param bitRate : 视频码率(bps)
+   * @param frameRate : 帧率
+   * @param gop : 关键帧间隔(帧)
+   */
+  public StreamGenerator(int width, int height, int bitRate, int frameRate, int gop) {
+    mWidth = width;
+    mHeight = height;
+    mFrameRate = frameRate;
+    Random random = new Random(width * 31L + height);
+
+    // 一个GOP内的平均大小与码率一致
+    int average = bitRate / 8 / frameRate;
+    int frameSize = Math.max(average * gop / (gop - 1 + KEY_WEIGHT), 64);
+    mFrames = new byte[Math.max(gop, 1)][];
+    for (int i = 0; i < mFrames.length; i++) {
+      mFrames[i] = createFrame(random, i == 0, i == 0 ? frameSize * KEY_WEIGHT : frameSize);
+    }
+
+    int audioSize = AUDIO_BIT_RATE / 8 * AAC_FRAME_SIZE / SAMPLE_RATE;
+    mAudioFrame = new byte[audioSize];
+    fill(random, mAudioFrame, 0, audioSize);
+    mAdtsFrame = createAdtsFrame(mAudioFrame);
+    // 1kHz正弦波
+    mPcmFrame = new byte[AAC_FRAME_SIZE * CHANNEL_COUNT * 2];
+    for (int i = 0; i < AAC_FRAME_SIZE; i++) {
+      short sample = (short) (Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE) * 8000);
+      for (int c = 0; c < CHANNEL_COUNT; c++) {
+        int pos = (i * CHANNEL_COUNT + c) * 2;
+        mPcmFrame[pos] = (byte) sample;
+        mPcmFrame[pos + 1] = (byte) (sample >> 8);
+      }
+    }
+  }
+
+  // 常用规格: 480p / 720p / 1080p，25帧，2秒一个关键帧
+  public static StreamGenerator create(String resolution) {
+    if ("1080p".equals(resolution)) {
+      return new StreamGenerator(1920, 1080, 4000000, 25, 50);
+    } else if ("720p".equals(resolution)) {
+      return new StreamGenerator(1280, 720, 2000000, 25, 50);
+    }
+    return new StreamGenerator(640, 480, 800000, 25, 50);
+  }
+
+  private static byte[] createFrame(Random random, boolean key, int size) {
+    int header = key ? SPS.length + PPS.length : 0;
+    byte[] frame = new byte[header + size];
+    int pos = 0;
+    if (key) {
+      System.arraycopy(SPS, 0, frame, 0, SPS.length);
+      System.arraycopy(PPS, 0, frame, SPS.length, PPS.length);
+      pos = header;
+    }
+    frame[pos + 3] = 1;
+    frame[pos + 4] = (byte) (key ? 0x65 : 0x41);
+    fill(random, frame, pos + 5, frame.length);
+    // 每帧一个slice，first_mb_in_slice为0(ue(v)的第一位为1)
+    frame[pos + 5] |= 0x80;
+    return frame;
+  }
+
+  // ADTS头(无CRC) + AAC
+  private static byte[] createAdtsFrame(byte[] aac) {
+    int length = ADTS_HEADER_SIZE + aac.length;
+    byte[] frame = new byte[length];
+    frame[0] = (byte) 0xFF;
+    frame[1] = (byte) 0xF1;
+    frame[2] = (byte) (((AAC_PROFILE_LC - 1) << 6) | (SAMPLE_RATE_INDEX << 2)
+            | (CHANNEL_COUNT >> 2));
+    frame[3] = (byte) (((CHANNEL_COUNT & 3) << 6) | (length >> 11));
+    frame[4] = (byte) (length >> 3);
+    frame[5] = (byte) (((length & 7) << 5) | 0x1F);
+    frame[6] = (byte) 0xFC;
+    System.arraycopy(aac, 0, frame, ADTS_HEADER_SIZE, aac.length);
+    return frame;
+  }
+
+  private static void fill(Random random, byte[] data, int from, int to) {
+    for (int i = from; i < to; i++) {
+      data[i] = (byte) (random.nextInt(255) + 1);
+    }
+  }
+
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  public int getFrameRate() {
+    return mFrameRate;
+  }
+
+  // 一个GOP的帧数
+  public int getFrameCount() {
+    return mFrames.length;
+  }
+
+  // 第index帧(按GOP循环)
+  public byte[] getVideoFrame(int index) {
+    return mFrames[index % mFrames.length];
+  }
+
+  public boolean isKeyFrame(int index) {
+    return index % mFrames.length == 0;
+  }
+
+  // 之后每个关键帧改为frame，模拟码流中途SPS变化
+  public void setKeyFrame(byte[] frame) {
+    mFrames[0] = frame;
+  }
+
+  // 第index帧的时间(微秒)
+  public long getVideoTimeUs(int index) {
+    return index * 1000000L / mFrameRate;
+  }
+
+  // 一帧AAC(不含ADTS头)
+  public byte[] getAudioFrame() {
+    return mAudioFrame;
+  }
+
+  // 一帧AAC(含ADTS头)，用于音频直通
+  public byte[] getAdtsFrame() {
+    return mAdtsFrame;
+  }
+
+  // 一个AAC帧时长的PCM(16位双声道)
+  public byte[] getPcmFrame() {
+    return mPcmFrame;
+  }
+
+  // 第index个AAC帧的时间(微秒)
+  public static long getAudioTimeUs(int index) {
+    return index * (long) AAC_FRAME_SIZE * 1000000L / SAMPLE_RATE;
+  }
+
+  // 拼接NAL单元(不含起始码)为Annex-B，每个前面加4字节起始码
+  public static byte[] annexB(byte[]... nals) {
+    int length = 0;
+    for (byte[] nal : nals) {
+      length += 4 + nal.length;
+    }
+    byte[] frame = new byte[length];
+    int pos = 0;
+    for (byte[] nal : nals) {
+      frame[pos + 3] = 1;
+      System.arraycopy(nal, 0, frame, pos + 4, nal.length);
+      pos += 4 + nal.length;
+    }
+    return frame;
+  }
+
+  /**
+   * 向writer写入第from到to-1帧视频，每帧之后写入到下一帧时间之前的音频；from为0时先设置音频格式
+   *
+   * 帧数组按GOP循环使用，不能原地改写，写入前关闭writer的原地转换。
+   *
+   * @param direct : 视频从直接缓存写入
+   * @return 写入成功的视频帧数
+   */
+  public int write(Mp4Writer writer, int from, int to, boolean direct) {
+    writer.setInPlaceConversion(false);
+    if (from == 0) {
+      writer.setAudioFormat(SAMPLE_RATE, CHANNEL_COUNT, null);
+    }
+    int audio = 0;
+    while (getAudioTimeUs(audio) < getVideoTimeUs(from)) {
+      audio++;
+    }
+    ByteBuffer buffer = null;
+    int written = 0;
+    for (int i = from; i < to; i++) {
+      byte[] frame = getVideoFrame(i);
+      int result;
+      if (direct) {
+        if (buffer == null || buffer.capacity() < frame.length) {
+          buffer = ByteBuffer.allocateDirect(frame.length);
+        }
+        buffer.clear();
+        buffer.put(frame).flip();
+        result = writer.writeVideo(buffer, mWidth, mHeight, isKeyFrame(i), getVideoTimeUs(i));
+      } else {
+        result = writer.writeVideo(frame, 0, frame.length, mWidth, mHeight, isKeyFrame(i),
+                getVideoTimeUs(i));
+      }
+      if (result > 0) {
+        written++;
+      }
+      while (getAudioTimeUs(audio) < getVideoTimeUs(i + 1)) {
+        writer.writeAudio(mAudioFrame, 0, mAudioFrame.length, getAudioTimeUs(audio++));
+      }
+    }
+    return written;
+  }
+
+  // 同一时长内的音频帧数与视频帧数之比
+  public double getAudioPerVideo() {
+    return (double) SAMPLE_RATE / AAC_FRAME_SIZE / mFrameRate;
+  }
+}
@@ -0,0 +1,121 @@
+package com.android.hchina.app.uicore.video;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TimestampEngine测试 - 实际帧率与标称帧率不同、丢帧、抖动时视频时间跟随源时间
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-08-23
+ */
+public class TimestampEngineTest {
+  private static final long BASE_US = 5000000000L;
+  private static final int NOMINAL = 25;
+  private static final long MAX_ERROR_US = 5000;
+
+  /**
+   * 按帧间隔送入count帧，检查输出递增且与源时间的偏差不超过MAX_ERROR_US
+   *
+   * @param dropEvery : 每多少帧丢一帧，0表示不丢
+   * @param jitterUs : 源时间随机抖动的幅度
+   */
+  private static void run(TimestampEngine engine, long intervalUs, int count, int dropEvery,
+                          long jitterUs) {
+    Random random = new Random(1);
+    long last = -1;
+    for (int i = 0; i < count; i++) {
+      if (dropEvery > 0 && i % dropEvery == dropEvery - 1) {
+        continue;
+      }
+      long ideal = i * intervalUs;
+      long jitter = jitterUs > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitterUs) : 0;
+      long pts = engine.videoTime(BASE_US + ideal + (i > 0 ? jitter : 0));
+      assertTrue("frame " + i, pts > last);
+      assertTrue("frame " + i + ": " + pts + " vs " + ideal,
+              Math.abs(pts - ideal) <= MAX_ERROR_US + jitterUs);
+      last = pts;
+    }
+  }
+
+  @Test
+  public void nominalRate() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    run(engine, 40000, 500, 0, 0);
+    assertEquals(40000, engine.getFrameInterval());
+  }
+
+  // 实际30帧/秒: 不能按40ms预测后逐帧漂移
+  @Test
+  public void fasterThanNominal() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    run(engine, 33333, 900, 0, 0);
+    assertEquals(33333, engine.getFrameInterval());
+  }
+
+  @Test
+  public void slowerThanNominal() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    run(engine, 66666, 300, 0, 0);
+    assertEquals(66666, engine.getFrameInterval());
+  }
+
+  // 丢帧留下的间隔保留在输出时间中，不影响帧间隔估计
+  @Test
+  public void droppedFrames() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    run(engine, 33333, 900, 7, 0);
+    assertEquals(33333, engine.getFrameInterval());
+
+    engine.reset();
+    run(engine, 40000, 500, 3, 0);
+    assertEquals(40000, engine.getFrameInterval());
+  }
+
+  // 连续丢多帧
+  @Test
+  public void droppedBurst() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    long last = -1;
+    for (int i = 0; i < 200; i++) {
+      if (i >= 100 && i < 110) {
+        continue;
+      }
+      long pts = engine.videoTime(BASE_US + i * 33333L);
+      assertTrue(pts > last);
+      assertTrue(i + ": " + pts, Math.abs(pts - i * 33333L) <= MAX_ERROR_US);
+      last = pts;
+    }
+  }
+
+  // 源时间抖动(帧间隔的1/8)，同时丢帧
+  @Test
+  public void jitter() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    run(engine, 33333, 900, 0, 4000);
+    assertTrue(Math.abs(engine.getFrameInterval() - 33333) < 1000);
+
+    engine.reset();
+    run(engine, 33333, 900, 5, 4000);
+    assertTrue(Math.abs(engine.getFrameInterval() - 33333) < 1000);
+  }
+
+  // 未知帧率时标称值只用于最初几帧
+  @Test
+  public void frameRateChange() {
+    TimestampEngine engine = new TimestampEngine(NOMINAL, 44100);
+    engine.setFrameRate(30);
+    assertEquals(33333, engine.getFrameInterval());
+    run(engine, 40000, 100, 0, 0);
+    assertEquals(40000, engine.getFrameInterval());
+    engine.reset();
+    assertEquals(33333, engine.getFrameInterval());
+  }
+}
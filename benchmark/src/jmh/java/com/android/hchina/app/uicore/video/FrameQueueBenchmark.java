@@ -0,0 +1,102 @@
+package com.android.hchina.app.uicore.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 帧队列基准 - addVideo路径(借帧、拷贝、入队、出队、回收)及跨线程吞吐
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-31
+ */
+public class FrameQueueBenchmark {
+  private static final int CAPACITY = 128;
+
+  // 单线程: 一帧从生产者到消费者的完整路径
+  @State(Scope.Thread)
+  public static class Local {
+    @Param({"480p", "1080p"})
+    public String resolution;
+
+    StreamGenerator stream;
+    FramePool pool;
+    FrameQueue queue;
+    int index;
+
+    @Setup
+    public void setup() {
+      stream = StreamGenerator.create(resolution);
+      pool = new FramePool();
+      queue = new FrameQueue(CAPACITY, true, pool);
+    }
+  }
+
+  @Benchmark
+  public int addVideo(Local state) {
+    int index = state.index++;
+    byte[] data = state.stream.getVideoFrame(index);
+    MediaFrame frame = state.pool.obtain(data.length);
+    frame.set(data, 0, data.length);
+    frame.frameType = state.stream.isKeyFrame(index) ? MediaFrame.KEY_FRAME : 1;
+    frame.timeUs = state.stream.getVideoTimeUs(index);
+    state.queue.offer(frame);
+
+    MediaFrame polled = state.queue.poll();
+    int size = polled.size;
+    state.pool.recycle(polled);
+    return size;
+  }
+
+  // 跨线程: 采集线程入队，写线程出队
+  @State(Scope.Group)
+  public static class Shared {
+    @Param({"dropNewest", "block"})
+    public String policy;
+
+    StreamGenerator stream;
+    FramePool pool;
+    FrameQueue queue;
+
+    @Setup
+    public void setup() {
+      stream = StreamGenerator.create("720p");
+      pool = new FramePool();
+      queue = new FrameQueue(CAPACITY, false, pool);
+      queue.setPolicy(FrameQueue.Policy.valueOf(policy));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Producer {
+    int index;
+  }
+
+  @Benchmark
+  @Group("spsc")
+  @GroupThreads(1)
+  public boolean offer(Shared state, Producer producer) {
+    byte[] data = state.stream.getVideoFrame(producer.index++);
+    MediaFrame frame = state.pool.obtain(data.length);
+    frame.set(data, 0, data.length);
+    return state.queue.offer(frame);
+  }
+
+  @Benchmark
+  @Group("spsc")
+  @GroupThreads(1)
+  public MediaFrame poll(Shared state) {
+    MediaFrame frame = state.queue.poll();
+    if (frame != null) {
+      state.pool.recycle(frame);
+    }
+    return frame;
+  }
+}
@@ -0,0 +1,90 @@
+package com.android.hchina.app.uicore.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * MP4写入基准 - 按码率交错写入视频帧和AAC帧到临时文件
+ *
+ * 每次操作写一帧视频及同一时长内的音频，帧先拷贝到缓存中，与实际写入线程相同。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-31
+ */
+@State(Scope.Thread)
+public class Mp4WriterBenchmark {
+  @Param({"720p", "1080p"})
+  public String resolution;
+
+  // 0: 普通MP4，大于0: 分片时长(毫秒)
+  @Param({"0", "1000"})
+  public long fragmentMs;
+
+  // 写缓存大小，0表示每个样本直接写文件
+  @Param({"0", "1048576"})
+  public int bufferSize;
+
+  private StreamGenerator mStream;
+  private byte[] mScratch;
+  private File mFile;
+  private Mp4Writer mWriter;
+  private int mVideoIndex;
+  private int mAudioIndex;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    mStream = StreamGenerator.create(resolution);
+    mScratch = new byte[mStream.getVideoFrame(0).length];
+  }
+
+  @Setup(Level.Iteration)
+  public void open() throws IOException {
+    mFile = File.createTempFile("bench", ".mp4");
+    mWriter = new Mp4Writer();
+    mWriter.setBufferSize(bufferSize);
+    if (fragmentMs > 0) {
+      mWriter.setFragmented(fragmentMs);
+    }
+    mWriter.open(mFile.getPath());
+    mWriter.setAudioFormat(StreamGenerator.SAMPLE_RATE, 2,
+            Mp4Track.createAudioConfig(2, StreamGenerator.SAMPLE_RATE, 2));
+    mVideoIndex = 0;
+    mAudioIndex = 0;
+  }
+
+  @TearDown(Level.Iteration)
+  public void close() {
+    mWriter.close();
+    mFile.delete();
+  }
+
+  @Benchmark
+  public int writeFrame() {
+    int index = mVideoIndex++;
+    byte[] frame = mStream.getVideoFrame(index);
+    System.arraycopy(frame, 0, mScratch, 0, frame.length);
+    long timeUs = mStream.getVideoTimeUs(index);
+    int result = mWriter.writeVideo(mScratch, 0, frame.length, mStream.getWidth(),
+            mStream.getHeight(), mStream.isKeyFrame(index), timeUs);
+
+    // 写入到当前视频时间为止的音频
+    byte[] audio = mStream.getAudioFrame();
+    long audioTimeUs;
+    while ((audioTimeUs = StreamGenerator.getAudioTimeUs(mAudioIndex)) <= timeUs) {
+      result |= mWriter.writeAudio(audio, 0, audio.length, audioTimeUs);
+      mAudioIndex++;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,82 @@
+package com.android.hchina.app.uicore.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * NAL扫描基准 - 单帧扫描、关键帧判断、SPS/PPS解析、Annex-B转AVCC
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-31
+ */
+@State(Scope.Thread)
+public class NalScannerBenchmark {
+  @Param({"480p", "720p", "1080p"})
+  public String resolution;
+
+  private StreamGenerator mStream;
+  private final NalScanner mScanner = new NalScanner();
+  private AvccConverter mConverter;
+  private int mIndex;
+
+  @Setup
+  public void setup() {
+    mStream = StreamGenerator.create(resolution);
+    mConverter = new AvccConverter(new AvcConfig());
+    // 不改写输入，每次转换的数据相同
+    mConverter.setInPlace(false);
+  }
+
+  private byte[] nextFrame() {
+    return mStream.getVideoFrame(mIndex++);
+  }
+
+  // 扫描一帧内所有NAL
+  @Benchmark
+  public int scanFrame() {
+    byte[] frame = nextFrame();
+    int types = 0;
+    mScanner.reset(frame, 0, frame.length);
+    while (mScanner.next()) {
+      types |= 1 << mScanner.getType();
+    }
+    return types;
+  }
+
+  // 关键帧判断(addVideo入口)
+  @Benchmark
+  public boolean isKeyFrame() {
+    byte[] frame = nextFrame();
+    return NalScanner.isKeyFrame(frame, 0, frame.length, mScanner);
+  }
+
+  // 从关键帧中取出SPS/PPS(initSpsAndPps)
+  @Benchmark
+  public int parseSpsPps() {
+    byte[] frame = mStream.getVideoFrame(0);
+    byte[] sps = null;
+    byte[] pps = null;
+    mScanner.reset(frame, 0, frame.length);
+    while (mScanner.next() && (sps == null || pps == null)) {
+      if (mScanner.getType() == NalScanner.NAL_SPS) {
+        sps = mScanner.copy();
+      } else if (mScanner.getType() == NalScanner.NAL_PPS) {
+        pps = mScanner.copy();
+      }
+    }
+    return (sps != null ? sps.length : 0) + (pps != null ? pps.length : 0);
+  }
+
+  // Annex-B转AVCC(写入前的转换)
+  @Benchmark
+  public int convertAvcc() {
+    byte[] frame = nextFrame();
+    return mConverter.convert(frame, 0, frame.length);
+  }
+}
@@ -0,0 +1,60 @@
+package com.android.hchina.app.uicore.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 样本表基准 - 一小时录制(25帧视频+AAC)的样本表构建及moov输出
+ *
+ * 结果按样本计，即每个addSample的平均开销(含最终的trak输出)。
+ *
+ * copyright 2020 上海汁味信息科技有限公司 ----------------------------
+ *            这不是一个自由软件，未经授权不许任何使用和传播。
+ * @author li_guotao
+ * @version $Id:1.0.0$
+ * @since 2020-07-31
+ */
+@State(Scope.Thread)
+public class SampleTableBenchmark {
+  private static final int VIDEO_SAMPLES = 25 * 3600;
+  private static final int AUDIO_SAMPLES = 44100 * 3600 / 1024;
+  private static final int VIDEO_TIMESCALE = 90000;
+
+  private final Mp4Box mBox = new Mp4Box(64 * 1024);
+  private final byte[] mVideoEntry = Mp4Track.createVideoEntry(1280, 720, new byte[16]);
+  private final byte[] mAudioEntry = Mp4Track.createAudioEntry(StreamGenerator.SAMPLE_RATE, 2,
+          Mp4Track.createAudioConfig(2, StreamGenerator.SAMPLE_RATE, 2));
+
+  @Benchmark
+  @OperationsPerInvocation(VIDEO_SAMPLES + AUDIO_SAMPLES)
+  public int buildOneHour() {
+    Mp4Track video = new Mp4Track(1, true, VIDEO_TIMESCALE, VIDEO_TIMESCALE / 25);
+    Mp4Track audio = new Mp4Track(2, false, StreamGenerator.SAMPLE_RATE, StreamGenerator.AAC_FRAME_SIZE);
+    video.setSize(1280, 720);
+    video.setSampleEntry(mVideoEntry);
+    audio.setSampleEntry(mAudioEntry);
+    long offset = 48;
+    int audioIndex = 0;
+    for (int i = 0; i < VIDEO_SAMPLES; i++) {
+      long timeUs = i * 40000L;
+      int size = i % 50 == 0 ? 40000 : 10000;
+      video.addSample(offset, size, timeUs, i % 50 == 0);
+      offset += size;
+      // 音视频交错
+      while (audioIndex < AUDIO_SAMPLES && StreamGenerator.getAudioTimeUs(audioIndex) <= timeUs) {
+        audio.addSample(offset, 186, StreamGenerator.getAudioTimeUs(audioIndex), true);
+        offset += 186;
+        audioIndex++;
+      }
+    }
+    video.finish();
+    audio.finish();
+
+    mBox.reset();
+    video.writeTrak(mBox);
+    audio.writeTrak(mBox);
+    return mBox.size();
+  }
+}